@@ -0,0 +1,321 @@
+package com.tbocek.android.combatmap;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process-wide pool of bitmaps that are no longer needed, so that decodes and
+ * offscreen rendering can reuse their memory instead of allocating new
+ * bitmaps. Pooled bitmaps are kept by config and byte size; from KitKat on, a
+ * bitmap can be reused for any image of the same config that fits in its
+ * allocation, and before that only for one of exactly the same size. The
+ * least recently returned bitmaps are recycled once the pool grows past its
+ * size limit.
+ *
+ * A bitmap must only be released once nothing will draw it again.
+ *
+ * @author Tim Bocek
+ *
+ */
+public final class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /**
+     * Fraction of the app's heap that pooled bitmaps may use.
+     */
+    private static final int POOL_HEAP_FRACTION = 8;
+
+    /**
+     * Largest allocation, as a multiple of the bytes needed, that will be
+     * reused for a smaller image. Keeps small decodes from tying up large
+     * buffers.
+     */
+    private static final int MAX_OVERSIZE_FACTOR = 2;
+
+    /**
+     * Decodes a bitmap with the given options.
+     */
+    public interface Decoder {
+        /**
+         * @param options
+         *            Options to decode with.
+         * @return The decoded bitmap, or null if it could not be decoded.
+         */
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    /**
+     * Largest total size of the pooled bitmaps, in bytes.
+     */
+    private static final long MAX_POOL_BYTES =
+            Runtime.getRuntime().maxMemory() / POOL_HEAP_FRACTION;
+
+    /**
+     * Pooled bitmaps, keyed by config and then by allocation size.
+     */
+    private static final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> sPool =
+            new HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+
+    /**
+     * Pooled bitmaps, least recently released first.
+     */
+    private static final LinkedList<Bitmap> sLru = new LinkedList<Bitmap>();
+
+    private static long sBytes;
+    private static int sHits;
+    private static int sMisses;
+    private static int sReleases;
+    private static int sEvictions;
+
+    /**
+     * Private constructor because this is a utility class.
+     */
+    private BitmapPool() {
+    }
+
+    /**
+     * Gets a mutable, transparent bitmap to draw into, reusing a pooled bitmap
+     * if one fits.
+     *
+     * @param width
+     *            Width of the bitmap.
+     * @param height
+     *            Height of the bitmap.
+     * @param config
+     *            Config of the bitmap.
+     * @return The bitmap.
+     */
+    public static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap b = take(width, height, config);
+        if (b == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        if (b.getWidth() != width || b.getHeight() != height) {
+            reconfigure(b, width, height, config);
+        }
+        b.eraseColor(Color.TRANSPARENT);
+        return b;
+    }
+
+    /**
+     * Decodes a bitmap into a pooled bitmap if one fits, or into a new one
+     * otherwise. The result is mutable, so that it can be released to the
+     * pool later.
+     *
+     * @param options
+     *            Options to decode with. inBitmap and inMutable are set here.
+     * @param width
+     *            Width the decoded bitmap will have.
+     * @param height
+     *            Height the decoded bitmap will have.
+     * @param decoder
+     *            Performs the decode.
+     * @return The decoded bitmap, or null if it could not be decoded.
+     */
+    public static Bitmap decode(BitmapFactory.Options options, int width, int height,
+            Decoder decoder) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return decoder.decode(options);
+        }
+        options.inMutable = true;
+        // Before KitKat, a bitmap can only be decoded into without sampling.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || options.inSampleSize <= 1) {
+            Bitmap.Config config = options.inPreferredConfig != null
+                    ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+            options.inBitmap = take(width, height, config);
+        }
+        if (options.inBitmap == null) {
+            return decoder.decode(options);
+        }
+
+        Bitmap candidate = options.inBitmap;
+        try {
+            Bitmap b = decoder.decode(options);
+            if (b == null) {
+                release(candidate);
+            }
+            return b;
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap did not fit after all.
+            Log.v(TAG, "Could not decode into pooled bitmap", e);
+            options.inBitmap = null;
+            release(candidate);
+            return decoder.decode(options);
+        }
+    }
+
+    /**
+     * Returns a bitmap that is no longer needed to the pool. Immutable and
+     * recycled bitmaps are ignored.
+     *
+     * @param b
+     *            The bitmap, or null.
+     */
+    public static synchronized void release(Bitmap b) {
+        if (b == null || b.isRecycled() || !b.isMutable() || b.getConfig() == null
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        int bytes = byteCount(b);
+        if (bytes > MAX_POOL_BYTES) {
+            b.recycle();
+            return;
+        }
+        TreeMap<Integer, LinkedList<Bitmap>> bySize = sPool.get(b.getConfig());
+        if (bySize == null) {
+            bySize = new TreeMap<Integer, LinkedList<Bitmap>>();
+            sPool.put(b.getConfig(), bySize);
+        }
+        LinkedList<Bitmap> bitmaps = bySize.get(bytes);
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<Bitmap>();
+            bySize.put(bytes, bitmaps);
+        }
+        if (bitmaps.contains(b)) {
+            return;
+        }
+        bitmaps.add(b);
+        sLru.add(b);
+        sBytes += bytes;
+        sReleases++;
+        trimToSize(MAX_POOL_BYTES);
+    }
+
+    /**
+     * Frees pooled bitmaps in response to memory pressure.
+     *
+     * @param level
+     *            The level passed to ComponentCallbacks2.onTrimMemory.
+     */
+    public static synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(MAX_POOL_BYTES / 2);
+        }
+    }
+
+    /**
+     * @return A summary of pool activity, for debugging.
+     */
+    public static synchronized String getStats() {
+        return "hits=" + sHits + " misses=" + sMisses + " releases=" + sReleases
+                + " evictions=" + sEvictions + " pooled=" + sLru.size()
+                + " bytes=" + sBytes + "/" + MAX_POOL_BYTES;
+    }
+
+    /**
+     * Removes and returns a pooled bitmap that an image of the given size and
+     * config can be drawn or decoded into.
+     */
+    private static synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return null;
+        }
+        TreeMap<Integer, LinkedList<Bitmap>> bySize = sPool.get(config);
+        int bytes = width * height * getBytesPerPixel(config);
+        Bitmap found = null;
+        if (bySize != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                Map.Entry<Integer, LinkedList<Bitmap>> entry = bySize.ceilingEntry(bytes);
+                if (entry != null && entry.getKey() <= (long) bytes * MAX_OVERSIZE_FACTOR) {
+                    found = entry.getValue().removeFirst();
+                    removeIfEmpty(bySize, entry.getKey(), entry.getValue());
+                }
+            } else {
+                LinkedList<Bitmap> bitmaps = bySize.get(bytes);
+                if (bitmaps != null) {
+                    Iterator<Bitmap> it = bitmaps.iterator();
+                    while (it.hasNext()) {
+                        Bitmap candidate = it.next();
+                        if (candidate.getWidth() == width && candidate.getHeight() == height) {
+                            it.remove();
+                            found = candidate;
+                            break;
+                        }
+                    }
+                    removeIfEmpty(bySize, bytes, bitmaps);
+                }
+            }
+        }
+
+        if (found == null) {
+            sMisses++;
+            return null;
+        }
+        sLru.remove(found);
+        sBytes -= byteCount(found);
+        sHits++;
+        return found;
+    }
+
+    private static void removeIfEmpty(TreeMap<Integer, LinkedList<Bitmap>> bySize, int bytes,
+            LinkedList<Bitmap> bitmaps) {
+        if (bitmaps.isEmpty()) {
+            bySize.remove(bytes);
+        }
+    }
+
+    /**
+     * Recycles the least recently released bitmaps until the pool fits in the
+     * given size.
+     */
+    private static synchronized void trimToSize(long maxBytes) {
+        while (sBytes > maxBytes && !sLru.isEmpty()) {
+            Bitmap b = sLru.removeFirst();
+            int bytes = byteCount(b);
+            TreeMap<Integer, LinkedList<Bitmap>> bySize = sPool.get(b.getConfig());
+            LinkedList<Bitmap> bitmaps = bySize.get(bytes);
+            bitmaps.remove(b);
+            removeIfEmpty(bySize, bytes, bitmaps);
+            sBytes -= bytes;
+            sEvictions++;
+            b.recycle();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap b, int width, int height, Bitmap.Config config) {
+        b.reconfigure(width, height, config);
+    }
+
+    /**
+     * @return The size of the bitmap's allocation, which bounds what can be
+     *         reused into it.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int byteCount(Bitmap b) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return b.getAllocationByteCount();
+        }
+        return b.getByteCount();
+    }
+
+    /**
+     * A helper function to return the byte usage per pixel of a bitmap based on its configuration.
+     */
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        } else if (config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+}
@@ -5,14 +5,14 @@ import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.RectF;
 import android.graphics.drawable.ColorDrawable;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -42,7 +42,6 @@ import com.tbocek.android.combatmap.TokenDatabase.TagTreeNode;
 import com.tbocek.android.combatmap.cast.CastManager;
 import com.tbocek.android.combatmap.model.Grid;
 import com.tbocek.android.combatmap.model.MapData;
-import com.tbocek.android.combatmap.model.MapDrawer;
 import com.tbocek.android.combatmap.model.MapDrawer.FogOfWarMode;
 import com.tbocek.android.combatmap.model.MultiSelectManager;
 import com.tbocek.android.combatmap.model.primitives.BackgroundImage;
@@ -184,6 +183,19 @@ public final class CombatMap extends ActionBarActivity {
 	 * images, in world space.
 	 */
 	private PointF mNewObjectLocationWorldSpace;
+
+    /**
+     * Dialog showing the progress of a background image import, or null if
+     * no import is running.
+     */
+    private ProgressDialog mImportProgressDialog;
+
+    /**
+     * The background image import in progress, or null if none is.  Kept
+     * across activity instances so that an import survives rotation.  Only
+     * accessed on the UI thread.
+     */
+    private static BackgroundImageImportTask sCurrentImport;
 	
 	private ToggleButton mMeasuringToggle;
 
@@ -515,6 +527,23 @@ public final class CombatMap extends ActionBarActivity {
     private ToggleButton mDiceToggle;
     private Dice mDice;
 
+    /**
+     * Name of the map that was loading when the previous instance of this
+     * activity was torn down, or null.
+     */
+    private String mInterruptedLoadName;
+
+    /**
+     * Shows the map once a background load finishes.
+     */
+    private final MapLoadUtils.LoadFinishedCallback mMapLoadedCallback =
+            new MapLoadUtils.LoadFinishedCallback() {
+        @Override
+        public void loadFinished(boolean success) {
+            onMapLoaded();
+        }
+    };
+
     /**
 	 * Given a combat mode, returns the snap to grid preference name associated
 	 * with that combat mode.
@@ -528,24 +557,81 @@ public final class CombatMap extends ActionBarActivity {
 	}
 
 	/**
-	 * Loads the map with the given name (no extension), and replaces the
-	 * currently loaded map with it.
+	 * Starts loading the map with the given name (no extension) in the
+	 * background.  The currently shown map stays up, read-only, until the new
+	 * map replaces it.
 	 * 
 	 * @param name
 	 *            Name of the map to load.
 	 */
 	public void loadMap(final String name) {
-        MapLoadUtils.loadMap(this, name, null);
+        this.showLoading();
+        MapLoadUtils.loadMap(this, name, this.mMapLoadedCallback);
+	}
+
+    /**
+     * Shows the current map, read-only, while another map loads.
+     */
+    private void showLoading() {
+        if (mData == null) {
+            // Nothing to show while loading, so show an empty map.
+            mData = MapData.createEmpty();
+        }
+        if (mCombatView != null) {
+            this.mCombatView.setData(mData);
+            this.mCombatView.setLoading(true);
+        }
+    }
+
+    /**
+     * Replaces the shown map with the map that finished loading.
+     */
+    private void onMapLoaded() {
         setTitle();
 		mData = MapData.getInstance();
         if (mCombatView != null) {
             this.mCombatView.setData(mData);
+            this.mCombatView.setLoading(false);
         }
 
         if (mTagNavigator != null) {
             this.mTagNavigator.setTagPath(mData.getLastTag());
         }
-	}
+        if (mTokenDatabase != null) {
+            mData.getTokens().deplaceholderize(mTokenDatabase);
+            if (mCombatView != null) {
+                mCombatView.alertTokensChanged();
+            }
+        }
+        if (mTokenSelector != null) {
+            this.mTokenSelector.setShouldDrawDark(mData.getGrid().isDark());
+        }
+        if (mDice != null) {
+            this.mDice.setIsBackgroundDark(mData.getGrid().isDark());
+        }
+        this.loadBackgroundImages();
+        this.setUndoRedoEnabled();
+        this.supportInvalidateOptionsMenu();
+    }
+
+    /**
+     * Loads the background images of the current map, those nearest the
+     * visible area first, and redraws the map as each one loads.
+     */
+    private void loadBackgroundImages() {
+        RectF viewport = mCombatView != null
+                ? new RectF(0, 0, mCombatView.getWidth(), mCombatView.getHeight())
+                : new RectF();
+        mData.getBackgroundImages().loadImages(this, mData.getWorldSpaceTransformer(), viewport,
+                new Runnable() {
+            @Override
+            public void run() {
+                if (mCombatView != null) {
+                    mCombatView.refreshMap();
+                }
+            }
+        });
+    }
 
 
 
@@ -556,22 +642,9 @@ public final class CombatMap extends ActionBarActivity {
 		if (requestCode == REQUEST_PICK_BACKGROUND_IMAGE) {
 			if (resultCode == Activity.RESULT_OK) {
 				Uri selectedImage = data.getData();
-				DataManager dm = new DataManager(this.getApplicationContext());
-				try {
-					String newFileName = dm.copyToMapDataFiles(selectedImage);
-					BackgroundImage image = mData.getBackgroundImages().addImage(newFileName,
-							this.mNewObjectLocationWorldSpace);
-                    mData.getBackgroundImages().loadImage(this, image, new Runnable() {
-                        @Override
-                        public void run() {
-                            mCombatView.refreshMap();
-                        }
-                    });
-					this.mCombatView.refreshMap();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+                sCurrentImport = new BackgroundImageImportTask(
+                        this, this.mNewObjectLocationWorldSpace);
+                sCurrentImport.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, selectedImage);
 			}
 		}
 	}
@@ -608,20 +681,24 @@ public final class CombatMap extends ActionBarActivity {
 	 * Attempts to load map data, or creates a new map if this fails.
 	 */
 	private void loadOrCreateMap() {
-		if (MapData.hasValidInstance()) {
+        if (MapLoadUtils.isLoading()) {
+            // Follow the load, which may have been started by an earlier
+            // instance of this activity.
+            this.showLoading();
+            MapLoadUtils.reattachLoad(this, null, this.mMapLoadedCallback);
+        } else if (this.mInterruptedLoadName != null) {
+            // The process was killed while the map was loading.
+            this.loadMap(this.mInterruptedLoadName);
+        } else if (MapData.hasValidInstance()) {
 			mData = MapData.getInstance();
             if (this.mCombatView != null) {
                 this.mCombatView.setData(mData);
             }
+            this.loadBackgroundImages();
 		} else {
 			this.loadMap(DataManager.TEMP_MAP_NAME);
 		}
-        mData.getBackgroundImages().loadImages(this, new Runnable() {
-            @Override
-            public void run() {
-                mCombatView.refreshMap();
-            }
-        });
+        this.mInterruptedLoadName = null;
 		this.setUndoRedoEnabled();
 
 	}
@@ -641,6 +718,10 @@ public final class CombatMap extends ActionBarActivity {
                 .getDefaultSharedPreferences(this.getApplicationContext());
         PreferenceManager.setDefaultValues(this, R.xml.settings, false);
 
+        if (savedInstanceState != null) {
+            this.mInterruptedLoadName =
+                    savedInstanceState.getString(MapLoadUtils.STATE_LOADING_MAP_NAME);
+        }
         this.loadOrCreateMap();
 
         setCorrectTheme();
@@ -673,8 +754,7 @@ public final class CombatMap extends ActionBarActivity {
 	}
 	
 	private void initializeUi() {
-        // TODO: get this off the main thread
-        Information.loadInfoBitmap(this);
+        SpriteCache.loadAsync(this);
 
         // Set up the tabs
 		this.setContentView(R.layout.combat_map_layout);
@@ -688,6 +768,7 @@ public final class CombatMap extends ActionBarActivity {
 		if (mCombatView == null) {
 			this.mCombatView = new CombatView(this);
             this.mCombatView.setData(mData);
+            this.mCombatView.setLoading(MapLoadUtils.isLoading());
 		}
 		this.registerForContextMenu(this.mCombatView);
 		this.mCombatView.setNewTextEntryListener(this.mOnNewTextEntryListener);
@@ -698,7 +779,6 @@ public final class CombatMap extends ActionBarActivity {
 
         mLoader = TokenImageManager.getInstance().createLoader(this, new Handler());
         mLoader.start();
-        mLoader.getLooper(); // Make sure loader thread is ready to go.
         mTokenSelector.setLoader(mLoader);
         mCombatView.setLoader(mLoader);
 
@@ -860,24 +940,10 @@ public final class CombatMap extends ActionBarActivity {
 
     private void exportToChromecast() {
         if (mCastManager.isCasting()) {
-            // Create a 1080p 16x9 bitmap
-            Bitmap b = mCastManager.getCastBuffer();
-            Canvas canvas = new Canvas(b);
-
-            new MapDrawer()
-                    .drawGridLines(true)
-                    .drawGmNotes(false)
-                    .drawTokens(true)
-                    .areTokensManipulable(true)
-                    .drawAnnotations(true)
-                    .backgroundFogOfWar(FogOfWarMode.CLIP)
-                    .useCustomWorldSpaceTransformer(mData.getChromecastWorldSpaceTransformer())
-                    .draw(canvas, mData, canvas.getClipBounds());
-
-            try {
-                mCastManager.updateImage(b);
-            } catch (IOException e) {
-                Log.w(TAG, "Error updating Chromecast image", e);
+            // The frame is rendered in the background from a snapshot.
+            MapData snapshot = MapData.getCopy();
+            if (snapshot != null) {
+                mCastManager.requestFrame(snapshot);
             }
         }
     }
@@ -1106,6 +1172,8 @@ public final class CombatMap extends ActionBarActivity {
 			}
             this.setFilenamePreference(null);
 			Grid g = mData.getGrid();
+            MapLoadUtils.cancelLoad();
+            this.mCombatView.setLoading(false);
 			MapData.clear();
 			mData = MapData.getInstance();
 			// Make sure the new map data has the same grid.
@@ -1193,18 +1261,89 @@ public final class CombatMap extends ActionBarActivity {
 		}
 		this.mCombatView.getMultiSelect().selectNone();
 
-        SaverService.startSavingMap(getApplicationContext(), filename);
+        // The shown data is only a placeholder until the load finishes.
+        if (!MapLoadUtils.isLoading()) {
+            SaverService.startSavingMap(getApplicationContext(), filename);
+        }
         SaverService.startSavingTokenDatabase(getApplicationContext());
 
         mLoader.clearQueue();
+        DeveloperMode.logTokenImageStats();
+        DeveloperMode.logBitmapPoolStats();
+        DeveloperMode.logTokenAtlasStats();
+        DeveloperMode.logCastFrameStats();
         TokenImageManager.getInstance().recycleAll();
         super.onPause();
 	}
 
+    @Override
+    protected void onSaveInstanceState(final Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (MapLoadUtils.isLoading()) {
+            outState.putString(MapLoadUtils.STATE_LOADING_MAP_NAME,
+                    MapLoadUtils.getLoadingMapName());
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
+        MapLoadUtils.detachLoad(this);
         mLoader.quit();
+        if (sCurrentImport != null) {
+            sCurrentImport.detach(this);
+        }
+        this.dismissImportProgress();
+    }
+
+    /**
+     * Shows the progress of a background image import, opening the progress
+     * dialog if it is not open yet.
+     *
+     * @param tilesDone Tiles of the image's pyramid built so far.
+     * @param tilesTotal Tiles in the image's pyramid, or 0 if not known yet.
+     */
+    private void showImportProgress(int tilesDone, int tilesTotal) {
+        if (mImportProgressDialog == null) {
+            mImportProgressDialog = new ProgressDialog(this);
+            mImportProgressDialog.setTitle(getString(R.string.please_wait));
+            mImportProgressDialog.setMessage(getString(R.string.importing_background_image));
+            mImportProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mImportProgressDialog.setCancelable(false);
+            mImportProgressDialog.show();
+        }
+        if (tilesTotal > 0) {
+            mImportProgressDialog.setMax(tilesTotal);
+            mImportProgressDialog.setProgress(tilesDone);
+        }
+    }
+
+    private void dismissImportProgress() {
+        if (mImportProgressDialog != null) {
+            mImportProgressDialog.dismiss();
+            mImportProgressDialog = null;
+        }
+    }
+
+    /**
+     * Adds a newly imported background image to the map.
+     *
+     * @param fileName Name of the imported map data image.
+     * @param locationWorldSpace Where to place the image, in world space.
+     */
+    private void addImportedImage(String fileName, PointF locationWorldSpace) {
+        BackgroundImage image = mData.getBackgroundImages().addImage(fileName,
+                locationWorldSpace);
+        mData.getBackgroundImages().loadImage(this, image,
+                mData.getWorldSpaceTransformer(),
+                new RectF(0, 0, mCombatView.getWidth(), mCombatView.getHeight()),
+                new Runnable() {
+            @Override
+            public void run() {
+                mCombatView.refreshMap();
+            }
+        });
+        mCombatView.refreshMap();
     }
 
 	@Override
@@ -1269,6 +1408,11 @@ public final class CombatMap extends ActionBarActivity {
         mCastManager.attachCallbacks();
 
 		this.loadOrCreateMap();
+        if (sCurrentImport != null) {
+            // Follow the import, which may have been started by an earlier
+            // instance of this activity.
+            sCurrentImport.attach(this);
+        }
 
 		this.reloadPreferences();
 
@@ -1663,7 +1807,7 @@ public final class CombatMap extends ActionBarActivity {
 		protected void onPostExecute(Void result) {
 			CombatMap.this.mTokenDatabase = TokenDatabase
 					.getInstance(CombatMap.this.getApplicationContext());
-			MapData d = MapData.getInstance();
+			MapData d = CombatMap.this.mData;
 			d.getTokens().deplaceholderize(CombatMap.this.mTokenDatabase);
             mCombatView.alertTokensChanged();
 			
@@ -1676,6 +1820,103 @@ public final class CombatMap extends ActionBarActivity {
 		}
 	}
 
+    /**
+     * Task that imports a picked background image off the UI thread, building
+     * its tile pyramid, and adds it to the map once done.  Holds no reference
+     * to the activity beyond the one attached to it, so that an activity
+     * recreated during the import can attach itself and take over, as
+     * MapLoadUtils does for map loads.
+     */
+    private static final class BackgroundImageImportTask
+            extends AsyncTask<Uri, Integer, String> {
+        private final Context mAppContext;
+        private final PointF mLocationWorldSpace;
+
+        // Only accessed on the UI thread.
+        private CombatMap mActivity;
+        private int mTilesDone;
+        private int mTilesTotal;
+        private boolean mFinished;
+        private String mFileName;
+
+        BackgroundImageImportTask(CombatMap activity, PointF locationWorldSpace) {
+            mAppContext = activity.getApplicationContext();
+            mLocationWorldSpace = locationWorldSpace;
+            attach(activity);
+        }
+
+        /**
+         * Hands the import to the given activity, which shows its progress
+         * and receives the image once imported.
+         */
+        void attach(CombatMap activity) {
+            mActivity = activity;
+            if (mFinished) {
+                finish();
+            } else {
+                activity.showImportProgress(mTilesDone, mTilesTotal);
+            }
+        }
+
+        /**
+         * Drops the given activity if it is the one attached, so that the
+         * import does not keep a destroyed activity alive.  An import that
+         * finishes with no activity attached waits for the next one.
+         */
+        void detach(CombatMap activity) {
+            if (mActivity == activity) {
+                mActivity = null;
+            }
+        }
+
+        @Override
+        protected String doInBackground(Uri... params) {
+            DataManager dm = new DataManager(mAppContext);
+            try {
+                return dm.importMapDataImage(params[0], new MapImagePyramid.ProgressListener() {
+                    @Override
+                    public void onProgress(int tilesDone, int tilesTotal) {
+                        publishProgress(tilesDone, tilesTotal);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "Could not import background image", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mTilesDone = values[0];
+            mTilesTotal = values[1];
+            if (mActivity != null) {
+                mActivity.showImportProgress(mTilesDone, mTilesTotal);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String newFileName) {
+            mFinished = true;
+            mFileName = newFileName;
+            if (mActivity != null) {
+                finish();
+            }
+        }
+
+        /**
+         * Adds the imported image to the attached activity's map.
+         */
+        private void finish() {
+            if (sCurrentImport == this) {
+                sCurrentImport = null;
+            }
+            mActivity.dismissImportProgress();
+            if (mFileName != null && !mActivity.isFinishing()) {
+                mActivity.addImportedImage(mFileName, mLocationWorldSpace);
+            }
+        }
+    }
+
 	/**
 	 * Callback defining an action mode for selecting multiple tokens.
 	 * 
@@ -1,32 +1,41 @@
 package com.tbocek.android.combatmap;
 
-import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Environment;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-import com.google.common.base.Joiner;
 import com.tbocek.android.combatmap.model.MapData;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
+import com.tbocek.android.combatmap.model.io.MapDataSerializer;
 import com.tbocek.android.combatmap.model.primitives.Units;
 
 import org.apache.commons.io.FileUtils;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 
 /**
  * This class manages saved map and token data and provides an interface to
@@ -51,7 +60,12 @@ public final class DataManager {
     /**
      * Extension to use for map files.
      */
-    private static final String MAP_EXTENSION = ".map";
+    private static final String MAP_EXTENSION = SavedMapFiles.MAP_EXTENSION;
+
+    /**
+     * Preference key that turns on journaled map saves.
+     */
+    public static final String JOURNALED_SAVES_PREFERENCE = "journaled_saves";
 
     /**
      * Tag to add to files that are map previews.
@@ -67,7 +81,29 @@ public final class DataManager {
     /**
      * Name of the temporary map.
      */
-    public static final String TEMP_MAP_NAME = "tmp";
+    public static final String TEMP_MAP_NAME = SavedMapFiles.TEMP_MAP_NAME;
+
+    /**
+     * Name of the file that indexes the saved maps.
+     */
+    static final String MAP_CATALOG_FILE_NAME = "maps.catalog";
+
+    /**
+     * Largest width or height of a thumbnail embedded in the map catalog, in
+     * pixels.
+     */
+    private static final int THUMBNAIL_SIZE = 128;
+
+    /**
+     * JPEG quality of thumbnails embedded in the map catalog.
+     */
+    private static final int THUMBNAIL_JPEG_QUALITY = 75;
+
+    /**
+     * Whether files left half written by an earlier process have been
+     * cleaned up.
+     */
+    private static boolean sPartialFilesDeleted;
 
     /**
      * The context that this data manager goes through to read and write data.
@@ -83,6 +119,23 @@ public final class DataManager {
     public DataManager(final Context context) {
         this.mContext = context;
         this.ensureExternalDirectoriesCreated();
+        deletePartialFilesOnce(this.getSavedMapFiles());
+    }
+
+    /**
+     * Deletes the files that saves interrupted by the process dying left
+     * half written. Only done once per process, before any data manager
+     * exists that could be saving.
+     */
+    private static synchronized void deletePartialFilesOnce(SavedMapFiles files) {
+        if (sPartialFilesDeleted) {
+            return;
+        }
+        sPartialFilesDeleted = true;
+        int deleted = files.deletePartialFiles();
+        if (deleted > 0) {
+            Log.w(TAG, "Deleted " + deleted + " files left by interrupted saves");
+        }
     }
 
     /**
@@ -92,12 +145,29 @@ public final class DataManager {
      *            Name of the save file without the extension to delete.
      */
     public void deleteSaveFile(final String fileName) {
-        if (!this.getSavedMapFile(fileName).delete()) {
+        if (fileName.equals(this.resolveMapName(TEMP_MAP_NAME))) {
+            // The autosave points at this map, so keep its contents around as
+            // the temporary map instead of deleting them.
+            this.getJournal(TEMP_MAP_NAME).discard();
+            if (!this.getSavedMapFile(fileName).renameTo(
+                    this.getSavedMapFile(TEMP_MAP_NAME))) {
+                Log.w(TAG, "Could not move map file " + fileName + " to autosave");
+            }
+            if (!this.getJournalFile(fileName).renameTo(
+                    this.getJournalFile(TEMP_MAP_NAME))) {
+                Log.w(TAG, "Could not move map journal " + fileName + " to autosave");
+            }
+            this.removeTempMapLink();
+        }
+        if (this.getSavedMapFile(fileName).exists()
+                && !this.getSavedMapFile(fileName).delete()) {
             Log.w(TAG, "Could not delete map file " + fileName);
         }
         if (!this.getSavedMapPreviewImageFile(fileName).delete()) {
             Log.w(TAG, "Could not delete map preview image " + fileName);
         }
+        this.getJournal(fileName).discard();
+        this.getCatalog().remove(fileName);
     }
 
     /**
@@ -107,7 +177,9 @@ public final class DataManager {
      *            Name of the token to delete.
      */
     public void deleteTokenImage(final String fileName) {
-        if (!this.getTokenImageFile(fileName).delete()) {
+        File tokenImageFile = this.getTokenImageFile(fileName);
+        this.getTokenThumbnailCache().remove(tokenImageFile);
+        if (!tokenImageFile.delete()) {
             Log.w(TAG, "Could not delete token image " + fileName);
         }
     }
@@ -196,8 +268,107 @@ public final class DataManager {
      * @return The saved map's file object.
      */
     public File getSavedMapFile(String mapName) {
-        File sdcard = this.getSavedMapDir();
-        return new File(sdcard, mapName + MAP_EXTENSION);
+        return this.getSavedMapFiles().getMapFile(mapName);
+    }
+
+    /**
+     * @return The layout of the saved map directory.
+     */
+    private SavedMapFiles getSavedMapFiles() {
+        return new SavedMapFiles(this.getSavedMapDir());
+    }
+
+    /**
+     * Gets the journal of incremental changes for a saved map with the given
+     * name.
+     *
+     * @param mapName
+     *            Name of the map, without extension.
+     * @return The saved map's journal.
+     */
+    private MapJournal getJournal(String mapName) {
+        return MapJournal.forSnapshot(this.getSavedMapFile(mapName),
+                this.getJournalFile(mapName));
+    }
+
+    /**
+     * @param mapName
+     *            Name of the map, without extension.
+     * @return File object for the map's journal.
+     */
+    File getJournalFile(String mapName) {
+        return this.getSavedMapFiles().getJournalFile(mapName);
+    }
+
+    /**
+     * @return The cache of scaled custom token images.
+     */
+    private TokenThumbnailCache getTokenThumbnailCache() {
+        return TokenThumbnailCache.forDirectory(
+                new File(this.mContext.getCacheDir(), TokenThumbnailCache.DIRECTORY_NAME));
+    }
+
+    /**
+     * @return The index of saved maps.
+     */
+    private MapCatalog getCatalog() {
+        return MapCatalog.forFile(
+                new File(this.getSavedMapDir(), MAP_CATALOG_FILE_NAME));
+    }
+
+    /**
+     * Finds the map that actually stores the given map's data. Named saves
+     * do not write a second copy to the temporary map; instead, the temporary
+     * map links to the named map that was last saved.
+     *
+     * @param mapName
+     *            Name of the map, without extension.
+     * @return Name of the map file to read.
+     */
+    String resolveMapName(String mapName) {
+        try {
+            return this.getSavedMapFiles().resolveMapName(mapName);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read autosave link", e);
+            return mapName;
+        }
+    }
+
+    /**
+     * Makes the temporary map stand on its own again.
+     */
+    private void removeTempMapLink() {
+        if (!this.getSavedMapFiles().removeTempMapLink()) {
+            Log.w(TAG, "Could not delete autosave link");
+        }
+    }
+
+    /**
+     * Writes the map data so that the target file holds either its old
+     * contents or the complete new contents, even if the process dies during
+     * the save. The data is streamed once into a sibling file, synced to
+     * disk, and renamed over the target.
+     *
+     * @param data
+     *            The map data to write.
+     * @param target
+     *            The file to replace.
+     * @param snapshotId
+     *            ID written into the snapshot, which its journal is matched
+     *            against, or MapData.NO_SNAPSHOT_ID if it has no journal.
+     * @throws IOException
+     *             On write error.
+     */
+    static void writeMapAtomically(final MapData data, File target, final long snapshotId)
+            throws IOException {
+        SavedMapFiles.writeAtomically(target, new SavedMapFiles.Contents() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out));
+                data.serialize(new MapDataSerializer(writer), snapshotId);
+                writer.flush();
+            }
+        });
     }
 
     /**
@@ -208,7 +379,7 @@ public final class DataManager {
      *            Name of the map, without extension.
      * @return The saved map's preview's file object.
      */
-    private File getSavedMapPreviewImageFile(String mapName) {
+    File getSavedMapPreviewImageFile(String mapName) {
         File sdcard = this.getSavedMapDir();
         return new File(sdcard, mapName + PREVIEW_EXTENSION);
     }
@@ -266,104 +437,238 @@ public final class DataManager {
     }
 
     /**
-     * Loads the map from the given name. This takes care of looking up the full
-     * path.
-     * 
+     * Reads the map with the given name without making it the current map.
+     * This takes care of looking up the full path and applying the map's
+     * journal, and may be called off the UI thread.
+     *
      * @param name
      *            The name of the map to load, without the extension.
-     * @return An error string, or null if no error occurred.
-     * @throws IOException
-     *             On read error.
+     * @param listener
+     *            Receives progress while the map is read, and can abandon the
+     *            read. May be null.
+     * @param errors
+     *            Receives a message for each error that occurred.
+     * @return The map data that was read, empty map data if the temporary map
+     *         has not been saved yet, or null if there is nothing to load.
+     * @throws InterruptedIOException
+     *             If the listener abandoned the read.
      */
-    public String loadMapName(final String name) {
-        File f = this.getSavedMapFile(name);
-        if (f.exists()) {
-            FileInputStream s = null;
-            try {
-                s = new FileInputStream(f);
-            } catch (IOException e) {
-                return "Could not open file: " + e.toString();
-            }
+    public MapData readMapName(final String name, final MapReadListener listener,
+            final List<String> errors) throws InterruptedIOException {
+        String fileName = this.resolveMapName(name);
+        File f = this.getSavedMapFile(fileName);
+        if (!f.exists()) {
+            return name.equals(TEMP_MAP_NAME) ? MapData.createEmpty() : null;
+        }
 
-            MapDataDeserializer deserializer = MapData.loadFromStream(
-                    s, TokenDatabase.getInstanceOrNull());
+        final ProgressInputStream s;
+        try {
+            s = new ProgressInputStream(new FileInputStream(f), f.length(), listener);
+        } catch (IOException e) {
+            errors.add("Could not open file: " + e.toString());
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(s));
+        MapDataDeserializer deserializer = new MapDataDeserializer(reader);
+        TokenDatabase tokens = TokenDatabase.getInstanceOrNull();
 
+        MapData data = null;
+        try {
+            data = MapData.deserialize(deserializer, tokens,
+                    new MapData.DeserializationListener() {
+                @Override
+                public void onSectionRead(int sectionsRead) throws InterruptedIOException {
+                    s.sectionRead(sectionsRead);
+                }
+            });
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (Exception e) {
+            deserializer.addError(e.toString());
+        } finally {
             try {
-                s.close();
+                reader.close();
             } catch (IOException e) {
                 // Intentionally ignored.
             }
+        }
 
-            if (deserializer.hasErrors()) {
-                return Joiner.on("--------\n").join(deserializer.errorMessages());
-            }
-
-        } else if (name.equals(TEMP_MAP_NAME)) {
-            MapData.clear();
+        if (data != null && !deserializer.hasErrors()) {
+            this.getJournal(fileName).replay(data, tokens, deserializer);
         }
-        return null;
+        errors.addAll(deserializer.errorMessages());
+        return data;
     }
 
     /**
-     * Loads a preview image for the given save file.
-     * 
-     * @param saveFile
-     *            Save file to load a preview for. Do not provide a file
-     *            extension.
-     * @return Loaded image.
-     * @throws IOException
-     *             On read error.
+     * Receives progress while a map is read.
      */
-    public Bitmap loadPreviewImage(final String saveFile) throws IOException {
-        FileInputStream s =
-                new FileInputStream(this.getSavedMapPreviewImageFile(saveFile));
-        Bitmap b = BitmapFactory.decodeStream(s);
-        s.close();
-        return b;
+    public interface MapReadListener {
+        /**
+         * Called periodically while a map is read.
+         *
+         * @param bytesRead
+         *            Bytes of the map file read so far.
+         * @param totalBytes
+         *            Size of the map file.
+         * @param sectionsRead
+         *            Map sections read so far, out of MapData.SECTION_COUNT.
+         * @throws InterruptedIOException
+         *             To abandon the read.
+         */
+        void onProgress(long bytesRead, long totalBytes, int sectionsRead)
+                throws InterruptedIOException;
     }
 
-    private interface BitmapLoader {
-        Bitmap load(BitmapFactory.Options options);
+    /**
+     * Stream that reports read progress to a MapReadListener.
+     */
+    private static final class ProgressInputStream extends FilterInputStream {
+        /**
+         * Report progress at most this often, in bytes.
+         */
+        private static final long REPORT_INTERVAL_BYTES = 64 * 1024;
+
+        private final long mTotalBytes;
+        private final MapReadListener mListener;
+        private long mBytesRead;
+        private long mLastReported;
+        private int mSectionsRead;
+
+        ProgressInputStream(InputStream in, long totalBytes, MapReadListener listener) {
+            super(in);
+            this.mTotalBytes = totalBytes;
+            this.mListener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                this.bytesRead(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                this.bytesRead(n);
+            }
+            return n;
+        }
+
+        void sectionRead(int sectionsRead) throws InterruptedIOException {
+            this.mSectionsRead = sectionsRead;
+            this.report();
+        }
+
+        private void bytesRead(int n) throws InterruptedIOException {
+            this.mBytesRead += n;
+            if (this.mBytesRead - this.mLastReported >= REPORT_INTERVAL_BYTES) {
+                this.report();
+            }
+        }
+
+        private void report() throws InterruptedIOException {
+            this.mLastReported = this.mBytesRead;
+            if (this.mListener != null) {
+                this.mListener.onProgress(this.mBytesRead, this.mTotalBytes, this.mSectionsRead);
+            }
+        }
     }
 
+    /**
+     * Loads a custom token image scaled to fit the given size.  The scaled image is cached on
+     * disk, so that only the first load of each image has to decode it at full size.
+     *
+     * @param filename Name of the token image file.
+     * @param existingBuffer Bitmap to decode into if possible, or null.
+     * @param maxWidth Width to load the image at, in dp.
+     * @param maxHeight Height to load the image at, in dp.
+     * @return The loaded image, or null if it could not be loaded.
+     */
     public Bitmap loadTokenImage(final String filename, Bitmap existingBuffer, int maxWidth,
                                  int maxHeight) {
-        final String tokenImageFilePath = this.getTokenImageFile(filename).getAbsolutePath();
-        return loadTokenImage(existingBuffer, maxWidth, maxHeight, new BitmapLoader() {
+        File source = this.getTokenImageFile(filename);
+        int widthPx = (int) Units.dpToPx(maxWidth);
+        int heightPx = (int) Units.dpToPx(maxHeight);
+        TokenThumbnailCache cache = this.getTokenThumbnailCache();
+
+        File thumbnail = cache.get(source, widthPx, heightPx);
+        if (thumbnail == null) {
+            Bitmap full = loadTokenImage(null, maxWidth, maxHeight, fileLoader(source));
+            if (full == null) {
+                return null;
+            }
+            thumbnail = cache.put(source, full, widthPx, heightPx);
+            if (thumbnail == null) {
+                // Could not cache it; use the image we already have.
+                return full;
+            }
+            BitmapPool.release(full);
+        }
+
+        Bitmap b = loadTokenImage(existingBuffer, maxWidth, maxHeight, fileLoader(thumbnail));
+        if (b == null) {
+            Log.w(TAG, "Could not decode cached thumbnail " + thumbnail);
+            cache.discard(thumbnail);
+            b = loadTokenImage(null, maxWidth, maxHeight, fileLoader(source));
+        }
+        return b;
+    }
+
+    private static BitmapPool.Decoder fileLoader(File f) {
+        final String path = f.getAbsolutePath();
+        return new BitmapPool.Decoder() {
             @Override
-            public Bitmap load(BitmapFactory.Options options) {
-                return BitmapFactory.decodeFile(tokenImageFilePath, options);
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(path, options);
             }
-        });
+        };
+    }
+
+    /**
+     * Loads a built-in token image.  The image is cut from the token atlas once it has been
+     * built, so that browsing the built-in tokens doesn't decode each resource.
+     *
+     * @param resourceName Name of the token's drawable resource.
+     * @param resourceId ID of the token's drawable resource.
+     * @param existingBuffer Bitmap to decode into if possible, or null.
+     * @param dimDp Width and height to load the image at, in dp.
+     * @return The loaded image, or null if it could not be loaded.
+     */
+    public Bitmap loadBuiltInTokenImage(String resourceName, int resourceId,
+                                        Bitmap existingBuffer, int dimDp) {
+        Bitmap b = TokenAtlas.load(resourceName, existingBuffer, (int) Units.dpToPx(dimDp));
+        if (b != null) {
+            return b;
+        }
+        return loadTokenImage(resourceId, existingBuffer, dimDp, dimDp);
     }
 
     public Bitmap loadTokenImage(final int resource_id, Bitmap existingBuffer, int maxWidth,
                                  int maxHeight) {
-        return loadTokenImage(existingBuffer, maxWidth, maxHeight, new BitmapLoader() {
+        return loadTokenImage(existingBuffer, maxWidth, maxHeight, new BitmapPool.Decoder() {
             @Override
-            public Bitmap load(BitmapFactory.Options options) {
+            public Bitmap decode(BitmapFactory.Options options) {
                 return BitmapFactory.decodeResource(mContext.getResources(), resource_id, options);
             }
         });
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private Bitmap loadTokenImage(Bitmap existingBuffer, int maxWidthDp, int maxHeightDp,
-                                  BitmapLoader loader) {
+                                  BitmapPool.Decoder loader) {
 
         int maxWidthPx = (int) Units.dpToPx(maxWidthDp);
         int maxHeightPx = (int) Units.dpToPx(maxHeightDp);
 
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
-        loader.load(options);
+        loader.decode(options);
         options.inJustDecodeBounds = false;
 
-        // Make bitmaps mutable so they are reusable.
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            options.inMutable = true;
-        }
-
         // Set the sample size so that we load into maxWidth and maxHeight.
         options.inSampleSize = 1;
         while (options.outWidth / options.inSampleSize > maxWidthPx &&
@@ -371,37 +676,13 @@ public final class DataManager {
             options.inSampleSize *= 2;  // Sample size must be a power of 2.
         }
 
-        // Detect whether we can reuse the existing buffer.
-        if (existingBuffer != null) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && existingBuffer.isMutable()
-                    && canUseForInBitmap(existingBuffer, options)) {
-                options.inBitmap = existingBuffer;
-            } else {
-                try {
-                    existingBuffer.recycle();
-                } catch (NullPointerException e) {
-                    Log.w(TAG, "NPE when attempting to recycle a bitmap", e);
-                }
-            }
-        }
-
-        // Attempt to load this bitmap into the existing buffer.  If this fails, recycle the bitmap
-        // and load a bitmap into a new buffer.
-        Bitmap b;
-        try {
-            b = loader.load(options);
-        } catch (IllegalArgumentException e) {
-            options.inBitmap = null;
-            if (existingBuffer != null) {
-                try {
-                    existingBuffer.recycle();
-                } catch (NullPointerException ex) {
-                    Log.w(TAG, "NPE when attempting to recycle a bitmap", ex);
-                }
-            }
-            b = loader.load(options);
-        }
-        return b;
+        // The existing buffer goes back to the pool, so the decode can reuse
+        // it or whichever pooled bitmap fits best.
+        BitmapPool.release(existingBuffer);
+        return BitmapPool.decode(options,
+                (options.outWidth + options.inSampleSize - 1) / options.inSampleSize,
+                (options.outHeight + options.inSampleSize - 1) / options.inSampleSize,
+                loader);
     }
 
     /**
@@ -421,6 +702,39 @@ public final class DataManager {
         return mapFiles;
     }
 
+    /**
+     * Lists the saved maps from the map catalog, which holds what the Load
+     * screen needs to show each map without opening the map or its preview.
+     * Maps that changed since they were cataloged are read again, so this
+     * should not be called on the UI thread.
+     *
+     * @return Catalog entries for the saved maps, ordered by name.
+     */
+    List<MapCatalog.Entry> savedMapCatalog() {
+        return this.getCatalog().getEntries(new MapCatalog.Source() {
+            @Override
+            public Collection<String> getSavedMaps() {
+                return DataManager.this.savedFiles();
+            }
+
+            @Override
+            public File getMapFile(String name) {
+                return DataManager.this.getSavedMapFile(name);
+            }
+
+            @Override
+            public File getJournalFile(String name) {
+                return DataManager.this.getJournalFile(name);
+            }
+
+            @Override
+            public byte[] loadThumbnail(String name) {
+                return DataManager.loadThumbnail(
+                        DataManager.this.getSavedMapPreviewImageFile(name));
+            }
+        });
+    }
+
     /**
      * Checks whether a saved map exists.
      * 
@@ -432,43 +746,42 @@ public final class DataManager {
         return this.getSavedMapFile(file).exists();
     }
 
-    Queue<MapData> dataToSave = new LinkedList<MapData>();
-    /**
-     * Checkpoints a copy of the map data for saving.
-     */
-    public void checkpointForSaving() {
-        dataToSave.add(MapData.getCopy());
-    }
-
     /**
      * Saves the map to the given name. This takes care of looking up the full
-     * path.
+     * path. If journaled saves are enabled, only the parts of the map that
+     * changed since the last save are written. The map is written once; the
+     * temporary map is then linked to it rather than given its own copy.
      *
      * @param name
      *            Name of the map to save, without the extension.
+     * @param data
+     *            Snapshot of the map data to save.  It is made independent of
+     *            the current map data first, so that the write never holds up
+     *            edits to the map.
      * @throws IOException
      *             On write error.
-     * @return The data that was actually saved.
      */
-    public MapData saveMapName(final String name) throws IOException {
-        MapData data;
-        if (dataToSave.isEmpty()) {
-            data = MapData.getInstance();
+    public void saveMapName(final String name, final MapData data) throws IOException {
+        data.makeIndependent();
+        if (PreferenceManager.getDefaultSharedPreferences(this.mContext)
+                .getBoolean(JOURNALED_SAVES_PREFERENCE, true)) {
+            this.getJournal(name).save(data);
         } else {
-            data = dataToSave.remove();
+            // A full snapshot makes any existing journal obsolete.
+            this.getJournal(name).discard();
+            writeMapAtomically(data, this.getSavedMapFile(name), MapData.NO_SNAPSHOT_ID);
         }
-        // Save to temporary map.
-        FileOutputStream s =
-                new FileOutputStream(this.getSavedMapFile(TEMP_MAP_NAME));
-        data.saveToStream(s);
-        s.close();
-
-        // Copy temp to desired location
         if (!name.equals(TEMP_MAP_NAME)) {
-            FileUtils.copyFile(this.getSavedMapFile(TEMP_MAP_NAME),
-                    this.getSavedMapFile(name));
+            this.getCatalog().updateMap(name, this.getSavedMapFile(name),
+                    this.getJournalFile(name), layerCounts(data));
+        }
+
+        // The temporary map always tracks the latest save.
+        if (name.equals(TEMP_MAP_NAME)) {
+            this.removeTempMapLink();
+        } else {
+            this.getSavedMapFiles().linkTempMapTo(name);
         }
-        return data;
     }
 
     /**
@@ -489,6 +802,84 @@ public final class DataManager {
         preview.compress(Bitmap.CompressFormat.JPEG, JPEG_COMPRESSION, buf);
         buf.close();
         s.close();
+        this.getCatalog().updateThumbnail(name, compressThumbnail(preview));
+    }
+
+    /**
+     * @param data
+     *            A map.
+     * @return Number of items in each layer of the map, indexed by the
+     *         MapCatalog.LAYER_* constants.
+     */
+    private static int[] layerCounts(MapData data) {
+        int[] counts = new int[MapCatalog.LAYER_COUNT];
+        counts[MapCatalog.LAYER_TOKENS] = data.getTokens().asList().size();
+        counts[MapCatalog.LAYER_BACKGROUND_LINES] = data.getBackgroundLines().size();
+        counts[MapCatalog.LAYER_ANNOTATION_LINES] = data.getAnnotationLines().size();
+        counts[MapCatalog.LAYER_GM_NOTE_LINES] = data.getGmNoteLines().size();
+        counts[MapCatalog.LAYER_BACKGROUND_IMAGES] = data.getBackgroundImages().size();
+        return counts;
+    }
+
+    /**
+     * Loads a thumbnail from a saved preview image, decoding it at reduced
+     * size.
+     *
+     * @param previewFile
+     *            The preview image file.
+     * @return The compressed thumbnail, or null if there is no preview.
+     */
+    private static byte[] loadThumbnail(File previewFile) {
+        if (!previewFile.exists()) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(previewFile.getAbsolutePath(), options);
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= THUMBNAIL_SIZE
+                && options.outHeight / (options.inSampleSize * 2) >= THUMBNAIL_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        final String path = previewFile.getAbsolutePath();
+        Bitmap preview = BitmapPool.decode(options,
+                (options.outWidth + options.inSampleSize - 1) / options.inSampleSize,
+                (options.outHeight + options.inSampleSize - 1) / options.inSampleSize,
+                new BitmapPool.Decoder() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options decodeOptions) {
+                return BitmapFactory.decodeFile(path, decodeOptions);
+            }
+        });
+        if (preview == null) {
+            return null;
+        }
+        byte[] thumbnail = compressThumbnail(preview);
+        BitmapPool.release(preview);
+        return thumbnail;
+    }
+
+    /**
+     * Scales a preview image down to thumbnail size and compresses it.
+     *
+     * @param preview
+     *            The preview image.
+     * @return The compressed thumbnail.
+     */
+    private static byte[] compressThumbnail(Bitmap preview) {
+        float scale = Math.min(1.0f, (float) THUMBNAIL_SIZE
+                / Math.max(preview.getWidth(), preview.getHeight()));
+        Bitmap thumbnail = Bitmap.createScaledBitmap(preview,
+                Math.max(1, Math.round(preview.getWidth() * scale)),
+                Math.max(1, Math.round(preview.getHeight() * scale)), true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_JPEG_QUALITY,
+                bytes);
+        if (thumbnail != preview) {
+            thumbnail.recycle();
+        }
+        return bytes.toByteArray();
     }
 
     /**
@@ -555,6 +946,43 @@ public final class DataManager {
         return filename;
     }
 
+    /**
+     * Copies the given image to the map data files, and builds its tile
+     * pyramid so that it never has to be decoded from the original again. If
+     * the pyramid can't be built, the image is still imported and is drawn
+     * from the original.
+     * @param path Path of the image to import.
+     * @param listener Receives progress while the pyramid is built. May be
+     *     null.
+     * @return Path to the saved instance of this image.
+     * @throws IOException if the file copy failed.
+     */
+    public String importMapDataImage(Uri path, MapImagePyramid.ProgressListener listener)
+            throws IOException {
+        String filename = this.copyToMapDataFiles(path);
+        try {
+            MapImagePyramid.build(this.getMapDataFile(filename),
+                    this.getMapDataPyramidDir(filename), listener);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not build tile pyramid for " + filename, e);
+        }
+        return filename;
+    }
+
+    /**
+     * Opens the tile pyramid of a map data image.
+     * @param filename Name of the map data image.
+     * @return The pyramid, or null if none was built for this image.
+     */
+    public MapImagePyramid openMapDataImagePyramid(String filename) {
+        return MapImagePyramid.open(this.getMapDataPyramidDir(filename));
+    }
+
+    private File getMapDataPyramidDir(String filename) {
+        return new File(this.getMapDataDir(),
+                filename + MapImagePyramid.DIRECTORY_EXTENSION);
+    }
+
     /**
      * Gets the full path to a map data file.
      * @param filename The filename to load.
@@ -581,40 +1009,51 @@ public final class DataManager {
         return b;
     }
 
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        if (targetOptions.inSampleSize == 0) targetOptions.inSampleSize = 1;
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            // From Android 4.4 (KitKat) onward we can re-use if the byte size of
-            // the new bitmap is smaller than the reusable bitmap candidate
-            // allocation byte count.
-            int width = targetOptions.outWidth / targetOptions.inSampleSize;
-            int height = targetOptions.outHeight / targetOptions.inSampleSize;
-            int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-            return byteCount <= candidate.getAllocationByteCount();
+    /**
+     * Loads a map data image, downsampled by a power of 2 so that neither
+     * dimension is much larger than the given size.
+     *
+     * @param filename
+     *            Image file name to load.
+     * @param maxDimPx
+     *            Largest width or height to load the image at.
+     * @return Loaded image, or null if it could not be decoded.
+     * @throws IOException
+     *             On read error.
+     */
+    public Bitmap loadMapDataImage(final String filename, int maxDimPx)
+            throws IOException {
+        File f = this.getMapDataFile(filename);
+        if (!f.exists()) {
+            throw new FileNotFoundException(f.getPath());
         }
-
-        // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-        return candidate.getWidth() == targetOptions.outWidth
-                && candidate.getHeight() == targetOptions.outHeight
-                && targetOptions.inSampleSize == 1;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getAbsolutePath(), options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / options.inSampleSize
+                > maxDimPx) {
+            options.inSampleSize *= 2;
+        }
+        return BitmapFactory.decodeFile(f.getAbsolutePath(), options);
     }
 
     /**
-     * A helper function to return the byte usage per pixel of a bitmap based on its configuration.
+     * Opens a map data image so that regions of it can be decoded without
+     * decoding the whole image.
+     *
+     * @param filename
+     *            Image file name to open.
+     * @return Decoder for regions of the image.
+     * @throws IOException
+     *             On read error, or if the image format does not support
+     *             region decoding.
      */
-    private static int getBytesPerPixel(Bitmap.Config config) {
-        if (config == Bitmap.Config.ARGB_8888) {
-            return 4;
-        } else if (config == Bitmap.Config.RGB_565) {
-            return 2;
-        } else if (config == Bitmap.Config.ARGB_4444) {
-            return 2;
-        } else if (config == Bitmap.Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
+    public BitmapRegionDecoder openMapDataImageRegions(final String filename)
+            throws IOException {
+        return BitmapRegionDecoder.newInstance(
+                this.getMapDataFile(filename).getAbsolutePath(), false);
     }
 
     public Context getContext() {
@@ -5,7 +5,9 @@ import android.os.Build;
 import android.os.Debug;
 import android.os.Environment;
 import android.os.StrictMode;
+import android.util.Log;
 
+import com.tbocek.android.combatmap.cast.CastManager;
 import com.tbocek.dungeonsketch.BuildConfig;
 
 import java.io.File;
@@ -19,6 +21,7 @@ import java.io.PrintStream;
  * 
  */
 public final class DeveloperMode {
+    private static final String TAG = "DeveloperMode";
 
     /**
      * Whether developer/debug mode is enabled.
@@ -73,6 +76,52 @@ public final class DeveloperMode {
 		return false && DEVELOPER_MODE;
 	}
 
+    /**
+     * Logs how well the token image cache is doing, if developer mode is
+     * active.
+     */
+    public static void logTokenImageStats() {
+        if (DEVELOPER_MODE) {
+            TokenImageManager mgr = TokenImageManager.getInstanceOrNull();
+            if (mgr != null) {
+                Log.d(TAG, "Token images: " + mgr.getStats());
+            }
+        }
+    }
+
+    /**
+     * Logs how much the shared bitmap pool is being reused, if developer mode
+     * is active.
+     */
+    public static void logBitmapPoolStats() {
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Bitmap pool: " + BitmapPool.getStats());
+        }
+    }
+
+    /**
+     * Logs how many token images have been cut from the built-in token atlas,
+     * if developer mode is active.
+     */
+    public static void logTokenAtlasStats() {
+        if (DEVELOPER_MODE) {
+            Log.d(TAG, "Token atlas: " + TokenAtlas.getStats());
+        }
+    }
+
+    /**
+     * Logs how many cast frames were rendered, dropped and found unchanged,
+     * if developer mode is active.
+     */
+    public static void logCastFrameStats() {
+        if (DEVELOPER_MODE) {
+            CastManager mgr = CastManager.getInstanceOrNull();
+            if (mgr != null) {
+                Log.d(TAG, "Cast frames: " + mgr.getFrameStats());
+            }
+        }
+    }
+
     /**
      * Private constructor because this is a utility class.
      */
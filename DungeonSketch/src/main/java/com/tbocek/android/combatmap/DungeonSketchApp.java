@@ -31,4 +31,26 @@ public class DungeonSketchApp extends Application {
         instance = this;
         super.onCreate();
     }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        TokenImageManager mgr = TokenImageManager.getInstanceOrNull();
+        if (mgr != null) {
+            mgr.onTrimMemory(level);
+        }
+        BitmapPool.onTrimMemory(level);
+        TokenAtlas.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        TokenImageManager mgr = TokenImageManager.getInstanceOrNull();
+        if (mgr != null) {
+            mgr.onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+        BitmapPool.onTrimMemory(TRIM_MEMORY_COMPLETE);
+        TokenAtlas.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
 }
@@ -224,8 +224,10 @@ public class ExportImageDialog extends Dialog {
 
             @Override
             protected Boolean doInBackground(Void... params) {
-                Bitmap bitmap =
-                        Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                // Copy whatever the snapshot still shares with the map, so
+                // that drawing it never holds up edits to the map.
+                data.makeIndependent();
+                Bitmap bitmap = BitmapPool.obtain(width, height, Bitmap.Config.ARGB_8888);
                 Canvas canvas = new Canvas(bitmap);
 
                 if (!exportCurrentView) {
@@ -263,10 +265,14 @@ public class ExportImageDialog extends Dialog {
                                 thisExportName, bitmap, Bitmap.CompressFormat.PNG);
                     } catch (IOException e) {
                         Log.d(TAG, "Export image failed", e);
+                        data.release();
+                        BitmapPool.release(bitmap);
                         return false;
                     }
                     i++;
                 }
+                data.release();
+                BitmapPool.release(bitmap);
                 return true;
             }
 
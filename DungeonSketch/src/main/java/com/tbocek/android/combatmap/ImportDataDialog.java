@@ -212,8 +212,15 @@ public class ImportDataDialog extends RoboActivity {
             @Override
             protected void handleFile(
                     File file, int depth, Collection<File> results) {
-            	// Never overwrite tmp.map, as it is the current "autosave".
-            	if (file.getName().equals("tmp.map")) {
+            	// Never overwrite tmp.map or its journal and link, as they are
+            	// the current "autosave".
+            	if (file.getName().startsWith(DataManager.TEMP_MAP_NAME + ".")) {
+            		publishProgress(1);
+            		return;
+            	}
+            	// The map catalog indexes this device's maps; it is brought up
+            	// to date with the imported maps when next listed.
+            	if (file.getName().equals(DataManager.MAP_CATALOG_FILE_NAME)) {
             		publishProgress(1);
             		return;
             	}
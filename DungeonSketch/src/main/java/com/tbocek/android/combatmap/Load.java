@@ -3,12 +3,15 @@ package com.tbocek.android.combatmap;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.graphics.Rect;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.RelativeLayout;
 import android.widget.ScrollView;
 import android.widget.TableLayout;
@@ -19,9 +22,10 @@ import com.tbocek.android.combatmap.model.primitives.Units;
 import com.tbocek.android.combatmap.view.SaveFileButton;
 import com.tbocek.dungeonsketch.R;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This activity allows the user to select a new file to load.
@@ -71,11 +75,43 @@ public final class Load extends Activity {
      */
     private SaveFileButton mContextMenuTrigger;
 
+    /**
+     * The save file button whose file is currently loading, or null.
+     */
+    private SaveFileButton mLoadingButton;
+
+    /**
+     * Name of the map this activity is loading, or null.
+     */
+    private String mLoadingMapName;
+
+    /**
+     * Buttons for the listed save files, and the catalog entries they show.
+     */
+    private final Map<SaveFileButton, MapCatalog.Entry> mFileButtons =
+            new HashMap<SaveFileButton, MapCatalog.Entry>();
+
+    /**
+     * Loads the thumbnails shown on the save file buttons.
+     */
+    private ThumbnailLoader mThumbnailLoader;
+
     /**
      * Data manager to facilitate save file enumeration and loading.
      */
     private DataManager mDataMgr;
 
+    /**
+     * Task listing the saved maps, or null if none is running.
+     */
+    private CatalogListTask mListTask;
+
+    /**
+     * Scrolls the save file buttons. Kept for the life of the activity, so
+     * that its layout and scroll listeners are only registered once.
+     */
+    private ScrollView mScroller;
+
     /**
      * Lays out the given save file buttons in a grid.
      * 
@@ -105,18 +141,14 @@ public final class Load extends Activity {
      * Creates a button that represents the given save file and will load it
      * when pressed.
      * new TableRow(this)
-     * @param saveFile
-     *            Name of the save file to represent with this button.
+     * @param entry
+     *            Catalog entry of the save file to represent with this button.
      * @return The button.
      */
-    private SaveFileButton createSaveFileButton(final String saveFile) {
+    private SaveFileButton createSaveFileButton(final MapCatalog.Entry entry) {
+        String saveFile = entry.getName();
         SaveFileButton b = new SaveFileButton(this);
         b.setFileName(saveFile);
-        try {
-            b.setPreviewImage(this.mDataMgr.loadPreviewImage(saveFile));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
         int padding = (int) Units.dpToPx(FILE_VIEW_PADDING);
         b.setPadding(padding, padding, padding, padding);
         TableRow.LayoutParams layoutParams = new TableRow.LayoutParams(
@@ -157,8 +189,65 @@ public final class Load extends Activity {
         super.onCreate(savedInstanceState);
 
         this.mDataMgr = new DataManager(this.getApplicationContext());
+        this.mThumbnailLoader = new ThumbnailLoader(this,
+                (int) Units.dpToPx(FILE_VIEW_WIDTH));
+
+        // Only load thumbnails for the buttons that are on screen.
+        this.mScroller = new ScrollView(this);
+        ViewTreeObserver observer = this.mScroller.getViewTreeObserver();
+        observer.addOnGlobalLayoutListener(
+                new ViewTreeObserver.OnGlobalLayoutListener() {
+            @Override
+            public void onGlobalLayout() {
+                Load.this.updateVisibleThumbnails();
+            }
+        });
+        observer.addOnScrollChangedListener(
+                new ViewTreeObserver.OnScrollChangedListener() {
+            @Override
+            public void onScrollChanged() {
+                Load.this.updateVisibleThumbnails();
+            }
+        });
 
         this.setup();
+
+        if (savedInstanceState != null) {
+            String loadingMapName =
+                    savedInstanceState.getString(MapLoadUtils.STATE_LOADING_MAP_NAME);
+            if (loadingMapName != null) {
+                // Pick up the load the previous instance of this activity
+                // started, or start it over if the process was killed.
+                this.trackLoad(loadingMapName,
+                        !loadingMapName.equals(MapLoadUtils.getLoadingMapName()));
+            }
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(final Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (this.mLoadingMapName != null
+                && this.mLoadingMapName.equals(MapLoadUtils.getLoadingMapName())) {
+            outState.putString(MapLoadUtils.STATE_LOADING_MAP_NAME, this.mLoadingMapName);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (this.mListTask != null) {
+            this.mListTask.cancel(false);
+        }
+        MapLoadUtils.detachLoad(this);
+        this.mThumbnailLoader.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onBackPressed() {
+        // The user changed their mind about loading a map.
+        MapLoadUtils.cancelLoad();
+        super.onBackPressed();
     }
 
     @Override
@@ -186,28 +275,151 @@ public final class Load extends Activity {
 
 
     /**
-     * Loads a list of files and sets up and lays out views to represent all the
-     * files.
+     * Loads a list of files in the background, then sets up and lays out views
+     * to represent all the files.
      */
     private void setup() {
-        List<String> savedFiles = this.mDataMgr.savedFiles();
+        if (this.mListTask != null) {
+            this.mListTask.cancel(false);
+        }
+        this.mListTask = new CatalogListTask();
+        this.mListTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Sets up and lays out views to represent the given files.
+     *
+     * @param savedFiles
+     *            Catalog entries for the saved maps.
+     */
+    private void showSavedFiles(final List<MapCatalog.Entry> savedFiles) {
+        for (SaveFileButton b : this.mFileButtons.keySet()) {
+            this.mThumbnailLoader.unbind(b);
+        }
+        this.mFileButtons.clear();
 
         if (savedFiles.size() > 0) {
             List<View> fileViews = new ArrayList<View>();
-            for (String saveFile : savedFiles) {
+            for (MapCatalog.Entry saveFile : savedFiles) {
                 SaveFileButton b = this.createSaveFileButton(saveFile);
                 fileViews.add(b);
+                this.mFileButtons.put(b, saveFile);
             }
 
             View layout = this.createLayout(fileViews);
-            ScrollView scroller = new ScrollView(this);
-            scroller.addView(layout);
-            this.setContentView(scroller);
+            this.mScroller.removeAllViews();
+            this.mScroller.addView(layout);
+            if (this.mScroller.getParent() == null) {
+                this.setContentView(this.mScroller);
+            }
         } else {
             RelativeLayout root = new RelativeLayout(this);
             this.getLayoutInflater().inflate(R.layout.no_files_layout, root);
             this.setContentView(root);
         }
+
+        // A load may have been picked up before the buttons existed.
+        if (this.mLoadingMapName != null) {
+            this.mLoadingButton = this.findButton(this.mLoadingMapName);
+            if (this.mLoadingButton != null) {
+                this.mLoadingButton.setLoadProgress(0);
+            }
+        }
+    }
+
+    /**
+     * @param filename
+     *            Name of a saved map.
+     * @return The button for the map, or null if it is not shown.
+     */
+    private SaveFileButton findButton(final String filename) {
+        for (SaveFileButton b : this.mFileButtons.keySet()) {
+            if (b.getFileName().equals(filename)) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Shows the progress of loading the given map on its button, and closes
+     * this activity once the map has loaded.
+     *
+     * @param filename
+     *            Name of the map being loaded.
+     * @param start
+     *            True to start loading the map, false to follow the load
+     *            that is already in progress.
+     */
+    private void trackLoad(final String filename, final boolean start) {
+        // Picking another map cancels the load in progress.
+        if (this.mLoadingButton != null) {
+            this.mLoadingButton.setLoadProgress(-1);
+        }
+        SaveFileButton button = this.findButton(filename);
+        this.mLoadingButton = button;
+        this.mLoadingMapName = filename;
+        if (button != null) {
+            button.setLoadProgress(0);
+        }
+
+        MapLoadUtils.LoadProgressCallback progress = new MapLoadUtils.LoadProgressCallback() {
+            @Override
+            public void loadProgress(long bytesRead, long totalBytes, int sectionsRead) {
+                if (Load.this.mLoadingButton != null) {
+                    Load.this.mLoadingButton.setLoadProgress(
+                            totalBytes > 0 ? (int) (100 * bytesRead / totalBytes) : 0);
+                }
+            }
+        };
+        MapLoadUtils.LoadFinishedCallback finished = new MapLoadUtils.LoadFinishedCallback() {
+            @Override
+            public void loadFinished(boolean success) {
+                Load.this.finish();
+            }
+        };
+        if (start) {
+            MapLoadUtils.loadMap(this, filename, progress, finished);
+        } else {
+            MapLoadUtils.reattachLoad(this, progress, finished);
+        }
+    }
+
+    /**
+     * Loads thumbnails for the save file buttons that are on screen, and
+     * cancels or drops them for the buttons that are not.
+     */
+    private void updateVisibleThumbnails() {
+        Rect visible = new Rect();
+        for (Map.Entry<SaveFileButton, MapCatalog.Entry> e : this.mFileButtons.entrySet()) {
+            if (e.getKey().getLocalVisibleRect(visible)) {
+                this.mThumbnailLoader.bind(e.getKey(), e.getValue());
+            } else {
+                this.mThumbnailLoader.unbind(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Lists the saved maps off the UI thread, since bringing the catalog up to
+     * date can mean reading the preview image of every map that changed.
+     */
+    private final class CatalogListTask
+            extends AsyncTask<Void, Void, List<MapCatalog.Entry>> {
+        @Override
+        protected List<MapCatalog.Entry> doInBackground(final Void... params) {
+            return Load.this.mDataMgr.savedMapCatalog();
+        }
+
+        @Override
+        protected void onPostExecute(final List<MapCatalog.Entry> savedFiles) {
+            if (Load.this.mListTask == this) {
+                Load.this.mListTask = null;
+            }
+            if (!Load.this.isFinishing()) {
+                Load.this.showSavedFiles(savedFiles);
+            }
+        }
     }
 
     /**
@@ -235,12 +447,7 @@ public final class Load extends Activity {
 
         @Override
         public void onClick(final View v) {
-            MapLoadUtils.loadMap(Load.this, this.mFilename, new MapLoadUtils.LoadFinishedCallback() {
-                @Override
-                public void loadFinished(boolean success) {
-                    Load.this.finish();
-                }
-            });
+            Load.this.trackLoad(this.mFilename, true);
         }
     }
 }
@@ -0,0 +1,622 @@
+package com.tbocek.android.combatmap;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Persistent index of the saved maps, so that the Load screen can list every
+ * map with one read instead of decoding a full preview image per map. Each
+ * entry holds the map's name, modification time, size, layer counts, and a
+ * small embedded thumbnail.
+ *
+ * The catalog file is a log: each save, new thumbnail or delete appends one
+ * record for the map it affects, and the last record for a map wins. The log
+ * is rewritten from the entries in memory once it holds many more records
+ * than entries. Appends are not synced, since the catalog is checked against
+ * the saved map directory every time it is listed: maps that changed on disk
+ * without going through the catalog (e.g. imported maps, or saves whose
+ * record was lost) are picked up then, and a missing or unreadable catalog is
+ * rebuilt from the saved map directory. Listing can therefore decode preview
+ * images, and should not be done on the UI thread.
+ *
+ * Uses no Android APIs other than logging, so that it can be tested on the
+ * JVM; the saved map directory and thumbnails are reached through a Source.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class MapCatalog {
+    private static final String TAG = "MapCatalog";
+
+    /**
+     * Marks the start of a catalog file.
+     */
+    private static final int CATALOG_MAGIC = 0x44534d43;
+
+    /**
+     * Version of the catalog format. Catalogs of other versions are rebuilt.
+     */
+    private static final int CATALOG_VERSION = 2;
+
+    /**
+     * Record giving a map's modification time, size and layer counts.
+     */
+    private static final int RECORD_MAP = 1;
+
+    /**
+     * Record giving a map's thumbnail.
+     */
+    private static final int RECORD_THUMBNAIL = 2;
+
+    /**
+     * Record marking a map as deleted.
+     */
+    private static final int RECORD_REMOVE = 3;
+
+    /**
+     * Records beyond two per entry that the catalog file may hold before it
+     * is rewritten.
+     */
+    private static final int MAX_EXTRA_RECORDS = 64;
+
+    /**
+     * Layer count index for tokens.
+     */
+    static final int LAYER_TOKENS = 0;
+
+    /**
+     * Layer count index for background lines.
+     */
+    static final int LAYER_BACKGROUND_LINES = 1;
+
+    /**
+     * Layer count index for annotation lines.
+     */
+    static final int LAYER_ANNOTATION_LINES = 2;
+
+    /**
+     * Layer count index for GM note lines.
+     */
+    static final int LAYER_GM_NOTE_LINES = 3;
+
+    /**
+     * Layer count index for background images.
+     */
+    static final int LAYER_BACKGROUND_IMAGES = 4;
+
+    /**
+     * Number of layer counts stored per map.
+     */
+    static final int LAYER_COUNT = 5;
+
+    /**
+     * Catalogs that have been opened during this process, keyed by path.
+     */
+    private static final Map<String, MapCatalog> sCatalogs =
+            new HashMap<String, MapCatalog>();
+
+    /**
+     * The saved maps that a catalog describes.
+     */
+    interface Source {
+        /**
+         * @return Names of the saved maps, without the extension.
+         */
+        Collection<String> getSavedMaps();
+
+        /**
+         * @param name
+         *            Name of the map, without the extension.
+         * @return The saved map file.
+         */
+        File getMapFile(String name);
+
+        /**
+         * @param name
+         *            Name of the map, without the extension.
+         * @return The saved map's journal.
+         */
+        File getJournalFile(String name);
+
+        /**
+         * @param name
+         *            Name of the map, without the extension.
+         * @return Compressed thumbnail made from the map's preview image, or
+         *         null if the map has no preview.
+         */
+        byte[] loadThumbnail(String name);
+    }
+
+    /**
+     * Catalog entry describing one saved map.
+     */
+    static final class Entry {
+        private final String mName;
+        private long mModified;
+        private long mSize;
+        private final int[] mLayerCounts = new int[LAYER_COUNT];
+        private byte[] mThumbnail;
+
+        /**
+         * Constructor.
+         *
+         * @param name
+         *            Name of the map, without the extension.
+         */
+        private Entry(String name) {
+            this.mName = name;
+            this.clearLayerCounts();
+        }
+
+        /**
+         * @return Name of the map, without the extension.
+         */
+        String getName() {
+            return this.mName;
+        }
+
+        /**
+         * @return Time the map was last written, in milliseconds since the
+         *         epoch.
+         */
+        long getModified() {
+            return this.mModified;
+        }
+
+        /**
+         * @return Bytes the map takes up on disk.
+         */
+        long getSize() {
+            return this.mSize;
+        }
+
+        /**
+         * @param layer
+         *            One of the LAYER_* constants.
+         * @return Number of items in that layer, or -1 if not known.
+         */
+        int getLayerCount(int layer) {
+            return this.mLayerCounts[layer];
+        }
+
+        /**
+         * @return The compressed thumbnail, or null if the map has none.
+         */
+        byte[] getThumbnail() {
+            return this.mThumbnail;
+        }
+
+        /**
+         * Marks the layer counts as unknown.
+         */
+        private void clearLayerCounts() {
+            for (int i = 0; i < LAYER_COUNT; ++i) {
+                this.mLayerCounts[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * The catalog file.
+     */
+    private final File mCatalogFile;
+
+    /**
+     * Entries keyed by map name, or null if the catalog has not been read
+     * yet.
+     */
+    private TreeMap<String, Entry> mEntries;
+
+    /**
+     * Number of records in the catalog file, or -1 if the file needs to be
+     * rewritten before records can be appended to it.
+     */
+    private int mRecordCount = -1;
+
+    /**
+     * Records queued to be appended to the catalog file, or null if there are
+     * none.
+     */
+    private ByteArrayOutputStream mPendingRecords;
+
+    /**
+     * Gets the catalog stored in the given file, creating it if needed.
+     *
+     * @param catalogFile
+     *            The catalog file.
+     * @return The catalog object.
+     */
+    static synchronized MapCatalog forFile(File catalogFile) {
+        String key = catalogFile.getAbsolutePath();
+        MapCatalog catalog = sCatalogs.get(key);
+        if (catalog == null) {
+            catalog = new MapCatalog(catalogFile);
+            sCatalogs.put(key, catalog);
+        }
+        return catalog;
+    }
+
+    /**
+     * Constructor. Outside of tests, use forFile so that each catalog file
+     * has only one MapCatalog.
+     *
+     * @param catalogFile
+     *            The catalog file.
+     */
+    MapCatalog(File catalogFile) {
+        this.mCatalogFile = catalogFile;
+    }
+
+    /**
+     * Lists the saved maps, bringing the catalog up to date with any maps
+     * that changed on disk without going through the catalog.
+     *
+     * @param source
+     *            The saved maps.
+     * @return Entries for the saved maps, ordered by name.
+     */
+    synchronized List<Entry> getEntries(Source source) {
+        this.ensureRead();
+        boolean changed = false;
+
+        Set<String> onDisk = new HashSet<String>(source.getSavedMaps());
+        if (this.mEntries.keySet().retainAll(onDisk)) {
+            // Too many removals to be worth a record each.
+            this.mRecordCount = -1;
+            changed = true;
+        }
+        List<Entry> updated = new ArrayList<Entry>();
+        for (String name : onDisk) {
+            File mapFile = source.getMapFile(name);
+            File journalFile = source.getJournalFile(name);
+            Entry entry = this.mEntries.get(name);
+            if (entry != null
+                    && entry.mModified == modified(mapFile, journalFile)
+                    && entry.mSize == size(mapFile, journalFile)) {
+                continue;
+            }
+            if (entry == null) {
+                entry = new Entry(name);
+                this.mEntries.put(name, entry);
+            } else {
+                // Changed behind our back, so the counts are stale.
+                entry.clearLayerCounts();
+            }
+            entry.mModified = modified(mapFile, journalFile);
+            entry.mSize = size(mapFile, journalFile);
+            entry.mThumbnail = source.loadThumbnail(name);
+            updated.add(entry);
+            changed = true;
+        }
+
+        if (changed) {
+            for (Entry entry : updated) {
+                this.appendMap(entry);
+                this.appendThumbnail(entry);
+            }
+            this.flushRecords();
+        }
+        return new ArrayList<Entry>(this.mEntries.values());
+    }
+
+    /**
+     * Records that a map was saved.
+     *
+     * @param name
+     *            Name of the map, without the extension.
+     * @param mapFile
+     *            The saved map file.
+     * @param journalFile
+     *            The saved map's journal.
+     * @param layerCounts
+     *            Number of items in each layer of the saved map, indexed by
+     *            the LAYER_* constants.
+     */
+    synchronized void updateMap(String name, File mapFile, File journalFile,
+            int[] layerCounts) {
+        this.ensureRead();
+        Entry entry = this.getOrCreate(name);
+        entry.mModified = modified(mapFile, journalFile);
+        entry.mSize = size(mapFile, journalFile);
+        System.arraycopy(layerCounts, 0, entry.mLayerCounts, 0, LAYER_COUNT);
+        this.appendMap(entry);
+        this.flushRecords();
+    }
+
+    /**
+     * Records a new preview image for a map.
+     *
+     * @param name
+     *            Name of the map, without the extension.
+     * @param thumbnail
+     *            Compressed thumbnail made from the preview image.
+     */
+    synchronized void updateThumbnail(String name, byte[] thumbnail) {
+        this.ensureRead();
+        Entry entry = this.getOrCreate(name);
+        entry.mThumbnail = thumbnail;
+        this.appendThumbnail(entry);
+        this.flushRecords();
+    }
+
+    /**
+     * Records that a map was deleted.
+     *
+     * @param name
+     *            Name of the map, without the extension.
+     */
+    synchronized void remove(String name) {
+        this.ensureRead();
+        if (this.mEntries.remove(name) != null) {
+            this.appendRecord(RECORD_REMOVE, name, null);
+            this.flushRecords();
+        }
+    }
+
+    /**
+     * @param name
+     *            Name of the map, without the extension.
+     * @return The entry for the map, newly created if needed.
+     */
+    private Entry getOrCreate(String name) {
+        Entry entry = this.mEntries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            this.mEntries.put(name, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the catalog file if it has not been read yet. A missing or
+     * unreadable catalog starts out empty and is filled in from the saved
+     * map directory by getEntries. A record cut short by a crash ends the
+     * log; the records before it are kept.
+     */
+    private void ensureRead() {
+        if (this.mEntries != null) {
+            return;
+        }
+        this.mEntries = new TreeMap<String, Entry>();
+        this.mRecordCount = -1;
+        if (!this.mCatalogFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        int records = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(this.mCatalogFile)));
+            if (in.readInt() != CATALOG_MAGIC
+                    || in.readInt() != CATALOG_VERSION) {
+                Log.w(TAG, "Rebuilding catalog of unknown format");
+                return;
+            }
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                String name = in.readUTF();
+                // Each record is read in full before it is applied.
+                if (type == RECORD_MAP) {
+                    long modified = in.readLong();
+                    long size = in.readLong();
+                    int[] layerCounts = new int[LAYER_COUNT];
+                    for (int j = 0; j < LAYER_COUNT; ++j) {
+                        layerCounts[j] = in.readInt();
+                    }
+                    Entry entry = this.getOrCreate(name);
+                    entry.mModified = modified;
+                    entry.mSize = size;
+                    System.arraycopy(layerCounts, 0, entry.mLayerCounts, 0, LAYER_COUNT);
+                } else if (type == RECORD_THUMBNAIL) {
+                    int thumbnailLength = in.readInt();
+                    byte[] thumbnail = null;
+                    if (thumbnailLength >= 0) {
+                        thumbnail = new byte[thumbnailLength];
+                        in.readFully(thumbnail);
+                    }
+                    this.getOrCreate(name).mThumbnail = thumbnail;
+                } else if (type == RECORD_REMOVE) {
+                    this.mEntries.remove(name);
+                } else {
+                    throw new IOException("Unknown catalog record " + type);
+                }
+                records++;
+            }
+            this.mRecordCount = records;
+        } catch (EOFException e) {
+            // Appending after the cut-off record would garble the log, so it
+            // is rewritten on the next change.
+            Log.w(TAG, "Catalog ends in a partial record after " + records + " records");
+        } catch (IOException e) {
+            Log.w(TAG, "Rebuilding unreadable catalog", e);
+            this.mEntries.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Intentionally ignored.
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a record giving the entry's modification time, size and layer
+     * counts.
+     */
+    private void appendMap(Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(entry.mModified);
+            out.writeLong(entry.mSize);
+            for (int j = 0; j < LAYER_COUNT; ++j) {
+                out.writeInt(entry.mLayerCounts[j]);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.appendRecord(RECORD_MAP, entry.mName, bytes.toByteArray());
+    }
+
+    /**
+     * Queues a record giving the entry's thumbnail.
+     */
+    private void appendThumbnail(Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            if (entry.mThumbnail != null) {
+                out.writeInt(entry.mThumbnail.length);
+                out.write(entry.mThumbnail);
+            } else {
+                out.writeInt(-1);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        this.appendRecord(RECORD_THUMBNAIL, entry.mName, bytes.toByteArray());
+    }
+
+    /**
+     * Queues a record to append to the catalog file with flushRecords.
+     *
+     * @param type
+     *            One of the RECORD_* constants.
+     * @param name
+     *            Name of the map the record is for.
+     * @param body
+     *            Rest of the record, or null if it has none.
+     */
+    private void appendRecord(int type, String name, byte[] body) {
+        if (this.mPendingRecords == null) {
+            this.mPendingRecords = new ByteArrayOutputStream();
+        }
+        DataOutputStream out = new DataOutputStream(this.mPendingRecords);
+        try {
+            out.writeByte(type);
+            out.writeUTF(name);
+            if (body != null) {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        if (this.mRecordCount >= 0) {
+            this.mRecordCount++;
+        }
+    }
+
+    /**
+     * Appends the queued records to the catalog file, or rewrites the file
+     * from the entries in memory if it can't be appended to or has grown too
+     * long. Failure is logged rather than thrown, since the catalog can
+     * always be rebuilt.
+     */
+    private void flushRecords() {
+        ByteArrayOutputStream records = this.mPendingRecords;
+        this.mPendingRecords = null;
+        if (records == null && this.mRecordCount >= 0) {
+            return;
+        }
+        if (this.mRecordCount < 0
+                || this.mRecordCount > 2 * this.mEntries.size() + MAX_EXTRA_RECORDS) {
+            this.write();
+            return;
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(this.mCatalogFile, true);
+            try {
+                records.writeTo(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not append to map catalog", e);
+            // The file may now end in part of a record.
+            this.mRecordCount = -1;
+        }
+    }
+
+    /**
+     * Rewrites the catalog file with one record per entry and thumbnail.
+     * Failure is logged rather than thrown, since the catalog can always be
+     * rebuilt.
+     */
+    private void write() {
+        this.mRecordCount = -1;
+        File partial = new File(this.mCatalogFile.getParentFile(),
+                this.mCatalogFile.getName() + ".partial");
+        int records = 0;
+        try {
+            FileOutputStream s = new FileOutputStream(partial);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(s));
+            try {
+                out.writeInt(CATALOG_MAGIC);
+                out.writeInt(CATALOG_VERSION);
+                for (Entry entry : this.mEntries.values()) {
+                    this.appendMap(entry);
+                    this.appendThumbnail(entry);
+                    records += 2;
+                }
+                if (this.mPendingRecords != null) {
+                    this.mPendingRecords.writeTo(out);
+                    this.mPendingRecords = null;
+                }
+                out.flush();
+                s.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(this.mCatalogFile)) {
+                throw new IOException("Could not move " + partial + " to "
+                        + this.mCatalogFile);
+            }
+            this.mRecordCount = records;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write map catalog", e);
+            this.mPendingRecords = null;
+            if (partial.exists() && !partial.delete()) {
+                Log.w(TAG, "Could not delete " + partial);
+            }
+        }
+    }
+
+    /**
+     * @return Latest modification time of a map and its journal.
+     */
+    private static long modified(File mapFile, File journalFile) {
+        return Math.max(mapFile.lastModified(), journalFile.lastModified());
+    }
+
+    /**
+     * @return Combined size of a map and its journal.
+     */
+    private static long size(File mapFile, File journalFile) {
+        return mapFile.length() + journalFile.length();
+    }
+}
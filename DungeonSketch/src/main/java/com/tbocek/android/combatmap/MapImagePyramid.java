@@ -0,0 +1,536 @@
+package com.tbocek.android.combatmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tile pyramid built from an imported background image, so that the image
+ * never has to be decoded from its original format and resolution again.
+ * Level 0 holds fixed-size tiles of the full image; each following level is
+ * half the size of the one before it. The level that fits within
+ * OVERVIEW_MAX_DIM_PX is stored as a single overview image instead of tiles.
+ * Tiles are stored as JPEG, or as PNG if the image may have transparency.
+ *
+ * The pyramid lives in its own directory next to the original image, with a
+ * sidecar file recording the image's dimensions. The directory is built under
+ * a temporary name and renamed once complete, so a pyramid that has a
+ * sidecar is always whole.
+ *
+ * @author Tim Bocek
+ *
+ */
+public final class MapImagePyramid {
+    private static final String TAG = "MapImagePyramid";
+
+    /**
+     * Width and height of a tile, in pixels.
+     */
+    public static final int TILE_SIZE_PX = 256;
+
+    /**
+     * Largest dimension of the overview image, in pixels.
+     */
+    public static final int OVERVIEW_MAX_DIM_PX = 1024;
+
+    /**
+     * Extension of pyramid directories, appended to the image file name.
+     */
+    static final String DIRECTORY_EXTENSION = ".pyramid";
+
+    /**
+     * Marks the start of a sidecar file.
+     */
+    private static final int INFO_MAGIC = 0x44534950;
+
+    /**
+     * Version of the pyramid format. Pyramids of other versions are ignored.
+     */
+    private static final int INFO_VERSION = 1;
+
+    private static final String INFO_FILE_NAME = "info";
+
+    private static final String OVERVIEW_FILE_NAME = "overview";
+
+    private static final String PARTIAL_EXTENSION = ".partial";
+
+    /**
+     * Compression quality of tiles without transparency.
+     */
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * Receives progress while a pyramid is built.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after each tile is written. Called on the building thread.
+         *
+         * @param tilesDone
+         *            Number of tiles written so far, including the overview.
+         * @param tilesTotal
+         *            Number of tiles that will be written.
+         */
+        void onProgress(int tilesDone, int tilesTotal);
+    }
+
+    private final File mDirectory;
+
+    /**
+     * Size of the full image, in pixels.
+     */
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * Number of levels stored as tiles. The overview is the next level.
+     */
+    private final int mLevelCount;
+
+    /**
+     * Whether the image may have transparency.
+     */
+    private final boolean mHasAlpha;
+
+    private MapImagePyramid(File directory, int width, int height, int levelCount,
+            boolean hasAlpha) {
+        this.mDirectory = directory;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mLevelCount = levelCount;
+        this.mHasAlpha = hasAlpha;
+    }
+
+    /**
+     * @return Width of the full image, in pixels.
+     */
+    public int getWidth() {
+        return this.mWidth;
+    }
+
+    /**
+     * @return Height of the full image, in pixels.
+     */
+    public int getHeight() {
+        return this.mHeight;
+    }
+
+    /**
+     * @return Width of the image divided by its height.
+     */
+    public float getAspectRatio() {
+        return (float) this.mWidth / this.mHeight;
+    }
+
+    /**
+     * @return Whether the image may have transparency.
+     */
+    public boolean hasAlpha() {
+        return this.mHasAlpha;
+    }
+
+    /**
+     * @return How many pixels of the full image one pixel of the overview
+     *         covers. Tiles exist for every smaller power of 2.
+     */
+    public int getOverviewSampleSize() {
+        return 1 << this.mLevelCount;
+    }
+
+    /**
+     * Decodes the overview image.
+     *
+     * @param options
+     *            Options to decode with.
+     * @return The overview, or null if it could not be decoded.
+     */
+    public Bitmap decodeOverview(BitmapFactory.Options options) {
+        return BitmapFactory.decodeFile(
+                new File(this.mDirectory, OVERVIEW_FILE_NAME).getAbsolutePath(), options);
+    }
+
+    /**
+     * Decodes a tile. Tiles at or beyond the overview's sample size are cut
+     * out of the overview.
+     *
+     * @param sampleSize
+     *            Pixels of the full image covered by one tile pixel. Must be a
+     *            power of 2.
+     * @param tileX
+     *            Column of the tile.
+     * @param tileY
+     *            Row of the tile.
+     * @param options
+     *            Options to decode with.
+     * @return The tile, or null if it could not be decoded.
+     */
+    public Bitmap decodeTile(int sampleSize, int tileX, int tileY,
+            BitmapFactory.Options options) {
+        int level = Integer.numberOfTrailingZeros(sampleSize);
+        if (level < this.mLevelCount) {
+            return BitmapFactory.decodeFile(
+                    tileFile(this.mDirectory, level, tileX, tileY).getAbsolutePath(), options);
+        }
+
+        int overviewSampleSize = sampleSize >> this.mLevelCount;
+        int tileSpan = TILE_SIZE_PX * overviewSampleSize;
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(
+                    new File(this.mDirectory, OVERVIEW_FILE_NAME).getAbsolutePath(), false);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open overview in " + this.mDirectory, e);
+            return null;
+        }
+        try {
+            Rect region = new Rect(tileX * tileSpan, tileY * tileSpan,
+                    Math.min(decoder.getWidth(), (tileX + 1) * tileSpan),
+                    Math.min(decoder.getHeight(), (tileY + 1) * tileSpan));
+            if (region.isEmpty()) {
+                return null;
+            }
+            options.inSampleSize = overviewSampleSize;
+            return decoder.decodeRegion(region, options);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * Opens the pyramid in the given directory.
+     *
+     * @param directory
+     *            Directory holding the pyramid.
+     * @return The pyramid, or null if there is no complete pyramid there.
+     */
+    static MapImagePyramid open(File directory) {
+        File info = new File(directory, INFO_FILE_NAME);
+        if (!info.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(info)));
+            if (in.readInt() != INFO_MAGIC || in.readInt() != INFO_VERSION) {
+                Log.w(TAG, "Ignoring pyramid of unknown format in " + directory);
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            // Aspect ratio is recorded for other readers, but follows from
+            // the dimensions.
+            in.readFloat();
+            int levelCount = in.readInt();
+            boolean hasAlpha = in.readBoolean();
+            return new MapImagePyramid(directory, width, height, levelCount, hasAlpha);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read pyramid in " + directory, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Intentionally ignored.
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the pyramid for an image. Decodes the image once, a tile at a
+     * time, and builds each smaller level from the tiles of the level before
+     * it. Any existing pyramid in the directory is replaced.
+     *
+     * @param source
+     *            The original image.
+     * @param directory
+     *            Directory to build the pyramid in.
+     * @param listener
+     *            Receives progress. May be null.
+     * @return The built pyramid.
+     * @throws IOException
+     *             If the image could not be decoded or the pyramid could not
+     *             be written.
+     */
+    static MapImagePyramid build(File source, File directory, ProgressListener listener)
+            throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getAbsolutePath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Could not decode " + source);
+        }
+        boolean hasAlpha = !"image/jpeg".equals(bounds.outMimeType);
+        Bitmap.Config config = hasAlpha ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+
+        File partial = new File(directory.getParentFile(),
+                directory.getName() + PARTIAL_EXTENSION);
+        FileUtils.deleteQuietly(partial);
+        if (!partial.mkdirs()) {
+            throw new IOException("Could not create " + partial);
+        }
+
+        BitmapRegionDecoder decoder = null;
+        Bitmap whole = null;
+        try {
+            int width = bounds.outWidth;
+            int height = bounds.outHeight;
+            try {
+                decoder = BitmapRegionDecoder.newInstance(source.getAbsolutePath(), false);
+            } catch (IOException e) {
+                // Formats like GIF can't be decoded by region, so decode the
+                // whole image once, at a size that is likely to fit in
+                // memory.
+                Log.w(TAG, "Region decoding not supported for " + source
+                        + ", building pyramid from a downsampled image", e);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = config;
+                options.inSampleSize = 1;
+                while (Math.max(width, height) / options.inSampleSize
+                        > OVERVIEW_MAX_DIM_PX * 2) {
+                    options.inSampleSize *= 2;
+                }
+                whole = BitmapFactory.decodeFile(source.getAbsolutePath(), options);
+                if (whole == null) {
+                    throw new IOException("Could not decode " + source);
+                }
+                width = whole.getWidth();
+                height = whole.getHeight();
+            }
+
+            // Count the tiled levels and the tiles in them.
+            int levelCount = 0;
+            int levelWidth = width;
+            int levelHeight = height;
+            int tilesTotal = 1;
+            while (Math.max(levelWidth, levelHeight) > OVERVIEW_MAX_DIM_PX) {
+                tilesTotal += tileCount(levelWidth) * tileCount(levelHeight);
+                levelWidth = (levelWidth + 1) / 2;
+                levelHeight = (levelHeight + 1) / 2;
+                levelCount++;
+            }
+            int[] tilesDone = {0};
+
+            if (levelCount == 0) {
+                Bitmap overview = whole != null ? whole
+                        : decodeRegion(decoder, new Rect(0, 0, width, height), config);
+                writeImage(overview, new File(partial, OVERVIEW_FILE_NAME), hasAlpha);
+                if (overview != whole) {
+                    overview.recycle();
+                }
+                reportProgress(listener, tilesDone, tilesTotal);
+            } else {
+                writeFullLevel(decoder, whole, width, height, partial, config, hasAlpha,
+                        listener, tilesDone, tilesTotal);
+                levelWidth = width;
+                levelHeight = height;
+                for (int level = 1; level <= levelCount; ++level) {
+                    levelWidth = (levelWidth + 1) / 2;
+                    levelHeight = (levelHeight + 1) / 2;
+                    if (level < levelCount) {
+                        writeReducedLevel(partial, level, levelWidth, levelHeight, config,
+                                hasAlpha, listener, tilesDone, tilesTotal);
+                    } else {
+                        writeOverview(partial, level, levelWidth, levelHeight, config,
+                                hasAlpha);
+                        reportProgress(listener, tilesDone, tilesTotal);
+                    }
+                }
+            }
+
+            writeInfo(new File(partial, INFO_FILE_NAME), width, height, levelCount, hasAlpha);
+            FileUtils.deleteQuietly(directory);
+            if (!partial.renameTo(directory)) {
+                throw new IOException("Could not move " + partial + " to " + directory);
+            }
+            return new MapImagePyramid(directory, width, height, levelCount, hasAlpha);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(partial);
+            throw e;
+        } catch (RuntimeException e) {
+            FileUtils.deleteQuietly(partial);
+            throw e;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            if (whole != null) {
+                whole.recycle();
+            }
+        }
+    }
+
+    /**
+     * Writes the tiles of level 0, decoding each from the original image.
+     */
+    private static void writeFullLevel(BitmapRegionDecoder decoder, Bitmap whole, int width,
+            int height, File directory, Bitmap.Config config, boolean hasAlpha,
+            ProgressListener listener, int[] tilesDone, int tilesTotal) throws IOException {
+        for (int ty = 0; ty < tileCount(height); ++ty) {
+            for (int tx = 0; tx < tileCount(width); ++tx) {
+                Rect region = new Rect(tx * TILE_SIZE_PX, ty * TILE_SIZE_PX,
+                        Math.min(width, (tx + 1) * TILE_SIZE_PX),
+                        Math.min(height, (ty + 1) * TILE_SIZE_PX));
+                Bitmap tile = whole != null
+                        ? Bitmap.createBitmap(whole, region.left, region.top,
+                                region.width(), region.height())
+                        : decodeRegion(decoder, region, config);
+                try {
+                    writeImage(tile, tileFile(directory, 0, tx, ty), hasAlpha);
+                } finally {
+                    if (tile != whole) {
+                        tile.recycle();
+                    }
+                }
+                reportProgress(listener, tilesDone, tilesTotal);
+            }
+        }
+    }
+
+    /**
+     * Writes the tiles of a level after 0, each built by scaling down four
+     * tiles of the level before it.
+     */
+    private static void writeReducedLevel(File directory, int level, int levelWidth,
+            int levelHeight, Bitmap.Config config, boolean hasAlpha,
+            ProgressListener listener, int[] tilesDone, int tilesTotal) throws IOException {
+        for (int ty = 0; ty < tileCount(levelHeight); ++ty) {
+            for (int tx = 0; tx < tileCount(levelWidth); ++tx) {
+                Bitmap tile = Bitmap.createBitmap(
+                        Math.min(TILE_SIZE_PX, levelWidth - tx * TILE_SIZE_PX),
+                        Math.min(TILE_SIZE_PX, levelHeight - ty * TILE_SIZE_PX), config);
+                try {
+                    Canvas c = new Canvas(tile);
+                    for (int cy = ty * 2; cy <= ty * 2 + 1; ++cy) {
+                        for (int cx = tx * 2; cx <= tx * 2 + 1; ++cx) {
+                            drawReduced(c, directory, level - 1, cx, cy,
+                                    (cx - tx * 2) * TILE_SIZE_PX / 2,
+                                    (cy - ty * 2) * TILE_SIZE_PX / 2);
+                        }
+                    }
+                    writeImage(tile, tileFile(directory, level, tx, ty), hasAlpha);
+                } finally {
+                    tile.recycle();
+                }
+                reportProgress(listener, tilesDone, tilesTotal);
+            }
+        }
+    }
+
+    /**
+     * Writes the overview, built by scaling down every tile of the last tiled
+     * level.
+     */
+    private static void writeOverview(File directory, int level, int levelWidth,
+            int levelHeight, Bitmap.Config config, boolean hasAlpha) throws IOException {
+        Bitmap overview = Bitmap.createBitmap(levelWidth, levelHeight, config);
+        try {
+            Canvas c = new Canvas(overview);
+            for (int ty = 0; ty < tileCount(levelHeight * 2); ++ty) {
+                for (int tx = 0; tx < tileCount(levelWidth * 2); ++tx) {
+                    drawReduced(c, directory, level - 1, tx, ty,
+                            tx * TILE_SIZE_PX / 2, ty * TILE_SIZE_PX / 2);
+                }
+            }
+            writeImage(overview, new File(directory, OVERVIEW_FILE_NAME), hasAlpha);
+        } finally {
+            overview.recycle();
+        }
+    }
+
+    /**
+     * Draws a tile at half size, if it exists.
+     */
+    private static void drawReduced(Canvas c, File directory, int level, int tileX, int tileY,
+            float left, float top) throws IOException {
+        File f = tileFile(directory, level, tileX, tileY);
+        if (!f.exists()) {
+            return;
+        }
+        Bitmap tile = BitmapFactory.decodeFile(f.getAbsolutePath());
+        if (tile == null) {
+            throw new IOException("Could not decode " + f);
+        }
+        try {
+            c.drawBitmap(tile, null, new RectF(left, top, left + tile.getWidth() / 2f,
+                    top + tile.getHeight() / 2f), new Paint(Paint.FILTER_BITMAP_FLAG));
+        } finally {
+            tile.recycle();
+        }
+    }
+
+    private static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region,
+            Bitmap.Config config) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        Bitmap b = decoder.decodeRegion(region, options);
+        if (b == null) {
+            throw new IOException("Could not decode region " + region);
+        }
+        return b;
+    }
+
+    private static void writeImage(Bitmap b, File f, boolean hasAlpha) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            if (hasAlpha) {
+                b.compress(Bitmap.CompressFormat.PNG, 0, out);
+            } else {
+                b.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInfo(File f, int width, int height, int levelCount,
+            boolean hasAlpha) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(INFO_MAGIC);
+            out.writeInt(INFO_VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeFloat((float) width / height);
+            out.writeInt(levelCount);
+            out.writeBoolean(hasAlpha);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void reportProgress(ProgressListener listener, int[] tilesDone,
+            int tilesTotal) {
+        tilesDone[0]++;
+        if (listener != null) {
+            listener.onProgress(tilesDone[0], tilesTotal);
+        }
+    }
+
+    private static int tileCount(int levelSize) {
+        return (levelSize + TILE_SIZE_PX - 1) / TILE_SIZE_PX;
+    }
+
+    private static File tileFile(File directory, int level, int tileX, int tileY) {
+        return new File(directory, level + "_" + tileX + "_" + tileY);
+    }
+}
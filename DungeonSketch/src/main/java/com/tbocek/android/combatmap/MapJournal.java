@@ -0,0 +1,406 @@
+package com.tbocek.android.combatmap;
+
+import android.util.Log;
+
+import com.tbocek.android.combatmap.model.MapData;
+import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
+import com.tbocek.android.combatmap.model.io.MapDataSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal that sits next to a saved map snapshot. Instead of
+ * rewriting the whole map on every save, only the map sections that changed
+ * since the last save are appended to the journal. When the journal grows too
+ * large relative to the snapshot, it is compacted by writing a new snapshot
+ * and starting an empty journal.
+ *
+ * Journal format: a header (magic number, snapshot ID) identifying the
+ * snapshot that the journal applies to, followed by records of (section id,
+ * payload length, payload CRC, payload). Each snapshot is written with a new,
+ * random ID at its start, so a journal only applies to the exact snapshot it
+ * was started for, however the files were copied or restored. A record that
+ * was only partially written is detected and ignored on replay.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class MapJournal {
+    private static final String TAG = "MapJournal";
+
+    /**
+     * Marks the start of a journal file.
+     */
+    private static final int JOURNAL_MAGIC = 0x44534a4c;
+
+    /**
+     * Once the journal would grow past this fraction of the snapshot size, the
+     * journal is compacted into a new snapshot.
+     */
+    private static final float COMPACTION_RATIO = 1.0f;
+
+    /**
+     * Journals that have been written to during this process, keyed by the
+     * snapshot path. Section digests are only known for journals in here.
+     */
+    private static final Map<String, MapJournal> sJournals =
+            new HashMap<String, MapJournal>();
+
+    /**
+     * Generates snapshot IDs.
+     */
+    private static final Random sRandom = new Random();
+
+    /**
+     * The full map snapshot that this journal applies to.
+     */
+    private final File mSnapshotFile;
+
+    /**
+     * The journal file.
+     */
+    private final File mJournalFile;
+
+    /**
+     * CRCs of each section as last written to disk, or null if the on-disk
+     * state is not known and the next save must write a full snapshot.
+     */
+    private long[] mSectionDigests;
+
+    /**
+     * Lengths of each section as last written to disk.
+     */
+    private int[] mSectionLengths;
+
+    /**
+     * Length of the snapshot this object last wrote.
+     */
+    private long mSnapshotLength;
+
+    /**
+     * ID of the snapshot this object last wrote, which is recorded in the
+     * journal header.
+     */
+    private long mSnapshotId = MapData.NO_SNAPSHOT_ID;
+
+    /**
+     * Gets the journal for the given snapshot, creating it if needed.
+     *
+     * @param snapshotFile
+     *            The full map snapshot.
+     * @param journalFile
+     *            The journal that applies to the snapshot.
+     * @return The journal object.
+     */
+    static synchronized MapJournal forSnapshot(File snapshotFile,
+            File journalFile) {
+        String key = snapshotFile.getAbsolutePath();
+        MapJournal journal = sJournals.get(key);
+        if (journal == null) {
+            journal = new MapJournal(snapshotFile, journalFile);
+            sJournals.put(key, journal);
+        }
+        return journal;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param snapshotFile
+     *            The full map snapshot.
+     * @param journalFile
+     *            The journal that applies to the snapshot.
+     */
+    private MapJournal(File snapshotFile, File journalFile) {
+        this.mSnapshotFile = snapshotFile;
+        this.mJournalFile = journalFile;
+    }
+
+    /**
+     * Saves the given map data, appending changed sections to the journal or
+     * compacting into a new snapshot as needed.
+     *
+     * @param data
+     *            The map data to save.
+     * @throws IOException
+     *             On write error.
+     */
+    synchronized void save(MapData data) throws IOException {
+        byte[][] sections = new byte[MapData.SECTION_COUNT][];
+        long[] digests = new long[MapData.SECTION_COUNT];
+        int journalBytes = 0;
+        for (int i = 0; i < MapData.SECTION_COUNT; ++i) {
+            sections[i] = serializeSection(data, i);
+            digests[i] = crc(sections[i]);
+            if (!this.isUnchanged(i, sections[i].length, digests[i])) {
+                // Section id, payload length, and CRC precede the payload.
+                journalBytes += sections[i].length + 16;
+            }
+        }
+
+        if (!this.canAppend()
+                || this.mJournalFile.length() + journalBytes
+                        > this.mSnapshotLength * COMPACTION_RATIO) {
+            this.compact(data, sections, digests);
+            return;
+        }
+        if (journalBytes == 0) {
+            return;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(this.mJournalFile, true)));
+        try {
+            for (int i = 0; i < MapData.SECTION_COUNT; ++i) {
+                if (!this.isUnchanged(i, sections[i].length, digests[i])) {
+                    out.writeInt(i);
+                    out.writeInt(sections[i].length);
+                    out.writeLong(digests[i]);
+                    out.write(sections[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        this.mSectionDigests = digests;
+        this.mSectionLengths = lengths(sections);
+    }
+
+    /**
+     * Deletes the journal and forgets what was written, so that the next
+     * journaled save writes a full snapshot.
+     */
+    synchronized void discard() {
+        this.mSectionDigests = null;
+        this.mSectionLengths = null;
+        if (this.mJournalFile.exists() && !this.mJournalFile.delete()) {
+            Log.w(TAG, "Could not delete journal " + this.mJournalFile);
+        }
+    }
+
+    /**
+     * Applies the journal to map data that was just loaded from the snapshot.
+     * Records that were torn by an interrupted write are ignored, as is a
+     * journal that was started for a different snapshot.
+     *
+     * @param data
+     *            The map data loaded from the snapshot.
+     * @param tokens
+     *            Token database to load tokens from.
+     * @param errors
+     *            Deserializer to log replay errors to.
+     */
+    synchronized void replay(MapData data, TokenDatabase tokens,
+            MapDataDeserializer errors) {
+        if (!this.mJournalFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(this.mJournalFile)));
+            if (in.readInt() != JOURNAL_MAGIC
+                    || data.getSnapshotId() == MapData.NO_SNAPSHOT_ID
+                    || in.readLong() != data.getSnapshotId()) {
+                Log.w(TAG, "Ignoring stale journal " + this.mJournalFile);
+                return;
+            }
+            while (true) {
+                int section;
+                try {
+                    section = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int length = in.readInt();
+                long digest = in.readLong();
+                if (length < 0 || length > this.mJournalFile.length()) {
+                    Log.w(TAG, "Corrupt journal record in " + this.mJournalFile);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (crc(payload) != digest) {
+                    Log.w(TAG, "Torn journal record in " + this.mJournalFile);
+                    break;
+                }
+                MapDataDeserializer s = new MapDataDeserializer(
+                        new BufferedReader(new InputStreamReader(
+                                new ByteArrayInputStream(payload))));
+                data.deserializeSection(section, s, tokens);
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Journal ended mid-record: " + this.mJournalFile);
+        } catch (Exception e) {
+            errors.addError(e.toString());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Intentionally ignored.
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a full snapshot and starts a new, empty journal for it.
+     *
+     * @param data
+     *            The map data to write.
+     * @param sections
+     *            Serialized sections of the map data.
+     * @param digests
+     *            CRCs of the serialized sections.
+     * @throws IOException
+     *             On write error.
+     */
+    private void compact(MapData data, byte[][] sections, long[] digests)
+            throws IOException {
+        // If this is interrupted before the journal is restarted, the old
+        // journal no longer matches the new snapshot's ID and will be ignored.
+        long snapshotId = newSnapshotId();
+        DataManager.writeMapAtomically(data, this.mSnapshotFile, snapshotId);
+
+        this.mSnapshotLength = this.mSnapshotFile.length();
+        this.mSnapshotId = snapshotId;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(this.mJournalFile)));
+        try {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeLong(snapshotId);
+        } finally {
+            out.close();
+        }
+        this.mSectionDigests = digests;
+        this.mSectionLengths = lengths(sections);
+    }
+
+    /**
+     * @return True if the journal on disk is the one this object last wrote
+     *         and still applies to the snapshot on disk.
+     */
+    private boolean canAppend() {
+        return this.mSectionDigests != null
+                && this.mJournalFile.exists()
+                && this.readSnapshotId() == this.mSnapshotId;
+    }
+
+    /**
+     * Reads the ID from the start of the snapshot on disk.
+     *
+     * @return The snapshot's ID, or NO_SNAPSHOT_ID if it has none or could
+     *         not be read.
+     */
+    private long readSnapshotId() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(this.mSnapshotFile)));
+            return MapData.readSnapshotId(new MapDataDeserializer(reader));
+        } catch (IOException e) {
+            return MapData.NO_SNAPSHOT_ID;
+        } catch (NumberFormatException e) {
+            return MapData.NO_SNAPSHOT_ID;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Intentionally ignored.
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A new snapshot ID, which is never NO_SNAPSHOT_ID.
+     */
+    private static long newSnapshotId() {
+        long id;
+        do {
+            id = sRandom.nextLong();
+        } while (id == MapData.NO_SNAPSHOT_ID);
+        return id;
+    }
+
+    /**
+     * Checks whether a section matches what was last written to disk.
+     *
+     * @param section
+     *            The section index.
+     * @param length
+     *            Serialized length of the section.
+     * @param digest
+     *            CRC of the serialized section.
+     * @return True if the section does not need to be written.
+     */
+    private boolean isUnchanged(int section, int length, long digest) {
+        return this.mSectionDigests != null
+                && this.mSectionLengths[section] == length
+                && this.mSectionDigests[section] == digest;
+    }
+
+    /**
+     * Serializes one section of the map data into memory.
+     *
+     * @param data
+     *            The map data.
+     * @param section
+     *            The section to serialize.
+     * @return The serialized bytes.
+     * @throws IOException
+     *             On serialization error.
+     */
+    private static byte[] serializeSection(MapData data, int section)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(bytes);
+        data.serializeSection(section, new MapDataSerializer(writer));
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param data
+     *            Bytes to checksum.
+     * @return The CRC32 of the given bytes.
+     */
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * @param sections
+     *            Serialized sections.
+     * @return The length of each section.
+     */
+    private static int[] lengths(byte[][] sections) {
+        int[] lengths = new int[sections.length];
+        for (int i = 0; i < sections.length; ++i) {
+            lengths[i] = sections[i].length;
+        }
+        return lengths;
+    }
+}
@@ -1,58 +1,253 @@
 package com.tbocek.android.combatmap;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.preference.PreferenceManager;
+import android.util.Log;
 import android.widget.Toast;
 
+import com.google.common.base.Joiner;
+import com.tbocek.android.combatmap.model.MapData;
 import com.tbocek.dungeonsketch.R;
 
 import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by tbocek on 4/1/15.
  */
 public class MapLoadUtils {
+    private static final String TAG = "MapLoadUtils";
+
+    /**
+     * Saved instance state key holding the name of the map that was loading when an activity
+     * was torn down.
+     */
+    public static final String STATE_LOADING_MAP_NAME = "loading_map_name";
+
     public interface LoadFinishedCallback {
         void loadFinished(boolean success);
     }
 
+    /**
+     * Receives progress of a map load on the UI thread.
+     */
+    public interface LoadProgressCallback {
+        /**
+         * @param bytesRead Bytes of the map file read so far.
+         * @param totalBytes Size of the map file.
+         * @param sectionsRead Map sections read so far, out of MapData.SECTION_COUNT.
+         */
+        void loadProgress(long bytesRead, long totalBytes, int sectionsRead);
+    }
+
+    /**
+     * The load in progress, or null if no map is loading.
+     */
+    private static MapLoadTask sCurrentLoad;
+
     public static void loadMap(Context context, String name, LoadFinishedCallback callback) {
-        String errorString = new DataManager(context.getApplicationContext()).loadMapName(name);
-        if (errorString != null && !errorString.isEmpty()) {
-            if (context.getApplicationContext() != null) {
-                Toast toast = Toast.makeText(context,
-                        "Could not load file.  Reason: " + errorString,
-                        Toast.LENGTH_LONG);
-                toast.show();
+        loadMap(context, name, null, callback);
+    }
+
+    /**
+     * Loads the given map in the background, cancelling any load already in progress.  Once the
+     * map has been read completely, it replaces the current map data and the callback fires.
+     * Must be called on the UI thread.
+     * @param context Context to report errors in.
+     * @param name Name of the map to load.
+     * @param progress Receives progress while the map loads.  May be null.
+     * @param callback Called once the map has loaded or failed to load.  Not called if the load
+     *     is cancelled.  May be null.
+     */
+    public static void loadMap(Context context, String name, LoadProgressCallback progress,
+                               LoadFinishedCallback callback) {
+        cancelLoad();
+        sCurrentLoad = new MapLoadTask(context, name, progress, callback);
+        sCurrentLoad.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Cancels the load in progress, if any.  The current map data is left unchanged.
+     */
+    public static void cancelLoad() {
+        if (sCurrentLoad != null) {
+            sCurrentLoad.cancel(false);
+            sCurrentLoad = null;
+        }
+    }
+
+    /**
+     * @return True if a map is being loaded in the background.
+     */
+    public static boolean isLoading() {
+        return sCurrentLoad != null;
+    }
+
+    /**
+     * @return Name of the map being loaded in the background, or null if no map is loading.
+     */
+    public static String getLoadingMapName() {
+        return sCurrentLoad != null ? sCurrentLoad.mName : null;
+    }
+
+    /**
+     * Hands the load in progress, if any, to a new context and callbacks, so that a recreated
+     * activity picks up the load its predecessor started.  Must be called on the UI thread.
+     * @param context Context to report errors in.
+     * @param progress Receives progress while the map loads.  May be null.
+     * @param callback Called once the map has loaded or failed to load.  May be null.
+     * @return True if a load was in progress.
+     */
+    public static boolean reattachLoad(Context context, LoadProgressCallback progress,
+                                       LoadFinishedCallback callback) {
+        if (sCurrentLoad == null) {
+            return false;
+        }
+        sCurrentLoad.attach(context, progress, callback);
+        return true;
+    }
+
+    /**
+     * Drops the callbacks of the load in progress if they belong to the given context, so that
+     * the load does not keep a destroyed activity alive.  The load itself keeps running and can
+     * be picked up again with reattachLoad.  Must be called on the UI thread.
+     * @param context The context that is going away.
+     */
+    public static void detachLoad(Context context) {
+        if (sCurrentLoad != null && sCurrentLoad.mContext == context) {
+            sCurrentLoad.attach(context.getApplicationContext(), null, null);
+        }
+    }
+
+    /**
+     * Reads a map on a background thread and swaps it in as the current map data on the UI
+     * thread once it is complete.
+     */
+    private static class MapLoadTask extends AsyncTask<Void, Long, MapData> {
+        private final Context mAppContext;
+        private final String mName;
+        private final List<String> mErrors = new ArrayList<String>();
+
+        // Only accessed on the UI thread.
+        private Context mContext;
+        private LoadProgressCallback mProgressCallback;
+        private LoadFinishedCallback mFinishedCallback;
+
+        MapLoadTask(Context context, String name, LoadProgressCallback progress,
+                    LoadFinishedCallback callback) {
+            mAppContext = context.getApplicationContext();
+            mName = name;
+            attach(context, progress, callback);
+        }
+
+        void attach(Context context, LoadProgressCallback progress,
+                    LoadFinishedCallback callback) {
+            mContext = context;
+            mProgressCallback = progress;
+            mFinishedCallback = callback;
+        }
+
+        @Override
+        protected MapData doInBackground(Void... params) {
+            // Make sure the file is not read while a save of it is still pending.
+            SaverService.awaitPendingSaves();
+            if (isCancelled() || Thread.currentThread().isInterrupted()) {
+                // A save of the file may still be in progress, so don't read it.
+                return null;
+            }
+
+            try {
+                return new DataManager(mAppContext).readMapName(mName,
+                        new DataManager.MapReadListener() {
+                    @Override
+                    public void onProgress(long bytesRead, long totalBytes, int sectionsRead)
+                            throws InterruptedIOException {
+                        if (isCancelled()) {
+                            throw new InterruptedIOException("Map load cancelled");
+                        }
+                        publishProgress(bytesRead, totalBytes, (long) sectionsRead);
+                    }
+                }, mErrors);
+            } catch (InterruptedIOException e) {
+                Log.d(TAG, "Cancelled loading map " + mName);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            if (mProgressCallback != null && sCurrentLoad == this) {
+                mProgressCallback.loadProgress(values[0], values[1], values[2].intValue());
+            }
+        }
+
+        @Override
+        protected void onPostExecute(MapData data) {
+            if (sCurrentLoad == this) {
+                sCurrentLoad = null;
+            }
+            if (data != null) {
+                MapData.setInstance(data);
+            }
+
+            if (!mErrors.isEmpty()) {
+                String errorString = Joiner.on("--------\n").join(mErrors);
+                if (mContext.getApplicationContext() != null) {
+                    Toast toast = Toast.makeText(mContext,
+                            "Could not load file.  Reason: " + errorString,
+                            Toast.LENGTH_LONG);
+                    toast.show();
+                }
+                setFilenamePreference(mContext, null);
+                if (mContext instanceof Activity) {
+                    // Open map error reporting dialog.
+                    reportBadMap(mContext, mName, errorString, mFinishedCallback);
+                } else if (mFinishedCallback != null) {
+                    // No activity to show the dialog in.
+                    mFinishedCallback.loadFinished(false);
+                }
+            } else {
+                setFilenamePreference(mContext, mName);
+                if (mFinishedCallback != null) mFinishedCallback.loadFinished(true);
             }
-            setFilenamePreference(context, null);
-            // Open map error reporting dialog.
-            reportBadMap(context, name, errorString, callback);
-        } else {
-            setFilenamePreference(context, name);
-            if (callback != null) callback.loadFinished(true);
         }
     }
 
     /**
      * Gives the user the opportunity to report that a map failed to load.
+     * The map's save journal is attached along with its snapshot, since the
+     * map that failed to load is the snapshot with the journal applied.
      * @param mapName
      * @param errorString
      */
     private static void reportBadMap(final Context context, String mapName, final String errorString, final LoadFinishedCallback callback) {
-        final File mapFile = new DataManager(context).getSavedMapFile(mapName);
+        DataManager dataManager = new DataManager(context);
+        String fileName = dataManager.resolveMapName(mapName);
+        final File mapFile = dataManager.getSavedMapFile(fileName);
+        final File journalFile = dataManager.getJournalFile(fileName);
         new AlertDialog.Builder(context)
                 .setPositiveButton(R.string.report_via_email,
                         new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
 
-                                Intent intent = new Intent(android.content.Intent.ACTION_SEND);
+                                ArrayList<Uri> attachments = new ArrayList<Uri>();
+                                attachments.add(Uri.parse("file://" + mapFile.getAbsolutePath()));
+                                if (journalFile.exists()) {
+                                    attachments.add(Uri.parse("file://" + journalFile.getAbsolutePath()));
+                                }
+
+                                Intent intent = new Intent(attachments.size() > 1
+                                        ? Intent.ACTION_SEND_MULTIPLE : Intent.ACTION_SEND);
                                 intent.setType("text/plain");
                                 intent.putExtra(Intent.EXTRA_EMAIL, new String[]{context.getString(R.string.error_email_destination)} );
                                 intent.putExtra(Intent.EXTRA_SUBJECT, context.getString(R.string.error_email_subject));
@@ -64,8 +259,11 @@ public class MapLoadUtils {
                                             context, context.getString(R.string.attachment_issue),
                                             Toast.LENGTH_SHORT).show();
                                 }
-                                Uri uri = Uri.parse("file://" + mapFile.getAbsolutePath());
-                                intent.putExtra(Intent.EXTRA_STREAM, uri);
+                                if (attachments.size() > 1) {
+                                    intent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, attachments);
+                                } else {
+                                    intent.putExtra(Intent.EXTRA_STREAM, attachments.get(0));
+                                }
                                 context.startActivity(Intent.createChooser(
                                         intent, context.getString(R.string.report_via_email)));
                                 if (callback != null) callback.loadFinished(false);
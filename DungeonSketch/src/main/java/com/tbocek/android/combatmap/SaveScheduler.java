@@ -0,0 +1,367 @@
+package com.tbocek.android.combatmap;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the save jobs waiting to be run by the SaverService. Jobs are keyed
+ * by what they write; scheduling a job replaces any pending job with the same
+ * key, so a burst of saves of one map collapses into a single save of the
+ * newest data. Jobs wait out a short debounce period before they run, and the
+ * due jobs run in priority order. A job never starts while another job with
+ * the same key is running, so saves of the same data finish in the order they
+ * were requested.
+ *
+ * Jobs are taken by one worker at a time. Starting a worker retires any
+ * earlier one, which finishes the job it is running and then stops taking
+ * jobs, even if it was still draining the queue after a shutdown.
+ *
+ * Uses no Android APIs, so that it can be tested on the JVM.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class SaveScheduler {
+
+    /**
+     * Priority of jobs that write map data.
+     */
+    static final int PRIORITY_MAP = 0;
+
+    /**
+     * Priority of jobs that write the token database.
+     */
+    static final int PRIORITY_TOKEN_DATABASE = 1;
+
+    /**
+     * Priority of jobs that write map preview images.
+     */
+    static final int PRIORITY_PREVIEW = 2;
+
+    /**
+     * How long a job waits for newer requests with the same key before it
+     * runs.
+     */
+    static final long DEBOUNCE_MS = 500;
+
+    /**
+     * Longest time a job can be pushed back by newer requests with the same
+     * key.
+     */
+    static final long MAX_DELAY_MS = 2000;
+
+    /**
+     * A unit of work that the scheduler runs.
+     */
+    abstract static class Job {
+        /**
+         * Jobs with the same key replace each other.
+         */
+        private final String mKey;
+
+        /**
+         * Lower values run first.
+         */
+        private final int mPriority;
+
+        /**
+         * Time the first of the coalesced requests for this job was made.
+         */
+        private long mFirstRequested;
+
+        /**
+         * Time the newest of the coalesced requests for this job was made.
+         */
+        private long mLastRequested;
+
+        /**
+         * Time at which this job may run.
+         */
+        private long mDue;
+
+        /**
+         * Constructor.
+         *
+         * @param key
+         *            Jobs with the same key replace each other.
+         * @param priority
+         *            One of the PRIORITY_* constants.
+         */
+        Job(String key, int priority) {
+            this.mKey = key;
+            this.mPriority = priority;
+        }
+
+        /**
+         * Does the work.
+         *
+         * @throws Exception
+         *             If the work failed.
+         */
+        abstract void run() throws Exception;
+
+        /**
+         * Called instead of run if the job is replaced by a newer job with
+         * the same key.
+         */
+        void discard() {
+        }
+
+        /**
+         * @return Milliseconds between the first coalesced request and now.
+         */
+        long getLatencyMillis() {
+            return uptimeMillis() - this.mFirstRequested;
+        }
+
+        /**
+         * @return Key of this job.
+         */
+        String getKey() {
+            return this.mKey;
+        }
+
+        /**
+         * @param other
+         *            Job to compare to.
+         * @return True if this job should run before the other job.
+         */
+        private boolean runsBefore(Job other) {
+            if (this.mPriority != other.mPriority) {
+                return this.mPriority < other.mPriority;
+            }
+            // Among equal priorities, run in the order the data was captured
+            // so the newest data is written last.
+            return this.mLastRequested < other.mLastRequested;
+        }
+    }
+
+    /**
+     * Jobs waiting to run, keyed by their keys.
+     */
+    private final Map<String, Job> mPending = new HashMap<String, Job>();
+
+    /**
+     * Keys of the jobs that have been taken but have not finished.
+     */
+    private final Set<String> mRunning = new HashSet<String>();
+
+    /**
+     * Identifies the current worker. Workers with any other generation get
+     * no more jobs.
+     */
+    private int mGeneration;
+
+    /**
+     * Whether pending jobs should run right away and take() should return
+     * null once they are done.
+     */
+    private boolean mShuttingDown;
+
+    /**
+     * How long jobs wait for newer requests with the same key.
+     */
+    private final long mDebounceMillis;
+
+    /**
+     * Longest time newer requests can push a job back.
+     */
+    private final long mMaxDelayMillis;
+
+    /**
+     * Constructor.
+     */
+    SaveScheduler() {
+        this(DEBOUNCE_MS, MAX_DELAY_MS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param debounceMillis
+     *            How long jobs wait for newer requests with the same key.
+     * @param maxDelayMillis
+     *            Longest time newer requests can push a job back.
+     */
+    SaveScheduler(long debounceMillis, long maxDelayMillis) {
+        this.mDebounceMillis = debounceMillis;
+        this.mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Milliseconds from request to completion of the most recent map save, or
+     * -1 if there has been none.
+     */
+    private long mLastSaveLatencyMillis = -1;
+
+    /**
+     * Adds a job, replacing any pending job with the same key.
+     *
+     * @param job
+     *            The job to add.
+     */
+    synchronized void schedule(Job job) {
+        long now = uptimeMillis();
+        Job replaced = this.mPending.put(job.mKey, job);
+        job.mFirstRequested = replaced != null ? replaced.mFirstRequested : now;
+        job.mLastRequested = now;
+        job.mDue = Math.min(now + this.mDebounceMillis,
+                job.mFirstRequested + this.mMaxDelayMillis);
+        if (replaced != null) {
+            replaced.discard();
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * Removes a pending job without running it.
+     *
+     * @param key
+     *            Key of the job to remove.
+     */
+    synchronized void cancel(String key) {
+        Job removed = this.mPending.remove(key);
+        if (removed != null) {
+            removed.discard();
+        }
+    }
+
+    /**
+     * Waits for the highest priority job that is due and removes it. Jobs
+     * whose key is already running wait until that job has finished.
+     *
+     * @param generation
+     *            The worker's generation, as returned by start().
+     * @return The job to run, or null if a newer worker has started, or if
+     *         the scheduler is shutting down and no jobs are left.
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    synchronized Job take(int generation) throws InterruptedException {
+        while (generation == this.mGeneration) {
+            long now = uptimeMillis();
+            long nextDue = Long.MAX_VALUE;
+            Job next = null;
+            for (Job job : this.mPending.values()) {
+                if (this.mRunning.contains(job.mKey)) {
+                    // Runs once the job with the same key has finished.
+                    continue;
+                }
+                if (this.mShuttingDown || job.mDue <= now) {
+                    if (next == null || job.runsBefore(next)) {
+                        next = job;
+                    }
+                } else {
+                    nextDue = Math.min(nextDue, job.mDue);
+                }
+            }
+            if (next != null) {
+                this.mPending.remove(next.mKey);
+                this.mRunning.add(next.mKey);
+                return next;
+            }
+            if (this.mShuttingDown && this.mPending.isEmpty()) {
+                return null;
+            }
+            this.wait(nextDue == Long.MAX_VALUE ? 0 : nextDue - now);
+        }
+        return null;
+    }
+
+    /**
+     * Signals that a job returned by take() has finished running.
+     *
+     * @param job
+     *            The job that finished.
+     */
+    synchronized void jobFinished(Job job) {
+        this.mRunning.remove(job.mKey);
+        this.notifyAll();
+    }
+
+    /**
+     * Makes all pending jobs due immediately and waits for them to finish.
+     *
+     * @param timeoutMillis
+     *            Longest time to wait.
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    synchronized void awaitIdle(long timeoutMillis) throws InterruptedException {
+        for (Job job : this.mPending.values()) {
+            job.mDue = 0;
+        }
+        this.notifyAll();
+        long deadline = uptimeMillis() + timeoutMillis;
+        while (!this.mPending.isEmpty() || !this.mRunning.isEmpty()) {
+            long remaining = deadline - uptimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            this.wait(remaining);
+        }
+    }
+
+    /**
+     * Starts a new worker, which takes over the pending jobs. Any earlier
+     * worker gets no more jobs, including one still draining the queue after
+     * a shutdown.
+     *
+     * @return The new worker's generation, to pass to take() and shutdown().
+     */
+    synchronized int start() {
+        this.mGeneration++;
+        this.mShuttingDown = false;
+        this.notifyAll();
+        return this.mGeneration;
+    }
+
+    /**
+     * Makes all pending jobs due immediately, and makes the worker's take()
+     * return null once they have all been taken. Does nothing if a newer
+     * worker has started since.
+     *
+     * @param generation
+     *            The worker's generation, as returned by start().
+     */
+    synchronized void shutdown(int generation) {
+        if (generation == this.mGeneration) {
+            this.mShuttingDown = true;
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * @return Number of jobs waiting to run.
+     */
+    synchronized int getQueueDepth() {
+        return this.mPending.size();
+    }
+
+    /**
+     * @param latencyMillis
+     *            Milliseconds from request to completion of a map save.
+     */
+    synchronized void recordSaveLatency(long latencyMillis) {
+        this.mLastSaveLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return Milliseconds from request to completion of the most recent map
+     *         save, or -1 if there has been none.
+     */
+    synchronized long getLastSaveLatencyMillis() {
+        return this.mLastSaveLatencyMillis;
+    }
+
+    /**
+     * @return Milliseconds on a clock that never goes backwards. Like
+     *         SystemClock.uptimeMillis, which reads the same clock on
+     *         Android, but also available on the JVM.
+     */
+    static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
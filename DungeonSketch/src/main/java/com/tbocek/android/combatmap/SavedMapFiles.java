@@ -0,0 +1,269 @@
+package com.tbocek.android.combatmap;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Layout of the saved map directory, and the file operations that keep it
+ * consistent if the process dies in the middle of a save: atomic replacement
+ * of files, the link that points the temporary map at the named map holding
+ * the latest autosave, and cleanup of files left half written.
+ *
+ * This class uses no Android APIs, so that it can be tested on the JVM.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class SavedMapFiles {
+    /**
+     * Extension to use for saved maps.
+     */
+    static final String MAP_EXTENSION = ".map";
+
+    /**
+     * Extension to use for map save journals.
+     */
+    static final String JOURNAL_EXTENSION = ".journal";
+
+    /**
+     * Extension for the file that records which map holds the latest autosave.
+     */
+    static final String TEMP_LINK_EXTENSION = ".link";
+
+    /**
+     * Extension for files that are still being written.
+     */
+    static final String PARTIAL_EXTENSION = ".partial";
+
+    /**
+     * Name of the temporary map.
+     */
+    static final String TEMP_MAP_NAME = "tmp";
+
+    /**
+     * Writes the contents of a file.
+     */
+    interface Contents {
+        /**
+         * @param out
+         *            Stream to write the contents to.
+         * @throws IOException
+         *             On write error.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Steps of an atomic write, in order.
+     */
+    enum Step {
+        /**
+         * The partial file has been created, but nothing written to it.
+         */
+        PARTIAL_CREATED,
+
+        /**
+         * The contents have been written to the partial file, but not synced.
+         */
+        PARTIAL_WRITTEN,
+
+        /**
+         * The partial file has been synced to disk.
+         */
+        PARTIAL_SYNCED,
+
+        /**
+         * The partial file has been renamed over the target.
+         */
+        RENAMED
+    }
+
+    /**
+     * Told as atomic writes reach each step. Tests use this to simulate the
+     * process dying part way through a save.
+     */
+    interface StepListener {
+        /**
+         * @param target
+         *            The file being written.
+         * @param step
+         *            The step that was just finished.
+         */
+        void stepReached(File target, Step step);
+    }
+
+    /**
+     * Listener for the steps of atomic writes, or null. Only set by tests.
+     */
+    private static volatile StepListener sStepListener;
+
+    /**
+     * The saved map directory.
+     */
+    private final File mDirectory;
+
+    /**
+     * Constructor.
+     *
+     * @param directory
+     *            The saved map directory.
+     */
+    SavedMapFiles(File directory) {
+        this.mDirectory = directory;
+    }
+
+    /**
+     * @param listener
+     *            Listener for the steps of atomic writes, or null.
+     */
+    static void setStepListener(StepListener listener) {
+        sStepListener = listener;
+    }
+
+    /**
+     * @param mapName
+     *            Name of the map, without extension.
+     * @return File object for the map.
+     */
+    File getMapFile(String mapName) {
+        return new File(this.mDirectory, mapName + MAP_EXTENSION);
+    }
+
+    /**
+     * @param mapName
+     *            Name of the map, without extension.
+     * @return File object for the map's journal.
+     */
+    File getJournalFile(String mapName) {
+        return new File(this.mDirectory, mapName + JOURNAL_EXTENSION);
+    }
+
+    /**
+     * @return File object naming the map that holds the latest autosave.
+     */
+    File getTempMapLinkFile() {
+        return new File(this.mDirectory, TEMP_MAP_NAME + TEMP_LINK_EXTENSION);
+    }
+
+    /**
+     * Finds the map that actually stores the given map's data. Named saves
+     * do not write a second copy to the temporary map; instead, the temporary
+     * map links to the named map that was last saved. A link to a map that
+     * no longer exists is ignored.
+     *
+     * @param mapName
+     *            Name of the map, without extension.
+     * @return Name of the map file to read.
+     * @throws IOException
+     *             If the link could not be read.
+     */
+    String resolveMapName(String mapName) throws IOException {
+        File link = this.getTempMapLinkFile();
+        if (!mapName.equals(TEMP_MAP_NAME) || !link.exists()) {
+            return mapName;
+        }
+        String target = FileUtils.readFileToString(link, "UTF-8").trim();
+        if (target.length() > 0 && this.getMapFile(target).exists()) {
+            return target;
+        }
+        return mapName;
+    }
+
+    /**
+     * Makes the temporary map link to the given named map.
+     *
+     * @param mapName
+     *            Name of the map that holds the latest autosave.
+     * @throws IOException
+     *             On write error.
+     */
+    void linkTempMapTo(final String mapName) throws IOException {
+        writeAtomically(this.getTempMapLinkFile(), new Contents() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(mapName.getBytes("UTF-8"));
+            }
+        });
+    }
+
+    /**
+     * Makes the temporary map stand on its own again.
+     *
+     * @return False if the link exists and could not be deleted.
+     */
+    boolean removeTempMapLink() {
+        File link = this.getTempMapLinkFile();
+        return !link.exists() || link.delete();
+    }
+
+    /**
+     * Deletes the files that saves interrupted by the process dying left half
+     * written. Must only be called while no save is in progress, such as
+     * before the first save of the process.
+     *
+     * @return The number of files deleted.
+     */
+    int deletePartialFiles() {
+        File[] partials = this.mDirectory.listFiles();
+        if (partials == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File f : partials) {
+            if (f.getName().endsWith(PARTIAL_EXTENSION) && f.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes a file so that it holds either its old contents or the complete
+     * new contents, even if the process dies during the write. The contents
+     * are streamed once into a sibling file, synced to disk, and renamed over
+     * the target.
+     *
+     * @param target
+     *            The file to replace.
+     * @param contents
+     *            Writes the new contents.
+     * @throws IOException
+     *             On write error. The target is left as it was.
+     */
+    static void writeAtomically(File target, Contents contents) throws IOException {
+        File partial = new File(target.getParentFile(), target.getName() + PARTIAL_EXTENSION);
+        FileOutputStream s = new FileOutputStream(partial);
+        try {
+            try {
+                stepReached(target, Step.PARTIAL_CREATED);
+                contents.writeTo(s);
+                s.flush();
+                stepReached(target, Step.PARTIAL_WRITTEN);
+                s.getFD().sync();
+                stepReached(target, Step.PARTIAL_SYNCED);
+            } finally {
+                s.close();
+            }
+            if (!partial.renameTo(target)) {
+                throw new IOException("Could not move " + partial + " to " + target);
+            }
+        } catch (IOException e) {
+            // A partial file left by anything else that stops the write, or
+            // that can't be deleted now, is cleaned up by deletePartialFiles.
+            partial.delete();
+            throw e;
+        }
+        stepReached(target, Step.RENAMED);
+    }
+
+    private static void stepReached(File target, Step step) {
+        StepListener listener = sStepListener;
+        if (listener != null) {
+            listener.stepReached(target, step);
+        }
+    }
+}
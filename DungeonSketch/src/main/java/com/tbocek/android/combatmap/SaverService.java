@@ -12,118 +12,191 @@ import com.tbocek.android.combatmap.model.MapData;
 import com.tbocek.android.combatmap.model.MapDrawer;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This service accepts intents to write out the currently loaded map or the token database.
  * Its intent is to keep worker threads to save these resources alive even if there is no Dungeon
  * Sketch activity in the foreground.
+ * Saves are handed to a SaveScheduler, which collapses repeated saves of the same data and runs
+ * map saves before token database saves before preview images.
  * Created by tbocek on 6/3/14.
  */
 public class SaverService extends Service {
     private static final String TAG = "SaverService";
 
-    private static final String EXTRA_DATA_TO_SAVE = "data_to_save";
-    private static final int SAVE_MAP = 0;
-    private static final int SAVE_TOKEN_DB = 1;
+    /**
+     * How long to wait for pending saves to finish before reading files back.
+     */
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
 
-    private static final String EXTRA_MAP_NAME = "map_name";
-    private BlockingQueue<Runnable> mOperationQueue = new LinkedBlockingQueue<Runnable>();
+    private static final String MAP_JOB_PREFIX = "map:";
+    private static final String PREVIEW_JOB_PREFIX = "preview:";
+    private static final String TOKEN_DATABASE_JOB = "token_database";
+
+    private static final SaveScheduler sScheduler = new SaveScheduler();
 
     private static DataManager sDataManager;
 
-    public static void startSavingMap(Context context, String saveName) {
-        Intent i = new Intent(context, SaverService.class);
+    /**
+     * ID of the most recent start request, so that the service only stops itself once it has
+     * handled every request.
+     */
+    private volatile int mLastStartId;
+
+    /**
+     * Generation of this service's worker thread in the scheduler.
+     */
+    private int mWorkerGeneration;
 
+    public static void startSavingMap(Context context, final String saveName) {
         if (sDataManager == null) {
             sDataManager = new DataManager(context.getApplicationContext());
         }
-        sDataManager.checkpointForSaving();
+        final MapData snapshot = MapData.getCopy();
+        if (snapshot == null) {
+            return;
+        }
 
-        i.putExtra(EXTRA_DATA_TO_SAVE, SAVE_MAP);
-        i.putExtra(EXTRA_MAP_NAME, saveName);
-        context.startService(i);
+        // A preview of older data is no longer worth writing.
+        sScheduler.cancel(PREVIEW_JOB_PREFIX + saveName);
+        sScheduler.schedule(new SaveScheduler.Job(
+                MAP_JOB_PREFIX + saveName, SaveScheduler.PRIORITY_MAP) {
+            @Override
+            void run() throws IOException {
+                try {
+                    sDataManager.saveMapName(saveName, snapshot);
+                } catch (IOException e) {
+                    snapshot.release();
+                    throw e;
+                }
+                sScheduler.recordSaveLatency(this.getLatencyMillis());
+                if (DeveloperMode.DEVELOPER_MODE) {
+                    Log.d(TAG, "Saved map " + saveName + " in " + this.getLatencyMillis()
+                            + "ms, queue depth " + sScheduler.getQueueDepth());
+                }
+
+                // Only save preview if not saving to temp file.
+                if (saveName.equals(DataManager.TEMP_MAP_NAME)) {
+                    snapshot.release();
+                } else {
+                    schedulePreview(saveName, snapshot);
+                }
+            }
+
+            @Override
+            void discard() {
+                snapshot.release();
+            }
+        });
+        ensureRunning(context);
     }
 
     public static void startSavingTokenDatabase(Context context) {
-        Intent i = new Intent(context, SaverService.class);
-        i.putExtra(EXTRA_DATA_TO_SAVE, SAVE_TOKEN_DB);
-        context.startService(i);
+        // The database copies its saved state under its own lock when it is
+        // written, so it is saved directly instead of from a copy.
+        final TokenDatabase db = TokenDatabase.getInstanceOrNull();
+        if (db == null || !db.isDirty()) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        sScheduler.schedule(new SaveScheduler.Job(
+                TOKEN_DATABASE_JOB, SaveScheduler.PRIORITY_TOKEN_DATABASE) {
+            @Override
+            void run() throws Exception {
+                db.save(appContext);
+            }
+        });
+        ensureRunning(context);
+    }
+
+    /**
+     * Blocks until pending saves have been written, so that files can be read back safely.
+     * Do not call on the UI thread.  If interrupted, returns early with the thread's interrupt
+     * status set; saves may then still be pending.
+     */
+    public static void awaitPendingSaves() {
+        try {
+            sScheduler.awaitIdle(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for pending saves");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of saves waiting to run.
+     */
+    public static int getQueueDepth() {
+        return sScheduler.getQueueDepth();
+    }
+
+    /**
+     * @return Milliseconds from request to completion of the most recent map save, or -1 if no
+     *     map has been saved yet.
+     */
+    public static long getLastSaveLatencyMillis() {
+        return sScheduler.getLastSaveLatencyMillis();
+    }
+
+    private static void ensureRunning(Context context) {
+        context.startService(new Intent(context, SaverService.class));
+    }
+
+    /**
+     * Schedules rendering and saving a preview image of a map that was just saved.
+     * @param saveName Name of the saved map.
+     * @param snapshot Snapshot of the saved map data.  Released once the preview is drawn.
+     */
+    private static void schedulePreview(final String saveName, final MapData snapshot) {
+        sScheduler.schedule(new SaveScheduler.Job(
+                PREVIEW_JOB_PREFIX + saveName, SaveScheduler.PRIORITY_PREVIEW) {
+            @Override
+            void run() throws IOException {
+                // TODO: pick better dimensions.
+                Bitmap bitmap = BitmapPool.obtain(256, 256, Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(bitmap);
+
+                // The map save already made the snapshot independent.
+                new MapDrawer().drawGridLines(false).drawGmNotes(false)
+                        .drawTokens(true).areTokensManipulable(true)
+                        .drawAnnotations(false)
+                        .gmNotesFogOfWar(MapDrawer.FogOfWarMode.NOTHING)
+                        .backgroundFogOfWar(MapDrawer.FogOfWarMode.CLIP)
+                        .draw(canvas, snapshot, canvas.getClipBounds());
+                snapshot.release();
+
+                try {
+                    sDataManager.savePreviewImage(saveName, bitmap);
+                } finally {
+                    BitmapPool.release(bitmap);
+                }
+            }
+
+            @Override
+            void discard() {
+                snapshot.release();
+            }
+        });
     }
 
     @Override
     public void onCreate() {
-        mBackgroundThread.start();
+        // Retires the previous service's thread, if it is still draining the queue; this
+        // thread takes over the rest.
+        mWorkerGeneration = sScheduler.start();
+        new Thread(mRunJobs, TAG).start();
     }
 
     @Override
     public void onDestroy() {
-        try {
-            mBackgroundThread.join(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        // Run whatever is still pending right away. The thread finishes in the background
+        // rather than holding up the main thread.
+        sScheduler.shutdown(mWorkerGeneration);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        int operation = intent.getIntExtra(EXTRA_DATA_TO_SAVE, -1);
-
-        switch(operation) {
-            case SAVE_MAP:
-                final String filename = intent.getStringExtra(EXTRA_MAP_NAME);
-
-                mOperationQueue.add(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            MapData savedMap = sDataManager.saveMapName(filename);
-                            // Only save preview if not saving to temp file.
-                            if (!filename.equals(DataManager.TEMP_MAP_NAME)) {
-                                // TODO: pick better dimensions.
-                                Bitmap bitmap = Bitmap.createBitmap(
-                                        256, 256, Bitmap.Config.ARGB_8888);
-                                Canvas canvas = new Canvas(bitmap);
-
-                                new MapDrawer().drawGridLines(false).drawGmNotes(false)
-                                        .drawTokens(true).areTokensManipulable(true)
-                                        .drawAnnotations(false)
-                                        .gmNotesFogOfWar(MapDrawer.FogOfWarMode.NOTHING)
-                                        .backgroundFogOfWar(MapDrawer.FogOfWarMode.CLIP)
-                                        .draw(canvas, savedMap, canvas.getClipBounds());
-
-                                sDataManager.savePreviewImage(filename, bitmap);
-                            }
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error while saving map", e);
-                        }
-                    }
-                });
-                break;
-            case SAVE_TOKEN_DB:
-                try {
-                    final TokenDatabase db = TokenDatabase.getCopy();
-
-                    mOperationQueue.add(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                db.save(getApplicationContext());
-                            } catch (Exception e) {
-                                Log.e(TAG, "Error while saving token DB", e);
-                            }
-                        }
-                    });
-                } catch (CloneNotSupportedException e) {
-                    e.printStackTrace();
-                }
-
-                break;
-            default:
-                Log.e(TAG, "Invalid save operation passed to service: " + operation);
-        }
-
+        mLastStartId = startId;
         return Service.START_NOT_STICKY;
     }
 
@@ -132,21 +205,33 @@ public class SaverService extends Service {
         return null;
     }
 
-    private Thread mBackgroundThread = new Thread() {
+    private final Runnable mRunJobs = new Runnable() {
         @Override
         public void run() {
-            while(true) {
+            while (true) {
+                SaveScheduler.Job job;
                 try {
-                    Runnable r = mOperationQueue.take();
-                    r.run();
+                    job = sScheduler.take(mWorkerGeneration);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
+                    return;
+                }
+                if (job == null) {
+                    return;
                 }
 
-                if (mOperationQueue.isEmpty()) {
-                    // TODO: stop the service on the UI thread.
+                try {
+                    job.run();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while saving", e);
+                } finally {
+                    sScheduler.jobFinished(job);
                 }
 
+                if (sScheduler.getQueueDepth() == 0) {
+                    // Only stops if no start requests came in since the last one we saw.
+                    stopSelfResult(mLastStartId);
+                }
             }
         }
     };
@@ -36,8 +36,10 @@ public class ScrollBuffer {
 	
 	public void allocateBitmaps(int width, int height) {
 		// TODO: Do we need to use ARGB_8888 instead?
-		primary = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
-		secondary = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		BitmapPool.release(primary);
+		BitmapPool.release(secondary);
+		primary = BitmapPool.obtain(width, height, Bitmap.Config.RGB_565);
+		secondary = BitmapPool.obtain(width, height, Bitmap.Config.RGB_565);
 		invalidated = true;
 		mMinDraw = (int) (Units.dpToPx(MIN_DRAW_DIP));
 	}
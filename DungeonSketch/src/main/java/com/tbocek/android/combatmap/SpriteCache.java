@@ -0,0 +1,167 @@
+package com.tbocek.android.combatmap;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.tbocek.dungeonsketch.R;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the small UI images drawn over the map, such as info
+ * point icons and the token trash can. The sprites are decoded once per
+ * process, off the UI thread, and scaled ahead of time to the size they are
+ * drawn at, so drawing them is a plain blit. They stay loaded across
+ * activity recreation and configuration changes.
+ *
+ * @author Tim Bocek
+ *
+ */
+public final class SpriteCache {
+    private static final String TAG = "SpriteCache";
+
+    /**
+     * Size that info points are drawn at on screen, in dp.
+     */
+    public static final float INFO_POINT_SIZE_DP = 32;
+
+    /**
+     * The cached sprites.
+     */
+    public enum Sprite {
+        INFO(R.drawable.info),
+        INFO_MONSTER(R.drawable.icon_combat),
+        INFO_TREASURE(R.drawable.icon_treasure),
+        TRASH_CAN(R.drawable.trashcan, R.dimen.trash_can_width, R.dimen.trash_can_height),
+        TRASH_CAN_DARK(R.drawable.trashcan_dark, R.dimen.trash_can_width,
+                R.dimen.trash_can_height),
+        TRASH_CAN_HOVER(R.drawable.trashcan_hover_over, R.dimen.trash_can_width,
+                R.dimen.trash_can_height);
+
+        private final int mResourceId;
+
+        /**
+         * Dimension resources giving the size the sprite is drawn at, or 0 to
+         * draw it at INFO_POINT_SIZE_DP.
+         */
+        private final int mWidthDimenId;
+        private final int mHeightDimenId;
+
+        Sprite(int resourceId) {
+            this(resourceId, 0, 0);
+        }
+
+        Sprite(int resourceId, int widthDimenId, int heightDimenId) {
+            this.mResourceId = resourceId;
+            this.mWidthDimenId = widthDimenId;
+            this.mHeightDimenId = heightDimenId;
+        }
+    }
+
+    /**
+     * The loaded sprites, or null if they have not been loaded yet. Replaced
+     * as a whole once loading finishes, so readers never see a partial set.
+     */
+    private static volatile Map<Sprite, Bitmap> sSprites;
+
+    /**
+     * Whether the sprites have been loaded or are being loaded. Only accessed
+     * on the UI thread.
+     */
+    private static boolean sLoadStarted;
+
+    /**
+     * Called on the UI thread once the sprites are loaded.
+     */
+    private static Runnable sLoadedListener;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Private constructor because this is a utility class.
+     */
+    private SpriteCache() {
+    }
+
+    /**
+     * Starts loading the sprites in the background, if they have not been
+     * loaded already. Must be called on the UI thread.
+     *
+     * @param context
+     *            Context to load the sprites from.
+     */
+    public static void loadAsync(Context context) {
+        if (sLoadStarted) {
+            return;
+        }
+        sLoadStarted = true;
+        final Resources res = context.getApplicationContext().getResources();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                sSprites = load(res);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (sLoadedListener != null) {
+                            sLoadedListener.run();
+                        }
+                    }
+                });
+            }
+        }, "SpriteCache.Loader").start();
+    }
+
+    /**
+     * Gets a sprite, already scaled to the size it is drawn at.
+     *
+     * @param sprite
+     *            The sprite to get.
+     * @return The sprite, or null if it has not been loaded yet.
+     */
+    public static Bitmap get(Sprite sprite) {
+        Map<Sprite, Bitmap> sprites = sSprites;
+        return sprites != null ? sprites.get(sprite) : null;
+    }
+
+    /**
+     * Sets the callback to run on the UI thread once the sprites are loaded.
+     *
+     * @param listener
+     *            The callback, or null to remove it.
+     */
+    public static void setLoadedListener(Runnable listener) {
+        sLoadedListener = listener;
+    }
+
+    private static Map<Sprite, Bitmap> load(Resources res) {
+        Map<Sprite, Bitmap> sprites = new EnumMap<Sprite, Bitmap>(Sprite.class);
+        int infoPointSizePx =
+                Math.round(INFO_POINT_SIZE_DP * res.getDisplayMetrics().density);
+        for (Sprite sprite : Sprite.values()) {
+            int widthPx = sprite.mWidthDimenId != 0
+                    ? res.getDimensionPixelSize(sprite.mWidthDimenId) : infoPointSizePx;
+            int heightPx = sprite.mHeightDimenId != 0
+                    ? res.getDimensionPixelSize(sprite.mHeightDimenId) : infoPointSizePx;
+            Bitmap decoded = BitmapFactory.decodeResource(res, sprite.mResourceId);
+            if (decoded == null) {
+                Log.w(TAG, "Could not decode sprite " + sprite);
+                continue;
+            }
+            Bitmap scaled = Bitmap.createScaledBitmap(decoded, widthPx, heightPx, true);
+            if (scaled != decoded) {
+                decoded.recycle();
+            }
+            sprites.put(sprite, scaled);
+        }
+        return sprites;
+    }
+}
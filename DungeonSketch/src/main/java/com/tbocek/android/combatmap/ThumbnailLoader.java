@@ -0,0 +1,317 @@
+package com.tbocek.android.combatmap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.tbocek.android.combatmap.view.SaveFileButton;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads map thumbnails for save file buttons off the UI thread. Thumbnails are
+ * decoded at a sample size matched to the button, kept in a memory-bounded LRU
+ * cache that outlives the activity, and decoded into pooled bitmaps, including
+ * those of evicted thumbnails, where possible. Loads for buttons that are no longer shown can
+ * be cancelled.
+ *
+ * All methods other than the decoding itself must be called on the UI thread.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class ThumbnailLoader extends HandlerThread {
+    private static final String TAG = "ThumbnailLoader";
+
+    private static final int MESSAGE_LOAD = 0;
+
+    /**
+     * Fraction of the app's heap that cached thumbnails may use.
+     */
+    private static final int CACHE_HEAP_FRACTION = 16;
+
+    /**
+     * Decoded thumbnails, keyed by map name and modification time.
+     */
+    private static final LruCache<String, Bitmap> sCache =
+            new LruCache<String, Bitmap>(
+                    (int) (Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                Bitmap newValue) {
+            if (evicted && !sDisplayedKeys.contains(key)) {
+                BitmapPool.release(oldValue);
+            }
+        }
+    };
+
+    /**
+     * Keys of the thumbnails currently shown by a button. Shown thumbnails
+     * must not be decoded into.
+     */
+    private static final Multiset<String> sDisplayedKeys = HashMultiset.create();
+
+    /**
+     * A pending thumbnail load.
+     */
+    private static final class Request {
+        private final MapCatalog.Entry mEntry;
+        private final String mKey;
+
+        private Request(MapCatalog.Entry entry) {
+            this.mEntry = entry;
+            this.mKey = entry.getName() + "@" + entry.getModified();
+        }
+    }
+
+    /**
+     * A thumbnail shown by a button.
+     */
+    private static final class Binding {
+        private final String mKey;
+        private final Bitmap mBitmap;
+
+        private Binding(String key, Bitmap bitmap) {
+            this.mKey = key;
+            this.mBitmap = bitmap;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Handler mResponseHandler;
+    private final DataManager mDataManager;
+
+    /**
+     * Width and height of the thumbnails to load, in pixels.
+     */
+    private final int mTargetSize;
+
+    /**
+     * Loads waiting to be decoded, keyed by the button that will show them.
+     * Shared with the loader thread.
+     */
+    private final Map<SaveFileButton, Request> mPending =
+            new HashMap<SaveFileButton, Request>();
+
+    /**
+     * Thumbnails currently shown, keyed by the button showing them.
+     */
+    private final Map<SaveFileButton, Binding> mBound =
+            new HashMap<SaveFileButton, Binding>();
+
+    /**
+     * Constructor. Starts the loader thread.
+     *
+     * @param context
+     *            Context to load the thumbnails in.
+     * @param targetSize
+     *            Width and height of the thumbnails to load, in pixels.
+     */
+    ThumbnailLoader(Context context, int targetSize) {
+        super(TAG);
+        this.mDataManager = new DataManager(context.getApplicationContext());
+        this.mTargetSize = targetSize;
+        this.mResponseHandler = new Handler();
+        this.start();
+        this.mHandler = new Handler(this.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MESSAGE_LOAD) {
+                    handleRequest((SaveFileButton) msg.obj);
+                }
+            }
+        };
+    }
+
+    /**
+     * Shows the thumbnail of the given map on the given button, loading it if
+     * needed.
+     *
+     * @param button
+     *            The button to show the thumbnail on.
+     * @param entry
+     *            Catalog entry of the map.
+     */
+    void bind(SaveFileButton button, MapCatalog.Entry entry) {
+        Request request = new Request(entry);
+        Binding bound = this.mBound.get(button);
+        if (bound != null && bound.mKey.equals(request.mKey)) {
+            return;
+        }
+        synchronized (this.mPending) {
+            Request pending = this.mPending.get(button);
+            if (pending != null && pending.mKey.equals(request.mKey)) {
+                return;
+            }
+        }
+        this.unbind(button);
+
+        Bitmap cached = sCache.get(request.mKey);
+        if (cached != null) {
+            this.show(button, request.mKey, cached);
+            return;
+        }
+        synchronized (this.mPending) {
+            this.mPending.put(button, request);
+        }
+        this.mHandler.obtainMessage(MESSAGE_LOAD, button).sendToTarget();
+    }
+
+    /**
+     * Cancels any pending load for the given button and stops showing its
+     * thumbnail, so that the thumbnail's memory can be reused.
+     *
+     * @param button
+     *            The button.
+     */
+    void unbind(SaveFileButton button) {
+        synchronized (this.mPending) {
+            this.mPending.remove(button);
+        }
+        this.mHandler.removeMessages(MESSAGE_LOAD, button);
+
+        Binding bound = this.mBound.remove(button);
+        if (bound != null) {
+            button.setPreviewImage(null);
+            sDisplayedKeys.remove(bound.mKey);
+            // Evicted while shown, so nothing else holds on to it.
+            if (!sDisplayedKeys.contains(bound.mKey)
+                    && sCache.get(bound.mKey) != bound.mBitmap) {
+                BitmapPool.release(bound.mBitmap);
+            }
+        }
+    }
+
+    /**
+     * Unbinds all buttons and stops the loader thread.
+     */
+    void shutdown() {
+        for (SaveFileButton button : new ArrayList<SaveFileButton>(this.mBound.keySet())) {
+            this.unbind(button);
+        }
+        synchronized (this.mPending) {
+            this.mPending.clear();
+        }
+        this.quit();
+    }
+
+    /**
+     * Shows a loaded thumbnail on a button.
+     */
+    private void show(SaveFileButton button, String key, Bitmap bitmap) {
+        this.mBound.put(button, new Binding(key, bitmap));
+        sDisplayedKeys.add(key);
+        button.setPreviewImage(bitmap);
+    }
+
+    /**
+     * Decodes the thumbnail for a button. Called on the loader thread.
+     *
+     * @param button
+     *            The button the thumbnail is for.
+     */
+    private void handleRequest(final SaveFileButton button) {
+        final Request request;
+        synchronized (this.mPending) {
+            request = this.mPending.get(button);
+        }
+        if (request == null) {
+            // Cancelled before loading.
+            return;
+        }
+
+        final Bitmap bitmap = this.decode(request.mEntry);
+        if (bitmap == null) {
+            Log.w(TAG, "Could not load thumbnail for " + request.mEntry.getName());
+        }
+
+        this.mResponseHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean current;
+                synchronized (mPending) {
+                    current = mPending.get(button) == request;
+                    if (current) {
+                        mPending.remove(button);
+                    }
+                }
+                if (bitmap == null) {
+                    return;
+                }
+                if (sCache.get(request.mKey) == null) {
+                    sCache.put(request.mKey, bitmap);
+                } else {
+                    // Another request for the same thumbnail finished first.
+                    BitmapPool.release(bitmap);
+                }
+                if (current) {
+                    show(button, request.mKey, sCache.get(request.mKey));
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes a thumbnail, preferring the one embedded in the catalog over
+     * the full preview image.
+     *
+     * @param entry
+     *            Catalog entry of the map.
+     * @return The decoded thumbnail, or null if there is none.
+     */
+    private Bitmap decode(final MapCatalog.Entry entry) {
+        final File previewFile = this.mDataManager.getSavedMapPreviewImageFile(entry.getName());
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(entry, previewFile, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+
+        // Largest power of 2 that keeps the thumbnail at least as big as the
+        // button.
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= this.mTargetSize
+                && options.outHeight / (options.inSampleSize * 2) >= this.mTargetSize) {
+            options.inSampleSize *= 2;
+        }
+
+        return BitmapPool.decode(options,
+                (options.outWidth + options.inSampleSize - 1) / options.inSampleSize,
+                (options.outHeight + options.inSampleSize - 1) / options.inSampleSize,
+                new BitmapPool.Decoder() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options decodeOptions) {
+                return ThumbnailLoader.decode(entry, previewFile, decodeOptions);
+            }
+        });
+    }
+
+    private static Bitmap decode(MapCatalog.Entry entry, File previewFile,
+            BitmapFactory.Options options) {
+        byte[] thumbnail = entry.getThumbnail();
+        if (thumbnail != null) {
+            return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+        }
+        if (previewFile.exists()) {
+            return BitmapFactory.decodeFile(previewFile.getAbsolutePath(), options);
+        }
+        return null;
+    }
+}
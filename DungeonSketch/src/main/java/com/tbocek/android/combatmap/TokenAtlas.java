@@ -0,0 +1,569 @@
+package com.tbocek.android.combatmap;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Built-in token art packed into a few large atlas pages, so that browsing the
+ * token library decodes a handful of pages instead of opening and decoding
+ * every drawable resource. Each built-in image is scaled into a square cell at
+ * each of CELL_DIMS_DP; token images are cut out of the decoded page with the
+ * smallest cells that are at least as big as the requested size. Larger
+ * requests are left to the resource itself.
+ *
+ * The pages and an index of where each token's cells are live in the cache
+ * dir. They are built in the background the first time a build of the app
+ * runs, under a temporary name that is renamed once complete, and rebuilt
+ * when the app or the screen density changes. Until then, callers fall back
+ * to decoding each resource.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class TokenAtlas {
+    private static final String TAG = "TokenAtlas";
+
+    /**
+     * Name of the atlas directory, relative to the app's cache dir.
+     */
+    static final String DIRECTORY_NAME = "token_atlas";
+
+    /**
+     * Size of the cells in each resolution of the atlas, in dp, from smallest
+     * to largest.
+     */
+    private static final int[] CELL_DIMS_DP = {48, 96};
+
+    /**
+     * Width and height of an atlas page, in dp.
+     */
+    private static final int PAGE_DIM_DP = 512;
+
+    /**
+     * Marks the start of an index file.
+     */
+    private static final int INDEX_MAGIC = 0x44535441;
+
+    /**
+     * Version of the atlas format. Atlases of other versions are rebuilt.
+     */
+    private static final int INDEX_VERSION = 1;
+
+    private static final String INDEX_FILE_NAME = "index";
+
+    private static final String PARTIAL_EXTENSION = ".partial";
+
+    /**
+     * Compression quality of pages without transparency.
+     */
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * Fraction of the app's heap that decoded pages may use. The most recently
+     * used page is kept even if it is bigger than that.
+     */
+    private static final int PAGE_CACHE_HEAP_FRACTION = 16;
+
+    private static final long MAX_PAGE_CACHE_BYTES =
+            Runtime.getRuntime().maxMemory() / PAGE_CACHE_HEAP_FRACTION;
+
+    private static final Paint FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * The atlas, or null if it has not been opened or built yet. Guarded by
+     * TokenAtlas.class.
+     */
+    private static TokenAtlas sAtlas;
+
+    /**
+     * Whether the atlas is being opened or built. Guarded by TokenAtlas.class.
+     */
+    private static boolean sPreparing;
+
+    /**
+     * Where a token's image is in the pages of one resolution.
+     */
+    private static final class Cell {
+        private final int mPage;
+        private final int mLeft;
+        private final int mTop;
+
+        private Cell(int page, int left, int top) {
+            this.mPage = page;
+            this.mLeft = left;
+            this.mTop = top;
+        }
+    }
+
+    private final File mDirectory;
+
+    /**
+     * Size of the cells in each resolution, in pixels.
+     */
+    private final int[] mCellPx;
+
+    /**
+     * Cells of each token in each resolution, keyed by resource name.
+     */
+    private final Map<String, Cell[]> mCells;
+
+    /**
+     * Decoded pages, least recently used first, keyed by page file name.
+     * Evicted pages are not recycled or pooled, since another thread may
+     * still be cutting a token out of them. Guarded by this.
+     */
+    private final LinkedHashMap<String, Bitmap> mPages =
+            new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+
+    private long mPageBytes;
+    private int mPageDecodes;
+    private int mCuts;
+
+    private TokenAtlas(File directory, int[] cellPx, Map<String, Cell[]> cells) {
+        this.mDirectory = directory;
+        this.mCellPx = cellPx;
+        this.mCells = cells;
+    }
+
+    /**
+     * Opens the atlas for this build of the app, building it in the background
+     * if needed. Does nothing if the atlas is already open or being built.
+     *
+     * @param context
+     *            Context to load the built-in images from.
+     * @param resources
+     *            IDs of the built-in images, keyed by resource name, in the
+     *            order they should be packed.
+     */
+    static synchronized void prepare(Context context,
+            final LinkedHashMap<String, Integer> resources) {
+        if (sAtlas != null || sPreparing) {
+            return;
+        }
+        sPreparing = true;
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                TokenAtlas atlas = openOrBuild(appContext, resources);
+                synchronized (TokenAtlas.class) {
+                    sAtlas = atlas;
+                    sPreparing = false;
+                }
+            }
+        }, "TokenAtlas.Builder").start();
+    }
+
+    /**
+     * Cuts a built-in token image out of the atlas.
+     *
+     * @param resourceName
+     *            Name of the token's drawable resource.
+     * @param existingBuffer
+     *            Bitmap that is no longer needed, or null. Released to the
+     *            bitmap pool only if the image is cut from the atlas.
+     * @param dimPx
+     *            Width and height of the image to return, in pixels.
+     * @return The image, or null if the atlas is not ready, doesn't have the
+     *         token or has no cells that big.
+     */
+    static Bitmap load(String resourceName, Bitmap existingBuffer, int dimPx) {
+        TokenAtlas atlas;
+        synchronized (TokenAtlas.class) {
+            atlas = sAtlas;
+        }
+        return atlas != null ? atlas.cut(resourceName, existingBuffer, dimPx) : null;
+    }
+
+    /**
+     * Drops decoded pages in response to memory pressure.
+     *
+     * @param level
+     *            The level passed to ComponentCallbacks2.onTrimMemory.
+     */
+    static void onTrimMemory(int level) {
+        TokenAtlas atlas;
+        synchronized (TokenAtlas.class) {
+            atlas = sAtlas;
+        }
+        if (atlas == null) {
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            atlas.trimPages(0);
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            atlas.trimPages(MAX_PAGE_CACHE_BYTES / 2);
+        }
+    }
+
+    /**
+     * @return A summary of atlas activity, for debugging.
+     */
+    static String getStats() {
+        TokenAtlas atlas;
+        synchronized (TokenAtlas.class) {
+            atlas = sAtlas;
+        }
+        if (atlas == null) {
+            return "not ready";
+        }
+        synchronized (atlas) {
+            return "tokens=" + atlas.mCells.size() + " cuts=" + atlas.mCuts
+                    + " pageDecodes=" + atlas.mPageDecodes + " pagesLoaded="
+                    + atlas.mPages.size() + " bytes=" + atlas.mPageBytes + "/"
+                    + MAX_PAGE_CACHE_BYTES;
+        }
+    }
+
+    private Bitmap cut(String resourceName, Bitmap existingBuffer, int dimPx) {
+        Cell[] cells = this.mCells.get(resourceName);
+        if (cells == null) {
+            return null;
+        }
+        int resolution = 0;
+        while (resolution < this.mCellPx.length && this.mCellPx[resolution] < dimPx) {
+            resolution++;
+        }
+        if (resolution == this.mCellPx.length) {
+            return null;
+        }
+        Cell cell = cells[resolution];
+        Bitmap page = this.getPage(resolution, cell.mPage);
+        if (page == null) {
+            return null;
+        }
+
+        BitmapPool.release(existingBuffer);
+        Bitmap b = BitmapPool.obtain(dimPx, dimPx, Bitmap.Config.ARGB_8888);
+        int cellPx = this.mCellPx[resolution];
+        new Canvas(b).drawBitmap(page,
+                new Rect(cell.mLeft, cell.mTop, cell.mLeft + cellPx, cell.mTop + cellPx),
+                new Rect(0, 0, dimPx, dimPx), FILTER_PAINT);
+        synchronized (this) {
+            this.mCuts++;
+        }
+        return b;
+    }
+
+    /**
+     * Gets a decoded page, decoding it if it isn't loaded. Pages are decoded
+     * one at a time, since concurrent loads usually want the same page.
+     */
+    private synchronized Bitmap getPage(int resolution, int page) {
+        String name = pageFileName(resolution, page);
+        Bitmap b = this.mPages.get(name);
+        if (b != null) {
+            return b;
+        }
+        b = BitmapFactory.decodeFile(new File(this.mDirectory, name).getAbsolutePath());
+        if (b == null) {
+            Log.w(TAG, "Could not decode atlas page " + name);
+            return null;
+        }
+        this.mPageDecodes++;
+        this.mPages.put(name, b);
+        this.mPageBytes += b.getRowBytes() * b.getHeight();
+        this.trimPages(MAX_PAGE_CACHE_BYTES);
+        return b;
+    }
+
+    /**
+     * Drops the least recently used pages until the loaded pages fit in the
+     * given size, always keeping the most recently used page unless the size
+     * is 0.
+     */
+    private synchronized void trimPages(long maxBytes) {
+        Iterator<Bitmap> it = this.mPages.values().iterator();
+        while (this.mPageBytes > maxBytes && it.hasNext()
+                && (maxBytes == 0 || this.mPages.size() > 1)) {
+            Bitmap b = it.next();
+            it.remove();
+            this.mPageBytes -= b.getRowBytes() * b.getHeight();
+        }
+    }
+
+    private static String pageFileName(int resolution, int page) {
+        return resolution + "_" + page;
+    }
+
+    /**
+     * @return Size of the cells in each resolution, in pixels, on this
+     *         device's screen.
+     */
+    private static int[] cellSizesPx(Context context) {
+        float density = context.getResources().getDisplayMetrics().density;
+        int[] cellPx = new int[CELL_DIMS_DP.length];
+        for (int i = 0; i < CELL_DIMS_DP.length; ++i) {
+            cellPx[i] = Math.round(CELL_DIMS_DP[i] * density);
+        }
+        return cellPx;
+    }
+
+    private static TokenAtlas openOrBuild(Context context,
+            LinkedHashMap<String, Integer> resources) {
+        File directory = new File(context.getCacheDir(), DIRECTORY_NAME);
+        long versionKey = TokenDatabase.appVersionKey(context);
+        int[] cellPx = cellSizesPx(context);
+        TokenAtlas atlas = open(directory, versionKey, cellPx);
+        if (atlas != null) {
+            return atlas;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            atlas = build(context.getResources(), resources, directory, versionKey, cellPx,
+                    Math.round(PAGE_DIM_DP * context.getResources().getDisplayMetrics().density));
+            Log.d(TAG, "Built token atlas of " + atlas.mCells.size() + " tokens in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return atlas;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not build token atlas", e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the atlas in the given directory.
+     *
+     * @return The atlas, or null if there is no complete atlas there for this
+     *         build of the app and screen density.
+     */
+    private static TokenAtlas open(File directory, long versionKey, int[] cellPx) {
+        File index = new File(directory, INDEX_FILE_NAME);
+        if (!index.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || in.readLong() != versionKey || in.readInt() != cellPx.length) {
+                Log.d(TAG, "Token atlas is from another build");
+                return null;
+            }
+            for (int size : cellPx) {
+                if (in.readInt() != size) {
+                    Log.d(TAG, "Token atlas is for another screen density");
+                    return null;
+                }
+            }
+            int count = in.readInt();
+            Map<String, Cell[]> cells = new HashMap<String, Cell[]>(count * 2);
+            for (int i = 0; i < count; ++i) {
+                String resourceName = in.readUTF();
+                Cell[] tokenCells = new Cell[cellPx.length];
+                for (int r = 0; r < cellPx.length; ++r) {
+                    tokenCells[r] = new Cell(in.readInt(), in.readInt(), in.readInt());
+                }
+                cells.put(resourceName, tokenCells);
+            }
+            return new TokenAtlas(directory, cellPx, cells);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read token atlas index", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Intentionally ignored.
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the atlas. Each resource is decoded once, and drawn into the
+     * current page of every resolution; a page is written out once it is
+     * full. Any existing atlas in the directory is replaced.
+     */
+    private static TokenAtlas build(Resources res, LinkedHashMap<String, Integer> resources,
+            File directory, long versionKey, int[] cellPx, int pagePx) throws IOException {
+        File partial = new File(directory.getParentFile(),
+                directory.getName() + PARTIAL_EXTENSION);
+        FileUtils.deleteQuietly(partial);
+        if (!partial.mkdirs()) {
+            throw new IOException("Could not create " + partial);
+        }
+
+        int[] cellsPerRow = new int[cellPx.length];
+        for (int r = 0; r < cellPx.length; ++r) {
+            cellsPerRow[r] = Math.max(1, pagePx / cellPx[r]);
+        }
+        Bitmap[] pages = new Bitmap[cellPx.length];
+        boolean[] pageHasAlpha = new boolean[cellPx.length];
+        Map<String, Cell[]> cells = new LinkedHashMap<String, Cell[]>();
+        int slot = 0;
+        try {
+            for (Map.Entry<String, Integer> resource : resources.entrySet()) {
+                if (resource.getValue() == 0) {
+                    continue;
+                }
+                Bitmap image = decodeResource(res, resource.getValue(),
+                        cellPx[cellPx.length - 1]);
+                if (image == null) {
+                    Log.w(TAG, "Could not decode " + resource.getKey());
+                    continue;
+                }
+                Cell[] tokenCells = new Cell[cellPx.length];
+                for (int r = 0; r < cellPx.length; ++r) {
+                    int perPage = cellsPerRow[r] * cellsPerRow[r];
+                    int inPage = slot % perPage;
+                    if (inPage == 0) {
+                        if (pages[r] != null) {
+                            writePage(pages[r], pageHasAlpha[r], pages[r].getHeight(),
+                                    new File(partial, pageFileName(r, slot / perPage - 1)));
+                            BitmapPool.release(pages[r]);
+                        }
+                        pages[r] = BitmapPool.obtain(
+                                cellsPerRow[r] * cellPx[r], cellsPerRow[r] * cellPx[r],
+                                Bitmap.Config.ARGB_8888);
+                        pageHasAlpha[r] = false;
+                    }
+                    int left = (inPage % cellsPerRow[r]) * cellPx[r];
+                    int top = (inPage / cellsPerRow[r]) * cellPx[r];
+                    new Canvas(pages[r]).drawBitmap(image, null,
+                            new Rect(left, top, left + cellPx[r], top + cellPx[r]),
+                            FILTER_PAINT);
+                    pageHasAlpha[r] |= image.hasAlpha();
+                    tokenCells[r] = new Cell(slot / perPage, left, top);
+                }
+                BitmapPool.release(image);
+                cells.put(resource.getKey(), tokenCells);
+                slot++;
+            }
+
+            // The last page of each resolution only needs the rows in use.
+            for (int r = 0; r < cellPx.length && slot > 0; ++r) {
+                int perPage = cellsPerRow[r] * cellsPerRow[r];
+                int used = (slot - 1) % perPage + 1;
+                int rows = (used + cellsPerRow[r] - 1) / cellsPerRow[r];
+                writePage(pages[r], pageHasAlpha[r], rows * cellPx[r],
+                        new File(partial, pageFileName(r, (slot - 1) / perPage)));
+            }
+
+            writeIndex(new File(partial, INDEX_FILE_NAME), versionKey, cellPx, cells);
+            FileUtils.deleteQuietly(directory);
+            if (!partial.renameTo(directory)) {
+                throw new IOException("Could not move " + partial + " to " + directory);
+            }
+            return new TokenAtlas(directory, cellPx, cells);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(partial);
+            throw e;
+        } catch (RuntimeException e) {
+            FileUtils.deleteQuietly(partial);
+            throw e;
+        } finally {
+            for (Bitmap page : pages) {
+                BitmapPool.release(page);
+            }
+        }
+    }
+
+    /**
+     * Decodes a built-in image at the smallest power of 2 sample size that
+     * still covers the given size in both dimensions.
+     */
+    private static Bitmap decodeResource(final Resources res, final int resourceId, int minDimPx) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(res, resourceId, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        // Scaling to the screen density would only be undone when drawing
+        // into the cell.
+        options.inScaled = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= minDimPx
+                && options.outHeight / (options.inSampleSize * 2) >= minDimPx) {
+            options.inSampleSize *= 2;
+        }
+        return BitmapPool.decode(options,
+                (options.outWidth + options.inSampleSize - 1) / options.inSampleSize,
+                (options.outHeight + options.inSampleSize - 1) / options.inSampleSize,
+                new BitmapPool.Decoder() {
+                    @Override
+                    public Bitmap decode(BitmapFactory.Options options) {
+                        return BitmapFactory.decodeResource(res, resourceId, options);
+                    }
+                });
+    }
+
+    /**
+     * Writes the top of a page, as PNG if any of its cells may have
+     * transparency and as JPEG otherwise.
+     */
+    private static void writePage(Bitmap page, boolean hasAlpha, int height, File f)
+            throws IOException {
+        Bitmap toWrite = height < page.getHeight()
+                ? Bitmap.createBitmap(page, 0, 0, page.getWidth(), height) : page;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            boolean written = hasAlpha
+                    ? toWrite.compress(Bitmap.CompressFormat.PNG, 0, out)
+                    : toWrite.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            if (!written) {
+                throw new IOException("Could not encode " + f);
+            }
+        } finally {
+            out.close();
+            if (toWrite != page) {
+                toWrite.recycle();
+            }
+        }
+    }
+
+    private static void writeIndex(File f, long versionKey, int[] cellPx,
+            Map<String, Cell[]> cells) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(versionKey);
+            out.writeInt(cellPx.length);
+            for (int size : cellPx) {
+                out.writeInt(size);
+            }
+            out.writeInt(cells.size());
+            for (Map.Entry<String, Cell[]> e : cells.entrySet()) {
+                out.writeUTF(e.getKey());
+                for (Cell cell : e.getValue()) {
+                    out.writeInt(cell.mPage);
+                    out.writeInt(cell.mLeft);
+                    out.writeInt(cell.mTop);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.tbocek.android.combatmap;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Xml;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -14,42 +18,39 @@ import com.tbocek.android.combatmap.model.primitives.SolidColorToken;
 import com.tbocek.android.combatmap.model.primitives.Util;
 import com.tbocek.dungeonsketch.R;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 /**
  * Provides a lightweight database storing a list of tokens and allowing them to
@@ -58,7 +59,7 @@ import javax.xml.transform.stream.StreamResult;
  * @author Tim
  * 
  */
-public final class TokenDatabase implements Cloneable {
+public final class TokenDatabase {
 
 
     public static boolean isSystemTag(String tag) {
@@ -70,11 +71,11 @@ public final class TokenDatabase implements Cloneable {
 		return SYSTEM_TAG_NAMES.contains(tag);
 	}
 
-    public static TokenDatabase getCopy() throws CloneNotSupportedException {
-        return (TokenDatabase) instance.clone();
-    }
-
-    public class TagTreeNode implements Cloneable {
+    /**
+     * Tag tree nodes lock the token database while they are modified, so
+     * that a save in progress on another thread sees a consistent tree.
+     */
+    public class TagTreeNode {
 		/**
 		 * Map of token names to the amount to deploy.  This is also just used
 		 * as the set of tokens that are directly underneath this tag.
@@ -100,6 +101,34 @@ public final class TokenDatabase implements Cloneable {
 		private boolean isActive = true;
 		
 		private static final String TAG = "TagTreeNode";
+
+		/**
+		 * Cached result of getAllTokens, or null if it must be recomputed.
+		 * Cleared when this tag or any tag below it changes.
+		 */
+		private Set<String> allTokensCache;
+
+		/**
+		 * Value of mMembershipGeneration when allTokensCache was computed.
+		 * System tags also depend on tokens excluded anywhere in the tree, so
+		 * their cache is only valid for one generation.
+		 */
+		private int allTokensCacheGeneration;
+
+		/**
+		 * Cached result of getSortedTokens, or null if it must be recomputed.
+		 */
+		private List<BaseToken> sortedTokensCache;
+
+		/**
+		 * The getAllTokens result that sortedTokensCache was built from.
+		 */
+		private Set<String> sortedTokensSource;
+
+		/**
+		 * Value of mPrototypeGeneration when sortedTokensCache was built.
+		 */
+		private int sortedTokensGeneration;
 		
 		public TagTreeNode(TagTreeNode parent, String name) {
 			this.parent = parent;
@@ -109,7 +138,11 @@ public final class TokenDatabase implements Cloneable {
 		public TagTreeNode getOrAddChildTag(String tag) {
 			if (!childTags.containsKey(tag)) {
 				TagTreeNode node = new TagTreeNode(this, tag);
-				childTags.put(tag, node);
+				synchronized (TokenDatabase.this) {
+					childTags.put(tag, node);
+					markDirty();
+					invalidateMembership();
+				}
 				Log.v(TAG, "Adding child tag: " + tag + " to " + name);
 				Log.v(TAG, Integer.toString(childTags.size()));
 				return node;
@@ -126,9 +159,15 @@ public final class TokenDatabase implements Cloneable {
         public void rename(String name) {
             if (this.isSystemTag() || this.getParent() == null) return;
 
-            this.getParent().childTags.remove(this.name);
-            this.name = name;
-            this.getParent().childTags.put(this.name, this);
+            synchronized (TokenDatabase.this) {
+                this.indexSubtree(false);
+                this.getParent().childTags.remove(this.name);
+                this.name = name;
+                this.getParent().childTags.put(this.name, this);
+                this.indexSubtree(true);
+                markDirty();
+                invalidateMembership();
+            }
         }
 		
 		public Collection<String> getImmediateTokens() {
@@ -144,13 +183,54 @@ public final class TokenDatabase implements Cloneable {
 		 * @return A set of all TokenIDs in this subtree of tags.
 		 */
 		public Set<String> getAllTokens() {
+			boolean isSystemTag = this.isSystemTag();
+			if (this.allTokensCache != null && (!isSystemTag
+					|| this.allTokensCacheGeneration == mMembershipGeneration)) {
+				return this.allTokensCache;
+			}
+			this.allTokensCache =
+					Collections.unmodifiableSet(this.computeAllTokens(isSystemTag));
+			this.allTokensCacheGeneration = mMembershipGeneration;
+			return this.allTokensCache;
+		}
+
+		/**
+		 * Gets all tokens in this tag and all child tags, sorted by the sort
+		 * order of each token class.  Only tokens known to the database are
+		 * included.
+		 * @return The sorted tokens.  Must not be modified.
+		 */
+		public List<BaseToken> getSortedTokens() {
+			Set<String> tokenIds = this.getAllTokens();
+			if (this.sortedTokensCache == null || this.sortedTokensSource != tokenIds
+					|| this.sortedTokensGeneration != mPrototypeGeneration) {
+				this.sortedTokensCache = tokenIdsToTokens(tokenIds);
+				this.sortedTokensSource = tokenIds;
+				this.sortedTokensGeneration = mPrototypeGeneration;
+			}
+			return this.sortedTokensCache;
+		}
+
+		/**
+		 * Clears the cached membership of this tag and the tags above it, whose
+		 * membership includes this tag's.
+		 */
+		protected void invalidateMembership() {
+			for (TagTreeNode n = this; n != null; n = n.parent) {
+				n.allTokensCache = null;
+				n.sortedTokensCache = null;
+			}
+			mMembershipGeneration++;
+		}
+
+		private Set<String> computeAllTokens(boolean isSystemTag) {
 			if (!this.isActive) {
 				return Sets.newHashSet();
 			}
 			
 			// If this is a system tag, we also want to get the excluded tokens from non-system tags
 			// from the root.
-			if (this.isSystemTag()) {
+			if (isSystemTag) {
 				Set<String> parentResult = Sets.newHashSet();
 				Set<String> parentExcludedTokens = Sets.newHashSet();
 				
@@ -161,7 +241,8 @@ public final class TokenDatabase implements Cloneable {
 				
 				rootNode.getAllTokensHelper(parentResult, parentExcludedTokens, true, false);
 				parentExcludedTokens.removeAll(parentResult);
-				return Sets.difference(this.tokenCounts.keySet(), parentExcludedTokens);
+				return Sets.newHashSet(
+						Sets.difference(this.tokenCounts.keySet(), parentExcludedTokens));
 			} else {
 				Set<String> result = Sets.newHashSet();
 				Set<String> excludedTokens = Sets.newHashSet();
@@ -219,60 +300,114 @@ public final class TokenDatabase implements Cloneable {
 		}
 
 		public void deleteToken(String tokenId) {
-			this.tokenCounts.remove(tokenId);
-			for (TagTreeNode childTag : this.childTags.values()) {
-				childTag.deleteToken(tokenId);
-				// TODO: Do we need to remove the childTag if it is now empty?
-			}
-			
-			// Clean up guest token counts in parent tags.
-			// NOTE: This could cause some unexpected behavior if two child tags
-			// have the same token in them.
-			TagTreeNode parent = this.parent;
-			while (parent != null) {
-				parent.guestTokenCounts.remove(tokenId);
-				parent = parent.parent;
+			synchronized (TokenDatabase.this) {
+				if (this.tokenCounts.remove(tokenId) != null) {
+					mSearchIndex.removeTag(tokenId, this.getPath());
+				}
+				for (TagTreeNode childTag : this.childTags.values()) {
+					childTag.deleteToken(tokenId);
+					// TODO: Do we need to remove the childTag if it is now empty?
+				}
+
+				// Clean up guest token counts in parent tags.
+				// NOTE: This could cause some unexpected behavior if two child tags
+				// have the same token in them.
+				TagTreeNode parent = this.parent;
+				while (parent != null) {
+					parent.guestTokenCounts.remove(tokenId);
+					parent = parent.parent;
+				}
+				markDirty();
+				invalidateMembership();
 			}
 		}
 
 		public void deleteSelf() {
-			this.parent.childTags.remove(this.name);
+			synchronized (TokenDatabase.this) {
+				this.indexSubtree(false);
+				this.parent.childTags.remove(this.name);
+				markDirty();
+				this.parent.invalidateMembership();
+			}
 		}
-		
-		public Element toXml(Document document) {
-			Element el = document.createElement("tag");
-			el.setAttribute("name", this.name);
-			el.setAttribute("active", Boolean.toString(this.isActive));
+
+		/**
+		 * Adds or removes the tokens in this tag and the tags below it from
+		 * the search index, under their current tag paths.
+		 * @param add True to add the tokens, false to remove them.
+		 */
+		private void indexSubtree(boolean add) {
+			String path = this.getPath();
+			for (String tokenId: this.tokenCounts.keySet()) {
+				if (add) {
+					mSearchIndex.addTag(tokenId, path);
+				} else {
+					mSearchIndex.removeTag(tokenId, path);
+				}
+			}
+			for (TagTreeNode treeNode: this.childTags.values()) {
+				treeNode.indexSubtree(add);
+			}
+		}
+
+		/**
+		 * Writes this tag and its child tags as XML.  Callers must hold the
+		 * lock on the database.
+		 * @param s The serializer to write to.
+		 * @throws IOException on write error.
+		 */
+		void writeXml(XmlSerializer s) throws IOException {
+			s.startTag(null, "tag");
+			s.attribute(null, "name", this.name);
+			s.attribute(null, "active", Boolean.toString(this.isActive));
 			for (Entry<String, Integer> tokenCount: this.tokenCounts.entrySet()) {
-				Element tokenEl = document.createElement("token");
-				tokenEl.setAttribute("name", tokenCount.getKey());
-				tokenEl.setAttribute("count", Integer.toString(tokenCount.getValue()));
-				el.appendChild(tokenEl);
+				s.startTag(null, "token");
+				s.attribute(null, "name", tokenCount.getKey());
+				s.attribute(null, "count", Integer.toString(tokenCount.getValue()));
+				s.endTag(null, "token");
 			}
 			for (Entry<String, Integer> guestCount: this.guestTokenCounts.entrySet()) {
-				Element guestCountEl = document.createElement("guest_count");
-				guestCountEl.setAttribute("name", guestCount.getKey());
-				guestCountEl.setAttribute("count", Integer.toString(guestCount.getValue()));
-				el.appendChild(guestCountEl);
+				s.startTag(null, "guest_count");
+				s.attribute(null, "name", guestCount.getKey());
+				s.attribute(null, "count", Integer.toString(guestCount.getValue()));
+				s.endTag(null, "guest_count");
 			}
-			
+
+			this.writeChildTagsXml(s);
+			s.endTag(null, "tag");
+		}
+
+		/**
+		 * Writes the child tags of this tag as XML.
+		 * @param s The serializer to write to.
+		 * @throws IOException on write error.
+		 */
+		protected void writeChildTagsXml(XmlSerializer s) throws IOException {
 			for (TagTreeNode treeNode: this.childTags.values()) {
-				el.appendChild(treeNode.toXml(document));
+				treeNode.writeXml(s);
 			}
-			
-			return el;
 		}
 
 		public void addToken(String tokenId) {
-			this.tokenCounts.put(tokenId, 1);
+			synchronized (TokenDatabase.this) {
+				if (this.tokenCounts.put(tokenId, 1) == null) {
+					mSearchIndex.addTag(tokenId, this.getPath());
+				}
+				markDirty();
+				invalidateMembership();
+			}
 			Log.v(TAG, "Adding token: " + tokenId + " to " + name);
 		}
 		
 		public void setTokenCount(String tokenId, int count) {
-			if (this.tokenCounts.containsKey(tokenId)) {
-				this.tokenCounts.put(tokenId, count);
-			} else {
-				this.guestTokenCounts.put(tokenId, count);
+			synchronized (TokenDatabase.this) {
+				if (this.tokenCounts.containsKey(tokenId)) {
+					this.tokenCounts.put(tokenId, count);
+				} else {
+					this.guestTokenCounts.put(tokenId, count);
+				}
+				markDirty();
+				invalidateMembership();
 			}
 		}
 		
@@ -306,7 +441,11 @@ public final class TokenDatabase implements Cloneable {
 		}
 		
 		public void setIsActive(boolean active) {
-			this.isActive = active;
+			synchronized (TokenDatabase.this) {
+				this.isActive = active;
+				markDirty();
+				invalidateMembership();
+			}
 		}
 
 		public String getPath() {
@@ -328,7 +467,11 @@ public final class TokenDatabase implements Cloneable {
 		public TagTreeNode createLimitedChild(String tagName, int maxSize) {
 			if (!childTags.containsKey(tagName)) {
 				TagTreeNode node = new LimitedTagTreeNode(this, tagName, maxSize);
-				childTags.put(tagName, node);
+				synchronized (TokenDatabase.this) {
+					childTags.put(tagName, node);
+					markDirty();
+					invalidateMembership();
+				}
 				return node;
 			} else {
 				return childTags.get(tagName);
@@ -338,7 +481,11 @@ public final class TokenDatabase implements Cloneable {
         public TagTreeNode createSquareTagTreeNode(String tagName, TokenDatabase tokenDatabase) {
             if (!childTags.containsKey(tagName)) {
                 TagTreeNode node = new SquareTokenTag(this, tagName, tokenDatabase);
-                childTags.put(tagName, node);
+                synchronized (TokenDatabase.this) {
+                    childTags.put(tagName, node);
+                    markDirty();
+                    invalidateMembership();
+                }
                 return node;
             } else {
                 return childTags.get(tagName);
@@ -368,17 +515,21 @@ public final class TokenDatabase implements Cloneable {
 		}
 		
 		public void addToken(String tokenId, int age) {
-			if (nodeAges.size() == maxSize) {
-				this.deleteToken(this.getOldestToken());
+			synchronized (TokenDatabase.this) {
+				if (nodeAges.size() == maxSize) {
+					this.deleteToken(this.getOldestToken());
+				}
+				super.addToken(tokenId);
+				nodeAges.put(tokenId, age);
+				nextAge = Math.max(age + 1, nextAge);
 			}
-			super.addToken(tokenId);
-			nodeAges.put(tokenId, age);
-			nextAge = Math.max(age + 1, nextAge);
 		}
 		
 		public void deleteToken(String tokenId) {
-			super.deleteToken(tokenId);
-			nodeAges.remove(tokenId);
+			synchronized (TokenDatabase.this) {
+				super.deleteToken(tokenId);
+				nodeAges.remove(tokenId);
+			}
 		}
 
 		private String getOldestToken() {
@@ -393,23 +544,20 @@ public final class TokenDatabase implements Cloneable {
 			return oldestToken;
 		}
 		
-		public Element toXml(Document document) {
-			Element el = document.createElement("limited_tag");
-			el.setAttribute("name", this.getName());
-			el.setAttribute("active", Boolean.toString(this.isActive()));
-			el.setAttribute("maxSize", Integer.toString(this.maxSize));
+		void writeXml(XmlSerializer s) throws IOException {
+			s.startTag(null, "limited_tag");
+			s.attribute(null, "name", this.getName());
+			s.attribute(null, "active", Boolean.toString(this.isActive()));
+			s.attribute(null, "maxSize", Integer.toString(this.maxSize));
 			for (String tokenId: this.getImmediateTokens()) {
-				Element tokenEl = document.createElement("token");
-				tokenEl.setAttribute("name", tokenId);
-				tokenEl.setAttribute("age", nodeAges.get(tokenId).toString());
-				el.appendChild(tokenEl);
+				s.startTag(null, "token");
+				s.attribute(null, "name", tokenId);
+				s.attribute(null, "age", nodeAges.get(tokenId).toString());
+				s.endTag(null, "token");
 			}
-			
-			for (TagTreeNode treeNode: this.childTags.values()) {
-				el.appendChild(treeNode.toXml(document));
-			}
-			
-			return el;
+
+			this.writeChildTagsXml(s);
+			s.endTag(null, "limited_tag");
 		}
 	}
 
@@ -440,21 +588,18 @@ public final class TokenDatabase implements Cloneable {
             super.deleteToken(tokenId);
         }
 
-        public Element toXml(Document document) {
-            Element el = document.createElement("square_tag");
-            el.setAttribute("name", this.getName());
-            el.setAttribute("active", Boolean.toString(this.isActive()));
+        void writeXml(XmlSerializer s) throws IOException {
+            s.startTag(null, "square_tag");
+            s.attribute(null, "name", this.getName());
+            s.attribute(null, "active", Boolean.toString(this.isActive()));
             for (String tokenId: this.getImmediateTokens()) {
-                Element tokenEl = document.createElement("token");
-                tokenEl.setAttribute("name", tokenId);
-                el.appendChild(tokenEl);
+                s.startTag(null, "token");
+                s.attribute(null, "name", tokenId);
+                s.endTag(null, "token");
             }
 
-            for (TagTreeNode treeNode: this.childTags.values()) {
-                el.appendChild(treeNode.toXml(document));
-            }
-
-            return el;
+            this.writeChildTagsXml(s);
+            s.endTag(null, "square_tag");
         }
     }
 
@@ -519,6 +664,39 @@ public final class TokenDatabase implements Cloneable {
     
     private final transient TagTreeNode mTagTreeRoot = new TagTreeNode(null, TokenDatabase.ALL);
 
+    /**
+     * Index for searching tokens by name, ID and tag. Guarded by this.
+     */
+    private final transient TokenSearchIndex mSearchIndex = new TokenSearchIndex();
+
+    /**
+     * Incremented whenever tag membership changes anywhere in the tree.
+     */
+    private transient int mMembershipGeneration;
+
+    /**
+     * Incremented whenever the token prototypes or ID mappings change.
+     */
+    private transient int mPrototypeGeneration;
+
+    /**
+     * Counts changes to the saved state (tags and deleted built-ins).
+     * Guarded by this.
+     */
+    private transient int mModificationCount;
+
+    /**
+     * Value of mModificationCount when the database file last matched this
+     * database. Guarded by this.
+     */
+    private transient int mSavedModificationCount = -1;
+
+    /**
+     * Held while the database file is written, so that saves don't write it
+     * concurrently.
+     */
+    private final transient Object mSaveLock = new Object();
+
     /**
      * Returns the instance of the token database.
      * 
@@ -528,8 +706,10 @@ public final class TokenDatabase implements Cloneable {
      */
     public static TokenDatabase getInstance(final Context context, boolean forceReload) {
         if (instance == null || forceReload) {
+            long start = SystemClock.uptimeMillis();
             try {
                 instance = TokenDatabase.load(context);
+                logTiming("token database load", start);
             } catch (Exception e) {
             	e.printStackTrace();
                 instance = new TokenDatabase();
@@ -571,14 +751,18 @@ public final class TokenDatabase implements Cloneable {
         TokenDatabase d = new TokenDatabase();
         d.populate(context);
 
+        long start = SystemClock.uptimeMillis();
         FileInputStream input = new FileInputStream(databaseFile(context));
         BufferedReader dataIn =
                 new BufferedReader(new InputStreamReader(input));
         d.load(dataIn);
         dataIn.close();
+        logTiming("token database file parse", start);
 
         d.removeDeletedBuiltIns();
-        
+
+        // Nothing to save until something changes.
+        d.markSaved();
         return d;
     }
 
@@ -604,7 +788,7 @@ public final class TokenDatabase implements Cloneable {
     private void addBuiltin(final String resourceName, final int resourceId,
             final int sortOrder, Set<String> defaultTags) {
         BuiltInImageToken t =
-                new BuiltInImageToken(resourceName, sortOrder, defaultTags);
+                new BuiltInImageToken(resourceName, resourceId, sortOrder, defaultTags);
         this.addTokenPrototype(t);
         this.mapOldId(t.getTokenId(),
                 "BuiltInImageToken" + Integer.toString(resourceId));
@@ -618,6 +802,10 @@ public final class TokenDatabase implements Cloneable {
      */
     public void addTokenPrototype(final BaseToken token) {
         this.mTokenForId.put(token.getTokenId(), token);
+        synchronized (this) {
+            this.mSearchIndex.addName(token.getTokenId(), token.getDisplayName());
+        }
+        this.mPrototypeGeneration++;
         if (this.mPrePopulateTags) {
             this.tagToken(token, token.getDefaultTags());
         }
@@ -645,6 +833,21 @@ public final class TokenDatabase implements Cloneable {
         }
     }
 
+    /**
+     * Gets the token that describes how to load the image for the given token
+     * ID, without cloning it. Image sources have their resources resolved
+     * when the database is populated, so this is cheap enough to call for
+     * every image load. The returned token is shared and must not be
+     * modified or placed on a map.
+     * 
+     * @param tokenId
+     *            TokenID to get the image source for.
+     * @return The prototype for that Token ID, or null if there is none.
+     */
+    public BaseToken getImageSource(String tokenId) {
+        return this.mTokenForId.get(this.getNonDeprecatedTokenId(tokenId));
+    }
+
     /**
      * Deletes the given tag from the database.
      * 
@@ -666,7 +869,7 @@ public final class TokenDatabase implements Cloneable {
      * @return The tokens.
      */
     public List<BaseToken> getAllTokens() {
-        return this.tokenIdsToTokens(this.mTagTreeRoot.getAllTokens());
+        return new ArrayList<BaseToken>(this.mTagTreeRoot.getSortedTokens());
     }
 
     /**
@@ -686,6 +889,11 @@ public final class TokenDatabase implements Cloneable {
     
     private static final String TAG = "TokenDatabase";
 
+    /**
+     * Marks the start of the built-in token cache file.
+     */
+    private static final int BUILTIN_CACHE_MAGIC = 0x44534254;
+
     /**
      * Gets a list of all root tags in the token collection, sorted alphabetically
      * and case-insensitively.
@@ -724,8 +932,42 @@ public final class TokenDatabase implements Cloneable {
         TagTreeNode node = this.mTagTreeRoot.getNamedChild(tag, false);
         if (node == null) return new ArrayList<>();
 
-        Set<String> tokenIds = node.getAllTokens();
-        return this.tokenIdsToTokens(tokenIds);
+        return new ArrayList<BaseToken>(node.getSortedTokens());
+    }
+
+    /**
+     * Searches the token names, IDs and tag paths for tokens matching every
+     * word of the query.  Query words match the start of words in the names,
+     * IDs and tags, so partially typed queries work.  Like getAllTokens, only
+     * finds tokens that are in at least one active tag.
+     *
+     * @param query
+     *            The search text.
+     * @param maxResults
+     *            Most tokens to return.
+     * @return The matching tokens, best matches first.
+     */
+    public List<BaseToken> searchTokens(final String query, int maxResults) {
+        final Map<String, Integer> scores;
+        List<BaseToken> tokens = new ArrayList<BaseToken>();
+        synchronized (this) {
+            scores = this.mSearchIndex.search(query);
+            Set<String> shown = this.mTagTreeRoot.getAllTokens();
+            for (String tokenId : scores.keySet()) {
+                BaseToken token = this.mTokenForId.get(tokenId);
+                if (token != null && shown.contains(tokenId)) {
+                    tokens.add(token);
+                }
+            }
+        }
+        Collections.sort(tokens, new Comparator<BaseToken>() {
+            @Override
+            public int compare(BaseToken t1, BaseToken t2) {
+                int byScore = scores.get(t2.getTokenId()).compareTo(scores.get(t1.getTokenId()));
+                return byScore != 0 ? byScore : t1.getSortOrder().compareTo(t2.getSortOrder());
+            }
+        });
+        return tokens.size() > maxResults ? tokens.subList(0, maxResults) : tokens;
     }
 
     /**
@@ -758,26 +1000,191 @@ public final class TokenDatabase implements Cloneable {
      *            Context to load resources from.
      */
     private void loadBuiltInImageTokens(Context context) {
+        List<BuiltInTokenEntry> entries = readBuiltInTokenCache(context);
+        if (entries == null) {
+            ArtCreditHandler handler = new ArtCreditHandler(context);
+            if (parseArtCredits(context, handler)) {
+                writeBuiltInTokenCache(context, handler.mEntries);
+            } else {
+                // Use the tokens that were parsed, but don't cache a partial
+                // catalog; the next launch parses the art credits again.
+                Log.w(TAG, "Not caching partial built-in token catalog");
+            }
+            entries = handler.mEntries;
+        }
+        LinkedHashMap<String, Integer> resources = new LinkedHashMap<String, Integer>();
+        for (BuiltInTokenEntry entry : entries) {
+            this.addBuiltin(entry.mResourceName, entry.mResourceId,
+                    entry.mSortOrder, entry.mDefaultTags);
+            resources.put(entry.mResourceName, entry.mResourceId);
+        }
+        TokenAtlas.prepare(context, resources);
+    }
+
+    /**
+     * Parses the art credits file for the built-in image tokens.
+     *
+     * @param context
+     *            Context to load resources from.
+     * @param handler
+     *            Handler that collects the built-in tokens, in sort order.
+     *            Holds the tokens parsed before any failure.
+     * @return True if the whole file was parsed.
+     */
+    private static boolean parseArtCredits(Context context, ArtCreditHandler handler) {
+        InputStream is = context.getResources().openRawResource(R.raw.art_credits);
         try {
-            InputStream is =
-                    context.getResources().openRawResource(R.raw.art_credits);
             SAXParserFactory spf = SAXParserFactory.newInstance();
             SAXParser sp = spf.newSAXParser();
             XMLReader xr = sp.getXMLReader();
-            xr.setContentHandler(new ArtCreditHandler(context));
+            xr.setContentHandler(handler);
             xr.parse(new InputSource(is));
-            is.close();
+            return true;
         } catch (ParserConfigurationException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Log.e(TAG, "Could not parse art credits", e);
         } catch (SAXException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Log.e(TAG, "Could not parse art credits", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read art credits", e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Intentionally ignored.
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The file that caches the parsed built-in token catalog.
+     */
+    private static File builtInTokenCacheFile(Context context) {
+        return new File(context.getCacheDir(), "builtin_tokens.bin");
+    }
+
+    /**
+     * @return Identifies the installed build of the app, since resource IDs
+     *         and the art credits only change with a new build.
+     */
+    static long appVersionKey(Context context) {
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            // Development builds reuse version codes, so include the install
+            // time.
+            return info.lastUpdateTime * 31 + info.versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the built-in token catalog cached by an earlier launch of this
+     * build of the app.
+     *
+     * @param context
+     *            Context to find the cache in.
+     * @return The built-in tokens, or null if there is no usable cache.
+     */
+    private static List<BuiltInTokenEntry> readBuiltInTokenCache(Context context) {
+        File cache = builtInTokenCacheFile(context);
+        if (!cache.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+            if (in.readInt() != BUILTIN_CACHE_MAGIC
+                    || in.readLong() != appVersionKey(context)) {
+                Log.d(TAG, "Built-in token cache is from another build");
+                return null;
+            }
+            int count = in.readInt();
+            List<BuiltInTokenEntry> entries = new ArrayList<BuiltInTokenEntry>(count);
+            for (int i = 0; i < count; ++i) {
+                String resourceName = in.readUTF();
+                int resourceId = in.readInt();
+                int sortOrder = in.readInt();
+                int tagCount = in.readInt();
+                Set<String> tags = Sets.newHashSet();
+                for (int j = 0; j < tagCount; ++j) {
+                    tags.add(in.readUTF());
+                }
+                entries.add(new BuiltInTokenEntry(resourceName, resourceId, sortOrder, tags));
+            }
+            return entries;
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.w(TAG, "Could not read built-in token cache", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Intentionally ignored.
+                }
+            }
         }
     }
 
+    /**
+     * Caches the parsed built-in token catalog for later launches of this
+     * build of the app.  Failure only costs the next launch a parse.
+     *
+     * @param context
+     *            Context to find the cache in.
+     * @param entries
+     *            The built-in tokens.
+     */
+    private static void writeBuiltInTokenCache(Context context,
+            List<BuiltInTokenEntry> entries) {
+        File cache = builtInTokenCacheFile(context);
+        File partial = new File(cache.getParentFile(), cache.getName() + ".partial");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(partial)));
+            try {
+                out.writeInt(BUILTIN_CACHE_MAGIC);
+                out.writeLong(appVersionKey(context));
+                out.writeInt(entries.size());
+                for (BuiltInTokenEntry entry : entries) {
+                    out.writeUTF(entry.mResourceName);
+                    out.writeInt(entry.mResourceId);
+                    out.writeInt(entry.mSortOrder);
+                    out.writeInt(entry.mDefaultTags.size());
+                    for (String tag : entry.mDefaultTags) {
+                        out.writeUTF(tag);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(cache)) {
+                Log.w(TAG, "Could not move " + partial + " to " + cache);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write built-in token cache", e);
+        }
+    }
+
+    /**
+     * Logs how long a startup phase took, in developer mode.
+     *
+     * @param phase
+     *            Name of the phase.
+     * @param startMillis
+     *            Uptime when the phase started.
+     * @return Uptime when the phase ended, to start timing the next phase.
+     */
+    private static long logTiming(String phase, long startMillis) {
+        long now = SystemClock.uptimeMillis();
+        if (DeveloperMode.DEVELOPER_MODE) {
+            Log.d(TAG, "Startup timing: " + phase + " took " + (now - startMillis) + "ms");
+        }
+        return now;
+    }
+
     /**
      * Populates the database with solid-colored tokens.
      */
@@ -846,6 +1253,7 @@ public final class TokenDatabase implements Cloneable {
      */
     private void mapOldId(String newId, String oldId) {
         this.mOldIdMapping.put(oldId, newId);
+        this.mPrototypeGeneration++;
     }
 
     /**
@@ -858,11 +1266,15 @@ public final class TokenDatabase implements Cloneable {
      */
     public void populate(Context context) {
         Log.w(TAG, "Populating token database defaults.");
+        long start = SystemClock.uptimeMillis();
         this.mPrePopulateTags = !this.tagsLoaded();
         this.loadCustomImageTokens(new DataManager(context));
+        start = logTiming("custom tokens", start);
         this.loadBuiltInImageTokens(context);
+        start = logTiming("built-in tokens", start);
         this.loadColorTokens();
         this.loadLetterTokens();
+        logTiming("color and letter tokens", start);
         
         // Create the "recently added/used/removed" tags.
         this.mTagTreeRoot.createLimitedChild(RECENTLY_ADDED, RECENTLY_ADDED_LIMIT);
@@ -879,9 +1291,13 @@ public final class TokenDatabase implements Cloneable {
      * Remove all built-in tokens that the user has previously deleted.
      */
     private void removeDeletedBuiltIns() {
-        for (String removedBuiltin : this.mDeletedBuiltInTokens) {
-            this.mTokenForId.remove(removedBuiltin);
+        synchronized (this) {
+            for (String removedBuiltin : this.mDeletedBuiltInTokens) {
+                this.mTokenForId.remove(removedBuiltin);
+                this.mSearchIndex.removeName(removedBuiltin);
+            }
         }
+        this.mPrototypeGeneration++;
     }
 
     /**
@@ -909,67 +1325,124 @@ public final class TokenDatabase implements Cloneable {
     public void removeToken(final BaseToken token) {
         this.mTagTreeRoot.deleteToken(token.getTokenId());
         this.mTokenForId.remove(token.getTokenId());
+        synchronized (this) {
+            this.mSearchIndex.removeName(token.getTokenId());
+        }
+        this.mPrototypeGeneration++;
         if (token.isBuiltIn()) {
-            this.mDeletedBuiltInTokens.add(token.getTokenId());
+            synchronized (this) {
+                this.mDeletedBuiltInTokens.add(token.getTokenId());
+                this.markDirty();
+            }
         }
     }
 
     /**
-     * Writes the token database to the given writer.
+     * Streams the saved state of the token database (the deleted built-in
+     * tokens and the tag tree) as XML to the given output.  Callers must hold
+     * the lock on this database.
      * 
      * @param output
-     *            The writer to write the token database to.
+     *            The stream to write the token database to.
      * @throws IOException
      *             on write error.
-     * @throws ParserConfigurationException 
-     * @throws TransformerException 
      */
-    private void save(final BufferedWriter output)
-            throws ParserConfigurationException, TransformerException {
-    	DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-		
-		Document doc = docBuilder.newDocument();
-		Element root = doc.createElement("token_database");
-		doc.appendChild(root);
-		
-		
-    	// Write out deleted tokens
-		for (String tokenName : this.mDeletedBuiltInTokens) {
-			Element deletedTokenEl = doc.createElement("deleted_builtin_token");
-			root.appendChild(deletedTokenEl);
-			deletedTokenEl.setAttribute("name", tokenName);
-		}
-    	
-    	// Write out the token tag tree
-		for (TagTreeNode node: this.mTagTreeRoot.childTags.values()) {
-			root.appendChild(node.toXml(doc));
-		}
-		
-		TransformerFactory transformerFactory = TransformerFactory.newInstance();
-		Transformer transformer = transformerFactory.newTransformer();
-		DOMSource source = new DOMSource(doc);
-		
-		StreamResult result = new StreamResult(output);
-		transformer.transform(source, result);
+    private void save(final OutputStream output) throws IOException {
+        XmlSerializer s = Xml.newSerializer();
+        s.setOutput(output, "UTF-8");
+        s.startDocument("UTF-8", null);
+        s.startTag(null, "token_database");
+
+        // Write deleted tokens
+        for (String tokenName : this.mDeletedBuiltInTokens) {
+            s.startTag(null, "deleted_builtin_token");
+            s.attribute(null, "name", tokenName);
+            s.endTag(null, "deleted_builtin_token");
+        }
+
+        // Write the token tag tree
+        for (TagTreeNode node: this.mTagTreeRoot.childTags.values()) {
+            node.writeXml(s);
+        }
+        s.endTag(null, "token_database");
+        s.endDocument();
     }
 
     /**
-     * Saves the token database to internal storage.
+     * Saves the token database to internal storage, if it changed since it
+     * was loaded or last saved.  The database is streamed as XML into memory
+     * while it is locked, which gives a consistent snapshot and takes about
+     * as long as copying the tag tree would; the file is then written,
+     * synced and atomically moved into place without holding the lock, so
+     * edits are never held up by the disk.  If the database changed while it
+     * was written, it stays dirty.
      * 
      * @param context
      *            Context to use when saving the database.
      * @throws IOException
      *             on write error.
-     * @throws ParserConfigurationException 
-     * @throws TransformerException 
      */
-    public void save(final Context context) throws IOException, ParserConfigurationException, TransformerException {
-        FileOutputStream output = new FileOutputStream(databaseFile(context));
-        BufferedWriter dataOut =
-                new BufferedWriter(new OutputStreamWriter(output));
-        this.save(dataOut);
-        dataOut.close();
+    public void save(final Context context) throws IOException {
+        // Only one save writes the file at a time.
+        synchronized (this.mSaveLock) {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            int modificationCount;
+            synchronized (this) {
+                if (!this.isDirty()) {
+                    return;
+                }
+                modificationCount = this.mModificationCount;
+                this.save(xml);
+            }
+
+            File file = databaseFile(context);
+            File partial = new File(file.getParentFile(), file.getName() + ".partial");
+            FileOutputStream output = new FileOutputStream(partial);
+            try {
+                xml.writeTo(output);
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            if (!partial.renameTo(file)) {
+                throw new IOException("Could not move " + partial + " to " + file);
+            }
+            this.markSaved(modificationCount);
+            if (this.isDirty()) {
+                Log.d(TAG, "Token database changed while it was saved");
+            }
+        }
+    }
+
+    /**
+     * @return True if the database has changed since it was loaded or last
+     *         saved.
+     */
+    public synchronized boolean isDirty() {
+        return this.mModificationCount != this.mSavedModificationCount;
+    }
+
+    /**
+     * Notes that the saved state of the database changed.  Callers must hold
+     * the lock on this database.
+     */
+    private void markDirty() {
+        this.mModificationCount++;
+    }
+
+    /**
+     * Notes that the database file matches this database.
+     */
+    private synchronized void markSaved() {
+        this.markSaved(this.mModificationCount);
+    }
+
+    /**
+     * Notes that the database file matches this database as it was when
+     * mModificationCount had the given value.
+     */
+    private synchronized void markSaved(int modificationCount) {
+        this.mSavedModificationCount = modificationCount;
     }
 
     /**
@@ -1133,7 +1606,8 @@ public final class TokenDatabase implements Cloneable {
     	}
     	
     	public void endElement(java.lang.String uri, java.lang.String localName, java.lang.String qName) {
-    		if (localName.equalsIgnoreCase("tag") || localName.equalsIgnoreCase("limited_tag")) {
+    		if (localName.equalsIgnoreCase("tag") || localName.equalsIgnoreCase("limited_tag")
+    				|| localName.equalsIgnoreCase("square_tag")) {
     			Log.v(TAG, "LEAVE TAG: " + currentTagTreeNode.name);
     			currentTagTreeNode = currentTagTreeNode.parent;
     		}
@@ -1142,6 +1616,24 @@ public final class TokenDatabase implements Cloneable {
     
     
 
+    /**
+     * A built-in image token as listed in the art credits file.
+     */
+    private static final class BuiltInTokenEntry {
+        private final String mResourceName;
+        private final int mResourceId;
+        private final int mSortOrder;
+        private final Set<String> mDefaultTags;
+
+        private BuiltInTokenEntry(String resourceName, int resourceId, int sortOrder,
+                Set<String> defaultTags) {
+            this.mResourceName = resourceName;
+            this.mResourceId = resourceId;
+            this.mSortOrder = sortOrder;
+            this.mDefaultTags = defaultTags;
+        }
+    }
+
     /**
      * SAX handler to load the resources that represent built-in tokens from the
      * art credits file.
@@ -1149,12 +1641,17 @@ public final class TokenDatabase implements Cloneable {
      * @author Tim
      * 
      */
-    private class ArtCreditHandler extends DefaultHandler {
+    private static class ArtCreditHandler extends DefaultHandler {
         /**
          * Application context to load resources from.
          */
         private final Context mContext;
 
+        /**
+         * The built-in tokens read so far.
+         */
+        private final List<BuiltInTokenEntry> mEntries = new ArrayList<BuiltInTokenEntry>();
+
         /**
          * Count of the tokens that have been loaded; used to sort them later.
          */
@@ -1201,8 +1698,8 @@ public final class TokenDatabase implements Cloneable {
                     Collections.addAll(defaultTags, tagList.split(","));
                 }
                 defaultTags.add("artist:" + currentArtist);
-                TokenDatabase.this.addBuiltin(attributes.getValue("res"), id,
-                        this.mCurrentSortOrder, defaultTags);
+                this.mEntries.add(new BuiltInTokenEntry(attributes.getValue("res"), id,
+                        this.mCurrentSortOrder, defaultTags));
                 this.mCurrentSortOrder++;
             }
         }
@@ -1236,7 +1733,10 @@ public final class TokenDatabase implements Cloneable {
      * off the main thread.
      */
     public void restoreDefaults(Context context) {
-        this.mDeletedBuiltInTokens.clear();
+        synchronized (this) {
+            this.mDeletedBuiltInTokens.clear();
+            this.markDirty();
+        }
         this.loadBuiltInImageTokens(context);
     }
 }
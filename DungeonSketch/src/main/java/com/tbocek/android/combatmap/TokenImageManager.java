@@ -1,26 +1,36 @@
 package com.tbocek.android.combatmap;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
-import android.widget.Toast;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.tbocek.android.combatmap.model.primitives.BaseToken;
-import com.tbocek.dungeonsketch.BuildConfig;
+import com.tbocek.android.combatmap.model.primitives.Units;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
 
 /**
  * Manages a set of token images.  Anything needing a token image can request a bitmap.
@@ -28,20 +38,60 @@ import java.util.Set;
  * it will be loaded off the UI thread.
  *
  * Token images are returned wrapped in a reference-counted bitmap.  Disposing a token image
- * will reduce the reference counts.  Memory for loaded token images will be recycled.
+ * will reduce the reference counts.  Images that are no longer referenced stay cached until the
+ * total size of the loaded images exceeds a budget based on the app's memory class, at which
+ * point the least recently used ones are evicted and their memory reused.
+ *
+ * Each token image can be loaded at several resolutions, so that tokens drawn small do not
+ * hold on to large bitmaps and tokens drawn large are not blurry.  Each resolution is loaded,
+ * referenced and counted against the memory budget separately.  Methods that do not take a
+ * level use DEFAULT_LEVEL.
  * Created by Tim on 4/17/14.
  */
 public class TokenImageManager {
     private static final String TAG = "TokenImageManager";
 
-    private static final float POOL_EXPANSION_RATIO = 0.2f;
-    private static final int INITIAL_POOL_SIZE = 50;
+    /**
+     * Fraction of the app's memory class that loaded token images may use.
+     */
+    private static final int MEMORY_CLASS_FRACTION = 4;
+
+    private static final int BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    /**
+     * Size each resolution level of a token image is loaded at, in dp, from smallest to
+     * largest.
+     */
+    private static final int[] LEVEL_DIMS_DP = {24, 48, 96, 192};
+
+    /**
+     * Resolution level used for token buttons and by methods that do not take a level.
+     */
+    public static final int DEFAULT_LEVEL = 2;
+
+    /**
+     * Finds the resolution level that covers a token drawn at the given size.
+     * @param radiusPx Radius the token is drawn at, in screen pixels.
+     * @return The smallest level at least as big as the token, or the largest level.
+     */
+    public static int levelForRadius(float radiusPx) {
+        for (int level = 0; level < LEVEL_DIMS_DP.length - 1; ++level) {
+            if (Units.dpToPx(LEVEL_DIMS_DP[level]) >= 2 * radiusPx) {
+                return level;
+            }
+        }
+        return LEVEL_DIMS_DP.length - 1;
+    }
+
+    private static String imageKey(String tokenId, int level) {
+        return tokenId + "#" + level;
+    }
+
     private static TokenImageManager mInstance;
 
     public static TokenImageManager getInstance() {
         if (mInstance == null) {
-            mInstance = new TokenImageManager();
-            mInstance.initializePool(INITIAL_POOL_SIZE);
+            mInstance = new TokenImageManager(DungeonSketchApp.getContext());
         }
         return mInstance;
     }
@@ -50,52 +100,157 @@ public class TokenImageManager {
         return mInstance;
     }
 
-    public class Loader extends HandlerThread {
-        private static final int MESSAGE_LOAD = 0;
-        Handler mHandler;
+    /**
+     * Priority of images for tokens that are on screen on the map.
+     */
+    public static final int PRIORITY_MAP = 0;
+
+    /**
+     * Priority of images for visible buttons in the token selectors.
+     */
+    public static final int PRIORITY_SELECTOR = 1;
+
+    /**
+     * Priority of images that are not visible yet but are likely to be soon.
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+
+    /**
+     * Fewest and most threads a loader decodes images on.
+     */
+    private static final int MIN_DECODE_THREADS = 2;
+    private static final int MAX_DECODE_THREADS = 4;
+
+    /**
+     * How long an idle decode thread waits for more work before exiting.
+     */
+    private static final long DECODE_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    /**
+     * Loads token images on a pool of worker threads.  Requests are decoded in priority order,
+     * and concurrent requests for the same token share a single decode.  Requests that are
+     * cancelled before a worker picks them up are removed from the queue.
+     */
+    public class Loader {
         final Handler mResponseHandler;
         final Context mContext;
-        final Map<String, Callback> mCallbacks = new HashMap<String, Callback>();
+
+        /**
+         * Queued and in-progress loads, keyed by token ID and level.  Guarded by the
+         * TokenImageManager.
+         */
+        final Map<String, LoadTask> mTasks = new HashMap<String, LoadTask>();
+
+        /**
+         * Used to run loads in the order they were requested within a priority.
+         */
+        private long mNextSequence;
+
+        private volatile ThreadPoolExecutor mExecutor;
 
         private Loader(Context context, Handler responseHandler) {
-            super("TokenImageManager.Loader");
             mResponseHandler = responseHandler;
             mContext = context.getApplicationContext();
         }
 
-        protected void onLooperPrepared() {
-            mHandler = new Handler() {
-                public void handleMessage(Message msg) {
-                    if (msg.what == MESSAGE_LOAD) {
-                        String tokenId = (String)msg.obj;
-                        Log.v(TAG, "Handling load request for " + tokenId);
-                        handleRequest(tokenId);
+        /**
+         * A request to load the image for a token, shared by all of the callbacks waiting on it.
+         */
+        private final class LoadTask implements Runnable, Comparable<LoadTask> {
+            final String mTokenId;
+            final int mLevel;
+            final String mKey;
+            final List<Callback> mCallbacks = new ArrayList<Callback>();
+            int mPriority;
+            long mSequence;
+            boolean mStarted;
+
+            LoadTask(String tokenId, int level, int priority) {
+                mTokenId = tokenId;
+                mLevel = level;
+                mKey = imageKey(tokenId, level);
+                mPriority = priority;
+                mSequence = mNextSequence++;
+            }
+
+            @Override
+            public int compareTo(@Nonnull LoadTask other) {
+                if (mPriority != other.mPriority) {
+                    return mPriority < other.mPriority ? -1 : 1;
+                }
+                return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+            }
+
+            @Override
+            public void run() {
+                synchronized(TokenImageManager.this) {
+                    if (mTasks.get(mKey) != this || mCallbacks.isEmpty()) {
+                        Log.v(TAG, "Load request for " + mKey + " cancelled before loading.");
+                        return;
                     }
+                    mStarted = true;
                 }
-            };
+                Log.v(TAG, "Handling load request for " + mKey);
+                handleRequest(this);
+            }
         }
 
-        private void handleRequest(final String tokenId) {
-            // If this request no longer has a callback associated with it, assume that the load
-            // has been cancelled.
+        /**
+         * Starts the worker threads.
+         */
+        public synchronized void start() {
+            int threads = Math.max(MIN_DECODE_THREADS,
+                    Math.min(MAX_DECODE_THREADS, Runtime.getRuntime().availableProcessors()));
+            mExecutor = new ThreadPoolExecutor(threads, threads,
+                    DECODE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int mThreadCount;
+
+                @Override
+                public Thread newThread(@Nonnull final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "TokenImageManager.Loader #" + ++mThreadCount);
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Stops the worker threads.  Queued loads are dropped.
+         */
+        public synchronized void quit() {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+        }
+
+        private void handleRequest(final LoadTask task) {
+            final String tokenId = task.mTokenId;
+            final int level = task.mLevel;
+            final String key = task.mKey;
             TokenImageWrapper newImage = null;
+            BaseToken source = null;
             final TokenImageManager mgr = TokenImageManager.getInstance();
             TokenDatabase db = TokenDatabase.getInstanceOrNull();
 
             synchronized(TokenImageManager.this) {
-                if (!mCallbacks.containsKey(tokenId)) {
-                    Log.v(TAG, "Load request for " + tokenId + " cancelled before loading.");
-                    return;
-                }
                 // If this token has been loaded since the request was created, just increase
                 // the ref count.
-                if (mgr.mCurrentImages.containsKey(tokenId)) {
-                    mgr.mCurrentImages.get(tokenId).mReferenceCount++;
-                    Log.v(TAG, "Image for " + tokenId + " already found.  Now refcnt=" +
-                            mgr.mCurrentImages.get(tokenId).mReferenceCount );
+                if (mgr.mCurrentImages.containsKey(key)) {
+                    mgr.addReferences(mgr.mCurrentImages.get(key), 1);
+                    Log.v(TAG, "Image for " + key + " already found.  Now refcnt=" +
+                            mgr.mCurrentImages.get(key).mReferenceCount );
                 } else {
-                    newImage = mgr.getUnusedImage(mContext, mResponseHandler);
-
+                    source = db != null ? db.getImageSource(tokenId) : null;
+                    if (source != null) {
+                        newImage = mgr.obtainImage();
+                    }
                 }
             }
 
@@ -103,19 +258,26 @@ public class TokenImageManager {
             // synchronized block because it is an expensive process and is the reason we are doing
             // this off the main thread.
             if (newImage != null) {
-                Log.v(TAG, "Image allocated.  Now loading token image for " + tokenId);
-                BaseToken token = db.createToken(tokenId);
-                Bitmap b = token.loadBitmap(newImage.mImage);
-                newImage.mImage = b;
-                newImage.mDrawable = new BitmapDrawable(mContext.getResources(), b);
-                newImage.mToken = token;
-                mgr.mCurrentImages.put(tokenId, newImage);
+                Log.v(TAG, "Image allocated.  Now loading token image for " + key);
+                Bitmap b = source.loadBitmap(newImage.mImage, LEVEL_DIMS_DP[level]);
+                if (b != null) {
+                    newImage.mImage = b;
+                    newImage.mDrawable = new BitmapDrawable(mContext.getResources(), b);
+                    newImage.mToken = source;
+                    newImage.mKey = key;
+                    mgr.imageLoaded(newImage);
+                } else {
+                    // Not cached, so that the next request for the token tries again.
+                    Log.w(TAG, "Could not load token image for " + key);
+                }
             }
 
-            if (TokenImageManager.this.getTokenDrawable(tokenId) == null) {
-                Log.e(TAG, "Failed to allocate an unused image for " + tokenId);
+            if (mgr.getLoadedDrawable(key) == null) {
+                Log.e(TAG, "No token image loaded for " + key);
                 synchronized(TokenImageManager.this) {
-                    mCallbacks.remove(tokenId);
+                    if (mTasks.get(key) == task) {
+                        mTasks.remove(key);
+                    }
                 }
                 return;
             }
@@ -123,51 +285,116 @@ public class TokenImageManager {
             mResponseHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    Callback cb = null;
+                    List<Callback> callbacks = null;
                     synchronized(TokenImageManager.this) {
-                        if (mCallbacks.containsKey(tokenId)) {
-                            cb = mCallbacks.get(tokenId);
-                            mCallbacks.remove(tokenId);
+                        if (mTasks.get(key) == task && !task.mCallbacks.isEmpty()) {
+                            mTasks.remove(key);
+                            callbacks = new ArrayList<Callback>(task.mCallbacks);
+                            // The load took one reference; each other waiting callback takes
+                            // another.
+                            TokenImageWrapper image = mgr.mCurrentImages.get(key);
+                            if (image != null) {
+                                mgr.addReferences(image, callbacks.size() - 1);
+                            }
                         } else {
-                            Log.v(TAG, "Load request for " + tokenId + " cancelled during loading.");
-                            mgr.releaseTokenImage(tokenId);
+                            Log.v(TAG, "Load request for " + key + " cancelled during loading.");
+                            if (mTasks.get(key) == task) {
+                                mTasks.remove(key);
+                            }
+                            mgr.releaseTokenImage(tokenId, level);
                         }
                     }
-                    if (cb != null) {
-                        if (TokenImageManager.this.getTokenDrawable(tokenId) == null) {
-                            Log.e(TAG, "Lost token image for " + tokenId + " before callback called.");
+                    if (callbacks != null) {
+                        if (mgr.getLoadedDrawable(key) == null) {
+                            Log.e(TAG, "Lost token image for " + key + " before callback called.");
                             return;
                         }
-                        Log.v(TAG, "Posting token load callback for " + tokenId);
-                        cb.imageLoaded(tokenId);
+                        Log.v(TAG, "Posting token load callback for " + key);
+                        for (Callback cb: callbacks) {
+                            cb.imageLoaded(tokenId);
+                        }
                     }
                 }
             });
         }
 
-        public void queueTokenLoad(String tokenId, Callback callback) {
+        /**
+         * Queues the image for a token to be loaded.  If the token is already queued, the
+         * callback joins the queued load, and the load is moved up if this request is more
+         * urgent.
+         * @param tokenId ID of the token to load.
+         * @param level Resolution level to load.
+         * @param callback Callback to run on the response thread once the image is loaded.
+         * @param priority One of the PRIORITY_* constants.
+         */
+        public void queueTokenLoad(String tokenId, int level, Callback callback, int priority) {
             synchronized(TokenImageManager.this) {
-                mCallbacks.put(tokenId, callback);
-                if (mHandler != null) {
-                    Message m = mHandler.obtainMessage(MESSAGE_LOAD, tokenId);
-                    m.sendToTarget();
-                    Log.v(TAG, "Token load queued: " + tokenId);
+                String key = imageKey(tokenId, level);
+                LoadTask task = mTasks.get(key);
+                if (task == null) {
+                    task = new LoadTask(tokenId, level, priority);
+                    mTasks.put(key, task);
+                    task.mCallbacks.add(callback);
+                    execute(task);
+                    Log.v(TAG, "Token load queued: " + key);
+                    return;
+                }
+
+                task.mCallbacks.add(callback);
+                if (priority < task.mPriority && !task.mStarted) {
+                    ThreadPoolExecutor executor = mExecutor;
+                    // Re-queue so the priority queue sees the new priority.
+                    if (executor != null && executor.remove(task)) {
+                        task.mPriority = priority;
+                        executor.execute(task);
+                    }
                 }
+                Log.v(TAG, "Token load joined: " + key);
+            }
+        }
+
+        private void execute(LoadTask task) {
+            ThreadPoolExecutor executor = mExecutor;
+            if (executor == null) {
+                return;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Token load for " + task.mKey + " rejected; loader has quit.");
             }
         }
 
         public void clearQueue() {
-            mHandler.removeMessages(MESSAGE_LOAD);
-            mCallbacks.clear();
+            synchronized(TokenImageManager.this) {
+                ThreadPoolExecutor executor = mExecutor;
+                if (executor != null) {
+                    executor.getQueue().clear();
+                }
+                mTasks.clear();
+            }
         }
 
         public void cancelTokenLoad(String tokenId) {
+            cancelTokenLoad(tokenId, DEFAULT_LEVEL);
+        }
+
+        public void cancelTokenLoad(String tokenId, int level) {
             // TODO: Do something sane in the case of a multi-token load callback.
             Callback cb = null;
             synchronized(TokenImageManager.this) {
-                if (mCallbacks.containsKey(tokenId)) {
-                    cb = mCallbacks.get(tokenId);
-                    mCallbacks.remove(tokenId);
+                String key = imageKey(tokenId, level);
+                LoadTask task = mTasks.get(key);
+                if (task != null && !task.mCallbacks.isEmpty()) {
+                    cb = task.mCallbacks.remove(task.mCallbacks.size() - 1);
+                    if (task.mCallbacks.isEmpty() && !task.mStarted) {
+                        // Nobody is waiting on this load any more, so don't decode it.
+                        mTasks.remove(key);
+                        ThreadPoolExecutor executor = mExecutor;
+                        if (executor != null) {
+                            executor.remove(task);
+                        }
+                    }
                 }
             }
             if (cb != null) {
@@ -181,14 +408,25 @@ public class TokenImageManager {
          * @param tokenId ID of the token to discard or dequeue.
          */
         public void discardOrCancelTokenLoad(String tokenId) {
+            discardOrCancelTokenLoad(tokenId, DEFAULT_LEVEL);
+        }
+
+        /**
+         * If the given token is queued for load at the given level, cancels the load.
+         * Otherwise, assumes that the token is already loaded at that level and discards it.
+         * @param tokenId ID of the token to discard or dequeue.
+         * @param level Resolution level to discard or dequeue.
+         */
+        public void discardOrCancelTokenLoad(String tokenId, int level) {
             synchronized (TokenImageManager.this) {
                 TokenImageManager mgr = TokenImageManager.getInstance();
-                if (this.mCallbacks.containsKey(tokenId)) {
-                    Log.v(TAG, "Cancelling token load: " + tokenId);
-                    cancelTokenLoad(tokenId);
+                LoadTask task = this.mTasks.get(imageKey(tokenId, level));
+                if (task != null && !task.mCallbacks.isEmpty()) {
+                    Log.v(TAG, "Cancelling token load: " + tokenId + " at level " + level);
+                    cancelTokenLoad(tokenId, level);
                 } else {
-                    mgr.releaseTokenImage(tokenId);
-                    Log.v(TAG, "Releasing token image: " + tokenId);
+                    mgr.releaseTokenImage(tokenId, level);
+                    Log.v(TAG, "Releasing token image: " + tokenId + " at level " + level);
                 }
             }
         }
@@ -200,16 +438,31 @@ public class TokenImageManager {
         private BaseToken mToken;
         private int mReferenceCount;
 
+        /**
+         * Token ID and level this image was loaded for.
+         */
+        private String mKey;
+
+        /**
+         * Size of mImage that is counted against the memory budget.
+         */
+        private int mByteCount;
+
         public Drawable getDrawable() { return mDrawable; }
 
         public void release() {
-            mReferenceCount--;
             if (mReferenceCount <= 0) {
-                mRecycledImages.addLast(this);
-                Log.v(TAG, "Image for " + mToken.getTokenId() + " added to garbage heap.  Size=" +
-                        mRecycledImages.size());
+                // Already released, e.g. by recycleAll.
+                return;
+            }
+            mReferenceCount--;
+            if (mReferenceCount == 0) {
+                mUnreferencedImages.put(mKey, this);
+                Log.v(TAG, "Image for " + mKey + " now unreferenced.  Count=" +
+                        mUnreferencedImages.size());
+                trimToSize(mBudgetBytes);
             } else {
-                Log.v(TAG, "Image for " + mToken.getTokenId() + " still has " + mReferenceCount +
+                Log.v(TAG, "Image for " + mKey + " still has " + mReferenceCount +
                         " users.");
             }
         }
@@ -245,108 +498,321 @@ public class TokenImageManager {
         }
     }
 
-    private final LinkedList<TokenImageWrapper> mRecycledImages = Lists.newLinkedList();
-    private Map<String, TokenImageWrapper> mCurrentImages =  Maps.newHashMap();
+    /**
+     * Loaded images, referenced or not, keyed by token ID and level.
+     */
+    private final Map<String, TokenImageWrapper> mCurrentImages = Maps.newHashMap();
+
+    /**
+     * Loaded images that nothing references, in least recently used order.  These may be
+     * evicted to stay within the memory budget.
+     */
+    private final LinkedHashMap<String, TokenImageWrapper> mUnreferencedImages =
+            new LinkedHashMap<String, TokenImageWrapper>(16, 0.75f, true);
+
+    /**
+     * Most bytes that loaded images should use.  Referenced images are never evicted, so this
+     * can be exceeded while many images are on screen.
+     */
+    private final long mBudgetBytes;
+
+    /**
+     * Bytes used by all loaded images.
+     */
+    private long mBytes;
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    /**
+     * Number of images loaded so far.
+     */
+    private int mImagesLoaded;
+
+    /**
+     * Bitmaps of evicted images.  A draw that started before the eviction may still be drawing
+     * them, so they are only returned to the BitmapPool from the UI thread between frames, and
+     * only while no draw is running on another thread.
+     */
+    private final List<Bitmap> mRetiredBitmaps = new ArrayList<Bitmap>();
+
+    /**
+     * Number of draws running on threads other than the UI thread.
+     */
+    private int mBackgroundDraws;
+
+    /**
+     * Whether mReleaseRetiredBitmaps has been posted and not run yet.
+     */
+    private boolean mReleasePosted;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mReleaseRetiredBitmaps = new Runnable() {
+        @Override
+        public void run() {
+            List<Bitmap> retired;
+            synchronized (TokenImageManager.this) {
+                mReleasePosted = false;
+                if (mBackgroundDraws > 0) {
+                    // The last background draw to end posts this again.
+                    return;
+                }
+                retired = new ArrayList<Bitmap>(mRetiredBitmaps);
+                mRetiredBitmaps.clear();
+            }
+            for (Bitmap b : retired) {
+                BitmapPool.release(b);
+            }
+        }
+    };
 
-    private TokenImageManager() { }
+    private TokenImageManager(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mBudgetBytes = (long) am.getMemoryClass() * BYTES_PER_MEGABYTE / MEMORY_CLASS_FRACTION;
+        Log.d(TAG, "Token image budget is " + mBudgetBytes + " bytes");
+    }
 
     public synchronized void requireTokenImages(
-            Collection<String> tokens, Loader loader, MultiLoadCallback callback) {
+            Collection<String> tokens, Loader loader, MultiLoadCallback callback, int priority) {
         callback.setTokens(tokens);
         for (String t: tokens) {
-            requireTokenImage(t, loader, callback);
+            requireTokenImage(t, DEFAULT_LEVEL, loader, callback, priority);
         }
     }
 
-    public synchronized void requireTokenImage(String tokenId, Loader loader, Callback callback) {
+    /**
+     * Requires images for several tokens, each at its own resolution level.
+     * @param tokenLevels Level to load for each token ID.
+     * @param loader Loader to load missing images on.
+     * @param callback Callback to run once all the images are loaded.
+     * @param priority One of the PRIORITY_* constants.
+     */
+    public synchronized void requireTokenImages(
+            Map<String, Integer> tokenLevels, Loader loader, MultiLoadCallback callback,
+            int priority) {
+        callback.setTokens(tokenLevels.keySet());
+        for (Map.Entry<String, Integer> e: tokenLevels.entrySet()) {
+            requireTokenImage(e.getKey(), e.getValue(), loader, callback, priority);
+        }
+    }
+
+    public synchronized void requireTokenImage(String tokenId, Loader loader, Callback callback,
+                                               int priority) {
+        requireTokenImage(tokenId, DEFAULT_LEVEL, loader, callback, priority);
+    }
+
+    public synchronized void requireTokenImage(String tokenId, int level, Loader loader,
+                                               Callback callback, int priority) {
         TokenDatabase db = TokenDatabase.getInstanceOrNull();
         if (db == null) return;
-        if (db.createToken(tokenId) == null) return;
+        BaseToken source = db.getImageSource(tokenId);
         // If the token does not require an image load, the token is ready to draw.  This could
-        // be the case in e.g. color or letter tokens.  In this case, run the callback and return
-        // immediately.
-        if (!db.createToken(tokenId).needsLoad()) {
+        // be the case in e.g. color or letter tokens, or in placeholders for unknown tokens.  In
+        // this case, run the callback and return immediately.
+        if (source == null || !source.needsLoad()) {
             Log.v(TAG, "Token " + tokenId +  " does not need a load.");
             callback.imageLoaded(tokenId);
             return;
         }
 
-        if (mCurrentImages.containsKey(tokenId)) {
+        String key = imageKey(tokenId, level);
+        if (mCurrentImages.containsKey(key)) {
             // If the token image is already loaded, we don't need to wait on anything.  Just
             // increase the refcount and return immediately.
-            Log.v(TAG, "Token " + tokenId + " already loaded.");
-            TokenImageWrapper image = mCurrentImages.get(tokenId);
-            image.mReferenceCount++;
+            Log.v(TAG, "Token " + key + " already loaded.");
+            mHits++;
+            addReferences(mCurrentImages.get(key), 1);
             callback.imageLoaded(tokenId);
         } else {
-            loader.queueTokenLoad(tokenId, callback);
+            mMisses++;
+            loader.queueTokenLoad(tokenId, level, callback, priority);
         }
     }
 
     public synchronized void releaseTokenImage(String tokenId) {
-        if (mCurrentImages.containsKey(tokenId)) {
-            mCurrentImages.get(tokenId).release();
+        releaseTokenImage(tokenId, DEFAULT_LEVEL);
+    }
+
+    public synchronized void releaseTokenImage(String tokenId, int level) {
+        String key = imageKey(tokenId, level);
+        if (mCurrentImages.containsKey(key)) {
+            mCurrentImages.get(key).release();
         }
     }
 
     public synchronized Drawable getTokenDrawable(String tokenId) {
-        if (mCurrentImages.containsKey(tokenId)) {
-            return mCurrentImages.get(tokenId).getDrawable();
-        } else {
-            Log.d(TAG, "Token image requested for " + tokenId + " before image was ready");
+        return getBestDrawable(tokenId, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Gets the loaded image of a token that best fits the size it is drawn at.
+     * @param tokenId ID of the token.
+     * @param radiusPx Radius the token is drawn at, in screen pixels.
+     * @return The drawable, or null if the token is not loaded at any level.
+     */
+    public synchronized Drawable getTokenDrawable(String tokenId, float radiusPx) {
+        return getBestDrawable(tokenId, levelForRadius(radiusPx));
+    }
+
+    /**
+     * Gets the image of a token at the given level.  If that level is not loaded, falls back
+     * to the closest larger level, then to the closest smaller level, so that a token whose
+     * level is being changed keeps drawing while the new level loads.
+     */
+    private synchronized Drawable getBestDrawable(String tokenId, int level) {
+        for (int l = level; l < LEVEL_DIMS_DP.length; ++l) {
+            Drawable d = getLoadedDrawable(imageKey(tokenId, l));
+            if (d != null) {
+                return d;
+            }
+        }
+        for (int l = level - 1; l >= 0; --l) {
+            Drawable d = getLoadedDrawable(imageKey(tokenId, l));
+            if (d != null) {
+                return d;
+            }
         }
+        Log.d(TAG, "Token image requested for " + tokenId + " before image was ready");
         return null;
     }
 
-    private synchronized void initializePool(int poolSize) {
-        for (int i = 0; i < poolSize; ++i) {
-            TokenImageWrapper image = new TokenImageWrapper();
-            // TODO: Create memory for standard token size.
-            this.mRecycledImages.add(image);
+    private synchronized Drawable getLoadedDrawable(String key) {
+        TokenImageWrapper image = mCurrentImages.get(key);
+        return image != null ? image.getDrawable() : null;
+    }
+
+    private synchronized void addReferences(TokenImageWrapper image, int count) {
+        if (count <= 0) {
+            return;
         }
+        if (image.mReferenceCount == 0) {
+            mUnreferencedImages.remove(image.mKey);
+        }
+        image.mReferenceCount += count;
     }
 
-    private synchronized TokenImageWrapper getUnusedImage(final Context context,
-                                                          Handler mResponseHandler) {
-        TokenImageWrapper newImageWrapper = null;
+    /**
+     * Gets a new image to load a token into, with one reference taken.  The image is decoded
+     * into a bitmap from the BitmapPool, never into the bitmap of an image evicted just now,
+     * since that may still be being drawn.
+     * @return The image to load into.
+     */
+    private synchronized TokenImageWrapper obtainImage() {
+        TokenImageWrapper image = new TokenImageWrapper();
+        image.mReferenceCount = 1;
+        return image;
+    }
 
-        // Remove images from the pool until we find one that is *actually* unused
-        // or the pool is empty.
-        //noinspection StatementWithEmptyBody
-        while (!mRecycledImages.isEmpty() &&
-                (newImageWrapper = mRecycledImages.remove()).mReferenceCount != 0 ) {}
+    /**
+     * Adds a newly loaded image, then evicts unreferenced images if over budget.
+     */
+    private synchronized void imageLoaded(TokenImageWrapper image) {
+        image.mByteCount = image.mImage != null ? image.mImage.getByteCount() : 0;
+        mBytes += image.mByteCount;
+        mCurrentImages.put(image.mKey, image);
+        mImagesLoaded++;
+        trimToSize(mBudgetBytes);
+    }
 
-        if (mRecycledImages.isEmpty()) {
-            // Pool empty, allocate some more.
-            int poolIncrease = (int)(mCurrentImages.size() * POOL_EXPANSION_RATIO) + 1;
-            final String warning = "Increasing image pool size by " + poolIncrease;
-            Log.w(TAG, warning);
+    private synchronized TokenImageWrapper evictEldest() {
+        Iterator<TokenImageWrapper> it = mUnreferencedImages.values().iterator();
+        TokenImageWrapper image = it.next();
+        it.remove();
+        mCurrentImages.remove(image.mKey);
+        mBytes -= image.mByteCount;
+        image.mByteCount = 0;
+        mEvictions++;
+        Log.v(TAG, "Evicted image for " + image.mKey);
+        return image;
+    }
 
-            initializePool(poolIncrease);
-            return mRecycledImages.removeFirst();
-        } else {
-            //noinspection PointlessBooleanExpression
-            if (BuildConfig.DEBUG && newImageWrapper.mReferenceCount != 0) {
-                throw new RuntimeException("Selected image has nonzero ref count");
-            }
-            
-            if (newImageWrapper.mToken != null && mCurrentImages.containsKey(newImageWrapper.mToken.getTokenId())) {
-                mCurrentImages.remove(newImageWrapper.mToken.getTokenId());
+    /**
+     * Evicts least recently used unreferenced images until the loaded images fit in the given
+     * size or only referenced images are left.
+     * @param maxBytes Size to trim to.
+     */
+    private synchronized void trimToSize(long maxBytes) {
+        while (mBytes > maxBytes && !mUnreferencedImages.isEmpty()) {
+            TokenImageWrapper image = evictEldest();
+            if (image.mImage != null) {
+                mRetiredBitmaps.add(image.mImage);
             }
-            newImageWrapper.mToken = null;
-            newImageWrapper.mReferenceCount++;
+            image.mImage = null;
+        }
+        scheduleRetiredBitmapRelease();
+    }
 
-            Log.v(TAG, "Token garbage heap size=" + mRecycledImages.size());
-            return newImageWrapper;
+    /**
+     * Posts the release of retired bitmaps to the UI thread, unless it is already posted or a
+     * background draw could still be using them.
+     */
+    private synchronized void scheduleRetiredBitmapRelease() {
+        if (!mReleasePosted && mBackgroundDraws == 0 && !mRetiredBitmaps.isEmpty()) {
+            mReleasePosted = true;
+            mMainHandler.post(mReleaseRetiredBitmaps);
         }
     }
 
+    /**
+     * Signals that a thread other than the UI thread is about to draw token images.  Evicted
+     * bitmaps are kept out of the BitmapPool until the matching endBackgroundDraw.
+     */
+    public synchronized void beginBackgroundDraw() {
+        mBackgroundDraws++;
+    }
+
+    /**
+     * Signals that a draw started with beginBackgroundDraw has finished.
+     */
+    public synchronized void endBackgroundDraw() {
+        mBackgroundDraws--;
+        scheduleRetiredBitmapRelease();
+    }
+
+    /**
+     * Frees cached images in response to memory pressure.
+     * @param level The level passed to ComponentCallbacks2.onTrimMemory.
+     */
+    public synchronized void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mBudgetBytes / 2);
+        }
+        Log.d(TAG, "Trimmed for memory level " + level + ": " + getStats());
+    }
+
+    /**
+     * @return The number of images loaded so far.  Changes whenever drawing tokens again could
+     *     show an image that was missing or less detailed before.
+     */
+    public synchronized int getImagesLoaded() {
+        return mImagesLoaded;
+    }
+
+    /**
+     * @return A summary of cache activity, for debugging.
+     */
+    public synchronized String getStats() {
+        return "hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions
+                + " images=" + mCurrentImages.size() + " unreferenced=" + mUnreferencedImages.size()
+                + " bytes=" + mBytes + "/" + mBudgetBytes;
+    }
+
+    /**
+     * Releases every reference to every loaded image.  The images stay cached until they are
+     * evicted.
+     */
     public synchronized void recycleAll() {
-        for (TokenImageWrapper image: mCurrentImages.values()) {
-            image.mReferenceCount = 0;
-            mRecycledImages.addLast(image);
+        for (Map.Entry<String, TokenImageWrapper> e: mCurrentImages.entrySet()) {
+            e.getValue().mReferenceCount = 0;
+            mUnreferencedImages.put(e.getKey(), e.getValue());
         }
-        mCurrentImages = Maps.newHashMap();
+        trimToSize(mBudgetBytes);
     }
 
     public Loader createLoader(Context context, Handler responseHandler) {
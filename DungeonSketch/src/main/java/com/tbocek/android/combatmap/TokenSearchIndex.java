@@ -0,0 +1,248 @@
+package com.tbocek.android.combatmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory word prefix index over token names, token IDs and tag paths. Each
+ * is split into lowercase words; a query matches a token if every query word
+ * is a prefix of one of the token's words. The index is kept up to date by
+ * the token database as tokens are added, removed and retagged.
+ *
+ * Not thread safe; the token database only uses it while holding its own
+ * lock.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class TokenSearchIndex {
+
+    /**
+     * Score for a query word that matches a word of the token's name.
+     */
+    private static final int NAME_SCORE = 3;
+
+    /**
+     * Score for a query word that matches a word of one of the token's tags,
+     * or of the token's ID.
+     */
+    private static final int TAG_SCORE = 1;
+
+    /**
+     * Extra score for a query word that matches a whole word.
+     */
+    private static final int EXACT_MATCH_BONUS = 1;
+
+    /**
+     * How often a word occurs for a token, split by where it occurs.
+     */
+    private static final class Posting {
+        private int mNameCount;
+        private int mIdCount;
+        private int mTagCount;
+
+        private int score() {
+            return this.mNameCount > 0 ? NAME_SCORE : TAG_SCORE;
+        }
+    }
+
+    /**
+     * Postings for each word, keyed by word and then by token ID. Sorted by
+     * word so that all words with a given prefix are adjacent.
+     */
+    private final TreeMap<String, Map<String, Posting>> mPostings =
+            new TreeMap<String, Map<String, Posting>>();
+
+    /**
+     * Indexed name of each token, keyed by token ID.
+     */
+    private final Map<String, String> mNames = new HashMap<String, String>();
+
+    /**
+     * Indexed tag paths of each token, keyed by token ID.
+     */
+    private final Map<String, Set<String>> mTagPaths = new HashMap<String, Set<String>>();
+
+    /**
+     * Indexes the name and ID of a token, replacing any name indexed for it
+     * before.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @param name
+     *            Name of the token.
+     */
+    void addName(String tokenId, String name) {
+        this.removeName(tokenId);
+        this.mNames.put(tokenId, name);
+        for (String word : words(name)) {
+            this.getPosting(word, tokenId).mNameCount++;
+        }
+        for (String word : words(tokenId)) {
+            this.getPosting(word, tokenId).mIdCount++;
+        }
+    }
+
+    /**
+     * Removes the name and ID of a token from the index.
+     *
+     * @param tokenId
+     *            ID of the token.
+     */
+    void removeName(String tokenId) {
+        String name = this.mNames.remove(tokenId);
+        if (name == null) {
+            return;
+        }
+        for (String word : words(name)) {
+            Posting p = this.mPostings.get(word).get(tokenId);
+            p.mNameCount--;
+            this.removeIfUnused(word, tokenId, p);
+        }
+        for (String word : words(tokenId)) {
+            Posting p = this.mPostings.get(word).get(tokenId);
+            p.mIdCount--;
+            this.removeIfUnused(word, tokenId, p);
+        }
+    }
+
+    /**
+     * Indexes a tag that the token was added to.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @param tagPath
+     *            Full path of the tag.
+     */
+    void addTag(String tokenId, String tagPath) {
+        Set<String> paths = this.mTagPaths.get(tokenId);
+        if (paths == null) {
+            paths = new HashSet<String>();
+            this.mTagPaths.put(tokenId, paths);
+        }
+        if (!paths.add(tagPath)) {
+            return;
+        }
+        for (String word : words(tagPath)) {
+            this.getPosting(word, tokenId).mTagCount++;
+        }
+    }
+
+    /**
+     * Removes a tag that the token was removed from.
+     *
+     * @param tokenId
+     *            ID of the token.
+     * @param tagPath
+     *            Full path of the tag.
+     */
+    void removeTag(String tokenId, String tagPath) {
+        Set<String> paths = this.mTagPaths.get(tokenId);
+        if (paths == null || !paths.remove(tagPath)) {
+            return;
+        }
+        if (paths.isEmpty()) {
+            this.mTagPaths.remove(tokenId);
+        }
+        for (String word : words(tagPath)) {
+            Posting p = this.mPostings.get(word).get(tokenId);
+            p.mTagCount--;
+            this.removeIfUnused(word, tokenId, p);
+        }
+    }
+
+    /**
+     * Finds the tokens that match every word of the query.
+     *
+     * @param query
+     *            The search text.
+     * @return Score of each matching token ID; higher is better. Empty if the
+     *         query has no words.
+     */
+    Map<String, Integer> search(String query) {
+        Map<String, Integer> result = null;
+        for (String term : words(query)) {
+            Map<String, Integer> termScores = new HashMap<String, Integer>();
+            SortedMap<String, Map<String, Posting>> matches =
+                    this.mPostings.subMap(term, term + Character.MAX_VALUE);
+            for (Map.Entry<String, Map<String, Posting>> match : matches.entrySet()) {
+                int bonus = match.getKey().length() == term.length() ? EXACT_MATCH_BONUS : 0;
+                for (Map.Entry<String, Posting> p : match.getValue().entrySet()) {
+                    // A term only counts once per token, for its best match.
+                    int score = p.getValue().score() + bonus;
+                    Integer best = termScores.get(p.getKey());
+                    if (best == null || best < score) {
+                        termScores.put(p.getKey(), score);
+                    }
+                }
+            }
+
+            if (result == null) {
+                result = termScores;
+            } else {
+                Map<String, Integer> combined = new HashMap<String, Integer>();
+                for (Map.Entry<String, Integer> e : result.entrySet()) {
+                    Integer termScore = termScores.get(e.getKey());
+                    if (termScore != null) {
+                        combined.put(e.getKey(), e.getValue() + termScore);
+                    }
+                }
+                result = combined;
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result != null ? result : new HashMap<String, Integer>();
+    }
+
+    private Posting getPosting(String word, String tokenId) {
+        Map<String, Posting> postings = this.mPostings.get(word);
+        if (postings == null) {
+            postings = new HashMap<String, Posting>();
+            this.mPostings.put(word, postings);
+        }
+        Posting p = postings.get(tokenId);
+        if (p == null) {
+            p = new Posting();
+            postings.put(tokenId, p);
+        }
+        return p;
+    }
+
+    private void removeIfUnused(String word, String tokenId, Posting p) {
+        if (p.mNameCount > 0 || p.mIdCount > 0 || p.mTagCount > 0) {
+            return;
+        }
+        Map<String, Posting> postings = this.mPostings.get(word);
+        postings.remove(tokenId);
+        if (postings.isEmpty()) {
+            this.mPostings.remove(word);
+        }
+    }
+
+    /**
+     * Splits text into lowercase words at anything that is not a letter or
+     * digit, so that "humanoid:male" and "oaken_man.png" are both split.
+     *
+     * @param text
+     *            The text to split.
+     * @return The words.
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<String>();
+        for (String word : text.toLowerCase(Locale.getDefault()).split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
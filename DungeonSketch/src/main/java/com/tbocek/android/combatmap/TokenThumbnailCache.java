@@ -0,0 +1,256 @@
+package com.tbocek.android.combatmap;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Disk cache of custom token images that have already been scaled to the size
+ * they are drawn at. Decoding a small thumbnail is much cheaper than decoding
+ * and downsampling the full imported image every time a token scrolls into
+ * view. Thumbnails are keyed by the token image file name, its modification
+ * time and the target size, so an edited image or a new screen density never
+ * reuses a stale thumbnail. The least recently used thumbnails are deleted
+ * once the cache grows past its size limit.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class TokenThumbnailCache {
+    private static final String TAG = "TokenThumbnailCache";
+
+    /**
+     * Name of the cache directory, relative to the app's cache dir.
+     */
+    static final String DIRECTORY_NAME = "token_thumbnails";
+
+    /**
+     * Largest total size of the cached thumbnails, in bytes.
+     */
+    private static final long MAX_SIZE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Size to trim the cache down to once it is over the limit, so that
+     * trimming doesn't happen on every write.
+     */
+    private static final long TRIM_TO_BYTES = MAX_SIZE_BYTES * 3 / 4;
+
+    /**
+     * Compression quality used for thumbnails without transparency.
+     */
+    private static final int JPEG_QUALITY = 90;
+
+    private static final String PARTIAL_EXTENSION = ".partial";
+
+    /**
+     * Caches that have been opened, keyed by directory.
+     */
+    private static final Map<File, TokenThumbnailCache> sCaches =
+            new HashMap<File, TokenThumbnailCache>();
+
+    private final File mDirectory;
+
+    /**
+     * Total size of the cached thumbnails, or -1 if it has not been measured
+     * yet.
+     */
+    private long mSizeBytes = -1;
+
+    /**
+     * Gets the cache stored in the given directory.
+     *
+     * @param directory
+     *            Directory holding the thumbnails.
+     * @return The cache.
+     */
+    static synchronized TokenThumbnailCache forDirectory(File directory) {
+        TokenThumbnailCache cache = sCaches.get(directory);
+        if (cache == null) {
+            cache = new TokenThumbnailCache(directory);
+            sCaches.put(directory, cache);
+        }
+        return cache;
+    }
+
+    private TokenThumbnailCache(File directory) {
+        this.mDirectory = directory;
+    }
+
+    /**
+     * Finds the cached thumbnail for a token image, and marks it as recently
+     * used.
+     *
+     * @param source
+     *            The full size token image.
+     * @param widthPx
+     *            Width the thumbnail was scaled to cover.
+     * @param heightPx
+     *            Height the thumbnail was scaled to cover.
+     * @return The thumbnail file, or null if there is none.
+     */
+    File get(File source, int widthPx, int heightPx) {
+        File thumbnail = this.getThumbnailFile(source, widthPx, heightPx);
+        if (!thumbnail.exists()) {
+            return null;
+        }
+        if (!thumbnail.setLastModified(System.currentTimeMillis())) {
+            Log.d(TAG, "Could not mark " + thumbnail + " as used");
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Scales a decoded token image and adds it to the cache.
+     *
+     * @param source
+     *            The full size token image the bitmap was decoded from.
+     * @param decoded
+     *            The decoded image. Not recycled.
+     * @param widthPx
+     *            Width the thumbnail should cover.
+     * @param heightPx
+     *            Height the thumbnail should cover.
+     * @return The thumbnail file, or null if it could not be written.
+     */
+    File put(File source, Bitmap decoded, int widthPx, int heightPx) {
+        File thumbnail = this.getThumbnailFile(source, widthPx, heightPx);
+        if (!this.mDirectory.exists() && !this.mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + this.mDirectory);
+            return null;
+        }
+
+        // Scale so that the thumbnail covers the target in both dimensions,
+        // like the sample size chosen for the full image would.
+        float scale = Math.max((float) widthPx / decoded.getWidth(),
+                (float) heightPx / decoded.getHeight());
+        Bitmap scaled = decoded;
+        if (scale < 1) {
+            scaled = Bitmap.createScaledBitmap(decoded,
+                    Math.max(1, Math.round(decoded.getWidth() * scale)),
+                    Math.max(1, Math.round(decoded.getHeight() * scale)), true);
+        }
+
+        File partial = new File(this.mDirectory, thumbnail.getName() + PARTIAL_EXTENSION);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(partial));
+            try {
+                if (scaled.hasAlpha()) {
+                    scaled.compress(Bitmap.CompressFormat.PNG, 0, out);
+                } else {
+                    scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                }
+            } finally {
+                out.close();
+            }
+            if (!partial.renameTo(thumbnail)) {
+                Log.w(TAG, "Could not move " + partial + " to " + thumbnail);
+                return null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write thumbnail for " + source.getName(), e);
+            if (partial.exists() && !partial.delete()) {
+                Log.w(TAG, "Could not delete " + partial);
+            }
+            return null;
+        } finally {
+            if (scaled != decoded) {
+                scaled.recycle();
+            }
+        }
+
+        this.added(thumbnail.length());
+        return thumbnail;
+    }
+
+    /**
+     * Deletes all cached thumbnails of a token image.
+     *
+     * @param source
+     *            The full size token image.
+     */
+    void remove(File source) {
+        File[] files = this.mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        String prefix = source.getName() + ".";
+        for (File f : files) {
+            if (f.getName().startsWith(prefix)) {
+                this.delete(f);
+            }
+        }
+    }
+
+    /**
+     * Deletes a thumbnail that could not be decoded.
+     *
+     * @param thumbnail
+     *            The thumbnail file.
+     */
+    void discard(File thumbnail) {
+        this.delete(thumbnail);
+    }
+
+    private File getThumbnailFile(File source, int widthPx, int heightPx) {
+        return new File(this.mDirectory, source.getName() + "." + source.lastModified()
+                + "." + widthPx + "x" + heightPx);
+    }
+
+    private synchronized void delete(File f) {
+        long length = f.length();
+        if (f.delete()) {
+            if (this.mSizeBytes >= 0) {
+                this.mSizeBytes -= length;
+            }
+        } else {
+            Log.w(TAG, "Could not delete " + f);
+        }
+    }
+
+    /**
+     * Accounts for a newly written thumbnail, and deletes the least recently
+     * used thumbnails if the cache is now too big.
+     */
+    private synchronized void added(long length) {
+        File[] files = this.mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        if (this.mSizeBytes < 0) {
+            this.mSizeBytes = 0;
+            for (File f : files) {
+                this.mSizeBytes += f.length();
+            }
+        } else {
+            this.mSizeBytes += length;
+        }
+        if (this.mSizeBytes <= MAX_SIZE_BYTES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            if (this.mSizeBytes <= TRIM_TO_BYTES) {
+                break;
+            }
+            this.delete(f);
+        }
+        Log.d(TAG, "Trimmed token thumbnail cache to " + this.mSizeBytes + " bytes");
+    }
+}
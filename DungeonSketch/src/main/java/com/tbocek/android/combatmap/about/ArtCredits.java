@@ -86,7 +86,6 @@ public class ArtCredits extends Activity {
 
         mLoader = TokenImageManager.getInstance().createLoader(this, new Handler());
         mLoader.start();
-        mLoader.getLooper(); // Make sure loader thread is ready to go.
 
         try {
             InputStream is =
@@ -207,7 +206,7 @@ public class ArtCredits extends Activity {
                         public void imageLoaded(String tokenId) {
                             b.invalidate();
                         }
-                    });
+                    }, TokenImageManager.PRIORITY_SELECTOR);
                 }
             }
         }
@@ -1,76 +1,47 @@
 package com.tbocek.android.combatmap.cast;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
-import android.os.AsyncTask;
+import android.os.Process;
 import android.text.format.Formatter;
-import android.util.Log;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
-import fi.iki.elonen.NanoHTTPD;
+import javax.annotation.Nonnull;
 
 /**
  * Encapsulates a small HTTP server used to make a snapshot of the current state available to the
- * cast receiver.
+ * cast receiver.  See FrameServer for how frames and connections are handled; this adds what
+ * needs Android, such as finding the address the receiver should fetch from.
  * Created by tbocek on 4/29/14.
  */
-public class CastFileServer extends NanoHTTPD {
+public class CastFileServer extends FrameServer {
     private final static String TAG = "CastFileServer";
 
-    public static final String JPEG_MIME_TYPE = "image/jpeg";
-    private static final int JPEG_COMPRESSION = 60;
     private final Context mContext;
 
-    // TODO: need to cache this on disk for memory concerns, or is it OK to keep this jpg in
-    // memory?
-    private byte[] mImageJpg;
-
-    public interface Listener {
-        void onNewImageAvailable();
-        void onImageFetched();
-    }
-
-    private final Listener mNullListener = new Listener() {
-        @Override
-        public void onNewImageAvailable() { }
-
-        @Override
-        public void onImageFetched() { }
-    };
-
-    Listener mListener = mNullListener;
-
     public CastFileServer(Context context) {
         // TODO: Allow port selection in advanced options.
-        super(8000);
+        super(8000, new ThreadFactory() {
+            private int mThreadCount;
+
+            @Override
+            public Thread newThread(@Nonnull final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "CastFileServer.Worker #" + ++mThreadCount);
+                t.setDaemon(true);
+                return t;
+            }
+        });
         mContext = context;
     }
 
-    public void saveImage(Bitmap bitmap) {
-        new SaveBitmapTask().execute(bitmap);
-    }
-
-    @Override
-    public Response serve(String uri, Method method,
-                          Map<String, String> header,
-                          Map<String, String> parameters,
-                          Map<String, String> files) {
-
-        mListener.onImageFetched();
-        synchronized(this) {
-            return new Response(
-                    Response.Status.OK, JPEG_MIME_TYPE,
-                    new ByteArrayInputStream(mImageJpg.clone()));
-        }
-    }
-
     public String getImageAddress() {
         WifiManager wifiMgr = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
         WifiInfo wifiInfo = wifiMgr.getConnectionInfo();
@@ -78,30 +49,4 @@ public class CastFileServer extends NanoHTTPD {
         String ipAddress = Formatter.formatIpAddress(ip);
         return "http://" + ipAddress + ":" + Integer.toString(getListeningPort());
     }
-
-    public void setListener(Listener listener) {
-        mListener = listener;
-    }
-
-    private class SaveBitmapTask extends AsyncTask<Bitmap, Void, Void> {
-
-        @Override
-        protected Void doInBackground(Bitmap... bitmaps) {
-            ByteArrayOutputStream s = new ByteArrayOutputStream();
-            BufferedOutputStream buf = new BufferedOutputStream(s);
-            bitmaps[0].compress(Bitmap.CompressFormat.JPEG, JPEG_COMPRESSION, buf);
-            synchronized(CastFileServer.this) {
-                mImageJpg = s.toByteArray();
-            }
-            try {
-                buf.close();
-                s.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Error closing bitmap writer", e);
-            }
-
-            mListener.onNewImageAvailable();
-            return null;
-        }
-    }
 }
@@ -0,0 +1,242 @@
+package com.tbocek.android.combatmap.cast;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.tbocek.android.combatmap.BitmapPool;
+import com.tbocek.android.combatmap.TokenImageManager;
+import com.tbocek.android.combatmap.model.MapData;
+import com.tbocek.android.combatmap.model.MapDrawer;
+import com.tbocek.android.combatmap.model.io.MapDataSerializer;
+import com.tbocek.android.combatmap.model.primitives.BackgroundImage;
+import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.zip.CRC32;
+
+/**
+ * Renders the frames served to the cast receiver on a background thread.
+ * Frames are requested with a snapshot of the map data; a request that is
+ * still waiting when a newer one arrives is dropped. The worker gives each
+ * snapshot its own copy of the map's layers as soon as it takes it, so the
+ * frame is drawn without holding any lock the UI thread could wait on.
+ * Frames start no more often than MIN_FRAME_INTERVAL_MS apart. A frame is
+ * only rendered and encoded if the parts of the map players can see have
+ * changed since the last frame served, so edits such as GM notes never reach
+ * the receiver. The waiting frame and the frame statistics are kept by a
+ * FrameQueue.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class CastFrameScheduler {
+    private static final String TAG = "CastFrameScheduler";
+
+    /**
+     * Size of a cast frame, in pixels.
+     */
+    private static final int FRAME_WIDTH = 1920;
+    private static final int FRAME_HEIGHT = 1080;
+
+    /**
+     * Shortest time between the starts of two frames.
+     */
+    private static final long MIN_FRAME_INTERVAL_MS = 500;
+
+    private static final int JPEG_COMPRESSION = 60;
+
+    private final CastFileServer mServer;
+
+    private final FrameQueue<MapData> mQueue =
+            new FrameQueue<MapData>(MIN_FRAME_INTERVAL_MS) {
+        @Override
+        void release(MapData frame) {
+            frame.release();
+        }
+
+        @Override
+        void makeIndependent(MapData frame) {
+            frame.makeIndependent();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param server
+     *            Server that rendered frames are handed to.
+     */
+    CastFrameScheduler(CastFileServer server) {
+        this.mServer = server;
+    }
+
+    /**
+     * Starts rendering requested frames.
+     */
+    void start() {
+        if (this.mQueue.start()) {
+            new Thread(new FrameWorker(), TAG).start();
+        }
+    }
+
+    /**
+     * Stops rendering frames, and drops any frame that has not started yet.
+     * The frame being rendered, if any, still finishes.
+     */
+    void stop() {
+        this.mQueue.stop();
+    }
+
+    /**
+     * Requests a frame. Replaces any requested frame that has not started
+     * yet.
+     *
+     * @param snapshot
+     *            Snapshot of the map data to render. Released once the frame
+     *            is rendered or dropped.
+     */
+    void requestFrame(MapData snapshot) {
+        this.mQueue.request(snapshot);
+    }
+
+    /**
+     * @return A summary of frame activity, for debugging.
+     */
+    String getStats() {
+        return this.mQueue.getStats();
+    }
+
+    /**
+     * Renders frames until the scheduler is stopped. Owns the frame buffer,
+     * so that it is never released while a frame is drawn into it.
+     */
+    private final class FrameWorker implements Runnable {
+        private Bitmap mBuffer;
+        private final ChecksumWriter mChecksum = new ChecksumWriter();
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                MapData snapshot;
+                while ((snapshot = mQueue.take()) != null) {
+                    this.renderFrame(snapshot);
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for a frame", e);
+            } finally {
+                BitmapPool.release(this.mBuffer);
+                this.mBuffer = null;
+            }
+        }
+
+        private void renderFrame(MapData snapshot) {
+            long checksum = this.checksumVisibleState(snapshot);
+            if (!mQueue.isChanged(checksum)) {
+                snapshot.release();
+                return;
+            }
+
+            long start = SystemClock.uptimeMillis();
+            if (this.mBuffer == null) {
+                this.mBuffer = BitmapPool.obtain(FRAME_WIDTH, FRAME_HEIGHT,
+                        Bitmap.Config.ARGB_8888);
+            }
+            Canvas canvas = new Canvas(this.mBuffer);
+            // The snapshot no longer shares anything with the live map data,
+            // so it is drawn without locking.
+            new MapDrawer()
+                    .drawGridLines(true)
+                    .drawGmNotes(false)
+                    .drawTokens(true)
+                    .areTokensManipulable(true)
+                    .drawAnnotations(true)
+                    .backgroundFogOfWar(MapDrawer.FogOfWarMode.CLIP)
+                    .useCustomWorldSpaceTransformer(
+                            snapshot.getChromecastWorldSpaceTransformer())
+                    .draw(canvas, snapshot, canvas.getClipBounds());
+            snapshot.release();
+            long rendered = SystemClock.uptimeMillis();
+
+            ByteArrayOutputStream s = new ByteArrayOutputStream();
+            this.mBuffer.compress(Bitmap.CompressFormat.JPEG, JPEG_COMPRESSION, s);
+            long encoded = SystemClock.uptimeMillis();
+            mQueue.frameServed(checksum, rendered - start, encoded - rendered);
+            mServer.setImage(s.toByteArray());
+        }
+
+        /**
+         * Checksums everything that the cast frame for the given snapshot is
+         * drawn from: the layers players can see, the cast view's transform,
+         * and how many token images and background image tiles are loaded, so
+         * that a frame drawn before its images loaded is drawn again.
+         *
+         * @param snapshot
+         *            The snapshot to checksum.
+         * @return The checksum, or FrameQueue.NO_CHECKSUM if the snapshot
+         *         could not be read, so that the frame is always drawn.
+         */
+        private long checksumVisibleState(MapData snapshot) {
+            this.mChecksum.reset();
+            MapDataSerializer s = new MapDataSerializer(this.mChecksum);
+            try {
+                snapshot.getGrid().serialize(s);
+                CoordinateTransformer transformer =
+                        snapshot.getChromecastWorldSpaceTransformer();
+                if (transformer == null) {
+                    transformer = snapshot.getWorldSpaceTransformer();
+                }
+                transformer.serialize(s);
+                snapshot.getBackgroundLines().serialize(s);
+                snapshot.getBackgroundFogOfWar().serialize(s);
+                snapshot.getBackgroundImages().serialize(s);
+                snapshot.getTokens().serialize(s);
+                snapshot.getAnnotationLines().serialize(s);
+                s.serializeInt(snapshot.getBackgroundImages().getLoadedCount());
+                s.serializeInt(BackgroundImage.getTilesLoaded());
+                TokenImageManager images = TokenImageManager.getInstanceOrNull();
+                s.serializeInt(images != null ? images.getImagesLoaded() : 0);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not checksum cast frame", e);
+                return FrameQueue.NO_CHECKSUM;
+            }
+            return this.mChecksum.getValue();
+        }
+    }
+
+    /**
+     * Writer that keeps a running CRC32 of the characters written to it.
+     */
+    private static final class ChecksumWriter extends Writer {
+        private final CRC32 mCrc = new CRC32();
+
+        @Override
+        public void write(char[] buf, int offset, int count) {
+            for (int i = offset; i < offset + count; ++i) {
+                this.mCrc.update(buf[i] >> 8);
+                this.mCrc.update(buf[i]);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void reset() {
+            this.mCrc.reset();
+        }
+
+        long getValue() {
+            return this.mCrc.getValue();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.tbocek.android.combatmap.cast;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.v7.media.MediaRouteSelector;
 import android.support.v7.media.MediaRouter;
@@ -18,6 +17,7 @@ import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
+import com.tbocek.android.combatmap.model.MapData;
 
 import java.io.IOException;
 
@@ -51,9 +51,11 @@ public class CastManager {
         return sInstance;
     }
 
+    public static CastManager getInstanceOrNull() {
+        return sInstance;
+    }
+
     private static final String TAG = "CastManager";
-    private static final int EXPORT_WIDTH = 1920;
-    private static final int EXPORT_HEIGHT = 1080;
 
     private MediaRouter mMediaRouter;
     private MediaRouteSelector mMediaRouteSelector;
@@ -62,10 +64,10 @@ public class CastManager {
     private GoogleApiClient mApiClient;
     private boolean mWaitingForReconnect;
     private boolean mApplicationStarted;
-    private Bitmap mCastBuffer;
     private boolean  mRequestSent;
 
     private CastFileServer mCastServer;
+    private CastFrameScheduler mFrameScheduler;
 
     private CastManager(Context context) {
         mContext = context.getApplicationContext();
@@ -74,6 +76,7 @@ public class CastManager {
     public void onCreate() {
         mCastServer = new CastFileServer(mContext);
         mCastServer.setListener(mCastFileServerListener);
+        mFrameScheduler = new CastFrameScheduler(mCastServer);
         mMediaRouter = android.support.v7.media.MediaRouter.getInstance(mContext);
         mMediaRouteSelector = new MediaRouteSelector.Builder()
                 .addControlCategory(CastMediaControlIntent.categoryForCast(
@@ -128,6 +131,7 @@ public class CastManager {
             mApiClient.connect();
             try {
                 mCastServer.start();
+                mFrameScheduler.start();
             } catch (IOException e) {
                 Log.w(TAG, "Failed to start cast server", e);
             }
@@ -216,6 +220,7 @@ public class CastManager {
     };
 
     private void teardown() {
+        mFrameScheduler.stop();
         mCastServer.stop();
         mCasting = false;
     }
@@ -224,19 +229,24 @@ public class CastManager {
 
     }
 
-    public Bitmap getCastBuffer() {
-        if (mCastBuffer == null) {
-            mCastBuffer = Bitmap.createBitmap(EXPORT_WIDTH, EXPORT_HEIGHT, Bitmap.Config.ARGB_8888);
-        }
-        return mCastBuffer;
+    /**
+     * Requests that a new frame be rendered and sent to the cast receiver.  The frame is rendered
+     * in the background; frames requested faster than they can be rendered are dropped, and the
+     * receiver is only told to fetch frames that look different from the last one.
+     * @param snapshot Snapshot of the map data to render.  Released once it has been rendered.
+     */
+    public void requestFrame(MapData snapshot) {
+        mFrameScheduler.requestFrame(snapshot);
     }
 
-    public void updateImage(Bitmap image) throws IOException {
-        mCastServer.saveImage(image);
-        // Tell the remote viewer to grab the new image.
-        if (isCasting() && !mRequestSent) {
-            updateRemoteImage();
+    /**
+     * @return A summary of cast frame rendering, for debugging.
+     */
+    public String getFrameStats() {
+        if (mFrameScheduler == null) {
+            return "not started";
         }
+        return mFrameScheduler.getStats() + " server: " + mCastServer.getStats();
     }
 
     private void updateRemoteImage() {
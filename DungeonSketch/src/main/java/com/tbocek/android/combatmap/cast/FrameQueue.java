@@ -0,0 +1,278 @@
+package com.tbocek.android.combatmap.cast;
+
+/**
+ * Holds the frame waiting to be rendered for the cast receiver, and keeps
+ * count of what happens to each frame. A request that is still waiting when
+ * a newer one arrives is dropped, and frames are handed out no more often
+ * than the minimum frame interval apart. A frame drawn from the same state
+ * as the last frame served is skipped.
+ *
+ * Frames are taken by one worker at a time. Uses no Android APIs, so that
+ * the CastFrameScheduler's bookkeeping can be tested on the JVM.
+ *
+ * @param <T>
+ *            The snapshot that a frame is rendered from.
+ * @author Tim Bocek
+ *
+ */
+abstract class FrameQueue<T> {
+    /**
+     * Checksum given for a frame whose state could not be checksummed. Never
+     * matches a served frame, so such a frame is always rendered.
+     */
+    static final long NO_CHECKSUM = -1;
+
+    /**
+     * Shortest time between the starts of two frames.
+     */
+    private final long mMinFrameIntervalMs;
+
+    /**
+     * Guards everything below except mServedChecksum.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Snapshot to render the next frame from, or null if no frame has been
+     * requested since the last one was taken.
+     */
+    private T mPending;
+
+    private boolean mStopped = true;
+
+    /**
+     * Whether a worker is taking frames, or has yet to notice that the queue
+     * was stopped.
+     */
+    private boolean mWorkerRunning;
+
+    /**
+     * Time the last frame was handed out, as uptimeMillis().
+     */
+    private long mLastFrameStart;
+
+    private int mFramesRequested;
+    private int mFramesDropped;
+    private int mFramesRendered;
+
+    /**
+     * Frames that were skipped because nothing players can see had changed.
+     */
+    private int mFramesUnchanged;
+    private long mRenderMillis;
+    private long mEncodeMillis;
+
+    /**
+     * Checksum of the state of the last frame served, or NO_CHECKSUM if no
+     * frame has been served yet. Only accessed by the worker.
+     */
+    private long mServedChecksum = NO_CHECKSUM;
+
+    /**
+     * Constructor.
+     *
+     * @param minFrameIntervalMs
+     *            Shortest time between the starts of two frames.
+     */
+    FrameQueue(long minFrameIntervalMs) {
+        this.mMinFrameIntervalMs = minFrameIntervalMs;
+        this.mLastFrameStart = uptimeMillis() - minFrameIntervalMs;
+    }
+
+    /**
+     * Releases a snapshot that will not be rendered, or that was not taken
+     * before the queue stopped.
+     *
+     * @param frame
+     *            The snapshot to release.
+     */
+    abstract void release(T frame);
+
+    /**
+     * Makes a snapshot independent of the live data it was taken from, so
+     * that it can be read without locking. Called on the worker, without
+     * holding the queue's lock.
+     *
+     * @param frame
+     *            The snapshot to make independent.
+     */
+    abstract void makeIndependent(T frame);
+
+    /**
+     * Starts handing out requested frames.
+     *
+     * @return Whether a worker must be started to take them; false if the
+     *         last worker is still running and will carry on.
+     */
+    boolean start() {
+        synchronized (this.mLock) {
+            this.mStopped = false;
+            if (this.mWorkerRunning) {
+                return false;
+            }
+            this.mWorkerRunning = true;
+            return true;
+        }
+    }
+
+    /**
+     * Stops handing out frames, and drops any frame that has not been taken
+     * yet. The worker's next call to take() returns null.
+     */
+    void stop() {
+        synchronized (this.mLock) {
+            this.mStopped = true;
+            if (this.mPending != null) {
+                this.release(this.mPending);
+                this.mPending = null;
+            }
+            this.mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Requests a frame. Replaces any requested frame that has not been taken
+     * yet.
+     *
+     * @param frame
+     *            Snapshot to render the frame from. Released if the queue is
+     *            stopped or the frame is dropped.
+     */
+    void request(T frame) {
+        synchronized (this.mLock) {
+            if (this.mStopped) {
+                this.release(frame);
+                return;
+            }
+            this.mFramesRequested++;
+            if (this.mPending != null) {
+                this.release(this.mPending);
+                this.mFramesDropped++;
+            }
+            this.mPending = frame;
+            this.mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Takes the next frame request once it is due. Each request is taken and
+     * made independent as soon as it arrives, so that edits made while the
+     * frame waits for its turn don't have to preserve its state.
+     *
+     * @return The snapshot to render, or null if the queue was stopped, in
+     *         which case the worker must stop.
+     * @throws InterruptedException
+     *             If the worker was interrupted while waiting, in which case
+     *             it must also stop.
+     */
+    T take() throws InterruptedException {
+        T frame = null;
+        try {
+            while (true) {
+                T newer;
+                synchronized (this.mLock) {
+                    if (this.mStopped) {
+                        this.mWorkerRunning = false;
+                        if (frame != null) {
+                            this.release(frame);
+                        }
+                        return null;
+                    }
+                    newer = this.mPending;
+                    this.mPending = null;
+                    if (newer == null) {
+                        if (frame == null) {
+                            this.mLock.wait();
+                            continue;
+                        }
+                        long wait = this.mLastFrameStart + this.mMinFrameIntervalMs
+                                - uptimeMillis();
+                        if (wait > 0) {
+                            // Newer requests that arrive meanwhile replace
+                            // this one.
+                            this.mLock.wait(wait);
+                            continue;
+                        }
+                        this.mLastFrameStart = uptimeMillis();
+                        return frame;
+                    }
+                    if (frame != null) {
+                        this.release(frame);
+                        this.mFramesDropped++;
+                    }
+                }
+                // Outside mLock so that request() never waits for it.
+                this.makeIndependent(newer);
+                frame = newer;
+            }
+        } catch (InterruptedException e) {
+            synchronized (this.mLock) {
+                this.mWorkerRunning = false;
+            }
+            if (frame != null) {
+                this.release(frame);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Decides whether a taken frame needs to be rendered. Called by the
+     * worker.
+     *
+     * @param checksum
+     *            Checksum of everything the frame is drawn from, or
+     *            NO_CHECKSUM if it could not be computed.
+     * @return False if the frame would look the same as the last frame
+     *         served, in which case it is counted as unchanged.
+     */
+    boolean isChanged(long checksum) {
+        if (checksum != NO_CHECKSUM && checksum == this.mServedChecksum) {
+            synchronized (this.mLock) {
+                this.mFramesUnchanged++;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that a frame was rendered and served. Called by the worker.
+     *
+     * @param checksum
+     *            Checksum that isChanged() was given for the frame.
+     * @param renderMillis
+     *            Time taken to draw the frame.
+     * @param encodeMillis
+     *            Time taken to encode the frame.
+     */
+    void frameServed(long checksum, long renderMillis, long encodeMillis) {
+        this.mServedChecksum = checksum;
+        synchronized (this.mLock) {
+            this.mFramesRendered++;
+            this.mRenderMillis += renderMillis;
+            this.mEncodeMillis += encodeMillis;
+        }
+    }
+
+    /**
+     * @return A summary of frame activity, for debugging.
+     */
+    String getStats() {
+        synchronized (this.mLock) {
+            int rendered = this.mFramesRendered;
+            return "requested=" + this.mFramesRequested + " dropped=" + this.mFramesDropped
+                    + " rendered=" + rendered + " unchanged=" + this.mFramesUnchanged
+                    + " avgRenderMs=" + (rendered > 0 ? this.mRenderMillis / rendered : 0)
+                    + " avgEncodeMs=" + (rendered > 0 ? this.mEncodeMillis / rendered : 0);
+        }
+    }
+
+    /**
+     * @return Milliseconds on the clock that SystemClock.uptimeMillis reads
+     *         on Android.
+     */
+    static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,215 @@
+package com.tbocek.android.combatmap.cast;
+
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * HTTP server that serves the latest cast frame at every address.
+ *
+ * Each image is held as an immutable frame that is served without copying, along with an ETag
+ * derived from its contents, so a receiver that already has the current image gets a
+ * 304 Not Modified instead of the whole JPEG.  Connections are handled on a small, bounded pool
+ * of threads rather than a new thread per connection.  Once the pool and its queue are full,
+ * new connections are closed without being served; handling them on the listener thread
+ * instead would stop it accepting anything for as long as a client kept its connection alive.
+ *
+ * Uses no Android APIs, so that it can be tested on the JVM.
+ *
+ * @author Tim Bocek
+ *
+ */
+class FrameServer extends NanoHTTPD {
+    public static final String JPEG_MIME_TYPE = "image/jpeg";
+
+    /**
+     * Most connections handled at once, and most connections waiting for a thread.
+     */
+    static final int MAX_WORKER_THREADS = 4;
+    static final int MAX_QUEUED_CONNECTIONS = 16;
+
+    private static final int WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * An image as served to the receiver.  Never modified once created, so that requests can
+     * stream the bytes without copying them or holding a lock.
+     */
+    private static final class Frame {
+        private final byte[] mJpg;
+        private final String mETag;
+        private final String mLastModified;
+
+        private Frame(byte[] jpg, String eTag, String lastModified) {
+            mJpg = jpg;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+    }
+
+    // TODO: need to cache this on disk for memory concerns, or is it OK to keep this jpg in
+    // memory?
+    private volatile Frame mFrame;
+
+    private int mRequests;
+    private int mNotModified;
+    private long mBytesServed;
+
+    private final PooledAsyncRunner mRunner;
+
+    public interface Listener {
+        void onNewImageAvailable();
+        void onImageFetched();
+    }
+
+    private final Listener mNullListener = new Listener() {
+        @Override
+        public void onNewImageAvailable() { }
+
+        @Override
+        public void onImageFetched() { }
+    };
+
+    Listener mListener = mNullListener;
+
+    /**
+     * Constructor.
+     *
+     * @param port Port to listen on, or 0 for any free port.
+     * @param workerThreads Creates the threads that connections are handled on.
+     */
+    FrameServer(int port, ThreadFactory workerThreads) {
+        super(port);
+        mRunner = new PooledAsyncRunner(workerThreads);
+        setAsyncRunner(mRunner);
+    }
+
+    /**
+     * Replaces the image served to the cast receiver, and tells the listener
+     * that it is available.
+     *
+     * @param jpg The new image, JPEG encoded.  Must not be modified afterwards.
+     */
+    public void setImage(byte[] jpg) {
+        CRC32 checksum = new CRC32();
+        checksum.update(jpg);
+        String eTag = "\"" + Long.toHexString(checksum.getValue()) + "-"
+                + Integer.toHexString(jpg.length) + "\"";
+        SimpleDateFormat httpDate = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        mFrame = new Frame(jpg, eTag, httpDate.format(new Date()));
+        mListener.onNewImageAvailable();
+    }
+
+    /**
+     * Serves the current image, whatever the address and method.  Request bodies are never
+     * read.
+     */
+    @Override
+    public Response serve(IHTTPSession session) {
+        mListener.onImageFetched();
+        Frame frame = mFrame;
+        if (frame == null) {
+            return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "No image yet");
+        }
+
+        Response r;
+        if (matchesETag(session.getHeaders().get("if-none-match"), frame.mETag)) {
+            r = new Response(Response.Status.NOT_MODIFIED, JPEG_MIME_TYPE, (String) null);
+        } else {
+            r = new Response(Response.Status.OK, JPEG_MIME_TYPE,
+                    new ByteArrayInputStream(frame.mJpg));
+        }
+        r.addHeader("ETag", frame.mETag);
+        r.addHeader("Last-Modified", frame.mLastModified);
+        // The image changes under the same address, so receivers must check back every time.
+        r.addHeader("Cache-Control", "no-cache");
+        synchronized (this) {
+            mRequests++;
+            if (r.getStatus() == Response.Status.NOT_MODIFIED) {
+                mNotModified++;
+            } else {
+                mBytesServed += frame.mJpg.length;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param ifNoneMatch Value of the If-None-Match request header, or null.
+     * @param eTag ETag of the current image.
+     * @return Whether the header lists the current image, so the receiver already has it.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A summary of requests served, for debugging.
+     */
+    public synchronized String getStats() {
+        return "requests=" + mRequests + " notModified=" + mNotModified
+                + " bytesServed=" + mBytesServed
+                + " connectionsDropped=" + mRunner.mDropped.get();
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Handles connections on a bounded pool of background threads.  Idle threads exit, so the
+     * pool costs nothing while nothing is being cast.
+     */
+    private static final class PooledAsyncRunner implements AsyncRunner {
+        private final AtomicInteger mDropped = new AtomicInteger();
+
+        private final ThreadPoolExecutor mExecutor;
+
+        private PooledAsyncRunner(ThreadFactory workerThreads) {
+            mExecutor = new ThreadPoolExecutor(
+                    MAX_WORKER_THREADS, MAX_WORKER_THREADS, WORKER_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CONNECTIONS),
+                    workerThreads,
+                    new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                            // Connections must always be closed, or their sockets would leak.
+                            // The receiver retries a request that fails.
+                            mDropped.incrementAndGet();
+                            if (r instanceof ClientHandler) {
+                                ((ClientHandler) r).close();
+                            }
+                        }
+                    });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void exec(Runnable code) {
+            mExecutor.execute(code);
+        }
+    }
+}
@@ -3,7 +3,9 @@ package com.tbocek.android.combatmap.model;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.RectF;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 
 import com.google.common.collect.Lists;
 import com.tbocek.android.combatmap.model.CommandHistory.Command;
@@ -14,7 +16,16 @@ import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
 import com.tbocek.android.combatmap.model.primitives.PointF;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
 
 /**
  * This class manages a collection of background images (e.g. predrawn maps that
@@ -24,6 +35,91 @@ import java.util.List;
  */
 public class BackgroundImageCollection {
 
+    /**
+     * Number of background images that are loaded at once.
+     */
+    private static final int LOAD_THREADS = 2;
+
+    private static final int LOAD_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    /**
+     * Pool that loads background images, nearest to the visible area first.
+     */
+    private static final ThreadPoolExecutor sLoadExecutor = new ThreadPoolExecutor(
+            LOAD_THREADS, LOAD_THREADS, LOAD_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+        private int mThreadCount;
+
+        @Override
+        public Thread newThread(@Nonnull final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "BackgroundImageCollection.Loader #" + ++mThreadCount);
+        }
+    });
+
+    static {
+        sLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Orders loads that are equally near the visible area.
+     */
+    private static final AtomicLong sNextLoadSequence = new AtomicLong();
+
+    /**
+     * Images that are queued or being loaded.  Guarded by itself.
+     */
+    private static final Set<BackgroundImage> sLoadingImages = new HashSet<BackgroundImage>();
+
+    /**
+     * Loads one background image, and notifies the UI thread when done.
+     */
+    private static final class ImageLoadTask implements Runnable, Comparable<ImageLoadTask> {
+        private final BackgroundImage mImage;
+        private final CoordinateTransformer mTransformer;
+        private final float mDistance;
+        private final long mSequence;
+        private final Runnable mOnImageLoaded;
+
+        ImageLoadTask(BackgroundImage image, CoordinateTransformer transformer, float distance,
+                      Runnable onImageLoaded) {
+            mImage = image;
+            mTransformer = transformer;
+            mDistance = distance;
+            mSequence = sNextLoadSequence.getAndIncrement();
+            mOnImageLoaded = onImageLoaded;
+        }
+
+        @Override
+        public int compareTo(@Nonnull ImageLoadTask other) {
+            if (mDistance != other.mDistance) {
+                return mDistance < other.mDistance ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mImage.loadDrawable(mTransformer);
+            } finally {
+                synchronized (sLoadingImages) {
+                    sLoadingImages.remove(mImage);
+                }
+            }
+            if (mOnImageLoaded != null) {
+                sMainHandler.post(mOnImageLoaded);
+            }
+        }
+    }
+
     /**
      * Undo/Redo History.
      */
@@ -122,6 +218,9 @@ public class BackgroundImageCollection {
      * @param i The image to checkpoint.
      */
     public void checkpointImageBefore(BackgroundImage i) {
+        // The image is modified in place after every call, so any snapshot
+        // sharing this collection needs its own copy each time.
+        this.mCommandHistory.beforeChange();
         if (mCheckpointedImageCommand == null) {
             mCheckpointedImageCommand = new ModifyImageCommand(i);
         }
@@ -146,6 +245,17 @@ public class BackgroundImageCollection {
         }
     }
 
+    /**
+     * @return Paths of the images in this collection.
+     */
+    public Set<String> getPaths() {
+        Set<String> paths = new HashSet<String>();
+        for (BackgroundImage i : this.mImages) {
+            paths.add(i.getPath());
+        }
+        return paths;
+    }
+
     /**
      * Deletes the given image from the background image collection.
      * @param selectedImage The image to delete.  Must belong to this
@@ -309,45 +419,80 @@ public class BackgroundImageCollection {
         s.expectArrayEnd();
     }
 
+    /**
+     * @return The number of images in this collection.
+     */
+    public int size() {
+        return this.mImages.size();
+    }
+
+    /**
+     * @return The number of images in this collection that have been loaded,
+     *         or have failed to load.
+     */
+    public int getLoadedCount() {
+        int loaded = 0;
+        for (BackgroundImage i : this.mImages) {
+            if (i.isLoaded()) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
     public boolean contains(BackgroundImage selectedImage) {
         return this.mImages.contains(selectedImage);
     }
 
     /**
-     * Loads all background images in a new thread.  Executes onLoadSuccess when all background
-     * images have been loaded.
+     * Loads the given background images on a pool of background threads, those nearest the
+     * visible area first.  Each image is decoded with just enough detail for the current zoom
+     * level.  Images that are already loaded or loading are skipped.
      * @param context Context to load images in.
-     * @param onLoadSuccess Callback that will be executed on the UI thread once all images load.
+     * @param images The images to load.
+     * @param transformer The world space to screen space transformer the images will be drawn
+     *     with.
+     * @param viewportScreenSpace The visible area of the map, in screen space.
+     * @param onImageLoaded Callback that will be executed on the UI thread each time an image
+     *     loads.
      */
     private void loadImages(final Context context, final List<BackgroundImage> images,
-                            final Runnable onLoadSuccess) {
-
-        final List<BackgroundImage> image = mImages;
-        AsyncTask<Void, Void, Void> loadImagesTask = new AsyncTask<Void, Void, Void>() {
-
-            @Override
-            protected Void doInBackground(Void... params) {
-                for (BackgroundImage i: mImages) {
-                    i.loadDrawable();
+                            final CoordinateTransformer transformer,
+                            final RectF viewportScreenSpace, final Runnable onImageLoaded) {
+        RectF viewport = transformer.screenSpaceToWorldSpace(viewportScreenSpace);
+        CoordinateTransformer transformerCopy = new CoordinateTransformer(transformer);
+        for (BackgroundImage i : images) {
+            if (i.isLoaded()) {
+                continue;
+            }
+            synchronized (sLoadingImages) {
+                if (!sLoadingImages.add(i)) {
+                    continue;
                 }
-                return null;
             }
+            sLoadExecutor.execute(new ImageLoadTask(i, transformerCopy,
+                    distance(viewport, i.getBoundingRectangle().toRectF()), onImageLoaded));
+        }
+    }
 
-            @Override
-            protected void onPostExecute(Void result) {
-                onLoadSuccess.run();
-            }
-        };
-        loadImagesTask.execute();
+    /**
+     * @return Distance between the nearest points of two rectangles, or 0 if they overlap.
+     */
+    private static float distance(RectF a, RectF b) {
+        float dx = Math.max(0, Math.max(a.left - b.right, b.left - a.right));
+        float dy = Math.max(0, Math.max(a.top - b.bottom, b.top - a.bottom));
+        return (float) Math.sqrt(dx * dx + dy * dy);
     }
 
-    public void loadImages(final Context context, final Runnable onLoadSuccess) {
-        loadImages(context, this.mImages, onLoadSuccess);
+    public void loadImages(final Context context, final CoordinateTransformer transformer,
+                           final RectF viewportScreenSpace, final Runnable onImageLoaded) {
+        loadImages(context, this.mImages, transformer, viewportScreenSpace, onImageLoaded);
     }
 
     public void loadImage(final Context context, final BackgroundImage image,
-                          final Runnable onLoadSuccess) {
-        List<BackgroundImage> stupidList = Lists.newArrayList(image);
-        loadImages(context, stupidList, onLoadSuccess);
+                          final CoordinateTransformer transformer,
+                          final RectF viewportScreenSpace, final Runnable onImageLoaded) {
+        List<BackgroundImage> images = Lists.newArrayList(image);
+        loadImages(context, images, transformer, viewportScreenSpace, onImageLoaded);
     }
 }
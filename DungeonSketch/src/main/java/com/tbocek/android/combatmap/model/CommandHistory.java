@@ -20,6 +20,12 @@ public class CommandHistory {
      */
     private transient Stack<Command> mUndo = new Stack<Command>();
 
+    /**
+     * Run before anything tracked by this command history is modified, or
+     * null.
+     */
+    private transient Runnable mBeforeChangeListener;
+
     /**
      * Adds the given command to the command history without executing it.
      * 
@@ -54,6 +60,7 @@ public class CommandHistory {
      */
     public void execute(final Command command) {
         if (!command.isNoop()) {
+            this.beforeChange();
             command.execute();
             this.mUndo.add(command);
             this.mRedo.clear();
@@ -65,6 +72,7 @@ public class CommandHistory {
      */
     public void redo() {
         if (this.canRedo()) {
+            this.beforeChange();
             Command c = this.mRedo.pop();
             c.execute();
             this.mUndo.push(c);
@@ -76,12 +84,35 @@ public class CommandHistory {
      */
     public void undo() {
         if (this.canUndo()) {
+            this.beforeChange();
             Command c = this.mUndo.pop();
             c.undo();
             this.mRedo.push(c);
         }
     }
 
+    /**
+     * Sets the action to run before anything tracked by this command history
+     * is modified.
+     *
+     * @param listener
+     *            The action to run, or null.
+     */
+    public void setBeforeChangeListener(Runnable listener) {
+        this.mBeforeChangeListener = listener;
+    }
+
+    /**
+     * Signals that something tracked by this command history is about to be
+     * modified. Commands executed through this history signal this
+     * automatically; code that modifies objects in place must call it first.
+     */
+    public void beforeChange() {
+        if (this.mBeforeChangeListener != null) {
+            this.mBeforeChangeListener.run();
+        }
+    }
+
     /**
      * Interface defining the operations that commands should support.
      * 
@@ -385,6 +385,16 @@ public final class LineCollection implements UndoRedoTarget {
         this.mCommandHistory.execute(c);
     }
 
+    /**
+     * Signals that shapes in this collection are about to be modified in
+     * place rather than through a command, such as while a line is drawn or
+     * dragged, so that any snapshot of the map sharing this collection gets
+     * its own copy first.
+     */
+    public void beforeEdit() {
+        this.mCommandHistory.beforeChange();
+    }
+
     /**
      * Erases all points on lines centered at a given location.
      * 
@@ -394,6 +404,7 @@ public final class LineCollection implements UndoRedoTarget {
      *            Radius around the point to erase, in world space.
      */						
     public void erase(final PointF location, final float radius) {
+        this.mCommandHistory.beforeChange();
         for (Shape mLine : this.mLines) {
             mLine.erase(location, radius);
         }
@@ -483,6 +494,13 @@ public final class LineCollection implements UndoRedoTarget {
         }
     }
 
+    /**
+     * @return The number of lines in this collection.
+     */
+    public int size() {
+        return this.mLines.size();
+    }
+
     /**
      * @return True if this collection has no lines in it, False otherwise.
      */
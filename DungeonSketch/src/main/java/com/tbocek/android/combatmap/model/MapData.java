@@ -6,6 +6,7 @@ import android.graphics.RectF;
 import com.tbocek.android.combatmap.TokenDatabase;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
 import com.tbocek.android.combatmap.model.io.MapDataSerializer;
+import com.tbocek.android.combatmap.model.primitives.BackgroundImage;
 import com.tbocek.android.combatmap.model.primitives.BaseToken;
 import com.tbocek.android.combatmap.model.primitives.BoundingRectangle;
 import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
@@ -15,10 +16,16 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.util.HashSet;
-import java.util.Set;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This is a data class that collects everything that makes up the current map
@@ -47,8 +54,59 @@ public final class MapData {
      * 0: Initial Version
      * 1: Added background image collection.
      * 2: Added last tag accessed on the map.
+     * 3: Added the snapshot ID that save journals are matched against.
      */
-    private static final int MAP_DATA_VERSION = 2;
+    private static final int MAP_DATA_VERSION = 3;
+
+    /**
+     * Snapshot ID of map data that was not saved with one.
+     */
+    public static final long NO_SNAPSHOT_ID = 0;
+
+    /**
+     * Journal section containing the grid, view transformation and last tag.
+     */
+    public static final int SECTION_HEADER = 0;
+
+    /**
+     * Journal section containing the tokens.
+     */
+    public static final int SECTION_TOKENS = 1;
+
+    /**
+     * Journal section containing the background lines.
+     */
+    public static final int SECTION_BACKGROUND_LINES = 2;
+
+    /**
+     * Journal section containing the background fog of war.
+     */
+    public static final int SECTION_BACKGROUND_FOG = 3;
+
+    /**
+     * Journal section containing the GM note lines.
+     */
+    public static final int SECTION_GM_NOTES = 4;
+
+    /**
+     * Journal section containing the GM notes fog of war.
+     */
+    public static final int SECTION_GM_NOTES_FOG = 5;
+
+    /**
+     * Journal section containing the annotation lines.
+     */
+    public static final int SECTION_ANNOTATIONS = 6;
+
+    /**
+     * Journal section containing the background images.
+     */
+    public static final int SECTION_BACKGROUND_IMAGES = 7;
+
+    /**
+     * Number of independently serializable sections in the map data.
+     */
+    public static final int SECTION_COUNT = 8;
 
     /**
      * Command history to use for the annotations.
@@ -109,6 +167,11 @@ public final class MapData {
     
     private String mLastTag = TokenDatabase.ALL;
 
+    /**
+     * ID of the snapshot this map data was read from, or NO_SNAPSHOT_ID.
+     */
+    private long mSnapshotId = NO_SNAPSHOT_ID;
+
     /**
      * Command history to use for combat tokens.
      */
@@ -121,6 +184,19 @@ public final class MapData {
     private TokenCollection mTokens = new TokenCollection(
             this.mTokenCollectionCommandHistory);
 
+    /**
+     * Snapshots of this map data that may still share layers with it.  Held weakly, so that a
+     * snapshot that is dropped without being released does not stay in the list.
+     */
+    private final List<WeakReference<MapData>> mSnapshots =
+            new ArrayList<WeakReference<MapData>>();
+
+    /**
+     * For a snapshot, the map data it may still share layers with; null once it shares none or
+     * has been released.  Guarded by the snapshot's lock.
+     */
+    private MapData mSource;
+
     /**
      * Transformation from world space to screen space.
      */
@@ -132,6 +208,7 @@ public final class MapData {
      */
     public static void clear() {
         instance = new MapData();
+        releaseUnusedBackgroundImages();
     }
 
     /**
@@ -148,20 +225,52 @@ public final class MapData {
      */
     public static MapData deserialize(MapDataDeserializer s,
             TokenDatabase tokens) throws IOException {
+        return deserialize(s, tokens, null);
+    }
+
+    /**
+     * Creates, populates, and returns a new MapData object from the given
+     * deserialization stream, reporting progress as each section is read.
+     *
+     * @param s
+     *            The stream to read from.
+     * @param tokens
+     *            Token database to load tokens from.
+     * @param listener
+     *            Receives progress, and can abandon the read. May be null.
+     * @return The created map data.
+     * @throws IOException
+     *             On deserialization error, or if the listener abandons the
+     *             read.
+     */
+    public static MapData deserialize(MapDataDeserializer s,
+            TokenDatabase tokens, DeserializationListener listener)
+            throws IOException {
         @SuppressWarnings("unused")
         int mapDataVersion = s.readInt();
         MapData data = new MapData();
+        if (mapDataVersion >= 3) {
+            data.mSnapshotId = Long.parseLong(s.readString());
+        }
         data.mGrid = Grid.deserialize(s);
         data.mTransformer = CoordinateTransformer.deserialize(s);
+        sectionRead(listener, SECTION_HEADER);
         data.mTokens.deserialize(s, tokens);
+        sectionRead(listener, SECTION_TOKENS);
         data.mBackgroundLines.deserialize(s);
+        sectionRead(listener, SECTION_BACKGROUND_LINES);
         data.mBackgroundFogOfWar.deserialize(s);
+        sectionRead(listener, SECTION_BACKGROUND_FOG);
         data.mGmNoteLines.deserialize(s);
+        sectionRead(listener, SECTION_GM_NOTES);
         data.mGmNotesFogOfWar.deserialize(s);
+        sectionRead(listener, SECTION_GM_NOTES_FOG);
         data.mAnnotationLines.deserialize(s);
+        sectionRead(listener, SECTION_ANNOTATIONS);
         if (mapDataVersion >= 1) {
             data.mBackgroundImages.deserialize(s);
         }
+        sectionRead(listener, SECTION_BACKGROUND_IMAGES);
         if (mapDataVersion >= 2) {
         	data.mLastTag = s.readString();
         }
@@ -169,6 +278,53 @@ public final class MapData {
         return data;
     }
 
+    /**
+     * Reads only the snapshot ID from the start of a serialized map.
+     *
+     * @param s
+     *            The stream to read from.
+     * @return The snapshot ID, or NO_SNAPSHOT_ID if the map was saved without
+     *         one.
+     * @throws IOException
+     *             On deserialization error.
+     */
+    public static long readSnapshotId(MapDataDeserializer s) throws IOException {
+        int mapDataVersion = s.readInt();
+        return mapDataVersion >= 3 ? Long.parseLong(s.readString()) : NO_SNAPSHOT_ID;
+    }
+
+    /**
+     * Notifies the listener, if any, that a section was read.
+     *
+     * @param listener
+     *            The listener to notify, or null.
+     * @param section
+     *            The section that was read.
+     * @throws InterruptedIOException
+     *             If the listener abandons the read.
+     */
+    private static void sectionRead(DeserializationListener listener,
+            int section) throws InterruptedIOException {
+        if (listener != null) {
+            listener.onSectionRead(section + 1);
+        }
+    }
+
+    /**
+     * Receives progress while map data is deserialized.
+     */
+    public interface DeserializationListener {
+        /**
+         * Called after each section of the map data has been read.
+         *
+         * @param sectionsRead
+         *            Number of sections read so far, out of SECTION_COUNT.
+         * @throws InterruptedIOException
+         *             To abandon the read.
+         */
+        void onSectionRead(int sectionsRead) throws InterruptedIOException;
+    }
+
     /**
      * Gets the current map data instance.
      * 
@@ -185,11 +341,102 @@ public final class MapData {
     /**
      * Return a *copy* of the singleton map data instance.  This should be treated as immutable,
      * as changes will not be reflected in the singleton instance.
+     *
+     * The copy is a snapshot that shares its layers with the singleton instance, so taking it
+     * does not depend on the size of the map.  A layer is only duplicated for the snapshot if the
+     * singleton instance is about to modify it before the snapshot is released.  Code reading
+     * the snapshot on another thread must call makeIndependent() before reading it, and
+     * release() once it is done.
      * @return A copy of the map data.
      */
     public static MapData getCopy() {
         if (instance == null) return null;
-        return new MapData(instance);
+        MapData snapshot = new MapData(instance);
+        snapshot.mSource = instance;
+        synchronized (instance.mSnapshots) {
+            instance.mSnapshots.add(new WeakReference<MapData>(snapshot));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Gives this snapshot its own copy of every layer it still shares with the map data it was
+     * taken from, so that it can be read without any locking.  Call on the thread that reads
+     * the snapshot, before reading it.  The layers are copied one command history at a time
+     * under the snapshot's lock, so an edit to the map data waits at most for one in-memory
+     * copy, and never for whatever the reader does with the snapshot afterwards.
+     */
+    public void makeIndependent() {
+        MapData source;
+        synchronized (this) {
+            source = this.mSource;
+        }
+        if (source == null) {
+            return;
+        }
+        CommandHistory[] histories = {
+                source.mAnntationCommandHistory, source.mBackgroundCommandHistory,
+                source.mGmNotesCommandHistory, source.mTokenCollectionCommandHistory};
+        for (CommandHistory history : histories) {
+            synchronized (this) {
+                if (this.mSource != source) {
+                    return;
+                }
+                this.detachFrom(source, history);
+            }
+        }
+        synchronized (this) {
+            this.mSource = null;
+        }
+        source.forgetSnapshot(this);
+    }
+
+    /**
+     * Signals that the reader of this snapshot is done with it, so that later modifications to
+     * the map data no longer need to preserve the snapshot's layers.
+     */
+    public void release() {
+        MapData source;
+        synchronized (this) {
+            source = this.mSource;
+            this.mSource = null;
+        }
+        if (source != null) {
+            source.forgetSnapshot(this);
+        }
+    }
+
+    /**
+     * Makes the given map data the current map data.  Used to swap in a map
+     * that was loaded on another thread once it is complete; call on the UI
+     * thread.
+     *
+     * @param data
+     *            The new current map data.
+     */
+    public static void setInstance(MapData data) {
+        instance = data;
+        releaseUnusedBackgroundImages();
+    }
+
+    /**
+     * Frees the background images that the map data being replaced showed
+     * and the current map data does not.
+     */
+    private static void releaseUnusedBackgroundImages() {
+        BackgroundImage.releaseImagesExcept(instance != null
+                ? instance.getBackgroundImages().getPaths()
+                : Collections.<String>emptySet());
+    }
+
+    /**
+     * Creates empty map data that is not the current map data, for example to
+     * show while the current map data is loading.
+     *
+     * @return The empty map data.
+     */
+    public static MapData createEmpty() {
+        return new MapData();
     }
 
     /**
@@ -205,6 +452,7 @@ public final class MapData {
      */
     public static void invalidate() {
         instance = null;
+        releaseUnusedBackgroundImages();
     }
 
     /**
@@ -262,27 +510,146 @@ public final class MapData {
      * Private constructor - singleton pattern.
      */
     private MapData() {
-
+        this.listenForChanges(this.mAnntationCommandHistory);
+        this.listenForChanges(this.mBackgroundCommandHistory);
+        this.listenForChanges(this.mGmNotesCommandHistory);
+        this.listenForChanges(this.mTokenCollectionCommandHistory);
     }
 
     /**
-     * Copy constructor
+     * Snapshot constructor.  Layers are shared with the source map data until it modifies them;
+     * the small grid and view state are copied right away.
      */
     private MapData(MapData copyFrom) {
-        this.mAnnotationLines = new LineCollection(copyFrom.mAnnotationLines);
-        this.mBackgroundLines = new LineCollection(copyFrom.mBackgroundLines);
-        this.mGmNoteLines = new LineCollection(copyFrom.mGmNoteLines);
-        this.mBackgroundFogOfWar = new LineCollection(copyFrom.mBackgroundFogOfWar);
-        this.mGmNotesFogOfWar = new LineCollection(copyFrom.mGmNotesFogOfWar);
+        this.mAnnotationLines = copyFrom.mAnnotationLines;
+        this.mBackgroundLines = copyFrom.mBackgroundLines;
+        this.mGmNoteLines = copyFrom.mGmNoteLines;
+        this.mBackgroundFogOfWar = copyFrom.mBackgroundFogOfWar;
+        this.mGmNotesFogOfWar = copyFrom.mGmNotesFogOfWar;
         this.mAnntationCommandHistory = null;
         this.mBackgroundCommandHistory = null;
         this.mGmNotesCommandHistory = null;
         this.mTokenCollectionCommandHistory = null;
 
-        this.mTokens = new TokenCollection(copyFrom.mTokens);
+        this.mTokens = copyFrom.mTokens;
         this.mTransformer = new CoordinateTransformer(copyFrom.mTransformer);
-        this.mBackgroundImages = new BackgroundImageCollection(copyFrom.mBackgroundImages);
+        this.mBackgroundImages = copyFrom.mBackgroundImages;
         this.mGrid = new Grid(copyFrom.mGrid);
+        this.mLastTag = copyFrom.mLastTag;
+        if (copyFrom.mCastTransformer != null) {
+            this.mCastTransformer = new CoordinateTransformer(copyFrom.mCastTransformer);
+        }
+    }
+
+    /**
+     * Makes the given command history give outstanding snapshots their own copies of the layers
+     * it tracks before they are modified.
+     *
+     * @param history
+     *            The command history to listen to.
+     */
+    private void listenForChanges(final CommandHistory history) {
+        history.setBeforeChangeListener(new Runnable() {
+            @Override
+            public void run() {
+                MapData.this.detachSnapshots(history);
+            }
+        });
+    }
+
+    /**
+     * Gives every outstanding snapshot its own copy of the layers that are about to be
+     * modified.  Only waits if a reader is copying a layer for itself at the same time.
+     *
+     * @param history
+     *            Command history tracking the layers about to be modified.
+     */
+    private void detachSnapshots(CommandHistory history) {
+        synchronized (this.mSnapshots) {
+            Iterator<WeakReference<MapData>> it = this.mSnapshots.iterator();
+            while (it.hasNext()) {
+                MapData snapshot = it.next().get();
+                if (snapshot == null) {
+                    it.remove();
+                    continue;
+                }
+                synchronized (snapshot) {
+                    if (snapshot.mSource != this) {
+                        it.remove();
+                    } else if (!snapshot.detachFrom(this, history)) {
+                        snapshot.mSource = null;
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops tracking a snapshot that no longer needs its layers preserved.
+     *
+     * @param snapshot
+     *            The snapshot to forget.
+     */
+    private void forgetSnapshot(MapData snapshot) {
+        synchronized (this.mSnapshots) {
+            Iterator<WeakReference<MapData>> it = this.mSnapshots.iterator();
+            while (it.hasNext()) {
+                MapData s = it.next().get();
+                if (s == null || s == snapshot) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces layers of this snapshot that are shared with the given map data with copies.
+     *
+     * @param source
+     *            The map data this is a snapshot of.
+     * @param history
+     *            Command history tracking the layers to copy.
+     * @return True if this snapshot still shares any layers with the source.
+     */
+    private boolean detachFrom(MapData source, CommandHistory history) {
+        if (history == source.mAnntationCommandHistory) {
+            if (this.mAnnotationLines == source.mAnnotationLines) {
+                this.mAnnotationLines = new LineCollection(source.mAnnotationLines);
+            }
+        }
+        if (history == source.mBackgroundCommandHistory) {
+            if (this.mBackgroundLines == source.mBackgroundLines) {
+                this.mBackgroundLines = new LineCollection(source.mBackgroundLines);
+            }
+            if (this.mBackgroundFogOfWar == source.mBackgroundFogOfWar) {
+                this.mBackgroundFogOfWar = new LineCollection(source.mBackgroundFogOfWar);
+            }
+            if (this.mBackgroundImages == source.mBackgroundImages) {
+                this.mBackgroundImages =
+                        new BackgroundImageCollection(source.mBackgroundImages);
+            }
+        }
+        if (history == source.mGmNotesCommandHistory) {
+            if (this.mGmNoteLines == source.mGmNoteLines) {
+                this.mGmNoteLines = new LineCollection(source.mGmNoteLines);
+            }
+            if (this.mGmNotesFogOfWar == source.mGmNotesFogOfWar) {
+                this.mGmNotesFogOfWar = new LineCollection(source.mGmNotesFogOfWar);
+            }
+        }
+        if (history == source.mTokenCollectionCommandHistory) {
+            if (this.mTokens == source.mTokens) {
+                this.mTokens = new TokenCollection(source.mTokens);
+            }
+        }
+        return this.mAnnotationLines == source.mAnnotationLines
+                || this.mBackgroundLines == source.mBackgroundLines
+                || this.mBackgroundFogOfWar == source.mBackgroundFogOfWar
+                || this.mBackgroundImages == source.mBackgroundImages
+                || this.mGmNoteLines == source.mGmNoteLines
+                || this.mGmNotesFogOfWar == source.mGmNotesFogOfWar
+                || this.mTokens == source.mTokens;
     }
 
     /**
@@ -393,7 +760,23 @@ public final class MapData {
      *             On serialization error.
      */
     public void serialize(MapDataSerializer s) throws IOException {
+        this.serialize(s, NO_SNAPSHOT_ID);
+    }
+
+    /**
+     * Saves the entire MapData to the given serialization stream as a
+     * snapshot that a save journal can be matched against.
+     *
+     * @param s
+     *            The stream to save to.
+     * @param snapshotId
+     *            ID that identifies this snapshot, or NO_SNAPSHOT_ID.
+     * @throws IOException
+     *             On serialization error.
+     */
+    public void serialize(MapDataSerializer s, long snapshotId) throws IOException {
         s.serializeInt(MAP_DATA_VERSION);
+        s.serializeString(Long.toString(snapshotId));
         this.mGrid.serialize(s);
         this.mTransformer.serialize(s);
         this.mTokens.serialize(s);
@@ -406,6 +789,123 @@ public final class MapData {
         s.serializeString(mLastTag != null ? mLastTag : TokenDatabase.ALL);
     }
 
+    /**
+     * Saves one section of the map data to the given serialization stream.
+     * Sections are the units that the save journal tracks changes in; applying
+     * every section in order to an empty map reproduces the full map.
+     *
+     * @param section
+     *            The section to save, one of the SECTION_* constants.
+     * @param s
+     *            The stream to save to.
+     * @throws IOException
+     *             On serialization error.
+     */
+    public void serializeSection(int section, MapDataSerializer s)
+            throws IOException {
+        switch (section) {
+        case SECTION_HEADER:
+            this.mGrid.serialize(s);
+            this.mTransformer.serialize(s);
+            s.serializeString(mLastTag != null ? mLastTag : TokenDatabase.ALL);
+            break;
+        case SECTION_TOKENS:
+            this.mTokens.serialize(s);
+            break;
+        case SECTION_BACKGROUND_LINES:
+            this.mBackgroundLines.serialize(s);
+            break;
+        case SECTION_BACKGROUND_FOG:
+            this.mBackgroundFogOfWar.serialize(s);
+            break;
+        case SECTION_GM_NOTES:
+            this.mGmNoteLines.serialize(s);
+            break;
+        case SECTION_GM_NOTES_FOG:
+            this.mGmNotesFogOfWar.serialize(s);
+            break;
+        case SECTION_ANNOTATIONS:
+            this.mAnnotationLines.serialize(s);
+            break;
+        case SECTION_BACKGROUND_IMAGES:
+            this.mBackgroundImages.serialize(s);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown map section " + section);
+        }
+    }
+
+    /**
+     * Replaces one section of the map data with the contents of the given
+     * deserialization stream. The command history for the section is kept.
+     *
+     * @param section
+     *            The section to replace, one of the SECTION_* constants.
+     * @param s
+     *            The stream to read from.
+     * @param tokens
+     *            Token database to load tokens from.
+     * @throws IOException
+     *             On deserialization error.
+     */
+    public void deserializeSection(int section, MapDataDeserializer s,
+            TokenDatabase tokens) throws IOException {
+        switch (section) {
+        case SECTION_HEADER:
+            this.mGrid = Grid.deserialize(s);
+            this.mTransformer = CoordinateTransformer.deserialize(s);
+            this.mLastTag = s.readString();
+            break;
+        case SECTION_TOKENS:
+            TokenCollection newTokens =
+                    new TokenCollection(this.mTokenCollectionCommandHistory);
+            newTokens.deserialize(s, tokens);
+            this.mTokens = newTokens;
+            break;
+        case SECTION_BACKGROUND_LINES:
+            this.mBackgroundLines = deserializeLines(s, this.mBackgroundCommandHistory);
+            break;
+        case SECTION_BACKGROUND_FOG:
+            this.mBackgroundFogOfWar = deserializeLines(s, this.mBackgroundCommandHistory);
+            break;
+        case SECTION_GM_NOTES:
+            this.mGmNoteLines = deserializeLines(s, this.mGmNotesCommandHistory);
+            break;
+        case SECTION_GM_NOTES_FOG:
+            this.mGmNotesFogOfWar = deserializeLines(s, this.mGmNotesCommandHistory);
+            break;
+        case SECTION_ANNOTATIONS:
+            this.mAnnotationLines = deserializeLines(s, this.mAnntationCommandHistory);
+            break;
+        case SECTION_BACKGROUND_IMAGES:
+            BackgroundImageCollection newImages =
+                    new BackgroundImageCollection(this.mBackgroundCommandHistory);
+            newImages.deserialize(s);
+            this.mBackgroundImages = newImages;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown map section " + section);
+        }
+    }
+
+    /**
+     * Reads a line collection from the given stream.
+     *
+     * @param s
+     *            The stream to read from.
+     * @param history
+     *            Command history that the new collection should use.
+     * @return The deserialized line collection.
+     * @throws IOException
+     *             On deserialization error.
+     */
+    private static LineCollection deserializeLines(MapDataDeserializer s,
+            CommandHistory history) throws IOException {
+        LineCollection lines = new LineCollection(history);
+        lines.deserialize(s);
+        return lines;
+    }
+
     /**
      * @param grid
      *            the grid to set
@@ -418,25 +918,46 @@ public final class MapData {
     	mLastTag = lastTag;
     }
     
+    /**
+     * @return ID of the snapshot this map data was read from, or
+     *         NO_SNAPSHOT_ID if it was not read from one that has an ID.
+     */
+    public long getSnapshotId() {
+        return this.mSnapshotId;
+    }
+
     public String getLastTag() {
     	return mLastTag;
     }
 
     /**
-     * @return The set of tokens currently visible on the screen.
+     * @return The IDs of the tokens currently visible on the screen, each with
+     *         the largest radius that token is drawn at, in screen pixels.
+     */
+    public Map<String, Float> getVisibleTokenRadii(int screenWidth, int screenHeight) {
+        return getTokenRadiiInScreenRect(new RectF(0, 0, screenWidth, screenHeight));
+    }
+
+    /**
+     * @param screenRect
+     *            Area to find tokens in, in screen space. May extend past the
+     *            edges of the screen.
+     * @return The IDs of the tokens in the area, each with the largest radius
+     *         that token is drawn at, in screen pixels.
      */
-    public Set<String> getVisibleTokenIds(int screenWidth, int screenHeight) {
+    public Map<String, Float> getTokenRadiiInScreenRect(RectF screenRect) {
         CoordinateTransformer trans = getGrid().gridSpaceToScreenSpaceTransformer(getWorldSpaceTransformer());
-        PointF wsOrigin = trans.screenSpaceToWorldSpace(0, 0);
-        float wsWidth = trans.screenSpaceToWorldSpace(screenWidth);
-        float wsHeight = trans.screenSpaceToWorldSpace(screenHeight);
-        RectF worldSpaceBounds = new RectF(wsOrigin.x, wsOrigin.y, wsOrigin.x + wsWidth, wsOrigin.y + wsHeight);
+        RectF worldSpaceBounds = trans.screenSpaceToWorldSpace(screenRect);
 
-        Set<String> tokens = new HashSet<String>();
+        Map<String, Float> tokens = new HashMap<String, Float>();
 
         for (BaseToken t: getTokens().asList()) {
             if (t.getBoundingRectangle().testClip(worldSpaceBounds)) {
-                tokens.add(t.getTokenId());
+                float radius = t.getScreenRadius(trans);
+                Float existing = tokens.get(t.getTokenId());
+                if (existing == null || existing < radius) {
+                    tokens.put(t.getTokenId(), radius);
+                }
             }
         }
         return tokens;
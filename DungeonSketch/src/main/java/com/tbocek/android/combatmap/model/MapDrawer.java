@@ -7,7 +7,10 @@ import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Looper;
 
+import com.tbocek.android.combatmap.TokenImageManager;
+import com.tbocek.android.combatmap.model.primitives.BackgroundImage;
 import com.tbocek.android.combatmap.model.primitives.CoordinateTransformer;
 import com.tbocek.android.combatmap.model.primitives.Units;
 
@@ -36,6 +39,29 @@ public class MapDrawer {
     }
 
     public void draw(Canvas canvas, MapData m, Rect bounds) {
+        // Token images and background image tiles evicted during a draw off the UI thread must
+        // not be reused until it ends.
+        boolean background = Looper.myLooper() != Looper.getMainLooper();
+        TokenImageManager images = background ? TokenImageManager.getInstanceOrNull() : null;
+        if (images != null) {
+            images.beginBackgroundDraw();
+        }
+        if (background) {
+            BackgroundImage.beginBackgroundDraw();
+        }
+        try {
+            drawMap(canvas, m, bounds);
+        } finally {
+            if (background) {
+                BackgroundImage.endBackgroundDraw();
+            }
+            if (images != null) {
+                images.endBackgroundDraw();
+            }
+        }
+    }
+
+    private void drawMap(Canvas canvas, MapData m, Rect bounds) {
         if (mTransformer == null) {
             mTransformer = m.getWorldSpaceTransformer();
         }
@@ -92,6 +92,15 @@ public final class TokenCollection implements UndoRedoTarget {
         return this.mCommandHistory.canUndo();
     }
 
+    /**
+     * Signals that tokens in this collection are about to be modified in
+     * place, such as while they are dragged, so that any snapshot of the map
+     * sharing this collection gets its own copy first.
+     */
+    public void beforeEdit() {
+        this.mCommandHistory.beforeChange();
+    }
+
     /**
      * Sets up this TokenCollection to create a command that modifies the given
      * token. The current state of this token will be duplicated and saved for
@@ -114,6 +123,7 @@ public final class TokenCollection implements UndoRedoTarget {
      *            List of tokens to checkpoint.
      */
     public void checkpointTokens(Collection<BaseToken> l) {
+        this.mCommandHistory.beforeChange();
         this.mBuildingCommand = new ModifyTokenCommand(l);
         this.mBuildingCommand.checkpointBeforeState();
     }
@@ -139,6 +149,7 @@ public final class TokenCollection implements UndoRedoTarget {
      *            The database to load new tokens from.
      */
     public void deplaceholderize(TokenDatabase tokenDatabase) {
+        this.mCommandHistory.beforeChange();
         for (int i = 0; i < this.mTokens.size(); ++i) {
             BaseToken realToken =
                     this.mTokens.get(i).deplaceholderize(tokenDatabase);
@@ -342,6 +353,7 @@ public final class TokenCollection implements UndoRedoTarget {
      */
     public void restoreCheckpointedTokens() {
         if (this.mBuildingCommand != null) {
+            this.mCommandHistory.beforeChange();
             this.mBuildingCommand.undo();
             this.mBuildingCommand = null;
         }
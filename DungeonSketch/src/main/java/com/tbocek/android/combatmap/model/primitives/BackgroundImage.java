@@ -1,11 +1,10 @@
 package com.tbocek.android.combatmap.model.primitives;
 
 import java.io.IOException;
+import java.util.Collection;
 
-import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
+import android.graphics.RectF;
 
 import com.tbocek.android.combatmap.DataManager;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
@@ -24,7 +23,7 @@ public class BackgroundImage implements Cloneable{
      */
     public BackgroundImage(BackgroundImage copyFrom) {
         this.mPath = copyFrom.mPath;
-        this.mDrawable = copyFrom.mDrawable;
+        this.mTiles = copyFrom.mTiles;
         this.mOriginWorldSpace = copyFrom.mOriginWorldSpace;
         this.mWidthWorldSpace = copyFrom.mWidthWorldSpace;
         this.mHeightWorldSpace = copyFrom.mHeightWorldSpace;
@@ -36,16 +35,64 @@ public class BackgroundImage implements Cloneable{
         BackgroundImage.dataManager = dataManager;
     }
 
+    /**
+     * Sets the callback to run on the UI thread whenever more detailed parts
+     * of a background image have been loaded and the map should be redrawn.
+     *
+     * @param listener
+     *            The callback, or null to remove it.
+     */
+    public static void setTileLoadedListener(Runnable listener) {
+        BackgroundImageTiles.setTileLoadedListener(listener);
+    }
+
+    /**
+     * Frees the decoders of the open background images other than those with
+     * the given paths. Images that were released can still be drawn, with
+     * less detail.
+     *
+     * @param paths
+     *            Paths of the images that are still shown.
+     */
+    public static void releaseImagesExcept(Collection<String> paths) {
+        BackgroundImageTiles.releaseAllExcept(paths);
+    }
+
+    /**
+     * Signals that a thread other than the UI thread is about to draw
+     * background images, so that tiles it may draw are not reused until the
+     * matching endBackgroundDraw.
+     */
+    public static void beginBackgroundDraw() {
+        BackgroundImageTiles.beginBackgroundDraw();
+    }
+
+    /**
+     * Signals that a draw started with beginBackgroundDraw has finished.
+     */
+    public static void endBackgroundDraw() {
+        BackgroundImageTiles.endBackgroundDraw();
+    }
+
+    /**
+     * @return The number of background image tiles decoded so far. Changes
+     *         whenever drawing an image again could show more detail.
+     */
+    public static int getTilesLoaded() {
+        return BackgroundImageTiles.getTilesLoaded();
+    }
+
     /**
      * Path that this image should load from.
      */
     private final String mPath;
 
     /**
-     * Drawable containing the background image.
+     * Tiles of the background image, decoded as they are drawn. Set on a
+     * background load thread and read by whichever thread draws.
      */
-    private transient Drawable mDrawable = null;
-    private transient boolean mTriedToLoadDrawable = false;
+    private transient volatile BackgroundImageTiles mTiles = null;
+    private transient volatile boolean mTriedToLoadDrawable = false;
 
     /**
      * Height of the image's containing rectangle, in world space.
@@ -77,9 +124,32 @@ public class BackgroundImage implements Cloneable{
         this.mOriginWorldSpace = originWorldSpace;
     }
 
-    public void loadDrawable() {
-        // Don't go any further if we've already tried and failed.
-        if (mTriedToLoadDrawable) {
+    /**
+     * @return Path that this image loads from.
+     */
+    public String getPath() {
+        return this.mPath;
+    }
+
+    /**
+     * @return Whether this image has been loaded, or has failed to load.
+     */
+    public boolean isLoaded() {
+        return this.mTiles != null || this.mTriedToLoadDrawable;
+    }
+
+    /**
+     * Loads the image, with just enough detail for the zoom level it will
+     * first be drawn at. More detail is loaded as needed when zooming in.
+     * Does nothing if the image is already loaded.
+     *
+     * @param transformer
+     *            The world space to screen space transformer the image will be
+     *            drawn with, or null if unknown.
+     */
+    public void loadDrawable(CoordinateTransformer transformer) {
+        // Don't go any further if we've already loaded, or tried and failed.
+        if (this.isLoaded()) {
             return;
         }
 
@@ -88,19 +158,23 @@ public class BackgroundImage implements Cloneable{
             return;
         }
 
-        Bitmap b;
         try {
-            b = dataManager.loadMapDataImage(this.mPath);
-            this.mDrawable = new BitmapDrawable(dataManager.getContext().getResources(), b);
+            int screenDimPx = transformer == null ? 0 : (int) transformer.worldSpaceToScreenSpace(
+                    Math.max(this.mWidthWorldSpace, this.mHeightWorldSpace));
+            BackgroundImageTiles tiles =
+                    BackgroundImageTiles.open(dataManager, this.mPath, screenDimPx);
             // If no width and height yet, set height = 1, width according to
             // aspect ratio of the original image.
             if (this.mWidthWorldSpace < Util.FP_COMPARE_ERROR
                     && this.mHeightWorldSpace < Util.FP_COMPARE_ERROR) {
                 this.mOriginalAspectRatio =
-                        ((float) b.getWidth()) / b.getHeight();
+                        ((float) tiles.getWidth()) / tiles.getHeight();
                 this.mHeightWorldSpace = 1;
                 this.mWidthWorldSpace = mOriginalAspectRatio;
             }
+            // Published last, so that a thread that sees the tiles also sees
+            // the size set above.
+            this.mTiles = tiles;
         } catch (IOException e) {
             e.printStackTrace();
             this.mTriedToLoadDrawable = true;
@@ -110,7 +184,8 @@ public class BackgroundImage implements Cloneable{
     /**
      * Draws the background image. Needs to assume an untransformed coordinate
      * space, UNLIKE other draw commands. The coordinate transformer is passed
-     * in instead. This is because setBounds is retarded and takes integers.
+     * in instead, so that the tiles can be drawn at the resolution that
+     * matches the zoom level.
      * 
      * @param c
      *            Canvas to draw on.
@@ -118,7 +193,7 @@ public class BackgroundImage implements Cloneable{
      *            The screen to world space transformer.
      */
     public void draw(Canvas c, CoordinateTransformer transformer) {
-        if (this.mDrawable == null) {
+        if (this.mTiles == null) {
             return;
         }
 
@@ -130,14 +205,13 @@ public class BackgroundImage implements Cloneable{
                 transformer.worldSpaceToScreenSpace(new PointF(
                         this.mOriginWorldSpace.x + this.mWidthWorldSpace,
                         this.mOriginWorldSpace.y + this.mHeightWorldSpace));
-        int left = (int) Math.min(upperLeft.x, lowerRight.x);
-        int right = (int) Math.max(upperLeft.x, lowerRight.x);
-        int top = (int) Math.min(upperLeft.y, lowerRight.y);
-        int bottom = (int) Math.max(upperLeft.y, lowerRight.y);
-
-        this.mDrawable.setBounds(left, top, right, bottom);
+        RectF bounds = new RectF(
+                Math.min(upperLeft.x, lowerRight.x),
+                Math.min(upperLeft.y, lowerRight.y),
+                Math.max(upperLeft.x, lowerRight.x),
+                Math.max(upperLeft.y, lowerRight.y));
 
-        this.mDrawable.draw(c);
+        this.mTiles.draw(c, bounds);
     }
 
     public BoundingRectangle getBoundingRectangle() {
@@ -0,0 +1,699 @@
+package com.tbocek.android.combatmap.model.primitives;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.tbocek.android.combatmap.BitmapPool;
+import com.tbocek.android.combatmap.DataManager;
+import com.tbocek.android.combatmap.MapImagePyramid;
+
+/**
+ * Draws a background image from tiles decoded out of the full image at a
+ * resolution matched to the current zoom level, so that a large imported map
+ * never has to be decoded at full size. Tiles are read from the image's tile
+ * pyramid if it has one, and are otherwise cut out of the original image as
+ * they are needed. A downsampled overview of the whole
+ * image is kept in memory and is drawn wherever a tile has not been decoded
+ * yet. Tiles are decoded on a single background thread, newest request first,
+ * and cached in a memory-bounded LRU cache shared by all background images.
+ * Every background image showing the same file shares one open image, which
+ * is released once the current map no longer shows the file.
+ *
+ * @author Tim Bocek
+ *
+ */
+final class BackgroundImageTiles {
+    private static final String TAG = "BackgroundImageTiles";
+
+    /**
+     * Width and height of a tile, in pixels of the decoded tile. Matches the
+     * tiles of pyramids so that both are drawn the same way.
+     */
+    private static final int TILE_SIZE_PX = MapImagePyramid.TILE_SIZE_PX;
+
+    /**
+     * Largest dimension of the overview image, in pixels.
+     */
+    private static final int OVERVIEW_MAX_DIM_PX = MapImagePyramid.OVERVIEW_MAX_DIM_PX;
+
+    /**
+     * Fraction of the app's heap that cached tiles may use.
+     */
+    private static final int CACHE_HEAP_FRACTION = 4;
+
+    /**
+     * Most tile loads to keep queued. The oldest requests are dropped first,
+     * since they are the ones most likely to have scrolled off screen.
+     */
+    private static final int MAX_PENDING_TILES = 64;
+
+    /**
+     * Decoded tiles, keyed by image path, sample size and tile position.
+     */
+    private static final LruCache<String, Bitmap> sTileCache =
+            new LruCache<String, Bitmap>(
+                    (int) (Runtime.getRuntime().maxMemory() / CACHE_HEAP_FRACTION)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                Bitmap newValue) {
+            if (oldValue == newValue) {
+                return;
+            }
+            synchronized (sRetiredTiles) {
+                sRetiredTiles.add(oldValue);
+                scheduleRetiredTileRelease();
+            }
+        }
+    };
+
+    /**
+     * Tiles removed from the cache. A draw that started before the removal
+     * may still be drawing them, so they are only returned to the BitmapPool
+     * from the UI thread between frames, and only while no draw is running on
+     * another thread. Guarded by itself.
+     */
+    private static final List<Bitmap> sRetiredTiles = new ArrayList<Bitmap>();
+
+    /**
+     * Number of draws running on threads other than the UI thread. Guarded
+     * by sRetiredTiles.
+     */
+    private static int sBackgroundDraws;
+
+    /**
+     * Whether sReleaseRetiredTiles has been posted and not run yet. Guarded
+     * by sRetiredTiles.
+     */
+    private static boolean sReleasePosted;
+
+    private static final Runnable sReleaseRetiredTiles = new Runnable() {
+        @Override
+        public void run() {
+            List<Bitmap> retired;
+            synchronized (sRetiredTiles) {
+                sReleasePosted = false;
+                if (sBackgroundDraws > 0) {
+                    // The last background draw to end posts this again.
+                    return;
+                }
+                retired = new ArrayList<Bitmap>(sRetiredTiles);
+                sRetiredTiles.clear();
+            }
+            for (Bitmap b : retired) {
+                BitmapPool.release(b);
+            }
+        }
+    };
+
+    /**
+     * Thread that decodes tiles.
+     */
+    private static final ExecutorService sDecoder = Executors.newSingleThreadExecutor();
+
+    /**
+     * Tile loads waiting to be decoded, newest last. Guarded by itself.
+     */
+    private static final LinkedList<TileRequest> sPending = new LinkedList<TileRequest>();
+
+    /**
+     * Keys of the tiles that are queued or being decoded. Guarded by
+     * sPending.
+     */
+    private static final Set<String> sPendingKeys = new HashSet<String>();
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Images that are open and not released, keyed by path. Guarded by
+     * itself.
+     */
+    private static final Map<String, BackgroundImageTiles> sOpenImages =
+            new HashMap<String, BackgroundImageTiles>();
+
+    /**
+     * Called on the UI thread after new tiles have been decoded.
+     */
+    private static Runnable sTileLoadedListener;
+
+    /**
+     * Whether a call to the tile loaded listener has been posted and not run
+     * yet. Guarded by sPending.
+     */
+    private static boolean sTileLoadedPosted;
+
+    /**
+     * Number of tiles decoded so far, so that readers can tell whether a
+     * redraw would show more detail.
+     */
+    private static volatile int sTilesLoaded;
+
+    private static final Runnable sNotifyTileLoaded = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (sPending) {
+                sTileLoadedPosted = false;
+            }
+            if (sTileLoadedListener != null) {
+                sTileLoadedListener.run();
+            }
+        }
+    };
+
+    /**
+     * @return The number of tiles decoded so far.
+     */
+    static int getTilesLoaded() {
+        return sTilesLoaded;
+    }
+
+    /**
+     * Posts the release of retired tiles to the UI thread, unless it is
+     * already posted or a background draw could still be using them. Callers
+     * must hold the lock on sRetiredTiles.
+     */
+    private static void scheduleRetiredTileRelease() {
+        if (!sReleasePosted && sBackgroundDraws == 0 && !sRetiredTiles.isEmpty()) {
+            sReleasePosted = true;
+            sMainHandler.post(sReleaseRetiredTiles);
+        }
+    }
+
+    /**
+     * Signals that a thread other than the UI thread is about to draw
+     * background images. Tiles removed from the cache are kept out of the
+     * BitmapPool until the matching endBackgroundDraw.
+     */
+    static void beginBackgroundDraw() {
+        synchronized (sRetiredTiles) {
+            sBackgroundDraws++;
+        }
+    }
+
+    /**
+     * Signals that a draw started with beginBackgroundDraw has finished.
+     */
+    static void endBackgroundDraw() {
+        synchronized (sRetiredTiles) {
+            sBackgroundDraws--;
+            scheduleRetiredTileRelease();
+        }
+    }
+
+    /**
+     * A pending tile load.
+     */
+    private static final class TileRequest {
+        private final BackgroundImageTiles mTiles;
+        private final String mKey;
+        private final int mSampleSize;
+        private final int mTileX;
+        private final int mTileY;
+
+        private TileRequest(BackgroundImageTiles tiles, String key, int sampleSize,
+                int tileX, int tileY) {
+            this.mTiles = tiles;
+            this.mKey = key;
+            this.mSampleSize = sampleSize;
+            this.mTileX = tileX;
+            this.mTileY = tileY;
+        }
+    }
+
+    private final String mPath;
+
+    /**
+     * Pre-built tiles of the image, or null if it has none.
+     */
+    private final MapImagePyramid mPyramid;
+
+    /**
+     * Decoder for regions of the full image, or null if tiles are read from
+     * the pyramid or the image format does not support region decoding. If
+     * there is neither a pyramid nor a decoder, only the overview is drawn.
+     */
+    private final BitmapRegionDecoder mDecoder;
+
+    /**
+     * Size of the full image, in pixels.
+     */
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * Downsampled copy of the whole image.
+     */
+    private final Bitmap mOverview;
+
+    /**
+     * Size of a pixel of the overview, in pixels of the full image.
+     */
+    private final float mOverviewScale;
+
+    /**
+     * Sample size at which the overview has at least as much detail as a
+     * decoded tile would.
+     */
+    private final int mOverviewSampleSize;
+
+    /**
+     * Pixel format to decode tiles in.
+     */
+    private final Bitmap.Config mTileConfig;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+    private final Rect mClip = new Rect();
+
+    /**
+     * Whether the image has been released, after which no more tiles are
+     * decoded and only the overview is drawn.
+     */
+    private volatile boolean mReleased;
+
+    /**
+     * Sets the callback to run on the UI thread whenever new tiles are ready
+     * to be drawn. Several tiles that finish close together result in one
+     * call.
+     *
+     * @param listener
+     *            The callback, or null to remove it.
+     */
+    static void setTileLoadedListener(Runnable listener) {
+        sTileLoadedListener = listener;
+    }
+
+    /**
+     * Opens a map data image for tiled drawing, and decodes its overview. If
+     * the image is already open, the open image is shared.
+     *
+     * @param dataManager
+     *            Data manager to load the image with.
+     * @param path
+     *            Name of the map data image.
+     * @param screenDimPx
+     *            Largest dimension the image is currently drawn at, in
+     *            pixels, or 0 if unknown. The overview is decoded with no
+     *            more detail than this needs.
+     * @return The tiled image.
+     * @throws IOException
+     *             If the image could not be read.
+     */
+    static BackgroundImageTiles open(DataManager dataManager, String path, int screenDimPx)
+            throws IOException {
+        synchronized (sOpenImages) {
+            BackgroundImageTiles tiles = sOpenImages.get(path);
+            if (tiles != null) {
+                return tiles;
+            }
+        }
+        BackgroundImageTiles tiles = openNew(dataManager, path, screenDimPx);
+        synchronized (sOpenImages) {
+            BackgroundImageTiles opened = sOpenImages.get(path);
+            if (opened == null) {
+                sOpenImages.put(path, tiles);
+                return tiles;
+            }
+            // Another thread opened the same image meanwhile.
+            tiles.release();
+            return opened;
+        }
+    }
+
+    /**
+     * Releases the open images other than those with the given paths.
+     * Released images stop decoding tiles and free their region decoders;
+     * they can still be drawn from their overview by whatever holds on to
+     * them, such as a snapshot of the previous map being saved.
+     *
+     * @param paths
+     *            Paths of the images to keep open.
+     */
+    static void releaseAllExcept(Collection<String> paths) {
+        List<BackgroundImageTiles> released = new ArrayList<BackgroundImageTiles>();
+        synchronized (sOpenImages) {
+            Iterator<BackgroundImageTiles> it = sOpenImages.values().iterator();
+            while (it.hasNext()) {
+                BackgroundImageTiles tiles = it.next();
+                if (!paths.contains(tiles.mPath)) {
+                    it.remove();
+                    released.add(tiles);
+                }
+            }
+        }
+        for (BackgroundImageTiles tiles : released) {
+            tiles.release();
+        }
+    }
+
+    private static BackgroundImageTiles openNew(DataManager dataManager, String path,
+            int screenDimPx) throws IOException {
+        MapImagePyramid pyramid = dataManager.openMapDataImagePyramid(path);
+        if (pyramid != null) {
+            Bitmap.Config tileConfig = pyramid.hasAlpha()
+                    ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+            int sampleSize = overviewSampleSize(pyramid.getWidth(), pyramid.getHeight(),
+                    screenDimPx);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = tileConfig;
+            options.inSampleSize =
+                    Math.max(1, sampleSize / pyramid.getOverviewSampleSize());
+            Bitmap overview = pyramid.decodeOverview(options);
+            if (overview != null) {
+                return new BackgroundImageTiles(path, pyramid, null, pyramid.getWidth(),
+                        pyramid.getHeight(), overview,
+                        pyramid.getOverviewSampleSize() * options.inSampleSize, tileConfig);
+            }
+            Log.w(TAG, "Could not decode pyramid overview for " + path
+                    + ", falling back to the original image");
+        }
+
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = dataManager.openMapDataImageRegions(path);
+        } catch (IOException e) {
+            Log.w(TAG, "Region decoding not supported for " + path
+                    + ", falling back to a downsampled image", e);
+        }
+
+        if (decoder == null) {
+            Bitmap overview = dataManager.loadMapDataImage(path, OVERVIEW_MAX_DIM_PX);
+            if (overview == null) {
+                throw new IOException("Could not decode " + path);
+            }
+            return new BackgroundImageTiles(path, null, null, overview.getWidth(),
+                    overview.getHeight(), overview, 1, Bitmap.Config.ARGB_8888);
+        }
+
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = overviewSampleSize(width, height, screenDimPx);
+        Bitmap overview = decoder.decodeRegion(new Rect(0, 0, width, height), options);
+        if (overview == null) {
+            decoder.recycle();
+            throw new IOException("Could not decode " + path);
+        }
+
+        // Tiles of JPEGs have nothing to gain from an alpha channel.
+        Bitmap.Config tileConfig = "image/jpeg".equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        return new BackgroundImageTiles(path, null, decoder, width, height, overview,
+                options.inSampleSize, tileConfig);
+    }
+
+    private BackgroundImageTiles(String path, MapImagePyramid pyramid,
+            BitmapRegionDecoder decoder, int width, int height, Bitmap overview,
+            int overviewSampleSize, Bitmap.Config tileConfig) {
+        this.mPath = path;
+        this.mPyramid = pyramid;
+        this.mDecoder = decoder;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mOverview = overview;
+        this.mOverviewScale = (float) width / overview.getWidth();
+        this.mOverviewSampleSize = overviewSampleSize;
+        this.mTileConfig = tileConfig;
+    }
+
+    /**
+     * Stops decoding tiles for this image, and recycles its region decoder
+     * on the decoder thread, after any decode that is already running.
+     */
+    private void release() {
+        this.mReleased = true;
+        final BitmapRegionDecoder decoder = this.mDecoder;
+        if (decoder == null) {
+            return;
+        }
+        sDecoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                decoder.recycle();
+            }
+        });
+    }
+
+    /**
+     * Chooses the sample size to decode the overview at: small enough to fit
+     * within OVERVIEW_MAX_DIM_PX, but no more detailed than the image is
+     * currently drawn at. Tiles fill in the detail when zooming in.
+     *
+     * @param width
+     *            Width of the full image, in pixels.
+     * @param height
+     *            Height of the full image, in pixels.
+     * @param screenDimPx
+     *            Largest dimension the image is drawn at, or 0 if unknown.
+     * @return The sample size.
+     */
+    private static int overviewSampleSize(int width, int height, int screenDimPx) {
+        int maxDim = Math.max(width, height);
+        int minDim = screenDimPx > 0 ? Math.max(TILE_SIZE_PX, screenDimPx) : maxDim;
+        int sampleSize = 1;
+        while (maxDim / sampleSize > OVERVIEW_MAX_DIM_PX
+                || maxDim / (sampleSize * 2) >= minDim) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * @return Width of the full image, in pixels.
+     */
+    int getWidth() {
+        return this.mWidth;
+    }
+
+    /**
+     * @return Height of the full image, in pixels.
+     */
+    int getHeight() {
+        return this.mHeight;
+    }
+
+    /**
+     * Draws the image stretched over the given screen space rectangle. Only
+     * the tiles that intersect the canvas's clip are drawn; tiles that are
+     * not decoded yet are requested, and the overview is drawn in their
+     * place.
+     *
+     * @param c
+     *            Canvas to draw on, in screen space.
+     * @param dst
+     *            Rectangle to draw the image in, in screen space.
+     */
+    void draw(Canvas c, RectF dst) {
+        if (dst.width() <= 0 || dst.height() <= 0) {
+            return;
+        }
+        float scale = dst.width() / this.mWidth;
+        int sampleSize = sampleSizeForScale(scale);
+        if ((this.mPyramid == null && this.mDecoder == null) || this.mReleased
+                || sampleSize >= this.mOverviewSampleSize) {
+            c.drawBitmap(this.mOverview, null, dst, this.mPaint);
+            return;
+        }
+
+        if (!c.getClipBounds(this.mClip)) {
+            return;
+        }
+        float imageScaleX = this.mWidth / dst.width();
+        float imageScaleY = this.mHeight / dst.height();
+        int tileSpan = TILE_SIZE_PX * sampleSize;
+        int firstX = Math.max(0, (int) ((this.mClip.left - dst.left) * imageScaleX) / tileSpan);
+        int firstY = Math.max(0, (int) ((this.mClip.top - dst.top) * imageScaleY) / tileSpan);
+        int lastX = Math.min((this.mWidth - 1) / tileSpan,
+                (int) ((this.mClip.right - dst.left) * imageScaleX) / tileSpan);
+        int lastY = Math.min((this.mHeight - 1) / tileSpan,
+                (int) ((this.mClip.bottom - dst.top) * imageScaleY) / tileSpan);
+
+        for (int ty = firstY; ty <= lastY; ++ty) {
+            for (int tx = firstX; tx <= lastX; ++tx) {
+                int left = tx * tileSpan;
+                int top = ty * tileSpan;
+                int right = Math.min(this.mWidth, left + tileSpan);
+                int bottom = Math.min(this.mHeight, top + tileSpan);
+                this.mDst.set(dst.left + left / imageScaleX, dst.top + top / imageScaleY,
+                        dst.left + right / imageScaleX, dst.top + bottom / imageScaleY);
+
+                String key = this.tileKey(sampleSize, tx, ty);
+                Bitmap tile = sTileCache.get(key);
+                if (tile != null) {
+                    c.drawBitmap(tile, null, this.mDst, this.mPaint);
+                } else {
+                    this.mSrc.set((int) (left / this.mOverviewScale),
+                            (int) (top / this.mOverviewScale),
+                            (int) Math.ceil(right / this.mOverviewScale),
+                            (int) Math.ceil(bottom / this.mOverviewScale));
+                    c.drawBitmap(this.mOverview, this.mSrc, this.mDst, this.mPaint);
+                    this.requestTile(key, sampleSize, tx, ty);
+                }
+            }
+        }
+    }
+
+    /**
+     * Chooses the power of 2 sample size nearest to the number of image
+     * pixels that fall on one screen pixel.
+     *
+     * @param scale
+     *            Size of an image pixel on screen.
+     * @return The sample size.
+     */
+    private static int sampleSizeForScale(float scale) {
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 < (float) Math.sqrt(2)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private String tileKey(int sampleSize, int tileX, int tileY) {
+        return this.mPath + "/" + sampleSize + "/" + tileX + "/" + tileY;
+    }
+
+    /**
+     * Queues a tile to be decoded, unless it is already queued.
+     */
+    private void requestTile(String key, int sampleSize, int tileX, int tileY) {
+        synchronized (sPending) {
+            if (!sPendingKeys.add(key)) {
+                return;
+            }
+            sPending.addLast(new TileRequest(this, key, sampleSize, tileX, tileY));
+            if (sPending.size() > MAX_PENDING_TILES) {
+                sPendingKeys.remove(sPending.removeFirst().mKey);
+            }
+        }
+        sDecoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                decodeNextTile();
+            }
+        });
+    }
+
+    /**
+     * Decodes the most recently requested tile. Called on the decoder
+     * thread, once for every request; requests that were dropped from the
+     * queue leave nothing to do.
+     */
+    private static void decodeNextTile() {
+        TileRequest request;
+        synchronized (sPending) {
+            request = sPending.pollLast();
+        }
+        if (request == null) {
+            return;
+        }
+
+        Bitmap tile = null;
+        try {
+            // Tiles of released images were requested before the release;
+            // their decoder may already be recycled.
+            if (!request.mTiles.mReleased) {
+                tile = request.mTiles.decodeTile(request);
+            }
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory decoding tile " + request.mKey);
+            sTileCache.evictAll();
+        }
+
+        if (tile != null) {
+            sTileCache.put(request.mKey, tile);
+            sTilesLoaded++;
+        }
+        boolean notify = false;
+        synchronized (sPending) {
+            sPendingKeys.remove(request.mKey);
+            if (tile != null && !sTileLoadedPosted) {
+                sTileLoadedPosted = true;
+                notify = true;
+            }
+        }
+        if (notify) {
+            sMainHandler.post(sNotifyTileLoaded);
+        }
+    }
+
+    private Bitmap decodeTile(final TileRequest request) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = this.mTileConfig;
+        final Rect region = this.tileRegion(request);
+        BitmapPool.Decoder decoder;
+        if (this.mPyramid != null) {
+            // Pyramid tiles are already stored at the requested sample size.
+            decoder = new BitmapPool.Decoder() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options decodeOptions) {
+                    return mPyramid.decodeTile(request.mSampleSize, request.mTileX,
+                            request.mTileY, decodeOptions);
+                }
+            };
+        } else {
+            options.inSampleSize = request.mSampleSize;
+            decoder = new BitmapPool.Decoder() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options decodeOptions) {
+                    return mDecoder.decodeRegion(region, decodeOptions);
+                }
+            };
+        }
+
+        Bitmap tile;
+        // Region decodes can only decode into an existing bitmap from Jelly
+        // Bean on.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            int sampleSize = request.mSampleSize;
+            tile = BitmapPool.decode(options,
+                    (region.width() + sampleSize - 1) / sampleSize,
+                    (region.height() + sampleSize - 1) / sampleSize, decoder);
+        } else {
+            tile = decoder.decode(options);
+        }
+        if (tile == null) {
+            Log.w(TAG, "Could not decode tile " + request.mKey);
+        }
+        return tile;
+    }
+
+    /**
+     * @return The part of the full image that a tile covers.
+     */
+    private Rect tileRegion(TileRequest request) {
+        int tileSpan = TILE_SIZE_PX * request.mSampleSize;
+        int left = request.mTileX * tileSpan;
+        int top = request.mTileY * tileSpan;
+        return new Rect(left, top, Math.min(this.mWidth, left + tileSpan),
+                Math.min(this.mHeight, top + tileSpan));
+    }
+}
@@ -321,9 +321,7 @@ public abstract class BaseToken implements Cloneable {
     public final void drawGhost(final Canvas c,
             final CoordinateTransformer transformer, final PointF ghostPoint) {
         PointF center = transformer.worldSpaceToScreenSpace(ghostPoint);
-        float radius =
-                transformer.worldSpaceToScreenSpace(this.getSize()
-                        * TOKEN_SIZE_TWEAK / 2);
+        float radius = this.getScreenRadius(transformer);
         this.drawGhost(c, center.x, center.y, radius);
     }
 
@@ -380,9 +378,7 @@ public abstract class BaseToken implements Cloneable {
             final CoordinateTransformer transformer,
             final boolean darkBackground, boolean isManipulable) {
         PointF center = transformer.worldSpaceToScreenSpace(this.getLocation());
-        float radius =
-                transformer.worldSpaceToScreenSpace(this.getSize()
-                        * TOKEN_SIZE_TWEAK / 2);
+        float radius = this.getScreenRadius(transformer);
 
         if (this.isBloodied()) {
             this.drawBloodiedImpl(c, center.x, center.y, radius,
@@ -406,6 +402,18 @@ public abstract class BaseToken implements Cloneable {
         }
     }
 
+    /**
+     * Gets the radius this token is drawn with.
+     * 
+     * @param transformer
+     *            Grid space to screen space transformer.
+     * @return The radius in screen space.
+     */
+    public final float getScreenRadius(final CoordinateTransformer transformer) {
+        return transformer.worldSpaceToScreenSpace(this.getSize()
+                * TOKEN_SIZE_TWEAK / 2);
+    }
+
     /**
      * @return A rectangle that bounds the circle that this token draws as.
      */
@@ -481,6 +489,14 @@ public abstract class BaseToken implements Cloneable {
         return this.mCachedSortOrder;
     }
 
+    /**
+     * @return A human readable name for this token, used when searching.
+     *         By default, the class-specific part of the ID.
+     */
+    public String getDisplayName() {
+        return this.getTokenClassSpecificId();
+    }
+
     /**
      * Gets an ID that differentiates this token from others in its class.
      * Subclasses should override this such that tokens that display the same
@@ -649,7 +665,16 @@ public abstract class BaseToken implements Cloneable {
         this.mSize = size;
     }
 
-    public Bitmap loadBitmap(Bitmap existingBuffer) {
+    /**
+     * Loads the image for this token, if it has one.
+     * 
+     * @param existingBuffer
+     *            Bitmap to decode into if possible, or null.
+     * @param dimDp
+     *            Size to load the image at, in dp.
+     * @return The loaded image, or null if this token has no image.
+     */
+    public Bitmap loadBitmap(Bitmap existingBuffer, int dimDp) {
         return null;
     }
 
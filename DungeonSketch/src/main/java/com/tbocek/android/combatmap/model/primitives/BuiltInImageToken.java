@@ -31,6 +31,12 @@ public final class BuiltInImageToken extends DrawableToken {
      */
     private final String mResourceName;
 
+    /**
+     * The ID of the resource to load for this token, or 0 if it has not been
+     * resolved yet.
+     */
+    private int mResourceId;
+
     /**
      * Relative order to sort this token in.
      */
@@ -49,7 +55,26 @@ public final class BuiltInImageToken extends DrawableToken {
      */
     public BuiltInImageToken(final String resourceName, final int sortOrder,
             final Set<String> defaultTags) {
+        this(resourceName, 0, sortOrder, defaultTags);
+    }
+
+    /**
+     * Constructor from an already resolved resource ID.
+     * 
+     * @param resourceName
+     *            The resource to load for this token.
+     * @param resourceId
+     *            The ID of the resource, or 0 to look it up on first load.
+     * @param sortOrder
+     *            Integer that will be used to specify a sort order for this
+     *            class.
+     * @param defaultTags
+     *            Set of tags that this built in token loads with.
+     */
+    public BuiltInImageToken(final String resourceName, final int resourceId,
+            final int sortOrder, final Set<String> defaultTags) {
         this.mResourceName = resourceName;
+        this.mResourceId = resourceId;
         this.mSortOrder = sortOrder;
         this.mDefaultTags = defaultTags;
     }
@@ -57,19 +82,24 @@ public final class BuiltInImageToken extends DrawableToken {
     @Override
     public BaseToken clone() {
         return this.copyAttributesTo(new BuiltInImageToken(this.mResourceName,
-                this.mSortOrder, this.mDefaultTags));
+                this.mResourceId, this.mSortOrder, this.mDefaultTags));
     }
 
     @Override
-    public Bitmap loadBitmap(Bitmap existingBuffer) {
-        int id =
-                DungeonSketchApp.getContext().getResources().getIdentifier(
-                        this.mResourceName, "drawable",
-                        DungeonSketchApp.getContext().getPackageName());
-        if (id == 0) {
-            return null;
+    public Bitmap loadBitmap(Bitmap existingBuffer, int dimDp) {
+        if (this.mResourceId == 0) {
+            // Only tokens created outside the token database get here; the
+            // lookup is slow, so remember the result.
+            this.mResourceId =
+                    DungeonSketchApp.getContext().getResources().getIdentifier(
+                            this.mResourceName, "drawable",
+                            DungeonSketchApp.getContext().getPackageName());
+            if (this.mResourceId == 0) {
+                return null;
+            }
         }
-        return dataManager.loadTokenImage(id, existingBuffer, LOAD_DIM_DP, LOAD_DIM_DP);
+        return dataManager.loadBuiltInTokenImage(this.mResourceName, this.mResourceId,
+                existingBuffer, dimDp);
     }
 
     @Override
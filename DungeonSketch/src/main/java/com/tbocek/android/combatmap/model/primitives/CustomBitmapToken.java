@@ -35,8 +35,8 @@ public final class CustomBitmapToken extends DrawableToken {
     }
 
     @Override
-    public Bitmap loadBitmap(Bitmap existingBuffer) {
-        return dataManager.loadTokenImage(this.mFilename, existingBuffer, LOAD_DIM_DP, LOAD_DIM_DP);
+    public Bitmap loadBitmap(Bitmap existingBuffer, int dimDp) {
+        return dataManager.loadTokenImage(this.mFilename, existingBuffer, dimDp, dimDp);
     }
 
     @Override
@@ -22,8 +22,6 @@ import com.tbocek.android.combatmap.TokenImageManager;
  * 
  */
 public abstract class DrawableToken extends BaseToken {
-    protected static final int LOAD_DIM_DP = 96;
-
     /**
      * The data manager that is used to load custom images.
      */
@@ -103,7 +101,7 @@ public abstract class DrawableToken extends BaseToken {
     @Override
     public final void drawBloodiedImpl(final Canvas c, final float x,
             final float y, final float radius, final boolean isManipulable) {
-        Drawable d = this.getDrawable();
+        Drawable d = this.getDrawable(radius);
         if (d != null) {
             d.setColorFilter(BLOODIED_FILTER);
             this.drawImpl(c, x, y, radius, false, isManipulable);
@@ -117,7 +115,7 @@ public abstract class DrawableToken extends BaseToken {
     @Override
     protected final void drawGhost(final Canvas c, final float x,
             final float y, final float radius) {
-        Drawable d = this.getDrawable();
+        Drawable d = this.getDrawable(radius);
         if (d != null) {
             d.setAlpha(HALF_OPACITY);
             this.drawImpl(c, x, y, radius, false, true);
@@ -129,7 +127,7 @@ public abstract class DrawableToken extends BaseToken {
     public final void drawImpl(final Canvas c, final float x, final float y,
             final float radius, final boolean darkBackground,
             final boolean isManipulable) {
-        Drawable d = this.getDrawable();
+        Drawable d = this.getDrawable(radius);
         if (d != null) {
             c.save(Canvas.CLIP_SAVE_FLAG);
             if (this.isSquare()) {
@@ -175,18 +173,21 @@ public abstract class DrawableToken extends BaseToken {
     }
 
     /**
-     * Returns the drawable associated with this token. This may cause the
-     * drawable to be loaded.
+     * Returns the loaded drawable associated with this token that best fits
+     * the size it is drawn at.
      * 
-     * @return The drawable.
+     * @param radius
+     *            Radius the token is drawn at, in screen space.
+     * @return The drawable, or null if it has not been loaded.
      */
-    private Drawable getDrawable() {
+    private Drawable getDrawable(final float radius) {
         TokenImageManager mgr = TokenImageManager.getInstanceOrNull();
         if (mgr == null) return null;
-        return mgr.getTokenDrawable(this.getTokenId());
+        return mgr.getTokenDrawable(this.getTokenId(), radius);
     }
 
-    public abstract Bitmap loadBitmap(Bitmap image);
+    @Override
+    public abstract Bitmap loadBitmap(Bitmap image, int dimDp);
 
     @Override
     public final boolean needsLoad() {
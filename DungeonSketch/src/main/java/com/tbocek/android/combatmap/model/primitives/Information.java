@@ -1,14 +1,12 @@
 package com.tbocek.android.combatmap.model.primitives;
 
-import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Rect;
+import android.graphics.Paint;
 
+import com.tbocek.android.combatmap.SpriteCache;
 import com.tbocek.android.combatmap.model.io.MapDataDeserializer;
 import com.tbocek.android.combatmap.model.io.MapDataSerializer;
-import com.tbocek.dungeonsketch.R;
 
 import java.io.IOException;
 
@@ -28,7 +26,16 @@ public class Information extends Text {
     public static final int ICON_TREASURE = 2;
     public static final int NUM_ICONS = 3;
 
-    private static Bitmap[] sIconBitmaps;
+    /**
+     * Sprite drawn for each icon, indexed by icon.
+     */
+    private static final SpriteCache.Sprite[] ICON_SPRITES = {
+            SpriteCache.Sprite.INFO,
+            SpriteCache.Sprite.INFO_MONSTER,
+            SpriteCache.Sprite.INFO_TREASURE};
+
+    private static final Paint ICON_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     /**
      * The size of an info point in world space.  Done so that we can adjust this size to make
      * this appear a constant size in screen space.
@@ -38,16 +45,6 @@ public class Information extends Text {
         sSizeWorldSpace = size;
     }
 
-    public static void loadInfoBitmap(Context c) {
-        sIconBitmaps = new Bitmap[NUM_ICONS];
-        sIconBitmaps[ICON_INFO] = BitmapFactory.decodeResource(c.getResources(), R.drawable.info);
-        sIconBitmaps[ICON_MONSTER] = BitmapFactory.decodeResource(c.getResources(), R.drawable.icon_combat);
-        sIconBitmaps[ICON_TREASURE] = BitmapFactory.decodeResource(c.getResources(), R.drawable.icon_treasure);
-    }
-    public static Bitmap[] getIconBitmaps() {
-        return sIconBitmaps;
-    }
-
     public static final String SHAPE_TYPE = "inf";
 
     private int mIcon = ICON_INFO;
@@ -119,9 +116,11 @@ public class Information extends Text {
 
     @Override
     public void draw(Canvas c) {
-        if (sIconBitmaps != null) {
-            Bitmap icon = sIconBitmaps[mIcon];
-            c.drawBitmap(icon, new Rect(0,0,icon.getWidth(), icon.getHeight()), this.getBoundingRectangle().toRectF(), null);
+        // Icons are scaled ahead of time to the size info points are drawn
+        // at, and are skipped until they have loaded.
+        Bitmap icon = SpriteCache.get(ICON_SPRITES[mIcon]);
+        if (icon != null) {
+            c.drawBitmap(icon, null, this.getBoundingRectangle().toRectF(), ICON_PAINT);
         }
     }
 
@@ -220,7 +220,6 @@ public final class TokenManager extends ActionBarActivity {
 
         mLoader = TokenImageManager.getInstance().createLoader(this, new Handler());
         mLoader.start();
-        mLoader.getLooper(); // Make sure loader thread is ready to go.
 
         // On large screens, set up a seperate column of token tags and possibly
         // set up a trash can to drag tokens too if drag&drop is an option on
@@ -13,6 +13,7 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Region.Op;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.DragEvent;
 import android.view.GestureDetector;
@@ -23,10 +24,10 @@ import android.view.SurfaceView;
 import android.view.View;
 import android.widget.Toast;
 
-import com.google.common.collect.Sets;
 import com.tbocek.android.combatmap.DeveloperMode;
 import com.tbocek.android.combatmap.ScrollBuffer;
 import com.tbocek.android.combatmap.ScrollBuffer.DrawRequest;
+import com.tbocek.android.combatmap.SpriteCache;
 import com.tbocek.android.combatmap.TokenDatabase;
 import com.tbocek.android.combatmap.TokenImageManager;
 import com.tbocek.android.combatmap.model.LineCollection;
@@ -62,8 +63,8 @@ import com.tbocek.android.combatmap.view.interaction.ZoomPanInteractionMode;
 import com.tbocek.dungeonsketch.R;
 
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 
@@ -78,7 +79,28 @@ public final class CombatView extends SurfaceView {
     @SuppressWarnings("UnusedDeclaration")
     private static final String TAG = "CombatView";
 
-    private static final float INFO_POINT_SIZE_DP = 32;
+    /**
+     * Width of the ring around the screen that token images are prefetched in, as a fraction
+     * of the larger screen dimension.
+     */
+    private static final float PREFETCH_MARGIN_FRACTION = 0.25f;
+
+    /**
+     * How far ahead of a pan to prefetch, in milliseconds of the current pan velocity.
+     */
+    private static final float PREFETCH_LOOKAHEAD_MS = 500;
+
+    /**
+     * Extra distance past the prefetch ring that a prefetched token must move before its image
+     * is released, as a fraction of the ring width.  Keeps tokens near the edge of the ring from
+     * being loaded and released over and over.
+     */
+    private static final float PREFETCH_HYSTERESIS_FRACTION = 0.5f;
+
+    /**
+     * Shortest time between prefetch updates during a gesture.
+     */
+    private static final long PREFETCH_INTERVAL_MS = 100;
 
     /**
 	 * A simple 3-state machine to make sure that full-screen draws performed during
@@ -127,6 +149,12 @@ public final class CombatView extends SurfaceView {
 
     private boolean mEditingMask = false;
 
+    /**
+     * Whether the map to show is still loading.  While loading, the current
+     * data is shown as a placeholder and cannot be edited.
+     */
+    private boolean mLoading = false;
+
     private final Paint mExplanatoryTextPaint;
 
     /**
@@ -235,6 +263,26 @@ public final class CombatView extends SurfaceView {
         }
     };
 
+    /**
+     * Redraws the map once more detailed background image tiles are loaded.
+     */
+    private final Runnable mBackgroundTileLoadedListener = new Runnable() {
+        @Override
+        public void run() {
+            CombatView.this.refreshMap();
+        }
+    };
+
+    /**
+     * Redraws the map once the info point icons are loaded.
+     */
+    private final Runnable mSpritesLoadedListener = new Runnable() {
+        @Override
+        public void run() {
+            CombatView.this.refreshMap();
+        }
+    };
+
     /**
      * Whether the surface is ready to draw.
      */
@@ -278,7 +326,26 @@ public final class CombatView extends SurfaceView {
 
     private TokenImageManager.Loader mLoader;
 
-    private final Set<String> mVisibleTokenImages = new HashSet<String>();
+    /**
+     * Resolution level of each token image that this view holds a reference to.
+     */
+    private Map<String, Integer> mVisibleTokenLevels = new HashMap<String, Integer>();
+
+    /**
+     * Resolution level of each token image that this view holds a prefetch reference to.
+     */
+    private Map<String, Integer> mPrefetchedTokenLevels = new HashMap<String, Integer>();
+
+    /**
+     * Screen position of the map origin when prefetching was last updated, or null if it has
+     * not been updated during the current gesture.
+     */
+    private PointF mLastPrefetchOrigin;
+
+    /**
+     * Uptime when prefetching was last updated.
+     */
+    private long mLastPrefetchTime;
 
     private Selection mLineSelection;
     
@@ -318,6 +385,9 @@ public final class CombatView extends SurfaceView {
                 public boolean onDrag(final View view, final DragEvent event) {
                     Log.d("DRAG", Integer.toString(event.getAction()));
                     if (event.getAction() == DragEvent.ACTION_DROP) {
+                        if (CombatView.this.mLoading) {
+                            return false;
+                        }
                         BaseToken toAdd = (BaseToken) event.getLocalState();
                         PointF location =
                                 CombatView.this.getGridSpaceTransformer()
@@ -489,6 +559,11 @@ public final class CombatView extends SurfaceView {
             }
         }
 
+        if (this.mLoading) {
+            canvas.drawText("Loading map...", this.getWidth() / 2,
+                    this.getHeight() / 2, this.mExplanatoryTextPaint);
+        }
+
     	if (DeveloperMode.shouldDisplayFramerate()) {
     		canvas.drawText("Framerate: " + Float.toString(mFramerate) + " fps", 4, 16, this.mFrameratePaint);
     	}
@@ -632,14 +707,23 @@ public final class CombatView extends SurfaceView {
 
     @Override
     public boolean onTouchEvent(@Nonnull final MotionEvent ev) {
+        if (this.mLoading) {
+            return true;
+        }
+
         if (ev.getAction() == MotionEvent.ACTION_DOWN) {
             this.mInteractionMode.addFinger();
+            this.mLastPrefetchOrigin = null;
         }
 
         startBatchingDraws();
         this.mGestureDetector.onTouchEvent(ev);
         this.mScaleDetector.onTouchEvent(ev);
 
+        if (ev.getActionMasked() == MotionEvent.ACTION_MOVE) {
+            this.updatePrefetchDuringGesture();
+        }
+
         // If a finger was removed, optimize the lines by removing unused
         // points.
         if (ev.getAction() == MotionEvent.ACTION_UP) {
@@ -649,6 +733,7 @@ public final class CombatView extends SurfaceView {
             // If the end of a gesture, load any newly required token images.
             if (this.mInteractionMode.getNumberOfFingers() == 0) {
                this.loadNewTokenImages();
+               this.prefetchTokenImages(0, 0);
             }
         }
         
@@ -725,7 +810,7 @@ public final class CombatView extends SurfaceView {
 
         // Make sure that any scale changes are reflected in the way that scale-independent sprites
         // (such as info points) are drawn.
-        float infoWidthScreenSpace = Units.dpToPx(INFO_POINT_SIZE_DP);
+        float infoWidthScreenSpace = Units.dpToPx(SpriteCache.INFO_POINT_SIZE_DP);
         Information.setSizeWorldSpace(
                 getData().getWorldSpaceTransformer().screenSpaceToWorldSpace(infoWidthScreenSpace));
 
@@ -848,6 +933,18 @@ public final class CombatView extends SurfaceView {
         this.setInteractionMode(new FingerDrawInteractionMode(this));
     }
 
+    /**
+     * Sets whether the map to show is still loading.  While loading, the
+     * current data is shown as a placeholder and touches are ignored.
+     *
+     * @param loading
+     *            Whether the map is loading.
+     */
+    public void setLoading(boolean loading) {
+        this.mLoading = loading;
+        this.refreshMap();
+    }
+
     public void setEditingLayerMask(boolean editingLayerMask) {
         this.mEditingMask = editingLayerMask;
         this.refreshMap();
@@ -1240,6 +1337,20 @@ public final class CombatView extends SurfaceView {
 	protected void onSizeChanged (int w, int h, int oldW, int oldH) {
 		mScrollBuffer.allocateBitmaps(w, h);
 	}
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        BackgroundImage.setTileLoadedListener(this.mBackgroundTileLoadedListener);
+        SpriteCache.setLoadedListener(this.mSpritesLoadedListener);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        BackgroundImage.setTileLoadedListener(null);
+        SpriteCache.setLoadedListener(null);
+        super.onDetachedFromWindow();
+    }
 	
 	public void scroll(float deltaXF, float deltaYF) {
 		DrawRequest req = mScrollBuffer.scroll(deltaXF, deltaYF);
@@ -1266,14 +1377,107 @@ public final class CombatView extends SurfaceView {
         mLoader = loader;
     }
 
+    /**
+     * Loads images for the tokens on screen at the resolution they are drawn at, and releases
+     * images that are no longer needed.
+     */
     private void loadNewTokenImages() {
-        Set<String> newTokenImages = mData.getVisibleTokenIds(this.getWidth(), this.getHeight());
+        Map<String, Float> visibleRadii =
+                mData.getVisibleTokenRadii(this.getWidth(), this.getHeight());
+
+        Map<String, Integer> newLevels = new HashMap<String, Integer>();
+        Map<String, Integer> toLoad = new HashMap<String, Integer>();
+        for (Map.Entry<String, Float> e : visibleRadii.entrySet()) {
+            int level = TokenImageManager.levelForRadius(e.getValue());
+            newLevels.put(e.getKey(), level);
+            Integer oldLevel = mVisibleTokenLevels.get(e.getKey());
+            if (oldLevel == null || oldLevel != level) {
+                toLoad.put(e.getKey(), level);
+            }
+        }
 
-        Set<String> toLoad = Sets.difference(newTokenImages, mVisibleTokenImages);
-        Set<String> toDiscard = Sets.difference(mVisibleTokenImages, newTokenImages);
+        if (!toLoad.isEmpty()) {
+            TokenImageManager.getInstance().requireTokenImages(toLoad, mLoader,
+                    new TokenImageManager.MultiLoadCallback() {
+                        @Override
+                        protected void imagesLoaded(Collection<String> tokenIds) {
+                            refreshMap();
+                        }
+                    }, TokenImageManager.PRIORITY_MAP);
+        }
+
+        // Release levels after requesting their replacements.  Released images stay cached
+        // until evicted, so tokens keep drawing at the old level while the new one loads.
+        for (Map.Entry<String, Integer> e : mVisibleTokenLevels.entrySet()) {
+            Integer newLevel = newLevels.get(e.getKey());
+            if (newLevel == null || !newLevel.equals(e.getValue())) {
+                mLoader.discardOrCancelTokenLoad(e.getKey(), e.getValue());
+            }
+        }
+        mVisibleTokenLevels = newLevels;
+    }
+
+    /**
+     * Measures how fast the map is being panned and prefetches token images ahead of the pan.
+     */
+    private void updatePrefetchDuringGesture() {
+        long now = SystemClock.uptimeMillis();
+        PointF origin = this.getWorldSpaceTransformer().getOrigin();
+        if (mLastPrefetchOrigin == null) {
+            mLastPrefetchOrigin = origin;
+            mLastPrefetchTime = now;
+            return;
+        }
+        long elapsed = now - mLastPrefetchTime;
+        if (elapsed < PREFETCH_INTERVAL_MS) {
+            return;
+        }
+        float velocityX = (origin.x - mLastPrefetchOrigin.x) / elapsed;
+        float velocityY = (origin.y - mLastPrefetchOrigin.y) / elapsed;
+        mLastPrefetchOrigin = origin;
+        mLastPrefetchTime = now;
+        prefetchTokenImages(velocityX, velocityY);
+    }
 
-        for (String id : toDiscard) {
-            mLoader.discardOrCancelTokenLoad(id);
+    /**
+     * Prefetches images for the tokens in a ring around the screen, at low priority.  The ring
+     * extends further on the side that the pan is bringing into view.  Images are released once
+     * their tokens are well outside the ring.
+     * @param velocityX Speed the map origin is moving on screen, in pixels per millisecond.
+     * @param velocityY Speed the map origin is moving on screen, in pixels per millisecond.
+     */
+    private void prefetchTokenImages(float velocityX, float velocityY) {
+        if (mLoader == null || mData == null) {
+            return;
+        }
+        int width = this.getWidth();
+        int height = this.getHeight();
+        float margin = Math.max(width, height) * PREFETCH_MARGIN_FRACTION;
+        float maxLead = Math.max(width, height);
+        float leadX = Math.max(-maxLead, Math.min(maxLead, velocityX * PREFETCH_LOOKAHEAD_MS));
+        float leadY = Math.max(-maxLead, Math.min(maxLead, velocityY * PREFETCH_LOOKAHEAD_MS));
+
+        // When the origin moves right, the map moves right and new parts come in from the left.
+        RectF ring = new RectF(
+                -margin - Math.max(0, leadX), -margin - Math.max(0, leadY),
+                width + margin + Math.max(0, -leadX), height + margin + Math.max(0, -leadY));
+        RectF keep = new RectF(ring);
+        keep.inset(-margin * PREFETCH_HYSTERESIS_FRACTION, -margin * PREFETCH_HYSTERESIS_FRACTION);
+
+        Map<String, Float> wantedRadii = mData.getTokenRadiiInScreenRect(ring);
+        Map<String, Float> keptRadii = mData.getTokenRadiiInScreenRect(keep);
+
+        Map<String, Integer> newLevels = new HashMap<String, Integer>();
+        Map<String, Integer> toLoad = new HashMap<String, Integer>();
+        for (Map.Entry<String, Float> e : keptRadii.entrySet()) {
+            int level = TokenImageManager.levelForRadius(e.getValue());
+            Integer oldLevel = mPrefetchedTokenLevels.get(e.getKey());
+            if (oldLevel != null && oldLevel == level) {
+                newLevels.put(e.getKey(), level);
+            } else if (wantedRadii.containsKey(e.getKey())) {
+                newLevels.put(e.getKey(), level);
+                toLoad.put(e.getKey(), level);
+            }
         }
 
         if (!toLoad.isEmpty()) {
@@ -1283,8 +1487,16 @@ public final class CombatView extends SurfaceView {
                         protected void imagesLoaded(Collection<String> tokenIds) {
                             refreshMap();
                         }
-                    });
+                    }, TokenImageManager.PRIORITY_PREFETCH);
+        }
+
+        for (Map.Entry<String, Integer> e : mPrefetchedTokenLevels.entrySet()) {
+            Integer newLevel = newLevels.get(e.getKey());
+            if (newLevel == null || !newLevel.equals(e.getValue())) {
+                mLoader.discardOrCancelTokenLoad(e.getKey(), e.getValue());
+            }
         }
+        mPrefetchedTokenLevels = newLevels;
     }
 
     /**
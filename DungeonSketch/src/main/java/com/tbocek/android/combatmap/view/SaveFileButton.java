@@ -28,6 +28,11 @@ public final class SaveFileButton extends RelativeLayout {
      */
     private final TextView mText;
 
+    /**
+     * Name of the save file.
+     */
+    private String mFileName;
+
     /**
      * Constructor.
      * 
@@ -56,7 +61,7 @@ public final class SaveFileButton extends RelativeLayout {
      * @return The filename.
      */
     public String getFileName() {
-        return this.mText.getText().toString();
+        return this.mFileName;
     }
 
     /**
@@ -66,9 +71,25 @@ public final class SaveFileButton extends RelativeLayout {
      *            The name to display.
      */
     public void setFileName(final String name) {
+        this.mFileName = name;
         this.mText.setText(name);
     }
 
+    /**
+     * Shows how far along loading this save file is.
+     *
+     * @param percent
+     *            Percentage of the file loaded, or a negative number if the
+     *            file is not loading.
+     */
+    public void setLoadProgress(final int percent) {
+        if (percent < 0) {
+            this.mText.setText(this.mFileName);
+        } else {
+            this.mText.setText(this.mFileName + " (" + percent + "%)");
+        }
+    }
+
     @Override
     public void setOnCreateContextMenuListener(
             final View.OnCreateContextMenuListener l) {
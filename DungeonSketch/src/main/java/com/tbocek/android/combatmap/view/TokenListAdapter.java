@@ -61,7 +61,7 @@ public abstract class TokenListAdapter extends ArrayAdapter<BaseToken> {
                 newTokenButton.setLoadedTokenImage(true);
                 newTokenButton.invalidate();
             }
-        });
+        }, TokenImageManager.PRIORITY_SELECTOR);
 
         return newTokenButton;
     }
@@ -3,6 +3,8 @@ package com.tbocek.android.combatmap.view;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.Build;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -10,6 +12,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ListView;
 
@@ -29,9 +32,21 @@ import java.util.List;
  */
 public final class TokenSelectorView extends LinearLayout {
     private static final String TAG = "TokenSelectorView";
+
+    /**
+     * Most tokens to show for a search.
+     */
+    private static final int MAX_SEARCH_RESULTS = 200;
+
     private final HorizontalListView mTokenLayout;
     private final int mTokenButtonDim;
     private final Button mGroupSelector;
+    private final EditText mSearchBox;
+
+    /**
+     * Path of the tag whose tokens are shown when not searching.
+     */
+    private String mSelectedTagPath = TokenDatabase.ALL;
 
 
     private OnTokenSelectedListener mOnTokenSelectedListener;
@@ -104,6 +119,22 @@ public final class TokenSelectorView extends LinearLayout {
         this.mGroupSelector =
                 (Button) this.findViewById(R.id.token_category_selector_button);
 
+        this.mSearchBox = (EditText) this.findViewById(R.id.token_search_box);
+        this.mSearchBox.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateTokens();
+            }
+        });
+
         this.mTokenLayout.setOnItemSelectedListener(new HorizontalListView.OnItemSelectedListener() {
 
             @Override
@@ -140,10 +171,22 @@ public final class TokenSelectorView extends LinearLayout {
     }
 
     public void setSelectedTag(String path, CombatView combatView) {
+        this.mSelectedTagPath = path;
+        this.updateTokens();
+    }
+
+    /**
+     * Shows the tokens matching the search box, or the tokens in the selected
+     * tag if the search box is empty.
+     */
+    private void updateTokens() {
         TokenDatabase db = TokenDatabase.getInstanceOrNull();
         if (db == null) return;
 
-        List<BaseToken> tokens = db.getTokensForTag(path);
+        String query = this.mSearchBox.getText().toString().trim();
+        List<BaseToken> tokens = query.length() == 0
+                ? db.getTokensForTag(this.mSelectedTagPath)
+                : db.searchTokens(query, MAX_SEARCH_RESULTS);
 
         this.mTokenLayout.setAdapter(new Adapter(tokens));
     }
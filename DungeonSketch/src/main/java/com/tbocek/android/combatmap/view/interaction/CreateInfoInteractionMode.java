@@ -40,6 +40,7 @@ public class CreateInfoInteractionMode extends BaseDrawInteractionMode  {
                                 new PointF(arg0.getX(), arg0.getY()));
         Shape t = findShape(p);
         if (t != null) {
+            this.getView().getActiveLines().beforeEdit();
             t.setDrawOffset(this.getView().getWorldSpaceTransformer()
                     .screenSpaceToWorldSpace(arg1.getX() - arg0.getX()), this
                     .getView().getWorldSpaceTransformer()
@@ -77,6 +77,7 @@ public class FingerDrawInteractionMode extends BaseDrawInteractionMode {
         redrawRect.updateBounds(mCurrentLine.getBoundingRectangle());
         
         // Need to transform to world space.
+        this.getView().getActiveLines().beforeEdit();
         this.mCurrentLine.addPoint(this.getView().getWorldSpaceTransformer()
                 .screenSpaceToWorldSpace(p));
 
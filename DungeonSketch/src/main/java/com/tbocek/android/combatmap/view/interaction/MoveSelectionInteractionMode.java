@@ -44,6 +44,7 @@ public class MoveSelectionInteractionMode extends BaseDrawInteractionMode {
         mLastSnappedPoint = newPoint;
 
         if (this.getNumberOfFingers() == 1) {
+            getView().getActiveLines().beforeEdit();
             getView().getSelection().setTemporaryOffset(
                     t.screenSpaceToWorldSpace(newPoint.x - startPoint.x),
                     t.screenSpaceToWorldSpace(newPoint.y - startPoint.y),
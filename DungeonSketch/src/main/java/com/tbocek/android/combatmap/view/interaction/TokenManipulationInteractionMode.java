@@ -3,16 +3,17 @@ package com.tbocek.android.combatmap.view.interaction;
 import android.animation.ValueAnimator;
 import android.annotation.TargetApi;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.Log;
 import android.view.MotionEvent;
 
 import com.google.common.collect.Lists;
 import com.tbocek.android.combatmap.DeveloperMode;
+import com.tbocek.android.combatmap.SpriteCache;
 import com.tbocek.android.combatmap.TokenDatabase;
 import com.tbocek.android.combatmap.model.primitives.BaseToken;
 import com.tbocek.android.combatmap.model.primitives.BoundingRectangle;
@@ -64,12 +65,6 @@ public final class TokenManipulationInteractionMode extends
      */
     private boolean mAboutToTrash;
 
-    /**
-     * Cached value of whether drawing against a dark background. Used to detect
-     * theme changes.
-     */
-    private boolean mCachedDark;
-
     /**
      * The token that the user clicked on to start a drag operation. Will be
      * used to determine snapping to grid.
@@ -123,14 +118,9 @@ public final class TokenManipulationInteractionMode extends
     private ValueAnimator.AnimatorUpdateListener mTrashCanFadeListener = null;
 
     /**
-     * Cached drawable for a trash can to move tokens to.
-     */
-    private Drawable mTrashDrawable;
-
-    /**
-     * Cached drawable for the trash can image when a token is dragged to it.
+     * Paint used to fade the trash can.
      */
-    private Drawable mTrashHoverDrawable;
+    private final Paint mTrashCanPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     /**
      * Constructor.
@@ -177,14 +167,10 @@ public final class TokenManipulationInteractionMode extends
 
         if (this.mTrashCanAlpha != 0) {
             // Draw a trash can to drag tokens to.
-            this.ensureTrashCanDrawablesCreated();
-
-            if (this.mAboutToTrash) {
-                this.mTrashHoverDrawable.setAlpha(this.mTrashCanAlpha);
-                this.mTrashHoverDrawable.draw(c);
-            } else {
-                this.mTrashDrawable.setAlpha(this.mTrashCanAlpha);
-                this.mTrashDrawable.draw(c);
+            Bitmap trashCan = SpriteCache.get(this.getTrashCanSprite());
+            if (trashCan != null) {
+                this.mTrashCanPaint.setAlpha(this.mTrashCanAlpha);
+                c.drawBitmap(trashCan, null, this.mTrashCanRect, this.mTrashCanPaint);
             }
         }
 
@@ -199,29 +185,15 @@ public final class TokenManipulationInteractionMode extends
     }
 
     /**
-     * Checks whether trash can drawables need to be created, and creates them
-     * if needed.
+     * @return The trash can sprite to draw for the current hover state and
+     *         grid theme.
      */
-    private void ensureTrashCanDrawablesCreated() {
-        if (this.mTrashDrawable == null
-                || this.mCachedDark != this.getData().getGrid().isDark()) {
-            if (this.getData().getGrid().isDark()) {
-                this.mTrashDrawable =
-                        this.getView().getResources()
-                                .getDrawable(R.drawable.trashcan);
-            } else {
-                this.mTrashDrawable =
-                        this.getView().getResources()
-                                .getDrawable(R.drawable.trashcan_dark);
-            }
-
-            this.mCachedDark = this.getData().getGrid().isDark();
-            this.mTrashDrawable.setBounds(mTrashCanRect);
-            this.mTrashHoverDrawable =
-                    this.getView().getResources()
-                            .getDrawable(R.drawable.trashcan_hover_over);
-            this.mTrashHoverDrawable.setBounds(mTrashCanRect);
+    private SpriteCache.Sprite getTrashCanSprite() {
+        if (this.mAboutToTrash) {
+            return SpriteCache.Sprite.TRASH_CAN_HOVER;
         }
+        return this.getData().getGrid().isDark()
+                ? SpriteCache.Sprite.TRASH_CAN : SpriteCache.Sprite.TRASH_CAN_DARK;
     }
 
     /**
@@ -396,6 +368,7 @@ public final class TokenManipulationInteractionMode extends
                 deltaY = transformer.screenSpaceToWorldSpace(distanceY);
             }
             BoundingRectangle redrawRect = new BoundingRectangle();
+            this.getView().getTokens().beforeEdit();
             for (BaseToken t : this.mMovedTokens) {
             	// Update the redraw bounds with both the before and after state
             	// of this token.
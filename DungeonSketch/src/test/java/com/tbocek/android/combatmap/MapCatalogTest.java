@@ -0,0 +1,279 @@
+package com.tbocek.android.combatmap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the map catalog's bookkeeping: picking up maps that changed on disk,
+ * keeping records across reopening, recovering from a record cut short, and
+ * rewriting the log once it grows long.
+ *
+ * @author Tim Bocek
+ *
+ */
+public class MapCatalogTest {
+    private static final int[] LAYER_COUNTS = {1, 2, 3, 4, 5};
+
+    private File mDir;
+
+    private File mCatalogFile;
+
+    /**
+     * Saved map directory that makes a thumbnail from each map's name, and
+     * counts the thumbnails made.
+     */
+    private final class TestSource implements MapCatalog.Source {
+        private int mThumbnailsLoaded;
+
+        @Override
+        public Collection<String> getSavedMaps() {
+            Collection<String> names = new TreeSet<String>();
+            for (String f : mDir.list()) {
+                if (f.endsWith(".map")) {
+                    names.add(f.substring(0, f.length() - ".map".length()));
+                }
+            }
+            return names;
+        }
+
+        @Override
+        public File getMapFile(String name) {
+            return new File(mDir, name + ".map");
+        }
+
+        @Override
+        public File getJournalFile(String name) {
+            return new File(mDir, name + ".journal");
+        }
+
+        @Override
+        public byte[] loadThumbnail(String name) {
+            this.mThumbnailsLoaded++;
+            return thumbnail(name);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.mDir = File.createTempFile("MapCatalogTest", "");
+        assertTrue(this.mDir.delete());
+        assertTrue(this.mDir.mkdir());
+        this.mCatalogFile = new File(this.mDir, "maps.catalog");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : this.mDir.listFiles()) {
+            f.delete();
+        }
+        this.mDir.delete();
+    }
+
+    @Test
+    public void getEntries_newMaps_catalogsThemInNameOrder() throws IOException {
+        this.writeMap("b", 10, 1000);
+        this.writeMap("a", 20, 2000);
+        TestSource source = new TestSource();
+
+        List<MapCatalog.Entry> entries = new MapCatalog(this.mCatalogFile).getEntries(source);
+
+        assertEquals(Arrays.asList("a", "b"), names(entries));
+        MapCatalog.Entry a = entries.get(0);
+        assertEquals(2000, a.getModified());
+        assertEquals(20, a.getSize());
+        assertEquals(-1, a.getLayerCount(MapCatalog.LAYER_TOKENS));
+        assertArrayEquals(thumbnail("a"), a.getThumbnail());
+        assertEquals(2, source.mThumbnailsLoaded);
+    }
+
+    @Test
+    public void getEntries_reopenedCatalog_loadsNoThumbnails() throws IOException {
+        this.writeMap("a", 10, 1000);
+        this.writeMap("b", 10, 1000);
+        new MapCatalog(this.mCatalogFile).getEntries(new TestSource());
+
+        TestSource source = new TestSource();
+        List<MapCatalog.Entry> entries = new MapCatalog(this.mCatalogFile).getEntries(source);
+
+        assertEquals(Arrays.asList("a", "b"), names(entries));
+        assertArrayEquals(thumbnail("b"), entries.get(1).getThumbnail());
+        assertEquals(0, source.mThumbnailsLoaded);
+    }
+
+    @Test
+    public void getEntries_mapChangedOnDisk_reloadsItAndForgetsLayerCounts()
+            throws IOException {
+        this.writeMap("a", 10, 1000);
+        this.writeMap("b", 10, 1000);
+        MapCatalog catalog = new MapCatalog(this.mCatalogFile);
+        catalog.updateMap("a", new File(this.mDir, "a.map"), new File(this.mDir, "a.journal"),
+                LAYER_COUNTS);
+        this.writeMap("a", 30, 3000);
+
+        TestSource source = new TestSource();
+        List<MapCatalog.Entry> entries = new MapCatalog(this.mCatalogFile).getEntries(source);
+
+        MapCatalog.Entry a = entries.get(0);
+        assertEquals(3000, a.getModified());
+        assertEquals(30, a.getSize());
+        assertEquals(-1, a.getLayerCount(MapCatalog.LAYER_BACKGROUND_IMAGES));
+        // Only the changed map, plus b, which was never cataloged.
+        assertEquals(2, source.mThumbnailsLoaded);
+    }
+
+    @Test
+    public void getEntries_mapDeletedOnDisk_dropsIt() throws IOException {
+        this.writeMap("a", 10, 1000);
+        this.writeMap("b", 10, 1000);
+        new MapCatalog(this.mCatalogFile).getEntries(new TestSource());
+        assertTrue(new File(this.mDir, "a.map").delete());
+
+        assertEquals(Arrays.asList("b"), names(
+                new MapCatalog(this.mCatalogFile).getEntries(new TestSource())));
+        assertEquals(Arrays.asList("b"), names(
+                new MapCatalog(this.mCatalogFile).getEntries(new TestSource())));
+    }
+
+    @Test
+    public void updates_reopenedCatalog_keepsLatestRecords() throws IOException {
+        this.writeMap("a", 10, 1000);
+        this.writeMap("b", 10, 1000);
+        MapCatalog catalog = new MapCatalog(this.mCatalogFile);
+        catalog.updateMap("a", new File(this.mDir, "a.map"), new File(this.mDir, "a.journal"),
+                LAYER_COUNTS);
+        catalog.updateThumbnail("a", new byte[] {1});
+        catalog.updateThumbnail("a", new byte[] {2});
+        catalog.updateMap("b", new File(this.mDir, "b.map"), new File(this.mDir, "b.journal"),
+                LAYER_COUNTS);
+        catalog.remove("b");
+
+        TestSource source = new TestSource();
+        List<MapCatalog.Entry> entries = new MapCatalog(this.mCatalogFile).getEntries(source);
+
+        MapCatalog.Entry a = entries.get(0);
+        assertEquals("a", a.getName());
+        assertEquals(4, a.getLayerCount(MapCatalog.LAYER_GM_NOTE_LINES));
+        assertArrayEquals(new byte[] {2}, a.getThumbnail());
+        // b is still on disk, so it is cataloged again, without layer counts.
+        assertEquals(-1, entries.get(1).getLayerCount(MapCatalog.LAYER_TOKENS));
+        assertEquals(1, source.mThumbnailsLoaded);
+    }
+
+    @Test
+    public void getEntries_catalogEndsInPartialRecord_keepsEarlierRecords()
+            throws IOException {
+        this.writeMap("a", 10, 1000);
+        MapCatalog catalog = new MapCatalog(this.mCatalogFile);
+        catalog.updateMap("a", new File(this.mDir, "a.map"), new File(this.mDir, "a.journal"),
+                LAYER_COUNTS);
+        long complete = this.mCatalogFile.length();
+        catalog.updateThumbnail("a", new byte[100]);
+        // As if the process died halfway through appending the thumbnail.
+        truncate(this.mCatalogFile, complete + 50);
+
+        catalog = new MapCatalog(this.mCatalogFile);
+        TestSource source = new TestSource();
+        MapCatalog.Entry a = catalog.getEntries(source).get(0);
+        assertEquals(5, a.getLayerCount(MapCatalog.LAYER_BACKGROUND_IMAGES));
+        assertNull(a.getThumbnail());
+        assertEquals(0, source.mThumbnailsLoaded);
+
+        // The next change rewrites the log rather than appending to the
+        // partial record.
+        catalog.updateThumbnail("a", new byte[] {3});
+        a = new MapCatalog(this.mCatalogFile).getEntries(new TestSource()).get(0);
+        assertEquals(5, a.getLayerCount(MapCatalog.LAYER_BACKGROUND_IMAGES));
+        assertArrayEquals(new byte[] {3}, a.getThumbnail());
+    }
+
+    @Test
+    public void getEntries_unknownFormat_rebuildsCatalog() throws IOException {
+        this.writeMap("a", 10, 1000);
+        FileOutputStream out = new FileOutputStream(this.mCatalogFile);
+        out.write(new byte[] {'n', 'o', 't', ' ', 'a', ' ', 'c', 'a', 't', 'a', 'l', 'o', 'g'});
+        out.close();
+
+        TestSource source = new TestSource();
+        List<MapCatalog.Entry> entries = new MapCatalog(this.mCatalogFile).getEntries(source);
+
+        assertEquals(Arrays.asList("a"), names(entries));
+        assertEquals(1, source.mThumbnailsLoaded);
+        TestSource reopened = new TestSource();
+        new MapCatalog(this.mCatalogFile).getEntries(reopened);
+        assertEquals(0, reopened.mThumbnailsLoaded);
+    }
+
+    @Test
+    public void updateThumbnail_manyUpdates_rewritesLogInsteadOfGrowingIt()
+            throws IOException {
+        this.writeMap("a", 10, 1000);
+        MapCatalog catalog = new MapCatalog(this.mCatalogFile);
+        catalog.getEntries(new TestSource());
+        long oneUpdate = this.mCatalogFile.length();
+        catalog.updateThumbnail("a", new byte[100]);
+        oneUpdate = this.mCatalogFile.length() - oneUpdate;
+
+        for (int i = 0; i < 500; ++i) {
+            catalog.updateThumbnail("a", new byte[100]);
+        }
+
+        // Never more than two records per entry plus 64 extra.
+        assertTrue("Catalog is " + this.mCatalogFile.length() + " bytes",
+                this.mCatalogFile.length() < 70 * oneUpdate);
+        assertArrayEquals(new byte[100],
+                new MapCatalog(this.mCatalogFile).getEntries(new TestSource()).get(0)
+                        .getThumbnail());
+    }
+
+    /**
+     * Writes a map file of the given size and modification time.
+     */
+    private void writeMap(String name, int size, long modified) throws IOException {
+        File f = new File(this.mDir, name + ".map");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[size]);
+        out.close();
+        assertTrue(f.setLastModified(modified));
+    }
+
+    private static byte[] thumbnail(String name) {
+        try {
+            return ("thumbnail of " + name).getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> names(List<MapCatalog.Entry> entries) {
+        List<String> names = new ArrayList<String>();
+        for (MapCatalog.Entry e : entries) {
+            names.add(e.getName());
+        }
+        return names;
+    }
+
+    private static void truncate(File f, long length) throws IOException {
+        RandomAccessFile r = new RandomAccessFile(f, "rw");
+        try {
+            r.setLength(length);
+        } finally {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.tbocek.android.combatmap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the save scheduler's coalescing, debounce, priority order and
+ * bookkeeping, and that handing over from one worker to the next never runs
+ * two jobs with the same key at once.
+ *
+ * @author Tim Bocek
+ *
+ */
+public class SaveSchedulerTest {
+    /**
+     * Debounce and maximum delay used by the tests, short enough to keep the
+     * tests fast but long enough to measure.
+     */
+    private static final long DEBOUNCE_MS = 100;
+    private static final long MAX_DELAY_MS = 300;
+
+    /**
+     * Slack allowed for thread scheduling when checking how long take()
+     * waited.
+     */
+    private static final long SLACK_MS = 50;
+
+    private SaveScheduler mScheduler;
+
+    private int mGeneration;
+
+    /**
+     * Jobs that were discarded, in order.
+     */
+    private final List<String> mDiscarded =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Job that records when it is discarded.
+     */
+    private final class TestJob extends SaveScheduler.Job {
+        private final String mName;
+
+        TestJob(String key, int priority, String name) {
+            super(key, priority);
+            this.mName = name;
+        }
+
+        @Override
+        void run() {
+        }
+
+        @Override
+        void discard() {
+            SaveSchedulerTest.this.mDiscarded.add(this.mName);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        this.mScheduler = new SaveScheduler(DEBOUNCE_MS, MAX_DELAY_MS);
+        this.mGeneration = this.mScheduler.start();
+    }
+
+    @Test
+    public void schedule_sameKey_replacesPendingJob() throws InterruptedException {
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "first"));
+        TestJob second = new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "second");
+        this.mScheduler.schedule(second);
+
+        assertEquals(1, this.mScheduler.getQueueDepth());
+        assertEquals(Collections.singletonList("first"), this.mDiscarded);
+        assertSame(second, this.mScheduler.take(this.mGeneration));
+        assertEquals(0, this.mScheduler.getQueueDepth());
+    }
+
+    @Test
+    public void take_waitsOutDebounce() throws InterruptedException {
+        long start = SaveScheduler.uptimeMillis();
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "a"));
+        SaveScheduler.Job job = this.mScheduler.take(this.mGeneration);
+
+        long waited = SaveScheduler.uptimeMillis() - start;
+        assertTrue("Waited " + waited + "ms", waited >= DEBOUNCE_MS);
+        assertTrue("Latency " + job.getLatencyMillis() + "ms",
+                job.getLatencyMillis() >= DEBOUNCE_MS);
+    }
+
+    @Test
+    public void take_repeatedRequests_delayedAtMostMaxDelay() throws InterruptedException {
+        final long start = SaveScheduler.uptimeMillis();
+        final CountDownLatch taken = new CountDownLatch(1);
+        Thread requests = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Keeps pushing the job back, for far longer than the
+                // maximum delay.
+                while (taken.getCount() > 0
+                        && SaveScheduler.uptimeMillis() - start < 4 * MAX_DELAY_MS) {
+                    mScheduler.schedule(
+                            new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "a"));
+                    try {
+                        Thread.sleep(DEBOUNCE_MS / 4);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        requests.start();
+        try {
+            this.mScheduler.take(this.mGeneration);
+            long waited = SaveScheduler.uptimeMillis() - start;
+            assertTrue("Waited " + waited + "ms", waited >= MAX_DELAY_MS - SLACK_MS);
+            assertTrue("Waited " + waited + "ms", waited < MAX_DELAY_MS + SLACK_MS * 2);
+        } finally {
+            taken.countDown();
+            requests.join();
+        }
+    }
+
+    @Test
+    public void take_dueJobs_runInPriorityThenRequestOrder() throws InterruptedException {
+        this.mScheduler.schedule(
+                new TestJob("preview:a", SaveScheduler.PRIORITY_PREVIEW, "preview"));
+        this.mScheduler.schedule(
+                new TestJob("token_database", SaveScheduler.PRIORITY_TOKEN_DATABASE, "db"));
+        this.mScheduler.schedule(new TestJob("map:b", SaveScheduler.PRIORITY_MAP, "b"));
+        // Requested later, so it runs after map:b.
+        Thread.sleep(2);
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "a"));
+        Thread.sleep(DEBOUNCE_MS + SLACK_MS);
+
+        List<String> order = new ArrayList<String>();
+        for (int i = 0; i < 4; ++i) {
+            SaveScheduler.Job job = this.mScheduler.take(this.mGeneration);
+            order.add(job.getKey());
+            this.mScheduler.jobFinished(job);
+        }
+        assertEquals(Arrays.asList("map:b", "map:a", "token_database", "preview:a"),
+                order);
+    }
+
+    @Test
+    public void cancel_discardsPendingJob() {
+        this.mScheduler.schedule(new TestJob("preview:a", SaveScheduler.PRIORITY_PREVIEW, "p"));
+        this.mScheduler.cancel("preview:a");
+
+        assertEquals(0, this.mScheduler.getQueueDepth());
+        assertEquals(Collections.singletonList("p"), this.mDiscarded);
+    }
+
+    @Test
+    public void shutdown_runsPendingJobsAtOnceThenStops() throws InterruptedException {
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "a"));
+        this.mScheduler.shutdown(this.mGeneration);
+
+        long start = SaveScheduler.uptimeMillis();
+        SaveScheduler.Job job = this.mScheduler.take(this.mGeneration);
+        assertTrue(SaveScheduler.uptimeMillis() - start < DEBOUNCE_MS);
+        this.mScheduler.jobFinished(job);
+        assertNull(this.mScheduler.take(this.mGeneration));
+    }
+
+    @Test
+    public void start_retiresDrainingWorker() throws InterruptedException {
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "a"));
+        this.mScheduler.schedule(new TestJob("map:b", SaveScheduler.PRIORITY_MAP, "b"));
+        this.mScheduler.shutdown(this.mGeneration);
+        int oldWorker = this.mGeneration;
+        SaveScheduler.Job running = this.mScheduler.take(oldWorker);
+
+        // The next service starts while the old worker is still running its
+        // job. The old worker gets nothing more, and the old service's
+        // shutdown no longer applies.
+        int newWorker = this.mScheduler.start();
+        this.mScheduler.shutdown(oldWorker);
+        assertNull(this.mScheduler.take(oldWorker));
+        SaveScheduler.Job next = this.mScheduler.take(newWorker);
+        assertFalse(next.getKey().equals(running.getKey()));
+        this.mScheduler.jobFinished(next);
+        this.mScheduler.jobFinished(running);
+    }
+
+    @Test
+    public void take_sameKeyRunning_waitsForItToFinish() throws Exception {
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "old"));
+        this.mScheduler.shutdown(this.mGeneration);
+        final SaveScheduler.Job old = this.mScheduler.take(this.mGeneration);
+
+        // A newer save of the same map, taken by the next worker.
+        final int newWorker = this.mScheduler.start();
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "new"));
+        this.mScheduler.shutdown(newWorker);
+        final AtomicReference<SaveScheduler.Job> taken =
+                new AtomicReference<SaveScheduler.Job>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(mScheduler.take(newWorker));
+                } catch (InterruptedException e) {
+                    // Leaves taken null.
+                }
+                done.countDown();
+            }
+        });
+        worker.start();
+
+        assertFalse(done.await(DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+        this.mScheduler.jobFinished(old);
+        assertTrue(done.await(DEBOUNCE_MS * 10, TimeUnit.MILLISECONDS));
+        assertEquals("map:a", taken.get().getKey());
+        worker.join();
+    }
+
+    @Test
+    public void awaitIdle_runsPendingJobsAndWaitsForThem() throws Exception {
+        this.mScheduler.schedule(new TestJob("map:a", SaveScheduler.PRIORITY_MAP, "a"));
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SaveScheduler.Job job = mScheduler.take(mGeneration);
+                    Thread.sleep(DEBOUNCE_MS);
+                    ran.add(job.getKey());
+                    mScheduler.jobFinished(job);
+                } catch (InterruptedException e) {
+                    // Leaves ran empty.
+                }
+            }
+        });
+        worker.start();
+
+        long start = SaveScheduler.uptimeMillis();
+        this.mScheduler.awaitIdle(MAX_DELAY_MS * 10);
+        // The job was made due at once, so only its run time was waited out.
+        assertTrue(SaveScheduler.uptimeMillis() - start < DEBOUNCE_MS * 2 + SLACK_MS);
+        assertEquals(Collections.singletonList("map:a"), ran);
+        worker.join();
+    }
+
+    @Test
+    public void recordSaveLatency_reportsMostRecent() {
+        assertEquals(-1, this.mScheduler.getLastSaveLatencyMillis());
+        this.mScheduler.recordSaveLatency(120);
+        this.mScheduler.recordSaveLatency(80);
+        assertEquals(80, this.mScheduler.getLastSaveLatencyMillis());
+    }
+}
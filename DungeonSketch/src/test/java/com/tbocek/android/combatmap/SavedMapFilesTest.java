@@ -0,0 +1,302 @@
+package com.tbocek.android.combatmap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that saves leave the saved map directory readable if the process
+ * dies at any step of them. The process dying is simulated by a step
+ * listener that throws at the chosen step; the directory is then opened
+ * again as a new process would, and checked.
+ *
+ * @author Tim Bocek
+ *
+ */
+public class SavedMapFilesTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    /**
+     * Thrown by the step listener to stop a save the way the process dying
+     * would: nothing after the step runs, including cleanup.
+     */
+    private static final class SimulatedCrash extends RuntimeException {
+        private static final long serialVersionUID = 4851402723531180846L;
+    }
+
+    /**
+     * Step listener that simulates a crash at the given step, counting every
+     * step of every atomic write in order.
+     */
+    private static final class CrashAtStep implements SavedMapFiles.StepListener {
+        private final int mCrashStep;
+        private int mSteps;
+
+        CrashAtStep(int crashStep) {
+            this.mCrashStep = crashStep;
+        }
+
+        @Override
+        public void stepReached(File target, SavedMapFiles.Step step) {
+            if (this.mSteps++ == this.mCrashStep) {
+                throw new SimulatedCrash();
+            }
+        }
+    }
+
+    /**
+     * A save, run from start to finish or until a simulated crash.
+     */
+    private interface Save {
+        void run(SavedMapFiles files) throws IOException;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        this.mDirectory = this.mFolder.newFolder("maps");
+    }
+
+    @After
+    public void tearDown() {
+        SavedMapFiles.setStepListener(null);
+    }
+
+    @Test
+    public void writeAtomically_crashAtEachStep_keepsOldOrNewContents() throws IOException {
+        final File target = new File(this.mDirectory, "map1.map");
+        for (int crashStep = 0; ; ++crashStep) {
+            FileUtils.writeStringToFile(target, "old contents", "UTF-8");
+            boolean crashed = this.runWithCrash(crashStep, new Save() {
+                @Override
+                public void run(SavedMapFiles files) throws IOException {
+                    SavedMapFiles.writeAtomically(target, contents("new contents"));
+                }
+            });
+
+            String read = FileUtils.readFileToString(target, "UTF-8");
+            if (crashStep < SavedMapFiles.Step.RENAMED.ordinal()) {
+                assertTrue("Crash at step " + crashStep, crashed);
+                assertEquals("old contents", read);
+            } else {
+                assertEquals("new contents", read);
+            }
+            this.assertRecovered();
+            if (!crashed) {
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void writeAtomically_crashBeforeRename_leavesNoTarget() throws IOException {
+        final File target = new File(this.mDirectory, "map1.map");
+        for (int crashStep = 0; crashStep < SavedMapFiles.Step.RENAMED.ordinal(); ++crashStep) {
+            assertTrue(this.runWithCrash(crashStep, new Save() {
+                @Override
+                public void run(SavedMapFiles files) throws IOException {
+                    SavedMapFiles.writeAtomically(target, contents("new contents"));
+                }
+            }));
+            assertFalse(target.exists());
+            this.assertRecovered();
+        }
+    }
+
+    @Test
+    public void writeAtomically_writeError_leavesTargetAndNoPartialFile() throws IOException {
+        File target = new File(this.mDirectory, "map1.map");
+        FileUtils.writeStringToFile(target, "old contents", "UTF-8");
+        try {
+            SavedMapFiles.writeAtomically(target, new SavedMapFiles.Contents() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write("new".getBytes("UTF-8"));
+                    throw new IOException("Disk full");
+                }
+            });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals("old contents", FileUtils.readFileToString(target, "UTF-8"));
+        assertEquals(0, this.partialFiles().length);
+    }
+
+    @Test
+    public void namedSave_crashAtEachStep_tempMapResolvesToCompleteSave() throws IOException {
+        for (int crashStep = 0; ; ++crashStep) {
+            this.reset();
+            SavedMapFiles files = new SavedMapFiles(this.mDirectory);
+            FileUtils.writeStringToFile(files.getMapFile("first"), "first contents", "UTF-8");
+            files.linkTempMapTo("first");
+
+            // Same order as DataManager.saveMapName: the map, then the link.
+            boolean crashed = this.runWithCrash(crashStep, new Save() {
+                @Override
+                public void run(SavedMapFiles files) throws IOException {
+                    SavedMapFiles.writeAtomically(files.getMapFile("second"),
+                            contents("second contents"));
+                    files.linkTempMapTo("second");
+                }
+            });
+
+            files = this.assertRecovered();
+            String resolved = files.resolveMapName(SavedMapFiles.TEMP_MAP_NAME);
+            String read = FileUtils.readFileToString(files.getMapFile(resolved), "UTF-8");
+            if (resolved.equals("first")) {
+                assertTrue("Crash at step " + crashStep, crashed);
+                assertEquals("first contents", read);
+            } else {
+                assertEquals("second", resolved);
+                assertEquals("second contents", read);
+            }
+            if (!crashed) {
+                assertEquals("second", resolved);
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void autosave_crashAtEachStep_tempMapResolvesToCompleteSave() throws IOException {
+        for (int crashStep = 0; ; ++crashStep) {
+            this.reset();
+            SavedMapFiles files = new SavedMapFiles(this.mDirectory);
+            FileUtils.writeStringToFile(files.getMapFile("first"), "first contents", "UTF-8");
+            FileUtils.writeStringToFile(files.getMapFile(SavedMapFiles.TEMP_MAP_NAME),
+                    "stale autosave", "UTF-8");
+            files.linkTempMapTo("first");
+
+            // Same order as DataManager.saveMapName for the temporary map.
+            boolean crashed = this.runWithCrash(crashStep, new Save() {
+                @Override
+                public void run(SavedMapFiles files) throws IOException {
+                    SavedMapFiles.writeAtomically(
+                            files.getMapFile(SavedMapFiles.TEMP_MAP_NAME),
+                            contents("new autosave"));
+                    assertTrue(files.removeTempMapLink());
+                }
+            });
+
+            files = this.assertRecovered();
+            String resolved = files.resolveMapName(SavedMapFiles.TEMP_MAP_NAME);
+            String read = FileUtils.readFileToString(files.getMapFile(resolved), "UTF-8");
+            if (resolved.equals("first")) {
+                assertTrue("Crash at step " + crashStep, crashed);
+                assertEquals("first contents", read);
+            } else {
+                assertEquals(SavedMapFiles.TEMP_MAP_NAME, resolved);
+                assertEquals("new autosave", read);
+            }
+            if (!crashed) {
+                assertEquals(SavedMapFiles.TEMP_MAP_NAME, resolved);
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void resolveMapName_linkToMissingMap_fallsBackToTempMap() throws IOException {
+        // What deleting the linked map leaves behind if the process dies
+        // after its file was moved to the temporary map, but before the link
+        // was removed.
+        SavedMapFiles files = new SavedMapFiles(this.mDirectory);
+        FileUtils.writeStringToFile(files.getMapFile(SavedMapFiles.TEMP_MAP_NAME),
+                "moved contents", "UTF-8");
+        files.linkTempMapTo("deleted");
+
+        assertEquals(SavedMapFiles.TEMP_MAP_NAME,
+                files.resolveMapName(SavedMapFiles.TEMP_MAP_NAME));
+    }
+
+    @Test
+    public void resolveMapName_namedMap_ignoresLink() throws IOException {
+        SavedMapFiles files = new SavedMapFiles(this.mDirectory);
+        FileUtils.writeStringToFile(files.getMapFile("first"), "first contents", "UTF-8");
+        files.linkTempMapTo("first");
+
+        assertEquals("second", files.resolveMapName("second"));
+    }
+
+    @Test
+    public void deletePartialFiles_deletesOnlyPartialFiles() throws IOException {
+        SavedMapFiles files = new SavedMapFiles(this.mDirectory);
+        FileUtils.writeStringToFile(files.getMapFile("first"), "first contents", "UTF-8");
+        FileUtils.writeStringToFile(new File(this.mDirectory,
+                "first.map" + SavedMapFiles.PARTIAL_EXTENSION), "half", "UTF-8");
+        FileUtils.writeStringToFile(new File(this.mDirectory,
+                "tmp.link" + SavedMapFiles.PARTIAL_EXTENSION), "fir", "UTF-8");
+
+        assertEquals(2, files.deletePartialFiles());
+        assertEquals(0, this.partialFiles().length);
+        assertTrue(files.getMapFile("first").exists());
+    }
+
+    /**
+     * Runs a save, simulating a crash at the given step.
+     *
+     * @return True if the save crashed, false if it finished first.
+     */
+    private boolean runWithCrash(int crashStep, Save save) throws IOException {
+        SavedMapFiles.setStepListener(new CrashAtStep(crashStep));
+        try {
+            save.run(new SavedMapFiles(this.mDirectory));
+            return false;
+        } catch (SimulatedCrash e) {
+            return true;
+        } finally {
+            SavedMapFiles.setStepListener(null);
+        }
+    }
+
+    /**
+     * Opens the saved map directory as a new process would, and checks that
+     * nothing half written is left in it.
+     *
+     * @return The reopened directory.
+     */
+    private SavedMapFiles assertRecovered() {
+        SavedMapFiles files = new SavedMapFiles(this.mDirectory);
+        files.deletePartialFiles();
+        assertEquals(0, this.partialFiles().length);
+        return files;
+    }
+
+    private File[] partialFiles() {
+        return this.mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SavedMapFiles.PARTIAL_EXTENSION);
+            }
+        });
+    }
+
+    private void reset() throws IOException {
+        FileUtils.cleanDirectory(this.mDirectory);
+    }
+
+    private static SavedMapFiles.Contents contents(final String text) {
+        return new SavedMapFiles.Contents() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(text.getBytes("UTF-8"));
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+package com.tbocek.android.combatmap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests prefix matching and ranking in the token search index, and that it
+ * stays correct as tokens are retagged and removed.
+ *
+ * @author Tim Bocek
+ *
+ */
+public class TokenSearchIndexTest {
+    private TokenSearchIndex mIndex;
+
+    @Before
+    public void setUp() {
+        this.mIndex = new TokenSearchIndex();
+        this.mIndex.addName("BuiltInImageToken:oaken_man", "Oaken Man");
+        this.mIndex.addTag("BuiltInImageToken:oaken_man", "Monsters:Plant");
+        this.mIndex.addName("BuiltInImageToken:orc_warrior", "Orc Warrior");
+        this.mIndex.addTag("BuiltInImageToken:orc_warrior", "Humanoid:Orc");
+        this.mIndex.addName("LetterToken:W", "Letter W");
+        this.mIndex.addTag("LetterToken:W", "Letters");
+    }
+
+    @Test
+    public void search_prefixOfNameWord_matches() {
+        assertEquals(Collections.singleton("BuiltInImageToken:orc_warrior"),
+                this.mIndex.search("war").keySet());
+        assertEquals(new HashSet<String>(Arrays.asList(
+                "BuiltInImageToken:oaken_man", "BuiltInImageToken:orc_warrior")),
+                this.mIndex.search("O").keySet());
+    }
+
+    @Test
+    public void search_everyWordMustMatch() {
+        assertEquals(Collections.singleton("BuiltInImageToken:oaken_man"),
+                this.mIndex.search("oak plant").keySet());
+        assertTrue(this.mIndex.search("oak orc").isEmpty());
+        assertTrue(this.mIndex.search("").isEmpty());
+    }
+
+    @Test
+    public void search_tokenId_matches() {
+        assertEquals(Collections.singleton("BuiltInImageToken:oaken_man"),
+                this.mIndex.search("oaken_m").keySet());
+        assertEquals(Collections.singleton("LetterToken:W"),
+                this.mIndex.search("lettertok").keySet());
+    }
+
+    @Test
+    public void search_ranksNameOverTagAndWholeWordOverPrefix() {
+        // "orc" is a whole word of one name, and only a tag of nothing else;
+        // "orc" in the orc warrior's tag does not count twice.
+        Map<String, Integer> scores = this.mIndex.search("orc");
+        assertEquals(1, scores.size());
+
+        this.mIndex.addName("CustomBitmapToken:1", "Chieftain");
+        this.mIndex.addTag("CustomBitmapToken:1", "Orcs");
+        this.mIndex.addName("CustomBitmapToken:2", "Orcish Shaman");
+        scores = this.mIndex.search("orc");
+        int wholeNameWord = scores.get("BuiltInImageToken:orc_warrior");
+        int namePrefix = scores.get("CustomBitmapToken:2");
+        int tagPrefix = scores.get("CustomBitmapToken:1");
+        assertTrue(wholeNameWord > namePrefix);
+        assertTrue(namePrefix > tagPrefix);
+    }
+
+    @Test
+    public void retag_updatesMatchesIncrementally() {
+        this.mIndex.addTag("LetterToken:W", "Humanoid:Orc");
+        assertTrue(this.mIndex.search("humanoid").containsKey("LetterToken:W"));
+
+        // Still tagged through another path with the same words.
+        this.mIndex.addTag("LetterToken:W", "Orc");
+        this.mIndex.removeTag("LetterToken:W", "Humanoid:Orc");
+        assertEquals(new HashSet<String>(Arrays.asList(
+                "BuiltInImageToken:orc_warrior", "LetterToken:W")),
+                this.mIndex.search("orc").keySet());
+        assertEquals(Collections.singleton("BuiltInImageToken:orc_warrior"),
+                this.mIndex.search("humanoid").keySet());
+
+        this.mIndex.removeTag("LetterToken:W", "Orc");
+        assertEquals(Collections.singleton("BuiltInImageToken:orc_warrior"),
+                this.mIndex.search("orc").keySet());
+    }
+
+    @Test
+    public void rename_replacesOldName() {
+        int oldNameScore = this.mIndex.search("letter").get("LetterToken:W");
+        this.mIndex.addName("LetterToken:W", "Wolf");
+        assertTrue(this.mIndex.search("wolf").containsKey("LetterToken:W"));
+        // "Letter" was only in the old name; the ID and tag still match it,
+        // but not as well.
+        assertTrue(this.mIndex.search("letter").get("LetterToken:W") < oldNameScore);
+    }
+
+    @Test
+    public void removeName_leavesOnlyTags() {
+        this.mIndex.removeName("BuiltInImageToken:oaken_man");
+        assertTrue(this.mIndex.search("oaken").isEmpty());
+        assertEquals(Collections.singleton("BuiltInImageToken:oaken_man"),
+                this.mIndex.search("plant").keySet());
+
+        this.mIndex.removeTag("BuiltInImageToken:oaken_man", "Monsters:Plant");
+        assertTrue(this.mIndex.search("plant").isEmpty());
+    }
+
+    @Test
+    public void search_tenThousandTokens_isFast() {
+        TokenSearchIndex index = new TokenSearchIndex();
+        String[] words = {"goblin", "orc", "dragon", "wizard", "knight", "skeleton", "wolf",
+                "bandit", "cleric", "troll"};
+        for (int i = 0; i < 10000; ++i) {
+            String id = "CustomBitmapToken:" + i;
+            index.addName(id, words[i % words.length] + " " + words[i / 10 % words.length]
+                    + " " + i);
+            index.addTag(id, "Set" + i % 100 + ":" + words[i / 100 % words.length]);
+        }
+
+        // Warm up, then time a mix of short, long and multi-word queries.
+        String[] queries = {"g", "dr", "wizard", "orc kn", "troll set4", "1234", "s"};
+        for (String q : queries) {
+            index.search(q);
+        }
+        int searches = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; ++i) {
+            for (String q : queries) {
+                index.search(q);
+                searches++;
+            }
+        }
+        long averageMicros = (System.nanoTime() - start) / 1000 / searches;
+
+        assertEquals(100, index.search("goblin set0").size());
+        assertEquals(Collections.singleton("CustomBitmapToken:1234"),
+                index.search("1234").keySet());
+        // Fast enough to search on every keystroke.
+        assertTrue("Average search took " + averageMicros + "us", averageMicros < 50000);
+    }
+}
@@ -0,0 +1,195 @@
+package com.tbocek.android.combatmap.cast;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the cast frame queue's bookkeeping: which frames are dropped and
+ * released, the minimum interval between frames, and skipping frames whose
+ * checksum matches the last frame served.
+ *
+ * @author Tim Bocek
+ *
+ */
+public class FrameQueueTest {
+    /**
+     * Minimum frame interval used by the tests, short enough to keep the
+     * tests fast but long enough to measure.
+     */
+    private static final long INTERVAL_MS = 200;
+
+    /**
+     * Slack allowed for thread scheduling when checking how long take()
+     * waited.
+     */
+    private static final long SLACK_MS = 50;
+
+    private FrameQueue<String> mQueue;
+
+    /**
+     * Frames that were released, in order.
+     */
+    private final List<String> mReleased =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Frames that were made independent, in order.
+     */
+    private final List<String> mMadeIndependent =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        this.mQueue = new FrameQueue<String>(INTERVAL_MS) {
+            @Override
+            void release(String frame) {
+                mReleased.add(frame);
+            }
+
+            @Override
+            void makeIndependent(String frame) {
+                mMadeIndependent.add(frame);
+            }
+        };
+        assertTrue(this.mQueue.start());
+    }
+
+    @Test
+    public void request_framePending_dropsAndReleasesIt() throws InterruptedException {
+        this.mQueue.request("a");
+        this.mQueue.request("b");
+
+        assertEquals(Collections.singletonList("a"), this.mReleased);
+        assertEquals("b", this.mQueue.take());
+        assertEquals(Collections.singletonList("b"), this.mMadeIndependent);
+        assertTrue(this.mQueue.getStats(),
+                this.mQueue.getStats().startsWith("requested=2 dropped=1 "));
+    }
+
+    @Test
+    public void request_stopped_releasesFrameWithoutCountingIt() {
+        this.mQueue.stop();
+        this.mQueue.request("a");
+
+        assertEquals(Collections.singletonList("a"), this.mReleased);
+        assertTrue(this.mQueue.getStats(),
+                this.mQueue.getStats().startsWith("requested=0 dropped=0 "));
+    }
+
+    @Test
+    public void take_firstFrame_isNotDelayed() throws InterruptedException {
+        long start = FrameQueue.uptimeMillis();
+        this.mQueue.request("a");
+
+        assertEquals("a", this.mQueue.take());
+        long waited = FrameQueue.uptimeMillis() - start;
+        assertTrue("Waited " + waited + "ms", waited < SLACK_MS);
+    }
+
+    @Test
+    public void take_frameWithinInterval_waitsAndTakesNewestRequest() throws Exception {
+        this.mQueue.request("a");
+        assertEquals("a", this.mQueue.take());
+        final long start = FrameQueue.uptimeMillis();
+        this.mQueue.request("b");
+
+        // Arrives while b waits out the interval, so b is dropped.
+        Thread requests = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(INTERVAL_MS / 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mQueue.request("c");
+            }
+        });
+        requests.start();
+        String taken = this.mQueue.take();
+        long waited = FrameQueue.uptimeMillis() - start;
+        requests.join();
+
+        assertEquals("c", taken);
+        assertTrue("Waited " + waited + "ms", waited >= INTERVAL_MS - SLACK_MS);
+        assertTrue("Waited " + waited + "ms", waited < INTERVAL_MS + SLACK_MS * 2);
+        assertEquals(Collections.singletonList("b"), this.mReleased);
+        // b was taken from the request, and made independent, before c
+        // replaced it.
+        assertEquals(Arrays.asList("a", "b", "c"), this.mMadeIndependent);
+        assertTrue(this.mQueue.getStats(),
+                this.mQueue.getStats().startsWith("requested=3 dropped=1 "));
+    }
+
+    @Test
+    public void stop_waitingWorker_releasesFrameAndEndsTake() throws Exception {
+        this.mQueue.request("a");
+        assertEquals("a", this.mQueue.take());
+        this.mQueue.request("b");
+        final AtomicReference<String> taken = new AtomicReference<String>("not taken");
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken.set(mQueue.take());
+                } catch (InterruptedException e) {
+                    // Leaves taken unchanged.
+                }
+                done.countDown();
+            }
+        });
+        worker.start();
+
+        assertFalse(done.await(INTERVAL_MS / 4, TimeUnit.MILLISECONDS));
+        this.mQueue.stop();
+        assertTrue(done.await(INTERVAL_MS * 10, TimeUnit.MILLISECONDS));
+        worker.join();
+        assertNull(taken.get());
+        assertEquals(Collections.singletonList("b"), this.mReleased);
+    }
+
+    @Test
+    public void start_workerStillRunning_needsNoNewWorker() throws InterruptedException {
+        this.mQueue.stop();
+        // The worker has not noticed the stop yet, so it carries on.
+        assertFalse(this.mQueue.start());
+
+        this.mQueue.stop();
+        assertNull(this.mQueue.take());
+        assertTrue(this.mQueue.start());
+    }
+
+    @Test
+    public void isChanged_sameChecksumAsServedFrame_skipsFrame() {
+        assertTrue(this.mQueue.isChanged(42));
+        this.mQueue.frameServed(42, 30, 10);
+
+        assertFalse(this.mQueue.isChanged(42));
+        assertFalse(this.mQueue.isChanged(42));
+        assertTrue(this.mQueue.isChanged(43));
+        assertEquals("requested=0 dropped=0 rendered=1 unchanged=2 avgRenderMs=30 "
+                + "avgEncodeMs=10", this.mQueue.getStats());
+    }
+
+    @Test
+    public void isChanged_noChecksum_alwaysRendersFrame() {
+        assertTrue(this.mQueue.isChanged(FrameQueue.NO_CHECKSUM));
+        this.mQueue.frameServed(FrameQueue.NO_CHECKSUM, 30, 10);
+
+        assertTrue(this.mQueue.isChanged(FrameQueue.NO_CHECKSUM));
+    }
+}
@@ -0,0 +1,213 @@
+package com.tbocek.android.combatmap.cast;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Loopback tests of the cast frame server: conditional requests, throughput
+ * and latency under concurrent load, and what happens to connections once
+ * the worker pool and its queue are full.
+ *
+ * @author Tim Bocek
+ *
+ */
+public class FrameServerTest {
+    /**
+     * Size of the test frame; about what a 1920x1080 cast frame encodes to.
+     */
+    private static final int FRAME_BYTES = 200 * 1024;
+
+    private static final int LOAD_CLIENTS = 8;
+    private static final int LOAD_REQUESTS_PER_CLIENT = 100;
+
+    private static final int TIMEOUT_MS = 10000;
+
+    private FrameServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FrameServer(0, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FrameServerTest.Worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mServer.start();
+        mServer.setImage(new byte[FRAME_BYTES]);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void serve_matchingETag_returnsNotModified() throws IOException {
+        HttpURLConnection first = open();
+        assertEquals(200, first.getResponseCode());
+        assertEquals(FRAME_BYTES, readFully(first.getInputStream()));
+        String eTag = first.getHeaderField("ETag");
+
+        HttpURLConnection second = open();
+        second.setRequestProperty("If-None-Match", eTag);
+        assertEquals(304, second.getResponseCode());
+
+        mServer.setImage(new byte[FRAME_BYTES + 1]);
+        HttpURLConnection third = open();
+        third.setRequestProperty("If-None-Match", eTag);
+        assertEquals(200, third.getResponseCode());
+        assertEquals(FRAME_BYTES + 1, readFully(third.getInputStream()));
+    }
+
+    @Test
+    public void serve_concurrentClients_servesEveryRequest() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(LOAD_CLIENTS);
+        List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < LOAD_CLIENTS; ++i) {
+            results.add(clients.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws IOException {
+                    long[] latencies = new long[LOAD_REQUESTS_PER_CLIENT];
+                    for (int j = 0; j < LOAD_REQUESTS_PER_CLIENT; ++j) {
+                        long requestStart = System.nanoTime();
+                        HttpURLConnection c = open();
+                        // One connection per request, closed once the frame is read.
+                        c.setRequestProperty("Connection", "close");
+                        assertEquals(200, c.getResponseCode());
+                        assertEquals(FRAME_BYTES, readFully(c.getInputStream()));
+                        latencies[j] = System.nanoTime() - requestStart;
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        long[] latencies = new long[LOAD_CLIENTS * LOAD_REQUESTS_PER_CLIENT];
+        int n = 0;
+        for (Future<long[]> f : results) {
+            for (long latency : f.get()) {
+                latencies[n++] = latency;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+
+        Arrays.sort(latencies);
+        assertTrue(mServer.getStats(), mServer.getStats().contains("requests=" + n + " "));
+        // A worker left waiting on a finished connection holds up the
+        // requests queued behind it until the socket times out.
+        assertTrue(String.format(Locale.US,
+                "Slowest request took %.2fms; %d requests, %.0f requests/sec, "
+                + "latency p50=%.2fms p99=%.2fms",
+                latencies[n - 1] / 1e6, n, n / (elapsed / 1e9), latencies[n / 2] / 1e6,
+                latencies[n * 99 / 100] / 1e6),
+                latencies[n - 1] / 1000000 < NanoHTTPD.SOCKET_READ_TIMEOUT);
+    }
+
+    @Test
+    public void serve_poolAndQueueFull_closesNewConnectionsAndKeepsAccepting()
+            throws IOException {
+        // Idle connections that hold every worker thread and queue slot.
+        List<Socket> idle = new ArrayList<Socket>();
+        for (int i = 0;
+                i < FrameServer.MAX_WORKER_THREADS + FrameServer.MAX_QUEUED_CONNECTIONS; ++i) {
+            idle.add(connect());
+        }
+        try {
+            // Every further connection is closed at once, rather than left
+            // waiting while the listener thread serves it.
+            for (int i = 0; i < 3; ++i) {
+                Socket overflow = connect();
+                try {
+                    overflow.setSoTimeout(TIMEOUT_MS);
+                    OutputStream out = overflow.getOutputStream();
+                    out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("UTF-8"));
+                    out.flush();
+                    assertEquals(-1, overflow.getInputStream().read());
+                } catch (SocketTimeoutException e) {
+                    fail("Connection beyond the queue was left open");
+                } catch (IOException e) {
+                    // Reset by the server, which also counts as closed.
+                } finally {
+                    overflow.close();
+                }
+            }
+            assertTrue(mServer.getStats(), mServer.getStats().contains("connectionsDropped=3"));
+        } finally {
+            for (Socket s : idle) {
+                s.close();
+            }
+        }
+
+        // The server recovers once the idle connections are gone.
+        HttpURLConnection c = open();
+        assertEquals(200, c.getResponseCode());
+        assertEquals(FRAME_BYTES, readFully(c.getInputStream()));
+    }
+
+    private HttpURLConnection open() throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(
+                "http://127.0.0.1:" + mServer.getListeningPort() + "/").openConnection();
+        c.setConnectTimeout(TIMEOUT_MS);
+        c.setReadTimeout(TIMEOUT_MS);
+        return c;
+    }
+
+    /**
+     * Opens a connection and waits until the server has handed it to the
+     * worker pool, by which time it has been accepted.
+     */
+    private Socket connect() throws IOException {
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress("127.0.0.1", mServer.getListeningPort()), TIMEOUT_MS);
+        try {
+            // The listener accepts and dispatches connections in order, so
+            // give it a moment to reach this one.
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return s;
+    }
+
+    private static int readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int total = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                total += n;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+}
@@ -163,31 +163,7 @@ public abstract class NanoHTTPD {
                         registerConnection(finalAccept);
                         finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
                         final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
-                                    }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
-                                    }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
-                                }
-                            }
-                        });
+                        asyncRunner.exec(new ClientHandler(inputStream, finalAccept));
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
@@ -198,6 +174,52 @@ public abstract class NanoHTTPD {
         myThread.start();
     }
 
+    /**
+     * Serves the requests on one client connection, and closes it when done.
+     * This is the code an {@link AsyncRunner} is given to execute; a runner
+     * that can't execute it must call {@link #close()} instead.
+     */
+    public class ClientHandler implements Runnable {
+        private final InputStream inputStream;
+        private final Socket acceptSocket;
+
+        private ClientHandler(InputStream inputStream, Socket acceptSocket) {
+            this.inputStream = inputStream;
+            this.acceptSocket = acceptSocket;
+        }
+
+        /**
+         * Closes the connection without serving it.
+         */
+        public void close() {
+            safeClose(inputStream);
+            safeClose(acceptSocket);
+            unRegisterConnection(acceptSocket);
+        }
+
+        @Override
+        public void run() {
+            OutputStream outputStream = null;
+            try {
+                outputStream = acceptSocket.getOutputStream();
+                TempFileManager tempFileManager = tempFileManagerFactory.create();
+                HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, acceptSocket.getInetAddress());
+                while (!acceptSocket.isClosed()) {
+                    session.execute();
+                }
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own SocketException
+                // to break the  "keep alive" loop above.
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+            } finally {
+                safeClose(outputStream);
+                close();
+            }
+        }
+    }
+
     /**
      * Stop the server.
      */
@@ -921,9 +943,19 @@ public abstract class NanoHTTPD {
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
                 } else {
+                    // Honour a client's request to close the connection, rather than keeping
+                    // a thread waiting for its next request until the socket times out.
+                    boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                    if (!keepAlive) {
+                        r.addHeader("Connection", "close");
+                    }
                     cookies.unloadQueue(r);
                     r.setRequestMethod(method);
                     r.send(outputStream);
+                    if (!keepAlive) {
+                        safeClose(outputStream);
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
                 }
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)